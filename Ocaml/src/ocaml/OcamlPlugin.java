@@ -39,11 +39,16 @@ import java.io.File;
 import java.net.URL;
 
 import ocaml.debugging.OcamlDebugger;
+import ocaml.editor.completion.DefinitionsSuperTree;
 import ocaml.editor.syntaxcoloring.OcamlPartitionScanner;
 import ocaml.editors.lex.OcamllexPartitionScanner;
 import ocaml.editors.yacc.OcamlyaccPartitionScanner;
+import ocaml.parsers.InterfaceIndex;
 import ocaml.preferences.PreferenceConstants;
+import ocaml.typeHovers.AnnotReferenceIndex;
+import ocaml.typeHovers.ScratchTypeChecker;
 import ocaml.util.GeneratedResourcesHandler;
+import ocaml.util.LineOffsetIndex;
 import ocaml.views.outline.OutlineBuildListener;
 import ocaml.views.toplevel.OcamlToplevelView;
 
@@ -483,6 +488,17 @@ public class OcamlPlugin extends AbstractUIPlugin {
 		   workspace.addResourceChangeListener(this.folderChangeListener,
 		      IResourceChangeEvent.POST_CHANGE);
 
+		// keep the definitions used by completion up to date with the project files
+		workspace.addResourceChangeListener(DefinitionsSuperTree.getInstance(),
+				IResourceChangeEvent.POST_CHANGE);
+
+		// keep the references read from the annotations files up to date for the hyperlinks
+		workspace.addResourceChangeListener(AnnotReferenceIndex.getInstance(),
+				IResourceChangeEvent.POST_CHANGE);
+
+		// forget the lines of the modified files
+		workspace.addResourceChangeListener(LineOffsetIndex.getInstance(),
+				IResourceChangeEvent.POST_CHANGE);
 	}
 
 	/** The registered listeners. Used to remove it afterwards. */
@@ -499,12 +515,22 @@ public class OcamlPlugin extends AbstractUIPlugin {
 	@Override
 	public void stop(BundleContext context) throws Exception {
 
+		// save the parsed interfaces for the next session (while we can still access the state location)
+		InterfaceIndex.getInstance().save();
+		// delete the modules type-checked for the hovers
+		ScratchTypeChecker.getInstance().dispose();
+
 		super.stop(context);
 		final IWorkspace workspace = ResourcesPlugin.getWorkspace();
 		// Remove the previously listener
 		workspace.removeResourceChangeListener(registeredListener);
 		workspace.removeResourceChangeListener(outlineBuildListener);
 		workspace.removeResourceChangeListener(folderChangeListener);
+		DefinitionsSuperTree.disposeInstance();
+		workspace.removeResourceChangeListener(AnnotReferenceIndex.getInstance());
+		AnnotReferenceIndex.getInstance().dispose();
+		workspace.removeResourceChangeListener(LineOffsetIndex.getInstance());
+		LineOffsetIndex.getInstance().dispose();
 
 		// stop the ocamldebug process if it is started
 		OcamlDebugger debugger = OcamlDebugger.getInstance();
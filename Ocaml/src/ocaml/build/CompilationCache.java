@@ -0,0 +1,398 @@
+package ocaml.build;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ocaml.OcamlPlugin;
+import ocaml.preferences.PreferenceConstants;
+import ocaml.util.FileUtil;
+
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.jface.preference.IPreferenceStore;
+
+/**
+ * A local cache of the outputs of the compiler (.cmi, .cmo, .cmx, .o, .annot files and messages), so that a
+ * module compiled again with the same inputs (after a clean, or after switching back to a branch) is restored
+ * from the cache instead of running the compiler.
+ * <p>
+ * An entry is identified by a digest of the compilation commands (which include the compiler, the include
+ * paths, the flags and the compilation mode), of a stamp of the compiler and of the libraries outside of the
+ * project, of the source file and of the compiled interfaces (and the .cmx files in native mode) of the
+ * modules it depends on. The entries are kept in the plugin state location; the least recently used ones
+ * are removed when the cache is bigger than its maximum size.
+ */
+public class CompilationCache {
+
+	private static CompilationCache instance;
+
+	public static synchronized CompilationCache getInstance() {
+		if (instance == null)
+			instance = new CompilationCache();
+		return instance;
+	}
+
+	/** The name of the file of an entry which contains the messages of the compiler */
+	private static final String MESSAGES = "messages";
+
+	/** The messages of the compiler, restored with the files of an entry */
+	public static class Messages {
+		public final String stdout;
+		public final String stderr;
+		/** The output of the command generating the interface, or <code>null</code> if it wasn't run */
+		public final String interfaceStdout;
+
+		public Messages(String stdout, String stderr, String interfaceStdout) {
+			this.stdout = stdout;
+			this.stderr = stderr;
+			this.interfaceStdout = interfaceStdout;
+		}
+	}
+
+	/** The directory of the entries */
+	private final File directory;
+
+	/**
+	 * The size of each entry (by its key), from the least recently used one to the most recently used one.
+	 * <code>null</code> until the entries are read from the cache directory.
+	 */
+	private LinkedHashMap<String, Long> entries = null;
+
+	private long totalSize = 0;
+
+	/** The statistics since the start of the plugin */
+	private int hits = 0;
+	private int misses = 0;
+
+	private CompilationCache() {
+		IPath stateLocation = OcamlPlugin.getInstance().getStateLocation();
+		directory = stateLocation.append("compilation-cache").toFile();
+	}
+
+	/** Whether the compilation cache is enabled in the preferences */
+	public boolean isEnabled() {
+		return OcamlPlugin.getInstance().getPreferenceStore().getBoolean(
+				PreferenceConstants.P_COMPILATION_CACHE);
+	}
+
+	public synchronized int getHits() {
+		return hits;
+	}
+
+	public synchronized int getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Compute the key of a compilation.
+	 *
+	 * @param commands
+	 *            the commands run to compile the module (the <code>null</code> ones are ignored)
+	 * @param environment
+	 *            a stamp of the compiler and of the libraries outside of the project
+	 * @param source
+	 *            the compiled file
+	 * @param dependencies
+	 *            the compiled files read by the compiler (they may not exist)
+	 * @return the key, or <code>null</code> if the source couldn't be read
+	 */
+	public String computeKey(List<String[]> commands, String environment, File source,
+			List<File> dependencies) {
+		byte[] sourceDigest = FileUtil.digest(source);
+		if (sourceDigest == null)
+			return null;
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			OcamlPlugin.logError("error in CompilationCache:computeKey", e);
+			return null;
+		}
+
+		for (String[] command : commands) {
+			if (command == null)
+				continue;
+			for (String word : command)
+				update(digest, word);
+			update(digest, "");
+		}
+		update(digest, environment);
+		digest.update(sourceDigest);
+		for (File dependency : dependencies) {
+			update(digest, dependency.getName());
+			byte[] dependencyDigest = FileUtil.digest(dependency);
+			if (dependencyDigest != null)
+				digest.update(dependencyDigest);
+		}
+
+		StringBuilder key = new StringBuilder();
+		for (byte b : digest.digest())
+			key.append(String.format("%02x", b & 0xff));
+		return key.toString();
+	}
+
+	private static void update(MessageDigest digest, String string) {
+		try {
+			digest.update(string.getBytes("UTF-8"));
+		} catch (IOException e) {
+			OcamlPlugin.logError("error in CompilationCache:update", e);
+		}
+		// a separator, so that two different lists can't give the same bytes
+		digest.update((byte) 0);
+	}
+
+	/**
+	 * Restore the outputs of a compilation from the cache.
+	 *
+	 * @param key
+	 *            the key of the compilation
+	 * @param outputs
+	 *            the files the compiler would write: the files of the entry are restored to the files with
+	 *            the same names
+	 * @return the messages of the compiler, or <code>null</code> if the compilation is not in the cache
+	 */
+	public Messages restore(String key, List<File> outputs) {
+		synchronized (this) {
+			readEntries();
+			// get() moves the entry to the end of the access order
+			if (entries.get(key) == null) {
+				misses++;
+				return null;
+			}
+		}
+
+		File entry = new File(directory, key);
+		Messages messages = null;
+		try {
+			messages = readMessages(new File(entry, MESSAGES));
+			for (File output : outputs) {
+				File cached = new File(entry, output.getName());
+				if (cached.isFile())
+					copy(cached, output);
+			}
+			// the modification time gives the order of use in the next sessions
+			entry.setLastModified(System.currentTimeMillis());
+		} catch (IOException e) {
+			// an incomplete entry (or removed in the meantime): the module will be compiled
+			OcamlPlugin.logWarning("Couldn't restore the compilation " + key + " from the cache: "
+					+ e.getMessage());
+			synchronized (this) {
+				misses++;
+				Long size = entries.remove(key);
+				if (size != null) {
+					totalSize -= size;
+					deleteDirectory(entry);
+				}
+			}
+			return null;
+		}
+
+		synchronized (this) {
+			hits++;
+		}
+		return messages;
+	}
+
+	/**
+	 * Add the outputs of a successful compilation to the cache.
+	 *
+	 * @param key
+	 *            the key of the compilation
+	 * @param outputs
+	 *            the files which may have been written by the compiler
+	 * @param since
+	 *            when the compilation started: only the outputs modified since are stored
+	 */
+	public void store(String key, List<File> outputs, long since, Messages messages) {
+		synchronized (this) {
+			readEntries();
+			if (entries.containsKey(key))
+				return;
+		}
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			OcamlPlugin.logWarning("Couldn't create the compilation cache " + directory.getPath());
+			return;
+		}
+
+		// written in a temporary directory, so that an entry is always complete
+		File tempEntry = new File(directory, key + "." + Thread.currentThread().getId() + ".tmp");
+		File entry = new File(directory, key);
+		long size = 0;
+		try {
+			if (!tempEntry.mkdir())
+				throw new IOException("cannot create " + tempEntry.getPath());
+			for (File output : outputs) {
+				// some file systems keep the time stamps to the second only
+				if (output.isFile() && output.lastModified() >= since - 1000) {
+					File cached = new File(tempEntry, output.getName());
+					copy(output, cached);
+					size += cached.length();
+				}
+			}
+			File messagesFile = new File(tempEntry, MESSAGES);
+			writeMessages(messagesFile, messages);
+			size += messagesFile.length();
+
+			if (!tempEntry.renameTo(entry))
+				throw new IOException("cannot rename " + tempEntry.getPath());
+		} catch (IOException e) {
+			OcamlPlugin.logWarning("Couldn't store the compilation " + key + " in the cache: "
+					+ e.getMessage());
+			deleteDirectory(tempEntry);
+			return;
+		}
+
+		synchronized (this) {
+			entries.put(key, size);
+			totalSize += size;
+			evict();
+		}
+	}
+
+	/** Remove the least recently used entries until the cache is not bigger than its maximum size */
+	private void evict() {
+		IPreferenceStore store = OcamlPlugin.getInstance().getPreferenceStore();
+		long maxSize = store.getInt(PreferenceConstants.P_COMPILATION_CACHE_SIZE) * 1024L * 1024L;
+
+		Iterator<Map.Entry<String, Long>> iterator = entries.entrySet().iterator();
+		while (totalSize > maxSize && iterator.hasNext()) {
+			Map.Entry<String, Long> entry = iterator.next();
+			deleteDirectory(new File(directory, entry.getKey()));
+			totalSize -= entry.getValue();
+			iterator.remove();
+		}
+	}
+
+	/** Read the entries of the cache directory (the first time only), ordered by their last use */
+	private void readEntries() {
+		if (entries != null)
+			return;
+		// in access order
+		entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+
+		List<File> entryDirectories = new ArrayList<File>();
+		for (File file : files) {
+			if (!file.isDirectory())
+				continue;
+			// the temporary entries of an interrupted session
+			if (file.getName().endsWith(".tmp"))
+				deleteDirectory(file);
+			else
+				entryDirectories.add(file);
+		}
+
+		Collections.sort(entryDirectories, new Comparator<File>() {
+			public int compare(File f1, File f2) {
+				long m1 = f1.lastModified();
+				long m2 = f2.lastModified();
+				return m1 < m2 ? -1 : (m1 > m2 ? 1 : 0);
+			}
+		});
+
+		for (File entry : entryDirectories) {
+			long size = 0;
+			File[] entryFiles = entry.listFiles();
+			if (entryFiles != null)
+				for (File file : entryFiles)
+					size += file.length();
+			entries.put(entry.getName(), size);
+			totalSize += size;
+		}
+	}
+
+	private static void writeMessages(File file, Messages messages) throws IOException {
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			writeString(out, messages.stdout);
+			writeString(out, messages.stderr);
+			out.writeBoolean(messages.interfaceStdout != null);
+			if (messages.interfaceStdout != null)
+				writeString(out, messages.interfaceStdout);
+		} finally {
+			FileUtil.closeResource(out);
+		}
+	}
+
+	private static Messages readMessages(File file) throws IOException {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			String stdout = readString(in);
+			String stderr = readString(in);
+			String interfaceStdout = in.readBoolean() ? readString(in) : null;
+			return new Messages(stdout, stderr, interfaceStdout);
+		} finally {
+			FileUtil.closeResource(in);
+		}
+	}
+
+	/** writeUTF is limited to 64 KB */
+	private static void writeString(DataOutputStream out, String string) throws IOException {
+		byte[] bytes = string.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			throw new IOException("invalid string length " + length);
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static void copy(File from, File to) throws IOException {
+		InputStream in = null;
+		OutputStream out = null;
+		try {
+			in = new FileInputStream(from);
+			out = new FileOutputStream(to);
+			byte[] bytes = new byte[1 << 16];
+			int read;
+			while ((read = in.read(bytes)) != -1)
+				out.write(bytes, 0, read);
+		} finally {
+			FileUtil.closeResource(in);
+			FileUtil.closeResource(out);
+		}
+	}
+
+	private static void deleteDirectory(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null)
+			for (File file : files)
+				file.delete();
+		directory.delete();
+	}
+
+	/** The description of the statistics of the cache between two moments */
+	public static String describeStatistics(int hits, int misses) {
+		int lookups = hits + misses;
+		return "Compilation cache: " + hits + " hit" + (hits == 1 ? "" : "s") + ", " + misses + " miss"
+				+ (misses == 1 ? "" : "es") + " (" + (lookups == 0 ? 0 : hits * 100 / lookups) + "% hit rate)";
+	}
+}
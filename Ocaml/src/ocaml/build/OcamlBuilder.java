@@ -1,16 +1,20 @@
 package ocaml.build;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import ocaml.OcamlPlugin;
 import ocaml.build.graph.CompilerVisitor;
 import ocaml.build.graph.DependenciesSetter;
-import ocaml.build.graph.IPostNeededFilesVisitor;
+import ocaml.build.graph.DependencyScheduler;
+import ocaml.build.graph.GraphStore;
 import ocaml.build.graph.LayersGraph;
 import ocaml.build.graph.LinkerVisitor;
 import ocaml.build.graph.Vertex;
+import ocaml.preferences.PreferenceConstants;
 import ocaml.util.Misc;
 import ocaml.util.OcamlPaths;
 
@@ -26,6 +30,7 @@ import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.QualifiedName;
+import org.eclipse.jface.preference.IPreferenceStore;
 
 /**
  * This class is responsible for building a standard OCaml project (without makefile).<br>
@@ -78,6 +83,12 @@ public class OcamlBuilder extends IncrementalProjectBuilder {
 	 */
 	public static final String COMPILATION_ERRORS = "compilation_errors";
 
+	/**
+	 * Name of a file persistent property: the time taken to compile the file during the last build, in
+	 * milliseconds. It is used to compile first the files on the longest paths of dependencies.
+	 */
+	public static final String COMPILATION_TIME = "compilation_time";
+
 	/**
 	 * Persistent property that identifies automatically generated resources during compilation.
 	 */
@@ -127,8 +138,56 @@ public class OcamlBuilder extends IncrementalProjectBuilder {
 		 * them when it is opened.
 		 */
 		forgetLastBuiltState();
-		// initialize the dependencies graph
-		dependenciesInitializing(getProject());
+		// initialize the dependencies graph, from the one saved in the last session if possible
+		if (!dependenciesRestoring(getProject()))
+			dependenciesInitializing(getProject());
+	}
+
+	/**
+	 * Initialize the dependencies graph from the graph saved at the last build, and compute again only the
+	 * dependencies of the files which were added or modified since.
+	 * 
+	 * @param project
+	 *            the project whose graph is restored
+	 * @return <code>false</code> if there is no usable saved graph
+	 */
+	private boolean dependenciesRestoring(final IProject project) {
+		final List<IFile> changedFiles = new ArrayList<IFile>();
+		final LayersGraph savedGraph = GraphStore.load(project, changedFiles);
+		if (savedGraph == null)
+			return false;
+
+		final List<IFile> files = new ArrayList<IFile>();
+		final List<IPath> paths = new ArrayList<IPath>();
+		try {
+			project.accept(new SuitableFilesFinder(files, paths));
+		} catch (CoreException e) {
+			OcamlPlugin.logError("error in OcamlBuilder:dependenciesRestoring:"
+					+ " error finding files to add in graph building", e);
+			return false;
+		}
+
+		if (!paths.isEmpty())
+			OcamlPaths.addToPaths(paths, project);
+
+		// the files added since the graph was saved
+		final Set<IFile> filesInGraph = new HashSet<IFile>();
+		for (int i = 0; i < savedGraph.getLayersCount(); i++)
+			for (Vertex vertex : savedGraph.getLayer(i))
+				filesInGraph.add(vertex.getFile());
+		for (IFile file : files) {
+			if (!filesInGraph.contains(file) && !changedFiles.contains(file))
+				changedFiles.add(file);
+		}
+
+		this.dependenciesGraph = savedGraph;
+		if (!changedFiles.isEmpty()) {
+			// like for an incremental build
+			final LayersGraph deltaGraph = new LayersGraph(savedGraph.getLayersCount());
+			addFilesToGraph(savedGraph, deltaGraph, changedFiles);
+			savedGraph.mergeWith(deltaGraph);
+		}
+		return true;
 	}
 
 	/**
@@ -213,6 +272,7 @@ public class OcamlBuilder extends IncrementalProjectBuilder {
 	@Override
 	protected IProject[] build(int kind, @SuppressWarnings("unchecked") Map args, IProgressMonitor monitor) throws CoreException {
 
+		final long buildStart = System.currentTimeMillis();
 		Misc.appendToOcamlConsole("===== Build \u2116" + nBuild++ + " =====");
 
 		getProject().deleteMarkers(IMarker.PROBLEM, false, IResource.DEPTH_ZERO);
@@ -234,6 +294,8 @@ public class OcamlBuilder extends IncrementalProjectBuilder {
 
 		// Re-associate the graph to the project
 		OcamlBuilder.setDependenciesGraph(getProject(), dependenciesGraph);
+		// and save it for the next session
+		GraphStore.save(getProject(), dependenciesGraph, buildStart);
 		return null;
 	}
 
@@ -254,30 +316,68 @@ public class OcamlBuilder extends IncrementalProjectBuilder {
 
 		// Phase 1 : compile the graph layers; done by this visitor
 		monitor.subTask("Compiling graph layers");
-		dependenciesGraph.accept(new CompilerVisitor(dependenciesGraph), monitor);
+		final Set<IFile> compiledFiles = compile(dependenciesGraph, monitor);
 		updateProjectErrorDecorator();
 		monitor.worked(1);
 
 		// Phase 2 : refresh the file system so that the linker will see all the cm* files that were created
 		monitor.subTask("Refreshing file system");
-		Misc.refreshFileSystem(project, monitor);
+		refreshGeneratedFiles(project, compiledFiles, monitor);
 		monitor.worked(1);
 
 		// Phase 3: link the executable files
 		monitor.subTask("Linking executables");
-		dependenciesGraph.accept(new LinkerVisitor(), monitor);
+		final LinkerVisitor linker = new LinkerVisitor();
+		dependenciesGraph.accept(linker, monitor);
 		monitor.worked(1);
 
 		// Phase 4 : refresh the file system again, so that the generated exe files will get the "IS_GEN"
 		// property
 		monitor.subTask("Refreshing file system");
-		Misc.refreshFileSystem(project, monitor);
+		refreshGeneratedFiles(project, linker.getGeneratedFiles(), monitor);
 		monitor.worked(1);
 
 		monitor.done();
 
 	}
 
+	/**
+	 * Compile the files of the graph, several at the same time: either each file as soon as the files it
+	 * depends on are compiled, or layer by layer (the files of a graph layer don't depend on each other).
+	 * 
+	 * @return the files written or deleted by the compiler
+	 */
+	private static Set<IFile> compile(LayersGraph graph, IProgressMonitor monitor) {
+		final IPreferenceStore store = OcamlPlugin.getInstance().getPreferenceStore();
+		final int nWorkers = Math.max(1, store.getInt(PreferenceConstants.P_COMPILATION_WORKERS));
+		final CompilerVisitor visitor = new CompilerVisitor(graph);
+		final CompilationCache cache = CompilationCache.getInstance();
+		final int hits = cache.getHits();
+		final int misses = cache.getMisses();
+
+		if (store.getBoolean(PreferenceConstants.P_COMPILATION_BY_DEPENDENCIES))
+			new DependencyScheduler(graph, nWorkers).accept(visitor, monitor);
+		else
+			graph.accept(visitor, monitor, nWorkers);
+
+		if (cache.getHits() + cache.getMisses() > hits + misses)
+			Misc.appendToOcamlConsole(CompilationCache.describeStatistics(cache.getHits() - hits,
+					cache.getMisses() - misses));
+		return visitor.getGeneratedFiles();
+	}
+
+	/**
+	 * Refresh the files written or deleted during a phase of the build, instead of the whole project (which
+	 * can contain big trees of files unrelated to the build), unless the preferences ask for a full refresh.
+	 */
+	private static void refreshGeneratedFiles(IProject project, Set<IFile> files, IProgressMonitor monitor) {
+		final IPreferenceStore store = OcamlPlugin.getInstance().getPreferenceStore();
+		if (store.getBoolean(PreferenceConstants.P_REFRESH_GENERATED_FILES_ONLY))
+			Misc.refreshFiles(files, monitor);
+		else
+			Misc.refreshFileSystem(project, monitor);
+	}
+
 	/** Incremental build: compile only modified resources. */
 	protected void incrementalBuild(IResourceDelta delta, IProgressMonitor monitor) {
 		try {
@@ -318,18 +418,19 @@ public class OcamlBuilder extends IncrementalProjectBuilder {
 			 * layers.
 			 */
 			monitor.subTask("Compiling graph layers");
-			deltaGraph.accept(new CompilerVisitor(deltaGraph), monitor);
+			final Set<IFile> compiledFiles = compile(deltaGraph, monitor);
 			updateProjectErrorDecorator();
 			monitor.worked(1);
 
 			// Phase 4 : refresh the file system
 			monitor.subTask("refreshing file system");
-			Misc.refreshFileSystem(project, monitor);
+			refreshGeneratedFiles(project, compiledFiles, monitor);
 			monitor.worked(1);
 
 			// Phase 5 : Re-link the old affected executables, and the new ones which were created
 			monitor.subTask("Linking executables ");
-			deltaGraph.accept(new LinkerVisitor(), monitor);
+			final LinkerVisitor linker = new LinkerVisitor();
+			deltaGraph.accept(linker, monitor);
 			monitor.worked(1);
 
 			// Phase 6: merge the two graphs
@@ -339,7 +440,7 @@ public class OcamlBuilder extends IncrementalProjectBuilder {
 
 			// Phase 7 : refresh the file system again to find files generated by the linking phase
 			monitor.subTask("refreshing file system");
-			Misc.refreshFileSystem(project, monitor);
+			refreshGeneratedFiles(project, linker.getGeneratedFiles(), monitor);
 			monitor.worked(1);
 
 			monitor.done();
@@ -369,7 +470,7 @@ public class OcamlBuilder extends IncrementalProjectBuilder {
 	 */
 	protected void addFilesToGraph(LayersGraph referenceGraph, LayersGraph graphToFill, List<IFile> filesToAdd) {
 		// The visitor that is going to compute dependencies
-		IPostNeededFilesVisitor depsCreatorVisitor;
+		DependenciesSetter depsCreatorVisitor;
 
 		// The vertices returned by this visitor
 		final List<Vertex> verticesToAdd = new ArrayList<Vertex>(filesToAdd.size());
@@ -412,6 +513,11 @@ public class OcamlBuilder extends IncrementalProjectBuilder {
 			depsCreatorVisitor = new DependenciesSetter(referenceGraph, verticesToAdd, filesToAdd);
 		}
 
+		// Run ocamldep on batches of files rather than on each file as it is visited
+		final int nWorkers = OcamlPlugin.getInstance().getPreferenceStore().getInt(
+				PreferenceConstants.P_COMPILATION_WORKERS);
+		depsCreatorVisitor.computeDependencies(filesToAdd, nWorkers);
+
 		// On traite chacun des fichiers sauf ceux déjà visités par le visiteur.
 		// Ce dernier est également capable de reconnaitre un fichier déjà
 		// visité, et ne le visitera pas. (Indispensable si deux fichiers
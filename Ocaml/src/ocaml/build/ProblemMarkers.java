@@ -1,36 +1,41 @@
 package ocaml.build;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
-import java.util.Hashtable;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.TreeSet;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import ocaml.OcamlPlugin;
-import ocaml.util.FileUtil;
+import ocaml.util.LineOffsetIndex;
 import ocaml.util.Misc;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IMarker;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IWorkspaceRunnable;
+import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.ui.texteditor.MarkerUtilities;
 
 /**
  * Parse error messages returned by the OCaml compiler, and create error markers for the
- * corresponding resources in the project.
+ * corresponding resources in the project.<br>
+ * The output can be parsed while the process writes it (see {@link #append(String)}), and the markers are
+ * created in batches (see {@link #writeMarkers()}).
  */
 public class ProblemMarkers {
 
 	private final IProject project;
 
+	/** Whether the parsed output comes from a make command (or ocamlbuild), or from the OCaml compiler */
+	private final boolean bMakeOutput;
+
 	private boolean bErrorsFound;
 
 	private boolean bWarningsFound;
@@ -43,8 +48,45 @@ public class ProblemMarkers {
 
 	private final TreeSet<WarningFile> warningFiles = new TreeSet<WarningFile>();
 
+	/** A problem found in the output, whose marker isn't created yet */
+	private static class Problem {
+		final IResource resource;
+		final Map<String, Object> attributes;
+
+		Problem(IResource resource, Map<String, Object> attributes) {
+			this.resource = resource;
+			this.attributes = attributes;
+		}
+	}
+
+	/** The problems found since the last call to {@link #writeMarkers()} */
+	private final List<Problem> pendingProblems = new ArrayList<Problem>();
+
+	/** The end of the output received so far, after its last line break */
+	private final StringBuilder pendingLine = new StringBuilder();
+
+	/** The state of the parser: the message being read, and its position */
+	private final StringBuilder currentMessage = new StringBuilder();
+	private String filename = "";
+	private int lineNumber = 0;
+	private int charStart = 0;
+	private int charEnd = 0;
+	/** Whether the lines of a make output are ignored (they are not part of a message) */
+	private boolean skip = true;
+
+	/** A parser for the output of the OCaml compiler */
 	public ProblemMarkers(IProject project) {
+		this(project, false);
+	}
+
+	/**
+	 * @param bMakeOutput
+	 *            whether the output comes from a make command (or ocamlbuild), which prints other lines
+	 *            between the messages of the compiler
+	 */
+	public ProblemMarkers(IProject project, boolean bMakeOutput) {
 		this.project = project;
+		this.bMakeOutput = bMakeOutput;
 		bErrorsFound = false;
 		bWarningsFound = false;
 		bProjectErrorsFound = false;
@@ -64,126 +106,187 @@ public class ProblemMarkers {
 	private final Pattern patternFile = Pattern
 			.compile("^\\s*File (\"?)(.+?)\\1[:,] line (\\d+), characters (\\d+)-(\\d+):?\\s*$");
 
+	/** The commands echoed by make, which end the current message */
+	private final Pattern patternCommand = Pattern
+			.compile("^-?(?:make|o?caml|rm |mkdir |cp |mv |cd |for |if |gcc |/|\\.|Command exited ).*");
+
 	/** Create the markers for error messages coming from the OCaml compiler. */
 	public void makeMarkers(String compilerOutput) {
+		parse(compilerOutput, false);
+		writeMarkers();
+	}
 
-		String[] lines = compilerOutput.split("\\r?\\n");
-		String currentMessage = "";
-		int charStart = 0;
-		int charEnd = 0;
-		int lineNumber = 0;
-		String filename = "";
-
-		for (String line : lines) {
+	/** Create error markers for the error messages returned by the make command */
+	public void makeMarkers2(String makeOutput) {
+		parse(makeOutput, true);
+		writeMarkers();
+	}
 
-			Matcher matcher = patternFile.matcher(line);
-			if (matcher.find()) {
+	private synchronized void parse(String output, boolean bMake) {
+		for (String line : output.split("\\r?\\n"))
+			parseLine(line, bMake);
+		endMessage();
+	}
 
-				if (!currentMessage.equals("")) {
-					writeProblemMarker(filename, lineNumber, charStart, charEnd, currentMessage
-							.trim());
-					currentMessage = "";
-				}
+	/**
+	 * Parse the next part of the output, as soon as the process wrote it: the problems of its complete lines
+	 * are found (their markers are created by {@link #writeMarkers()}).
+	 */
+	public synchronized void append(String output) {
+		int start = 0;
+		int end;
+		while ((end = output.indexOf('\n', start)) != -1) {
+			pendingLine.append(output, start, end);
+			int length = pendingLine.length();
+			if (length > 0 && pendingLine.charAt(length - 1) == '\r')
+				pendingLine.setLength(length - 1);
+			parseLine(pendingLine.toString(), bMakeOutput);
+			pendingLine.setLength(0);
+			start = end + 1;
+		}
+		pendingLine.append(output, start, output.length());
+	}
 
-				filename = matcher.group(2);
-				lineNumber = Integer.parseInt(matcher.group(3));
-				charStart = Integer.parseInt(matcher.group(4));
-				charEnd = Integer.parseInt(matcher.group(5));
-
-				/* if the start and end positions are equal, the marker doesn't appear */
-				if (charStart == charEnd && charStart > 0)
-					charStart--;
-			} else if (line.startsWith("Error while linking") && (!currentMessage.equals(""))) {
-				writeProblemMarker("", 0, 0, 0, currentMessage.trim());
-				currentMessage = line;
-			} else {
-				currentMessage = currentMessage + "\n" + line;
-			}
+	/** Parse the end of the output, once the process ended */
+	public synchronized void endOutput() {
+		if (pendingLine.length() > 0) {
+			parseLine(pendingLine.toString(), bMakeOutput);
+			pendingLine.setLength(0);
 		}
+		endMessage();
+	}
 
-		currentMessage = currentMessage.trim();
-		if (!currentMessage.equals(""))
-			writeProblemMarker(filename, lineNumber, charStart, charEnd, currentMessage);
+	private void parseLine(String line, boolean bMake) {
+		if (bMake)
+			parseMakeLine(line);
+		else
+			parseCompilerLine(line);
 	}
 
-	/** Create error markers for the error messages returned by the make command */
-	public void makeMarkers2(String makeOutput) {
+	private void parseCompilerLine(String line) {
+		Matcher matcher = patternFile.matcher(line);
+		if (matcher.find()) {
 
-		String[] lines = makeOutput.split("\\r?\\n");
-		String currentMessage = "";
-		int charStart = 0;
-		int charEnd = 0;
-		int lineNumber = 0;
-		String filename = "";
-
-		boolean skip = true;
-
-		for (String line : lines) {
-			if (line
-					.matches("^-?(?:make|o?caml|rm |mkdir |cp |mv |cd |for |if |gcc |/|\\.|Command exited ).*")) {
-				if (!currentMessage.trim().equals("")) {
-					writeProblemMarker(filename, lineNumber, charStart, charEnd, currentMessage
-							.trim());
-					currentMessage = "";
-				}
-				skip = true;
+			if (currentMessage.length() != 0) {
+				addProblem(filename, lineNumber, charStart, charEnd, currentMessage.toString().trim());
+				currentMessage.setLength(0);
 			}
 
-			Matcher matcherError = patternErrorMessages.matcher(line);
-			if (matcherError.find()) {
-				skip = false;
-
-				if (!currentMessage.trim().equals("")) {
-					writeProblemMarker(filename, lineNumber, charStart, charEnd, currentMessage
-							.trim());
-					currentMessage = "";
-				}
+			filename = matcher.group(2);
+			lineNumber = Integer.parseInt(matcher.group(3));
+			charStart = Integer.parseInt(matcher.group(4));
+			charEnd = Integer.parseInt(matcher.group(5));
+
+			/* if the start and end positions are equal, the marker doesn't appear */
+			if (charStart == charEnd && charStart > 0)
+				charStart--;
+		} else if (line.startsWith("Error while linking") && currentMessage.length() != 0) {
+			addProblem("", 0, 0, 0, currentMessage.toString().trim());
+			currentMessage.setLength(0);
+			currentMessage.append(line);
+		} else {
+			currentMessage.append('\n').append(line);
+		}
+	}
 
-				filename = "";
-				lineNumber = 0;
-				charStart = 0;
-				charEnd = 0;
-				currentMessage = line;
-				continue;
+	private void parseMakeLine(String line) {
+		if (patternCommand.matcher(line).matches()) {
+			if (currentMessage.toString().trim().length() != 0) {
+				addProblem(filename, lineNumber, charStart, charEnd, currentMessage.toString().trim());
+				currentMessage.setLength(0);
 			}
+			skip = true;
+		}
 
-			Matcher matcher = patternFile.matcher(line);
-			if (matcher.find()) {
-				skip = false;
+		Matcher matcherError = patternErrorMessages.matcher(line);
+		if (matcherError.find()) {
+			skip = false;
 
-				if (!currentMessage.trim().equals("")) {
-					writeProblemMarker(filename, lineNumber, charStart, charEnd, currentMessage
-							.trim());
-					currentMessage = "";
-				}
-				filename = matcher.group(2);
-				lineNumber = Integer.parseInt(matcher.group(3));
-				charStart = Integer.parseInt(matcher.group(4));
-				charEnd = Integer.parseInt(matcher.group(5));
-
-			} else if (line.startsWith("Error while linking")) {
-				if (!currentMessage.equals(""))
-					writeProblemMarker("", 0, 0, 0, currentMessage.trim());
-				currentMessage = line;
-			} else if (!skip) {
-				currentMessage = currentMessage + "\n" + line;
+			if (currentMessage.toString().trim().length() != 0)
+				addProblem(filename, lineNumber, charStart, charEnd, currentMessage.toString().trim());
+
+			filename = "";
+			lineNumber = 0;
+			charStart = 0;
+			charEnd = 0;
+			currentMessage.setLength(0);
+			currentMessage.append(line);
+			return;
+		}
+
+		Matcher matcher = patternFile.matcher(line);
+		if (matcher.find()) {
+			skip = false;
+
+			if (currentMessage.toString().trim().length() != 0) {
+				addProblem(filename, lineNumber, charStart, charEnd, currentMessage.toString().trim());
+				currentMessage.setLength(0);
 			}
+			filename = matcher.group(2);
+			lineNumber = Integer.parseInt(matcher.group(3));
+			charStart = Integer.parseInt(matcher.group(4));
+			charEnd = Integer.parseInt(matcher.group(5));
+
+		} else if (line.startsWith("Error while linking")) {
+			if (currentMessage.length() != 0)
+				addProblem("", 0, 0, 0, currentMessage.toString().trim());
+			currentMessage.setLength(0);
+			currentMessage.append(line);
+		} else if (!skip) {
+			currentMessage.append('\n').append(line);
 		}
+	}
 
-		currentMessage = currentMessage.trim();
-		if (!currentMessage.equals(""))
-			writeProblemMarker(filename, lineNumber, charStart, charEnd, currentMessage);
+	/** Add the last message of the output */
+	private void endMessage() {
+		String message = currentMessage.toString().trim();
+		if (!message.equals(""))
+			addProblem(filename, lineNumber, charStart, charEnd, message);
+		currentMessage.setLength(0);
+	}
+
+	/**
+	 * Create the markers of the problems found since the last call, in one workspace operation (so, with
+	 * only one resource change event). This must be called from a thread which can modify the resources of
+	 * the project (the builder thread during a build).
+	 */
+	public void writeMarkers() {
+		final List<Problem> problems;
+		synchronized (this) {
+			if (pendingProblems.isEmpty())
+				return;
+			problems = new ArrayList<Problem>(pendingProblems);
+			pendingProblems.clear();
+		}
+
+		try {
+			ResourcesPlugin.getWorkspace().run(new IWorkspaceRunnable() {
+				public void run(IProgressMonitor monitor) throws CoreException {
+					for (Problem problem : problems) {
+						if (!problem.resource.exists())
+							continue;
+						IMarker marker = problem.resource.createMarker(IMarker.PROBLEM);
+						marker.setAttributes(problem.attributes);
+					}
+				}
+			}, null);
+		} catch (CoreException e) {
+			OcamlPlugin.logError("error in ProblemMarkers:writeMarkers", e);
+		}
 	}
 
 	/**
-	 * Write a problem marker for the file <code>fullProjectRelativeFilePath</code> that generated
+	 * Add a problem for the file <code>fullProjectRelativeFilePath</code> that generated
 	 * the error message <code>msg</code> on the line <code>lineNumber</code> that starts at
 	 * character <code>charStart</code> and ends at character <code>charEnd</code>.
 	 * 
 	 */
-	private void writeProblemMarker(String fullWorkspaceRelativePath, int lineNumber,
+	private void addProblem(String fullWorkspaceRelativePath, int lineNumber,
 			int charStart, int charEnd, String msg) {
 
+		if (msg.equals(""))
+			return;
+
 		String projectRelativePath;
 
 		String projectPath = project.getName() + File.separatorChar;
@@ -194,22 +297,18 @@ public class ProblemMarkers {
 
 		// if the project relative path is empty, then this is the project itself
 		if (projectRelativePath.equals("")) {
-			try {
-				// create a marker for the project
-				IMarker m = project.createMarker(IMarker.PROBLEM);
-				m.setAttribute(IMarker.MESSAGE, msg);
-				m.setAttribute(IMarker.PRIORITY, IMarker.PRIORITY_HIGH);
-				if (msg.startsWith("Warning")) {
-					m.setAttribute(IMarker.SEVERITY, IMarker.SEVERITY_WARNING);
-					bProjectWarningsFound = true;
-				} else /* if (msg.startsWith("Error")) */{
-					m.setAttribute(IMarker.SEVERITY, IMarker.SEVERITY_ERROR);
-					bProjectErrorsFound = true;
-				}
-
-			} catch (CoreException e) {
-				OcamlPlugin.logError("ProblemMarkers:writeProblemMarkers", e);
+			// a marker for the project
+			Map<String, Object> attributes = new HashMap<String, Object>();
+			attributes.put(IMarker.MESSAGE, msg);
+			attributes.put(IMarker.PRIORITY, IMarker.PRIORITY_HIGH);
+			if (msg.startsWith("Warning")) {
+				attributes.put(IMarker.SEVERITY, IMarker.SEVERITY_WARNING);
+				bProjectWarningsFound = true;
+			} else /* if (msg.startsWith("Error")) */{
+				attributes.put(IMarker.SEVERITY, IMarker.SEVERITY_ERROR);
+				bProjectErrorsFound = true;
 			}
+			pendingProblems.add(new Problem(project, attributes));
 			return;
 		}
 		IResource fileAsResource = project.findMember(projectRelativePath);
@@ -224,6 +323,7 @@ public class ProblemMarkers {
 			if (idx != -1)
 				fullWorkspaceRelativePath = fullWorkspaceRelativePath.substring(idx + 1);
 
+			fileAsResource = null;
 			for (IFile file : Misc.getProjectFiles(project)) {
 				if (file.getName().equals(fullWorkspaceRelativePath)) {
 					fileAsResource = file;
@@ -241,8 +341,8 @@ public class ProblemMarkers {
 
 		int lineOffset = getLineOffset(lineNumber, file);
 
-		Hashtable<String, Integer> attributes = new Hashtable<String, Integer>();
-		MarkerUtilities.setMessage(attributes, msg.toString());
+		Map<String, Object> attributes = new HashMap<String, Object>();
+		MarkerUtilities.setMessage(attributes, msg);
 
 		if (msg.startsWith("Warning")) {
 			attributes.put(IMarker.SEVERITY, new Integer(IMarker.SEVERITY_WARNING));
@@ -259,11 +359,7 @@ public class ProblemMarkers {
 			MarkerUtilities.setCharEnd(attributes, lineOffset + charEnd);
 			MarkerUtilities.setLineNumber(attributes, lineNumber);
 		}
-		try {
-			MarkerUtilities.createMarker(file, attributes, IMarker.PROBLEM);
-		} catch (CoreException e) {
-			OcamlPlugin.logError("error in ProblemMarkers:writeProblemMarkers", e);
-		}
+		pendingProblems.add(new Problem(file, attributes));
 	}
 
 	/**
@@ -271,62 +367,32 @@ public class ProblemMarkers {
 	 * of line <code>lineNumber</code>.
 	 */
 	private static int getLineOffset(int lineNumber, IFile file) {
-		BufferedReader in = null;
 		if (!file.exists()) {
 			OcamlPlugin
 					.logError("ProblemMarkesr:getLineOffset:" + file.getProjectRelativePath() + " does not exist"); //$NON-NLS-1$ //$NON-NLS-2$
 			return 0;
 		}
-		InputStream contentsStream = null;
-		int charCount = 0;
-		try {
-			try {
-				contentsStream = file.getContents();
-				in = new BufferedReader(new InputStreamReader(contentsStream, file.getCharset()));
-			} catch (CoreException e) {
-				OcamlPlugin.logError("Error 1 in OcamlBuilder:getLineOffset()", e);
-			} catch (UnsupportedEncodingException e) {
-				OcamlPlugin.logError("Unsupported encoding in OcamlBuilder:getLineOffset()", e);
-			}
-			int ch = 0;
-			int lineCount = 0;
-			while ((lineCount < lineNumber - 1) && (ch != -1)) {
-				try {
-					ch = in.read();
-				} catch (IOException e1) {
-					OcamlPlugin.logError("Error in 2 OcamlBuilder:getLineOffset()", e1);
-				}
-				if (ch != -1) {
-					charCount++;
-					if (ch == '\n') {
-						lineCount++;
-					}
-				}
-			}
-		} finally {
-			FileUtil.closeResource(in);
-			FileUtil.closeResource(contentsStream);
-		}
-		return charCount;
+		// the lines of the file are read once for all its markers
+		return LineOffsetIndex.getInstance().getLineOffset(file, lineNumber);
 	}
 
-	public boolean errorsFound() {
+	public synchronized boolean errorsFound() {
 		return bErrorsFound;
 	}
 
-	public boolean warningsFound() {
+	public synchronized boolean warningsFound() {
 		return bWarningsFound;
 	}
 
-	public boolean projectErrorsFound() {
+	public synchronized boolean projectErrorsFound() {
 		return bProjectErrorsFound;
 	}
 
-	public boolean projectWarningsFound() {
+	public synchronized boolean projectWarningsFound() {
 		return bProjectWarningsFound;
 	}
 
-	public IFile[] getFilesWithErrors() {
+	public synchronized IFile[] getFilesWithErrors() {
 		ArrayList<IFile> filesWithErrors = new ArrayList<IFile>();
 		for (ErrorFile f : errorFiles)
 			filesWithErrors.add(f.getFile());
@@ -335,7 +401,7 @@ public class ProblemMarkers {
 	}
 
 	/** Return the files that have at least a warning, but no error */
-	public IFile[] getFilesWithWarnings() {
+	public synchronized IFile[] getFilesWithWarnings() {
 		ArrayList<IFile> filesWithWarnings = new ArrayList<IFile>();
 		for (WarningFile f : warningFiles)
 			if (!errorFiles.contains(f)) {
@@ -1,17 +1,24 @@
 package ocaml.build.graph;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import ocaml.OcamlPlugin;
+import ocaml.build.CompilationCache;
 import ocaml.build.OcamlBuilder;
 import ocaml.build.ProblemMarkers;
 import ocaml.exec.CommandRunner;
+import ocaml.exec.IExecEvents;
+import ocaml.typeHovers.AnnotReferenceIndex;
 import ocaml.util.FileUtil;
 import ocaml.util.Misc;
 
@@ -32,11 +39,11 @@ import org.eclipse.ui.part.FileEditorInput;
 
 /**
  * Visit a graph layer by layer, to compile all vertices in the right order.<br>
- * The algorithm is: save (rename by modifying the extension from cmi to cmi_old) the object file
- * corresponding to the interface associated to a vertex, so that any difference in the generated cmi will be
- * detected and will trigger a recompilation of all affected files.
+ * The algorithm is: keep the digest of the object file corresponding to the interface associated to a vertex,
+ * so that any difference in the generated cmi will be detected and will trigger a recompilation of all
+ * affected files.
  */
-public class CompilerVisitor implements ILayersVisitor {
+public class CompilerVisitor implements ILayersVisitor, IParallelLayersVisitor<CompilerVisitor.CompileTask> {
 
 	/**
 	 * The graph visited by this visitor. This is used to know where to add files we would want to visit in
@@ -44,8 +51,17 @@ public class CompilerVisitor implements ILayersVisitor {
 	 */
 	private LayersGraph graph;
 
-	/** Are we running on linux/Mac OS x */
-	private boolean runOnLinux;
+	/** The cache of the compilations, or <code>null</code> if it is disabled */
+	private final CompilationCache cache;
+
+	/**
+	 * The stamps of the compilers and of the directories outside of the project they read, computed once per
+	 * build (by compiler path or directory path)
+	 */
+	private final Map<String, String> environmentStamps = new HashMap<String, String>();
+
+	/** The files written or deleted by the compilations, which must be refreshed in the workspace */
+	private final Set<IFile> generatedFiles = new LinkedHashSet<IFile>();
 
 	/**
 	 * Associate the graph to this visitor. If the compiling of a file in this graph has repercussions on
@@ -54,19 +70,177 @@ public class CompilerVisitor implements ILayersVisitor {
 	 */
 	public CompilerVisitor(LayersGraph graph) {
 		this.graph = graph;
-		this.runOnLinux = OcamlPlugin.runningOnLinuxCompatibleSystem();
+		final CompilationCache compilationCache = CompilationCache.getInstance();
+		this.cache = compilationCache.isEnabled() ? compilationCache : null;
+	}
+
+	/** The files which may have been written or deleted by the compilations started by this visitor */
+	public Set<IFile> getGeneratedFiles() {
+		return generatedFiles;
 	}
 
 	public boolean visit(final Vertex vertex, final IProgressMonitor monitor) {
+		final CompileTask task = prepare(vertex, monitor);
+		if (task != null)
+			task.run();
+		return complete(vertex, task, monitor);
+	}
+
+	/**
+	 * The compilation of a vertex. The commands are prepared and their results are handled in the thread of
+	 * the builder (which has access to the workspace), but they can be run in another thread: the files of a
+	 * layer are compiled concurrently.
+	 */
+	public static class CompileTask implements Runnable {
+		/** Le fichier à compiler */
+		private final IFile file;
+		/** L'extension du fichier objet généré (cmo ou cmx) */
+		private final String objectFileExt;
+		/** The compilation command, or <code>null</code> if the compiler wasn't found */
+		private String[] command;
+		/** The command generating the interface (for a module without mli), or <code>null</code> */
+		private String[] interfaceCommand;
+		/** The directory in which the commands are run */
+		private String folder;
+
+		/**
+		 * The digests of the object files before the compilation, to detect the changes. When they are not
+		 * known, they are computed from the files before running the compiler.
+		 */
+		private byte[] oldObjectDigest = null;
+		private byte[] oldInterfaceDigest = null;
+		private File oldObjectLocation = null;
+		private File oldInterfaceLocation = null;
+
+		/** The object files written by the compiler, and their digests after the compilation */
+		private File objectLocation = null;
+		private File interfaceLocation = null;
+		private byte[] objectDigest = null;
+		private byte[] interfaceDigest = null;
+
+		private String stdout = "";
+		private String stderr = "";
+		private int exitValue = -1;
+		/** The output of the interface command, or <code>null</code> if it wasn't run */
+		private String interfaceStdout = null;
+
+		/** The parser of the error output of the compiler, fed while the compiler runs */
+		private ProblemMarkers problems = null;
+
+		/** The cache of the compilations, or <code>null</code> */
+		private CompilationCache cache = null;
+		/** The compiler and the libraries outside of the project (part of the key in the cache) */
+		private String environmentStamp = "";
+		/** The source file, and the compiled files it depends on (part of the key in the cache) */
+		private File sourceLocation = null;
+		private final List<File> dependencyLocations = new ArrayList<File>();
+		/** The files which can be written by the compiler */
+		private final List<IFile> outputs = new ArrayList<IFile>();
+		/** Their locations (stored in the cache) */
+		private final List<File> outputLocations = new ArrayList<File>();
+
+		CompileTask(IFile file, String objectFileExt) {
+			this.file = file;
+			this.objectFileExt = objectFileExt;
+		}
+
+		public void run() {
+			if (command == null)
+				return;
+
+			// read the files here rather than in the builder thread
+			if (oldObjectLocation != null)
+				oldObjectDigest = FileUtil.digest(oldObjectLocation);
+			if (oldInterfaceLocation != null)
+				oldInterfaceDigest = FileUtil.digest(oldInterfaceLocation);
+
+			String key = null;
+			if (cache != null && sourceLocation != null) {
+				key = cache.computeKey(Arrays.asList(command, interfaceCommand), environmentStamp,
+						sourceLocation, dependencyLocations);
+				final CompilationCache.Messages messages = key == null ? null : cache.restore(key,
+						outputLocations);
+				if (messages != null) {
+					stdout = messages.stdout;
+					stderr = messages.stderr;
+					problems.append(stderr);
+					problems.endOutput();
+					interfaceStdout = messages.interfaceStdout;
+					exitValue = 0;
+					computeDigests();
+					return;
+				}
+			}
+
+			final long start = System.currentTimeMillis();
+			CommandRunner cmd = new CommandRunner(command, folder, new ErrorOutputParser(problems));
+			stdout = nonNull(cmd.getStdout());
+			stderr = nonNull(cmd.getStderr());
+			exitValue = cmd.getExitValue();
+
+			computeDigests();
+
+			// the interface is only generated if the module was compiled
+			if (interfaceCommand != null && exitValue == 0)
+				interfaceStdout = runInterfaceCommand();
+
+			if (key != null && exitValue == 0)
+				cache.store(key, outputLocations, start, new CompilationCache.Messages(stdout, stderr,
+						interfaceStdout));
+		}
+
+		private void computeDigests() {
+			objectDigest = FileUtil.digest(objectLocation);
+			interfaceDigest = FileUtil.digest(interfaceLocation);
+		}
+
+		private String runInterfaceCommand() {
+			CommandRunner cmd = new CommandRunner(interfaceCommand, folder);
+			cmd.getStderr();
+			return nonNull(cmd.getStdout());
+		}
+
+		private static String nonNull(String output) {
+			return output == null ? "" : output;
+		}
+	}
+
+	/** Find the problems in the error output of the compiler while it runs */
+	private static class ErrorOutputParser implements IExecEvents {
+		private final ProblemMarkers problems;
+
+		ErrorOutputParser(ProblemMarkers problems) {
+			this.problems = problems;
+		}
+
+		public void processNewInput(String input) {
+		}
+
+		public void processNewError(String error) {
+			problems.append(error);
+		}
+
+		public void processEnded(int exitValue) {
+			problems.endOutput();
+		}
+	}
+
+	/**
+	 * Prepare the compilation of a vertex, in the thread of the builder: update its executable, find the
+	 * digests of its object files to detect the changes, and build the compilation commands.
+	 * 
+	 * @return the compilation to run, or <code>null</code> if there is nothing to compile
+	 */
+	public CompileTask prepare(final Vertex vertex, final IProgressMonitor monitor) {
 
 		if ((monitor != null) && monitor.isCanceled())
-			return false;
+			return null;
 
 		// Tout d'abord, ignorer les fichiers externes (il n'y a rien à faire,
 		// les fichiers objets à lier sont donnés par l'utilisateur dans une
 		// propriété persistante.
 		if (vertex.isExternalFile()) {
-			return true;
+			return null;
 		}
 
 		// Le fichier à compiler
@@ -85,16 +259,16 @@ public class CompilerVisitor implements ILayersVisitor {
 		// Son type (ml, mli etc..)
 		final int fileType = vertex.getType();
 
-		// le résultat du lancement de la commande (true s'il n'y a pas eu
-		// d'erreurs)
-		boolean noErrors = true;
-
 		// Une liste de flags à spécifier dans chaque cas
 		// Correspond aux flags associés en propriété persistante au projet
 		// suivi de ceux du fichier + ceux que l'on ajoute.
 		final List<String> flags = OcamlBuilder.getResourceFlags(project);
 		flags.addAll(OcamlBuilder.getResourceFlags(file));
 
+		final CompileTask task = new CompileTask(file, objectFileExt);
+		task.folder = project.getWorkspace().getRoot().getLocation().toOSString();
+		task.problems = new ProblemMarkers(project);
+
 		// On fait maintenant une disjonction de cas selon le type du sommet
 		// à visiter (Et on devrait plutot utiliser l'héritage...).
 
@@ -128,59 +302,116 @@ public class CompilerVisitor implements ILayersVisitor {
 			// Note : ce mli est supprimé par DependenciesSetter uniquement si
 			// le fichier ml a été changé, et pas si il dépend d'un fichier
 			// changé.
-			final IFile mliFile = project.getFile(file.getProjectRelativePath().removeFileExtension()
-					.addFileExtension("mli"));
+			final IFile mliFile = getMliFile(file);
 			if (mliFile.exists() && Misc.isGeneratedFile(mliFile)) {
 				FileUtil.deleteFile(mliFile);
 			}
-			// sauvegarder (en copiant) l'ancien fichier objet s'il existe et
-			// l'ancien fichier interface (uniquement s'il n'y a pas de mli
-			// généré auto).
+			// Récupérer l'empreinte de l'ancien fichier objet et de l'ancien
+			// fichier interface (uniquement s'il n'y a pas de mli non généré
+			// automatiquement), afin de détecter les changements.
 			// Note : si le fichier possède un mli non généré automatiquement,
 			// getInterfaceObjectFile renvoit null et rien ne se passe, sauf si
 			// le mli est un ancien généré auto modifié par l'utilisateur.
-			// Note 2: ce procédé pose des problèmes sous environnement windows
-			IFile oldInterfaceObjectFile = null;
-			IFile oldObjectFile = null;
+			final File oldObjectLocation = getLocation(vertex.getObjectFile());
+			task.oldObjectDigest = getKnownDigest(vertex.getObjectFileDigest(), oldObjectLocation);
+			if (task.oldObjectDigest == null)
+				task.oldObjectLocation = oldObjectLocation;
+			task.objectLocation = getLocation(project.getFile(file.getProjectRelativePath()
+					.removeFileExtension().addFileExtension(objectFileExt)));
+			if (!mliFile.exists()) {
+				final File oldInterfaceLocation = getLocation(vertex.getInterfaceObjectFile());
+				task.oldInterfaceDigest = getKnownDigest(vertex.getInterfaceObjectFileDigest(),
+						oldInterfaceLocation);
+				if (task.oldInterfaceDigest == null)
+					task.oldInterfaceLocation = oldInterfaceLocation;
+				task.interfaceLocation = getLocation(getInterfaceObjectFile(file));
+			}
 
-			if (runOnLinux) {
-				// Si ce test renvoit true ici, alors il y a un mli non généré
-				// automatiquement.
-				if (!mliFile.exists()) {
-					oldInterfaceObjectFile = copyFile(vertex.getInterfaceObjectFile(), project);
-				}
+			flags.add("-dtypes");
+			task.command = buildCommand(file, new ArrayList<String>(flags), false);
 
-				oldObjectFile = copyFile(vertex.getObjectFile(), project);
+			// -i pour récupérer les valeurs déclarées dans le
+			// fichier source, s'il faut générer l'interface.
+			if (!mliFile.exists()) {
+				flags.add("-i");
+				task.interfaceCommand = buildCommand(file, flags, true);
 			}
+		}
+		// Traiter un fichier "mli" : lier le fichier cmi généré et détecter les
+		// changements
+		else if (fileType == Vertex.MLITYPE) {
+			// Récupérer l'empreinte de l'ancien fichier interface cmi afin de
+			// détecter les changements
+			final File oldInterfaceLocation = getLocation(vertex.getInterfaceObjectFile());
+			task.oldInterfaceDigest = getKnownDigest(vertex.getInterfaceObjectFileDigest(),
+					oldInterfaceLocation);
+			if (task.oldInterfaceDigest == null)
+				task.oldInterfaceLocation = oldInterfaceLocation;
+			task.interfaceLocation = getLocation(getInterfaceObjectFile(file));
+
+			task.command = buildCommand(file, null, false);
+		} else if (fileType == Vertex.MLLTYPE) {
+			// TODO traiter les MLL lors de la compilation !
+			return null;
+		} else if (fileType == Vertex.MLYTYPE) {
+			// TODO traiter les MLY lors de la compilation !
+			return null;
+		}
 
-			flags.add("-dtypes");
-			noErrors = runBuildingCommand(file, null, null, flags, false, true);
+		addOutputs(task, fileType, objectFileExt);
+		if (cache != null)
+			prepareCache(task, vertex, objectFileExt);
+
+		// the compiler may write or delete these files, even if the build stops before they are completed
+		generatedFiles.addAll(task.outputs);
+
+		return task;
+	}
+
+	/**
+	 * Complete the compilation of a vertex, in the thread of the builder: display the messages of the
+	 * compiler, update the markers, and detect the changes in the object files to add the affected files to
+	 * the graph.
+	 * 
+	 * @return <code>false</code> if the build must stop
+	 */
+	public boolean complete(final Vertex vertex, final CompileTask task, final IProgressMonitor monitor) {
+
+		if (task == null)
+			return (monitor == null) || !monitor.isCanceled();
+
+		final IFile file = task.file;
+		final IProject project = file.getProject();
+
+		// le résultat du lancement de la commande (true s'il n'y a pas eu
+		// d'erreurs)
+		boolean noErrors = handleOutput(task);
+
+		if (vertex.getType() == Vertex.MLTYPE) {
 			// S'il n'y a pas d'erreurs
 			if (noErrors) {
+				// index the references written by the compiler in the annotations file
+				AnnotReferenceIndex.getInstance().annotationsChanged(
+						project.getFile(file.getProjectRelativePath().removeFileExtension()
+								.addFileExtension("annot")));
+
 				// Associer le fichier objet.
 				vertex.setObjectFile(project.getFile(file.getProjectRelativePath().removeFileExtension()
-						.addFileExtension(objectFileExt)));
+						.addFileExtension(task.objectFileExt)));
 
 				// Détecter les changements entre les fichiers objets auquel
 				// cas recompiler les exécutables affectés.
-				try {
-					if (!runOnLinux || !areSameFiles(oldObjectFile, vertex.getObjectFile())) {
-						// TODO : ne vaut-il pas mieux remplacer addExe par
-						// addAllExe ?
-						// Ici on ajoute d'un coup tous les exe sans
-						// utiliser addExe, ce qui n'est pas très propre. s
-						graph.getExecutables().addAll(vertex.getAffectedExe());
-						// Il faut aussi ajouter ce sommet si c'est un
-						// exécutable
-						if (vertex.getExeName() != null) {
-							graph.addExe(vertex);
-						}
+				if (task.objectDigest == null || !Arrays.equals(task.oldObjectDigest, task.objectDigest)) {
+					graph.addAllExe(vertex.getAffectedExe());
+					// Il faut aussi ajouter ce sommet si c'est un
+					// exécutable
+					if (vertex.getExeName() != null) {
+						graph.addExe(vertex);
 					}
-				} catch (IOException e) {
-					OcamlPlugin.logError("error comparing object file", e);
-				} catch (CoreException e) {
-					OcamlPlugin.logError("error comparing object file", e);
 				}
+				vertex.setObjectFileDigest(task.objectDigest);
+
+				final IFile mliFile = getMliFile(file);
 
 				// Si l'interface existe toujours, c'est qu'elle n'est pas
 				// générée automatiquement, sinon il faut
@@ -189,45 +420,36 @@ public class CompilerVisitor implements ILayersVisitor {
 				// l'ancien cmi.
 				if (!mliFile.exists()) {
 
-					// Générer l'interface
-					final StringBuffer stdout = new StringBuffer();
-					// -i pour récupérer les valeurs déclarées dans le
-					// fichier source.
-					flags.add("-i");
-
 					// Afficher un message
 					Misc.appendToOcamlConsole("Generating mli");
 
-					if (!runBuildingCommand(file, stdout, null, flags, true, false)) {
-						// Sauf si le système de fichier à changé, il est
-						// impossible d'avoir une erreur.
+					// Sauf si le système de fichier à changé, il est
+					// impossible d'avoir une erreur.
+					if (task.interfaceCommand == null) {
 						OcamlPlugin.logError("error in CompilerVisitor:visit:" + " unexpected error found");
 						return false;
 					}
+					// the interface was not generated with the compilation (if the compiler
+					// returned an error code without printing any error)
+					if (task.interfaceStdout == null)
+						task.interfaceStdout = task.runInterfaceCommand();
+
 					// On signale une erreur et on arrete la compilation si
 					// la génération se passe mal.
-					if (!generateMliFile(stdout.toString(), mliFile.getProjectRelativePath(), project)) {
+					if (!generateMliFile(task.interfaceStdout, mliFile.getProjectRelativePath(), project)) {
 						OcamlPlugin
 								.logError("error in CompilerVisitor:visit: " + "error generating mli file");
 						return false;
 					}
+					generatedFiles.add(mliFile);
 					// Associer le fichier objet correspondant à
 					// l'interface.
-					final IFile interfaceObjectFile = project.getFile(file.getProjectRelativePath()
-							.removeFileExtension().addFileExtension("cmi"));
-					vertex.setInterfaceObjectFile(interfaceObjectFile);
+					vertex.setInterfaceObjectFile(getInterfaceObjectFile(file));
 					// Comparer
-					try {
-						if (!runOnLinux || !areSameFiles(oldInterfaceObjectFile, interfaceObjectFile)) {
-							graph.addAll(vertex.getAffectedFiles());
-						}
-					} catch (IOException e) {
-						OcamlPlugin.logError("error in CompilerVisitor:visit:" + " error in comparing files",
-								e);
-					} catch (CoreException e) {
-						OcamlPlugin.logError("error in CompilerVisitor:visit:" + " error in comparing files",
-								e);
+					if (interfaceChanged(task)) {
+						graph.addAll(vertex.getAffectedFiles());
 					}
+					vertex.setInterfaceObjectFileDigest(task.interfaceDigest);
 
 				}
 				// Sinon, il y a un fichier mli non généré automatiquement.
@@ -235,80 +457,191 @@ public class CompilerVisitor implements ILayersVisitor {
 				// le fichier ml possède encore le cmi, il faut donc le
 				// mettre à null.
 				else {
-					// S'il y avait un fichier cmi, alors il a été récupéré
-					// dans oldInterfaceObjectFile
-					if (oldInterfaceObjectFile != null) {
+					if (vertex.getInterfaceObjectFile() != null) {
 						vertex.setInterfaceObjectFile(null);
+						vertex.setInterfaceObjectFileDigest(null);
 					}
 				}
 			}// end if(noErrors)
-			// Effacer si possible les fichiers objets correspondant.
-			if (runOnLinux) {
-				FileUtil.deleteFile(oldObjectFile);
-				FileUtil.deleteFile(oldInterfaceObjectFile);
-			}
-
-		}
-		// Traiter un fichier "mli" : lier le fichier cmi généré et détecter les
-		// changements
-		else if (fileType == Vertex.MLITYPE) {
-			// Copier l'ancien fichier interface cmi afin de détecter les
-			// changements
-			IFile oldInterfaceObjectFile = null;
-			if (runOnLinux) {
-				oldInterfaceObjectFile = copyFile(vertex.getInterfaceObjectFile(), project);
+			// Les fichiers objets ont pu être effacés par le compilateur : leurs
+			// empreintes seront recalculées
+			else {
+				vertex.setObjectFileDigest(null);
+				vertex.setInterfaceObjectFileDigest(null);
 			}
 
-			noErrors = runBuildingCommand(file, null, null, null, false, true);
+		} else if (vertex.getType() == Vertex.MLITYPE) {
 			if (noErrors) {
 				// Associer le fichier objet correspondant à
 				// l'interface.
-				final IFile interfaceObjectFile = project.getFile(file.getProjectRelativePath()
-						.removeFileExtension().addFileExtension("cmi"));
-				vertex.setInterfaceObjectFile(interfaceObjectFile);
+				vertex.setInterfaceObjectFile(getInterfaceObjectFile(file));
 				// Comparer
-				try {
-					if (!runOnLinux || !areSameFiles(oldInterfaceObjectFile, interfaceObjectFile)) {
-						graph.addAll(vertex.getAffectedFiles());
-					}
-				} catch (IOException e) {
-					OcamlPlugin.logError("error in CompilerVisitor:visit:" + " error in comparing files", e);
-				} catch (CoreException e) {
-					OcamlPlugin.logError("error in CompilerVisitor:visit:" + " error in comparing files", e);
+				if (interfaceChanged(task)) {
+					graph.addAll(vertex.getAffectedFiles());
 				}
+				vertex.setInterfaceObjectFileDigest(task.interfaceDigest);
+			} else {
+				vertex.setInterfaceObjectFileDigest(null);
 			}
-			// Effacer
-			if (runOnLinux)
-				FileUtil.deleteFile(oldInterfaceObjectFile);
-		} else if (fileType == Vertex.MLLTYPE) {
-			// TODO traiter les MLL lors de la compilation !
-		} else if (fileType == Vertex.MLYTYPE) {
-			// TODO traiter les MLY lors de la compilation !
 		}
 
 		return true;
 	}
 
+	/** Add the files the compiler can write to the outputs of the task */
+	private static void addOutputs(final CompileTask task, final int fileType, final String objectFileExt) {
+		final IFile file = task.file;
+		if (fileType == Vertex.MLTYPE) {
+			task.outputs.add(getOtherFile(file, objectFileExt));
+			if (objectFileExt.equals("cmx")) {
+				task.outputs.add(getOtherFile(file, "o"));
+				task.outputs.add(getOtherFile(file, "obj"));
+			}
+			task.outputs.add(getOtherFile(file, "annot"));
+			if (task.interfaceLocation != null)
+				task.outputs.add(getInterfaceObjectFile(file));
+		} else if (fileType == Vertex.MLITYPE)
+			task.outputs.add(getInterfaceObjectFile(file));
+	}
+
 	/**
-	 * Run the building command (without linking) at the project root. The command includes the paths given in
-	 * the project properties. Display the error messages on the OCaml output view and refresh the error and
-	 * warning markers.
+	 * Give the task what it needs to look for its compilation in the cache: the compiled interfaces (and the
+	 * native object files) of the modules it depends on, and the locations of the files the compiler can
+	 * write.
+	 */
+	private void prepareCache(final CompileTask task, final Vertex vertex, final String objectFileExt) {
+		task.cache = cache;
+		task.sourceLocation = getLocation(task.file);
+		if (task.command != null)
+			task.environmentStamp = getEnvironmentStamp(task.command);
+
+		final boolean bNative = objectFileExt.equals("cmx");
+		for (Vertex neededFile : vertex.getNeededFiles()) {
+			final File location = getLocation(neededFile.getFile());
+			if (location == null)
+				continue;
+			final String basePath = location.getPath().substring(0,
+					location.getPath().length() - location.getName().length())
+					+ stripExtension(location.getName());
+			task.dependencyLocations.add(new File(basePath + ".cmi"));
+			// ocamlopt inlines code from the cmx files
+			if (bNative && neededFile.getType() == Vertex.MLTYPE)
+				task.dependencyLocations.add(new File(basePath + ".cmx"));
+		}
+
+		for (IFile output : task.outputs) {
+			final File location = getLocation(output);
+			if (location != null)
+				task.outputLocations.add(location);
+		}
+	}
+
+	/**
+	 * A stamp of what the compilation command reads outside of the graph: the compiler (its binary and its
+	 * standard library), and the include directories outside of the project. So, the objects compiled before
+	 * an upgrade of OCaml or of a library are not restored from the cache.
+	 */
+	private String getEnvironmentStamp(String[] command) {
+		final StringBuilder stamp = new StringBuilder();
+		final String compiler = command[0];
+		String compilerStamp = environmentStamps.get(compiler);
+		if (compilerStamp == null) {
+			final File binary = new File(compiler);
+			final CommandRunner cmd = new CommandRunner(new String[] { compiler, "-where" }, null);
+			final String stdlib = cmd.getStdout() == null ? "" : cmd.getStdout().trim();
+			compilerStamp = compiler + ":" + binary.length() + ":" + binary.lastModified() + ";"
+					+ getDirectoryStamp(stdlib);
+			environmentStamps.put(compiler, compilerStamp);
+		}
+		stamp.append(compilerStamp);
+
+		// the relative paths are in the project (see Misc.getProjectPaths)
+		for (int i = 1; i + 1 < command.length; i++) {
+			if (command[i].equals("-I") && new File(command[i + 1]).isAbsolute())
+				stamp.append(getDirectoryStamp(command[i + 1]));
+		}
+		return stamp.toString();
+	}
+
+	/** The names, sizes and time stamps of the files of a directory */
+	private String getDirectoryStamp(String path) {
+		String stamp = environmentStamps.get(path);
+		if (stamp == null) {
+			final StringBuilder builder = new StringBuilder(path).append(";");
+			final File directory = new File(path);
+			final String[] names = directory.list();
+			if (names != null) {
+				Arrays.sort(names);
+				for (String name : names) {
+					final File file = new File(directory, name);
+					builder.append(name).append(':').append(file.length()).append(':').append(
+							file.lastModified()).append(';');
+				}
+			}
+			stamp = builder.toString();
+			environmentStamps.put(path, stamp);
+		}
+		return stamp;
+	}
+
+	private static String stripExtension(String name) {
+		final int dot = name.lastIndexOf('.');
+		return dot == -1 ? name : name.substring(0, dot);
+	}
+
+	/** The compiled interface (cmi) of the module <code>file</code> */
+	private static IFile getInterfaceObjectFile(IFile file) {
+		return getOtherFile(file, "cmi");
+	}
+
+	/** The file with the same name as <code>file</code> and the extension <code>extension</code> */
+	private static IFile getOtherFile(IFile file, String extension) {
+		return file.getProject().getFile(
+				file.getProjectRelativePath().removeFileExtension().addFileExtension(extension));
+	}
+
+	/**
+	 * Whether the compilation changed the compiled interface, in which case the files which depend on it must
+	 * be compiled again
+	 */
+	private static boolean interfaceChanged(CompileTask task) {
+		return task.interfaceDigest == null || !Arrays.equals(task.oldInterfaceDigest, task.interfaceDigest);
+	}
+
+	/**
+	 * The digest kept for an object file, if the file still exists (the generated files are deleted when the
+	 * project is closed), otherwise <code>null</code>: the digest is then computed from the file by the task.
+	 */
+	private static byte[] getKnownDigest(byte[] digest, File location) {
+		return (location != null && location.isFile()) ? digest : null;
+	}
+
+	/** The location of <code>file</code> in the file system, or <code>null</code> */
+	private static File getLocation(IFile file) {
+		if (file == null || file.getLocation() == null)
+			return null;
+		return file.getLocation().toFile();
+	}
+
+	/** The interface of the module <code>file</code> */
+	private static IFile getMliFile(IFile file) {
+		return file.getProject().getFile(
+				file.getProjectRelativePath().removeFileExtension().addFileExtension("mli"));
+	}
+
+	/**
+	 * Build the building command (without linking), which must be run at the workspace root. The command
+	 * includes the paths given in the project properties.
 	 * 
 	 * @param file
 	 *            the file to compile
-	 * @param stdout
-	 *            where to get the output from the compiler
-	 * @param stderr
-	 *            where to get the error output from the compiler
 	 * @param flags
 	 *            flags to add to the command
 	 * @param ignoreWarning
 	 *            whether the command must ignore warnings
-	 * @return true if compilation succeeded without errors
-	 * @throws CoreException
+	 * @return the command, or <code>null</code> if the compiler wasn't found
 	 */
-	private boolean runBuildingCommand(final IFile file, StringBuffer stdout, StringBuffer stderr,
-			List<String> flags, final boolean ignoreWarning, boolean printMessages) {
+	private String[] buildCommand(final IFile file, List<String> flags, final boolean ignoreWarning) {
 
 		// Le projet associé
 		final IProject project = file.getProject();
@@ -325,17 +658,6 @@ public class CompilerVisitor implements ILayersVisitor {
 			Misc.setShareableProperty(project, OcamlBuilder.COMPIL_MODE, OcamlBuilder.BYTE_CODE);
 		}
 
-		// supprimer les marqueurs d'erreur
-		// ATTENTION : il ne faut pas le faire lorsque la commande est lancée
-		// pour générer le mli, sinon on efface un éventuel ancien warning.
-		if (!ignoreWarning) {
-			try {
-				file.deleteMarkers(IMarker.PROBLEM, false, IResource.DEPTH_ZERO);
-			} catch (CoreException e) {
-				OcamlPlugin.logError("error in deleting markers", e);
-			}
-		}
-
 		// Choix de la commande : ocamlc ou ocamlopt
 		// Attention : pas de gestion des mll et mly pour l'instant !
 		final String OCOMPILER = (buildMode.equals(OcamlBuilder.NATIVE) ? OcamlPlugin.getOcamloptFullPath()
@@ -343,8 +665,8 @@ public class CompilerVisitor implements ILayersVisitor {
 
 		if (OCOMPILER.equals("")) {
 			OcamlPlugin.logError("error in CompilerVisitor:"
-					+ "runBuildingCommand : ocamlc or ocamlopt not found");
-			return false;
+					+ "buildCommand : ocamlc or ocamlopt not found");
+			return null;
 		}
 
 		// Le chemin vers le fichier relatif au workspace et le nom
@@ -371,39 +693,47 @@ public class CompilerVisitor implements ILayersVisitor {
 		command.addAll(flags);
 		command.add("-c");
 		command.add(fileNameWithPath);
-		// Ici va commencer la compilation :
+		return command.toArray(new String[0]);
+	}
 
-		// Afficher un message
-		Misc.appendToOcamlConsole("Building: " + fileNameWithPath);
-
-		// lancer la commande à la racine du workspace.
-		CommandRunner cmd = new CommandRunner(command.toArray(new String[0]), project.getWorkspace()
-				.getRoot().getLocation().toOSString());
-		// Et récupérer les messages
-		// (Si stdout ou stderr étaient null, il faut les initialiser.)
-		if (stdout == null) {
-			stdout = new StringBuffer();
-		}
-		if (stderr == null) {
-			stderr = new StringBuffer();
+	/**
+	 * Handle the output of the building command: display the messages on the OCaml output view and
+	 * refresh the error and warning markers.
+	 * 
+	 * @return true if compilation succeeded without errors
+	 */
+	private boolean handleOutput(final CompileTask task) {
+
+		if (task.command == null)
+			return false;
+
+		final IFile file = task.file;
+
+		// supprimer les marqueurs d'erreur
+		try {
+			file.deleteMarkers(IMarker.PROBLEM, false, IResource.DEPTH_ZERO);
+		} catch (CoreException e) {
+			OcamlPlugin.logError("error in deleting markers", e);
 		}
-		// On ajoute à la fin de stdout ou stderr.
-		stdout.append(cmd.getStdout());
-		stderr.append(cmd.getStderr());
+
+		// Afficher un message
+		Misc.appendToOcamlConsole("Building: " + file.getFullPath().makeRelative().toOSString());
+
 		// Un booléen pour savoir s'il y a eu des erreurs
 		boolean noErrors = true;
 
-		// Gestion des marqueurs.
+		// Gestion des marqueurs : les messages ont été analysés pendant la
+		// compilation
 		ProblemMarkers problemMarkers = null;
 
 		// Affichage des messages
-		if (stdout.length() != 0 && printMessages)
-			Misc.appendToOcamlConsole(stdout.toString());
+		if (task.stdout.length() != 0)
+			Misc.appendToOcamlConsole(task.stdout);
 
-		if (stderr.length() != 0 && printMessages) {
-			Misc.appendToOcamlConsole(stderr.toString());
-			problemMarkers = new ProblemMarkers(project);
-			problemMarkers.makeMarkers(stderr.toString());
+		if (task.stderr.length() != 0) {
+			Misc.appendToOcamlConsole(task.stderr);
+			problemMarkers = task.problems;
+			problemMarkers.writeMarkers();
 		}
 
 		String sErrorsFound = null;
@@ -416,10 +746,7 @@ public class CompilerVisitor implements ILayersVisitor {
 
 		// Et sur le fichier de source
 		Misc.setFileProperty(file, OcamlBuilder.COMPILATION_ERRORS, sErrorsFound);
-		// Attention : uniquement si on a pas ignoré les warnings (sinon on
-		// enlève ceux qui existent déjà)
-		if (!ignoreWarning)
-			Misc.setFileProperty(file, OcamlBuilder.COMPILATION_WARNINGS, sWarningsFound);
+		Misc.setFileProperty(file, OcamlBuilder.COMPILATION_WARNINGS, sWarningsFound);
 
 		Misc.updateDecoratorManager();
 		return noErrors;
@@ -488,101 +815,4 @@ public class CompilerVisitor implements ILayersVisitor {
 	 * return true; }
 	 */
 
-	/**
-	 * Copy the file by giving the copy the extension "._old". This is used to compare the two files later to
-	 * see if there were changes.
-	 * 
-	 * @return the copy of the file or <code>null</code> if the file couldn't be copied
-	 */
-	private IFile copyFile(final IFile file, final IProject project) {
-		if (file == null || !file.exists()) {
-			return null;
-		}
-		try {
-			// Ici copy prend comme chemin le chemin relatif à là où se
-			// trouve la ressource, donc ici on a juste besoin de rejouter
-			// _old à l'extension
-			final IPath newPath = file.getProjectRelativePath().addFileExtension("_old");
-			// S'il y a déjà un fichier à l'emplacement de destination, essayer
-			// de le supprimer s'il est généré automatiquement, sinon ne rien
-			// faire, on renvoit null
-			final IFile newFile = project.getFile(newPath);
-			// Si le fichier existe et n'est soit pas généré automatiquement,
-			// soit pas supprimable renvoyer null
-			if (newFile.exists()
-					&& (!Misc.isGeneratedFile(newFile) || !FileUtil.deleteFile(newFile))) {
-				return null;
-			}
-			// Il faut donc récupérer uniquement le dernier segment de
-			// newPath ce qui correspond au IPath représentant le nom.
-			// On ne peut pas utiliser lastSegment qui renvoit une String.
-			file.copy(newPath.removeFirstSegments(newPath.segmentCount() - 1), true, null);
-			// Le déplacement à été effectué et des évènement correspondants
-			// sont générés, mais pour l'instant file réfère toujours à l'ancien
-			// fichier. Il faut récupérer directement le fichier généré à partir
-			// du projet par exemple.
-			return (project.getFile(newPath));
-		} catch (CoreException e) {
-			OcamlPlugin.logError("error in CompilerVisitor:copyFile:" + " error backing up file", e);
-			return null;
-		}
-
-	}
-
-	/**
-	 * Compare two files byte by byte.
-	 * 
-	 * @return true if the two files exist and are the same
-	 */
-	private boolean areSameFiles(final IFile file1, final IFile file2) throws IOException, CoreException {
-
-		// Si les deux fichiers sont nuls, retourner vrai
-		if ((file1 == null) && (file2 == null)) {
-			return true;
-		}
-
-		// Si un seul des deux fichiers est null, c'est faux.
-		if ((file1 == null) || (file2 == null)) {
-			return false;
-		}
-
-		// Rafraichir les fichiers (inévitable)
-		file1.refreshLocal(IResource.DEPTH_ZERO, null);
-		file2.refreshLocal(IResource.DEPTH_ZERO, null);
-
-		// Si les deux fichiers n'existent pas, retourner vrai
-		if ((!file1.exists()) && (!file2.exists())) {
-			return true;
-		}
-
-		// Si un seul des deux fichiers n'existe pas, c'est faux.
-		if (!file1.exists() || (!file2.exists())) {
-			return false;
-		}
-
-		BufferedInputStream input1 = null;
-		BufferedInputStream input2 = null;
-		try {
-			input1 = new BufferedInputStream(file1.getContents());
-			input2 = new BufferedInputStream(file2.getContents());
-
-			int readValue1 = input1.read();
-			int readValue2 = input2.read();
-
-			// Tant que les valeurs sont égales ou bien qu'on est arrivé à la
-			// fin
-			while ((readValue1 == readValue2) && ((readValue1 != -1) || (readValue2 != -1))) {
-				readValue1 = input1.read();
-				readValue2 = input2.read();
-			}
-			// Si les fichiers sont les mêmes, ces deux valeurs finales sont égales
-			// et valent -1 (fin de fichier). Sinon, alors les valeurs sont
-			// différente et l'une est éventuellement à -1.
-		return (readValue1 == readValue2);
-		} finally {
-			FileUtil.closeResource(input1);
-			FileUtil.closeResource(input2);
-		}
-	}
-
 }
@@ -1,7 +1,15 @@
 package ocaml.build.graph;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import ocaml.OcamlPlugin;
 import ocaml.build.OcamlBuilder;
@@ -51,6 +59,16 @@ import org.eclipse.core.runtime.Path;
  */
 public class DependenciesSetter implements IPostNeededFilesVisitor {
 
+	/** The maximum number of files given to one ocamldep command */
+	private static final int MAX_BATCH_FILES = 200;
+
+	/**
+	 * The maximum length of an ocamldep command line, with its include paths
+	 * and its file names (the command lines are limited to 32767 characters
+	 * on Windows)
+	 */
+	private static final int MAX_BATCH_LENGTH = 16000;
+
 	/**
 	 * Une liste se rappelant les fichiers parcourus par ce visiteur. <br>
 	 * Ceci détecte les cycles.
@@ -92,6 +110,13 @@ public class DependenciesSetter implements IPostNeededFilesVisitor {
 	 */
 	private LayersGraph graph;
 
+	/**
+	 * The names of the files required by each file, found by
+	 * {@link #computeDependencies(List, int)} before the visit, in the order
+	 * given by ocamldep.
+	 */
+	private Map<IFile, List<String>> computedDependencies = new HashMap<IFile, List<String>>();
+
 	/**
 	 * Visite tous les fichiers et les place dans visitedVertices avec toutes
 	 * leurs dépendances.
@@ -133,6 +158,123 @@ public class DependenciesSetter implements IPostNeededFilesVisitor {
 		this.changedFiles = changedFiles;
 	}
 
+	/** An ocamldep command run on a batch of files, which returns its output */
+	private static class DependenciesCommand implements Callable<String> {
+		private final String[] command;
+		private final String folder;
+
+		DependenciesCommand(String[] command, String folder) {
+			this.command = command;
+			this.folder = folder;
+		}
+
+		public String call() {
+			return new CommandRunner(command, folder).getStdout();
+		}
+	}
+
+	/**
+	 * Compute the dependencies of <code>files</code> before visiting them,
+	 * with one ocamldep command for each batch of files instead of one command
+	 * for each file. The batches are run in several threads. The files which
+	 * are not found in the output of ocamldep (the files with errors, the
+	 * external files, the mll and mly files...) are handled one by one when
+	 * they are visited.
+	 * 
+	 * @param files
+	 *            the files which will be visited
+	 * @param nWorkers
+	 *            the maximum number of ocamldep commands run at the same time
+	 */
+	public void computeDependencies(List<IFile> files, int nWorkers) {
+		final String ocamldep = OcamlPlugin.getOcamldepFullPath();
+		if (ocamldep.equals("") || files.isEmpty())
+			return;
+
+		/*
+		 * The files of each batch, by the name of the target of their first
+		 * rule in the output of ocamldep (the ".cmo" file of a ".ml" file, the
+		 * ".cmi" file of a ".mli" file)
+		 */
+		final IProject project = files.get(0).getProject();
+		final List<String> foldersPaths = Misc.getProjectPaths(project);
+
+		// the length of the command line without its file names
+		int commandLength = ocamldep.length() + 1;
+		for (String path : foldersPaths)
+			commandLength += path.length() + 1;
+
+		final List<Map<String, IFile>> batches = new ArrayList<Map<String, IFile>>();
+		Map<String, IFile> batch = new LinkedHashMap<String, IFile>();
+		int batchLength = commandLength;
+		for (IFile file : files) {
+			final String ext = file.getFileExtension();
+			if (!file.exists() || file.isLinked()
+					|| !("ml".equals(ext) || "mli".equals(ext))
+					|| computedDependencies.containsKey(file))
+				continue;
+
+			// the automatically generated mli must not be in the dependencies
+			deleteGeneratedMli(file);
+
+			final String fileName = file.getFullPath().makeRelative().toOSString();
+			if (batch.size() >= MAX_BATCH_FILES
+					|| (!batch.isEmpty() && batchLength + fileName.length() >= MAX_BATCH_LENGTH)) {
+				batches.add(batch);
+				batch = new LinkedHashMap<String, IFile>();
+				batchLength = commandLength;
+			}
+			final String target = fileName.substring(0, fileName.length() - ext.length())
+					+ ("ml".equals(ext) ? "cmo" : "cmi");
+			batch.put(target, file);
+			batchLength += fileName.length() + 1;
+		}
+		if (!batch.isEmpty())
+			batches.add(batch);
+		if (batches.isEmpty())
+			return;
+
+		final String root = project.getWorkspace().getRoot().getLocation().toOSString();
+
+		final List<DependenciesCommand> commands = new ArrayList<DependenciesCommand>(batches.size());
+		for (Map<String, IFile> filesBatch : batches) {
+			final ArrayList<String> command = new ArrayList<String>();
+			command.add(ocamldep);
+			command.addAll(foldersPaths);
+			for (IFile file : filesBatch.values())
+				command.add(file.getFullPath().makeRelative().toOSString());
+			commands.add(new DependenciesCommand(command.toArray(new String[0]), root));
+		}
+
+		final List<String> outputs = new ArrayList<String>(commands.size());
+		if (commands.size() == 1 || nWorkers <= 1) {
+			for (DependenciesCommand command : commands)
+				outputs.add(command.call());
+		} else {
+			final ExecutorService executor = Executors.newFixedThreadPool(Math.min(nWorkers,
+					commands.size()));
+			try {
+				for (Future<String> output : executor.invokeAll(commands)) {
+					try {
+						outputs.add(output.get());
+					} catch (ExecutionException e) {
+						OcamlPlugin.logError("error in DependenciesSetter:computeDependencies:"
+								+ " error running ocamldep", e.getCause());
+						outputs.add("");
+					}
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+
+		for (int i = 0; i < batches.size(); i++)
+			parseDependencies(outputs.get(i), batches.get(i));
+	}
+
 	
 
 	/**
@@ -235,7 +377,9 @@ public class DependenciesSetter implements IPostNeededFilesVisitor {
 		// ocamldep), il serait donc bon d'en profiter pour associer le bon type
 		// (ml, mli etc..)au sommet juste après. (Qui a besoin que le fichier
 		// existe pour trouver son extension)
-		final List<IFile> neededFiles = runDependenciesCommand(file);
+		final List<String> computed = computedDependencies.remove(file);
+		final List<IFile> neededFiles = computed != null && file.exists() ? toNeededFiles(
+				file, computed) : runDependenciesCommand(file);
 		//Associer la bonne extension à ce sommet.
 		v.setType();
 		// Si neededFiles est null, c'est que le fichier sur lequel la commande
@@ -395,14 +539,7 @@ public class DependenciesSetter implements IPostNeededFilesVisitor {
 
 		// Et supprimer le fichier mli généré automatiquement, afin de ne pas
 		// l'avoir dans la liste des dépendances.
-		// On enlève le premier segment pour être relatif au projet
-		final IFile autoGeneratedMli = project.getFile(fileWorkspacePath
-				.removeFirstSegments(1).removeFileExtension().addFileExtension(
-						"mli"));
-		if ((autoGeneratedMli.exists())
-				&& (Misc.isGeneratedFile(autoGeneratedMli))) {
-			FileUtil.deleteFile(autoGeneratedMli);
-		}
+		deleteGeneratedMli(file);
 
 		// Executer commandRunner à la racine du workspace
 		final CommandRunner cmdDep = new CommandRunner(command
@@ -467,70 +604,184 @@ public class DependenciesSetter implements IPostNeededFilesVisitor {
 				}
 			}
 
-			// transformer ce tableau de String en tableau de IFile
-			final ArrayList<IFile> orderedDepsAsIFile = new ArrayList<IFile>(
-					orderedDeps.size());
-			// Attention : ici tempFileName n'est pas forcément le nom avec le
-			// chemin relatif à la racine du projet, il faut le rendre ainsi.
-			for (String tempFileName : orderedDeps) {
-
-				IPath tempFilePath = new Path(tempFileName);
-
-				// Trouver le fichier correspondant au chemin (lie les fichiers
-				// externes).
-				IFile tempFile = findFile(project, tempFilePath);
-
-				// Si le fichier existe
-				if (tempFile != null && tempFile.exists()) {
-					boolean autoGeneratedMliToSkip = false;
-					// Tester si c'est un mli généré automatiquement local (non
-					// lié)
-					final String fileExt = tempFile.getFileExtension();
-					if (fileExt != null && fileExt.matches("mli")) {
-						if (Misc.isGeneratedFile(tempFile)
-								&& !tempFile.isLinked()) {
-							// On regarde si on a à faire à un mli
-							// correspondant au fichier (dans ce cas
-							// l'ignorer via autoGeneratedMliToSkip) sinon,
-							// remplacer une dépendance à ce mli généré auto
-							// par une dépendance au ml correspondant.
-							final IPath tempFilePathNoExt = tempFilePath
-									.removeFileExtension();
-							final IPath filePathNoExt = file.getFullPath()
-									.makeRelative().removeFileExtension();
-							// Si les chemins sans extensions sont
-							// différents, alors il faut considérer une
-							// dépendance au ml correspondant
-							if (!tempFilePathNoExt.equals(filePathNoExt)) {
-								// On enlève le premier segment pour
-								// rendre le chemin relatif au projet au
-								// lieu du workspace
-								final IPath tempFileMlPath = tempFilePathNoExt
-										.addFileExtension("ml")
-										.removeFirstSegments(1);
-								tempFile = project.getFile(tempFileMlPath);
-							} else {
-								autoGeneratedMliToSkip = true;
-							}
+			return toNeededFiles(file, orderedDeps);
+		}
+		// Sinon le message était vide
+		else
+			return new ArrayList<IFile>(0);
+	}
 
+	/**
+	 * Read the output of an ocamldep command run on several files, and keep
+	 * the names of the files required by each file.<br>
+	 * Only the first rule of each file is used (like for a single file): the
+	 * one of its ".cmo" or ".cmi" file.
+	 * 
+	 * @param output
+	 *            the output of ocamldep
+	 * @param files
+	 *            the files given to ocamldep, by the target of their rule
+	 */
+	private void parseDependencies(String output, Map<String, IFile> files) {
+		// a rule can be continued on the next lines, with a '\' at the end
+		final List<String> rules = new ArrayList<String>();
+		StringBuilder rule = new StringBuilder();
+		for (String line : output.split("\\r?\\n")) {
+			if (line.endsWith("\\")) {
+				rule.append(line, 0, line.length() - 1).append(' ');
+				continue;
+			}
+			rule.append(line);
+			rules.add(rule.toString());
+			rule = new StringBuilder();
+		}
+		if (rule.length() != 0)
+			rules.add(rule.toString());
+
+		for (String line : rules) {
+			final List<String> names = splitFileNames(line);
+			// the targets, then ":" (or the last target ends with ':')
+			int colon = -1;
+			for (int i = 0; i < names.size(); i++) {
+				if (names.get(i).endsWith(":")) {
+					colon = i;
+					break;
+				}
+			}
+			if (colon == -1)
+				continue;
+			String target = names.get(0);
+			if (target.equals(":"))
+				continue;
+			if (target.endsWith(":"))
+				target = target.substring(0, target.length() - 1);
+
+			final IFile file = files.get(target);
+			if (file == null || computedDependencies.containsKey(file))
+				continue;
+
+			// in reverse order, like for a single file
+			final List<String> orderedDeps = new ArrayList<String>(names.size() - colon - 1);
+			for (int i = names.size() - 1; i > colon; i--) {
+				String name = names.get(i).replaceAll("\\.cmi\\z", ".mli");
+				name = name.replaceAll("\\.cmo\\z", ".ml");
+				orderedDeps.add(name);
+			}
+			computedDependencies.put(file, orderedDeps);
+		}
+	}
+
+	/**
+	 * Split a rule of ocamldep in file names (the spaces in the file names are
+	 * preceded by a '\')
+	 */
+	private static List<String> splitFileNames(String line) {
+		final List<String> names = new ArrayList<String>();
+		StringBuilder name = new StringBuilder();
+		for (String word : line.split("\\s")) {
+			if (word.endsWith("\\")) {
+				name.append(word, 0, word.length() - 1).append(' ');
+				continue;
+			}
+			name.append(word);
+			if (name.length() != 0)
+				names.add(name.toString());
+			name = new StringBuilder();
+		}
+		if (name.length() != 0)
+			names.add(name.toString());
+		return names;
+	}
+
+	/**
+	 * Delete the automatically generated mli file of <code>file</code>, so
+	 * that it is not in the dependencies.
+	 */
+	private static void deleteGeneratedMli(IFile file) {
+		// On enlève le premier segment pour être relatif au projet
+		final IFile autoGeneratedMli = file.getProject().getFile(
+				file.getFullPath().makeRelative().removeFirstSegments(1)
+						.removeFileExtension().addFileExtension("mli"));
+		if ((autoGeneratedMli.exists())
+				&& (Misc.isGeneratedFile(autoGeneratedMli))) {
+			FileUtil.deleteFile(autoGeneratedMli);
+		}
+	}
+
+	/**
+	 * Transformer les noms des fichiers requis donnés par ocamldep en fichiers.<br>
+	 * Les dépendances à un fichier mli généré automatiquement sont remplacées
+	 * par une dépendance au fichier ml correspondant.
+	 * 
+	 * @param file
+	 *            le fichier dont on a trouvé les dépendances.
+	 * @param orderedDeps
+	 *            les noms des fichiers requis (.ml et .mli)
+	 * @return la liste des fichiers dont file dépend
+	 */
+	private List<IFile> toNeededFiles(IFile file, List<String> orderedDeps) {
+		final IProject project = file.getProject();
+
+		// transformer ce tableau de String en tableau de IFile
+		final ArrayList<IFile> orderedDepsAsIFile = new ArrayList<IFile>(
+				orderedDeps.size());
+		// Attention : ici tempFileName n'est pas forcément le nom avec le
+		// chemin relatif à la racine du projet, il faut le rendre ainsi.
+		for (String tempFileName : orderedDeps) {
+
+			IPath tempFilePath = new Path(tempFileName);
+
+			// Trouver le fichier correspondant au chemin (lie les fichiers
+			// externes).
+			IFile tempFile = findFile(project, tempFilePath);
+
+			// Si le fichier existe
+			if (tempFile != null && tempFile.exists()) {
+				boolean autoGeneratedMliToSkip = false;
+				// Tester si c'est un mli généré automatiquement local (non
+				// lié)
+				final String fileExt = tempFile.getFileExtension();
+				if (fileExt != null && fileExt.matches("mli")) {
+					if (Misc.isGeneratedFile(tempFile)
+							&& !tempFile.isLinked()) {
+						// On regarde si on a à faire à un mli
+						// correspondant au fichier (dans ce cas
+						// l'ignorer via autoGeneratedMliToSkip) sinon,
+						// remplacer une dépendance à ce mli généré auto
+						// par une dépendance au ml correspondant.
+						final IPath tempFilePathNoExt = tempFilePath
+								.removeFileExtension();
+						final IPath filePathNoExt = file.getFullPath()
+								.makeRelative().removeFileExtension();
+						// Si les chemins sans extensions sont
+						// différents, alors il faut considérer une
+						// dépendance au ml correspondant
+						if (!tempFilePathNoExt.equals(filePathNoExt)) {
+							// On enlève le premier segment pour
+							// rendre le chemin relatif au projet au
+							// lieu du workspace
+							final IPath tempFileMlPath = tempFilePathNoExt
+									.addFileExtension("ml")
+									.removeFirstSegments(1);
+							tempFile = project.getFile(tempFileMlPath);
+						} else {
+							autoGeneratedMliToSkip = true;
 						}
+
 					}
-					// Ne pas ajouter les fichiers mli générés automatiquement.
-					if (!autoGeneratedMliToSkip) {
-						orderedDepsAsIFile.add(tempFile);
-					}
-				} else {
-					OcamlPlugin.logError("error in DependenciesSetter:"
-							+ "error file not found : "
-							+ (tempFile != null ? tempFile.getName() : ""),
-							new DependenciesGraphException());
 				}
+				// Ne pas ajouter les fichiers mli générés automatiquement.
+				if (!autoGeneratedMliToSkip) {
+					orderedDepsAsIFile.add(tempFile);
+				}
+			} else {
+				OcamlPlugin.logError("error in DependenciesSetter:"
+						+ "error file not found : "
+						+ (tempFile != null ? tempFile.getName() : ""),
+						new DependenciesGraphException());
 			}
-			return orderedDepsAsIFile;
 		}
-		// Sinon le message était vide
-		else
-			return new ArrayList<IFile>(0);
+		return orderedDepsAsIFile;
 	}
 
 	/**
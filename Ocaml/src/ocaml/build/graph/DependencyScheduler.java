@@ -0,0 +1,282 @@
+package ocaml.build.graph;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import ocaml.OcamlPlugin;
+import ocaml.build.OcamlBuilder;
+import ocaml.util.Misc;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+
+/**
+ * Visits the vertices of a graph as soon as all the files they depend on have been visited, instead of layer
+ * by layer: a file doesn't wait for the slowest file of the layer below it.<br>
+ * The vertices are prepared and completed in the calling thread, and their tasks are run by several threads,
+ * like with {@link LayersGraph#accept(IParallelLayersVisitor, IProgressMonitor, int)}.<br>
+ * Among the vertices ready to be visited, the ones on the longest path of files remaining to visit are
+ * visited first. The paths are weighted by the compilation time of each file during the last builds (kept in
+ * a persistent property of the file).<br>
+ * The visitor can add files to the graph when completing a vertex (the files affected by a changed
+ * interface): a vertex is only visited once none of the files it depends on, directly or not, remains to be
+ * visited, so that it is not visited before a file it depends on is added to the graph.
+ */
+public class DependencyScheduler {
+
+	/** The compilation time assumed for a file which was never compiled, in milliseconds */
+	private static final long DEFAULT_COMPILATION_TIME = 100;
+
+	/** The result of the task of a vertex */
+	private static class Execution<T> {
+		final Vertex vertex;
+		final T task;
+		final long time;
+
+		Execution(Vertex vertex, T task, long time) {
+			this.vertex = vertex;
+			this.task = task;
+			this.time = time;
+		}
+	}
+
+	private final LayersGraph graph;
+
+	/** The maximum number of tasks run at the same time */
+	private final int nWorkers;
+
+	/** The vertices of the graph which remain to be visited, in the order of the layers */
+	private final Set<Vertex> pending = new LinkedHashSet<Vertex>();
+
+	/** The vertices whose task is running */
+	private final Set<Vertex> running = new HashSet<Vertex>();
+
+	/** The vertices already visited */
+	private final Set<Vertex> visited = new HashSet<Vertex>();
+
+	/** The compilation times of the files, read from their properties */
+	private final Map<Vertex, Long> times = new HashMap<Vertex, Long>();
+
+	public DependencyScheduler(LayersGraph graph, int nWorkers) {
+		this.graph = graph;
+		this.nWorkers = Math.max(1, nWorkers);
+	}
+
+	/**
+	 * Visit all the vertices of the graph, each one once all the files it depends on were visited.<br>
+	 * The vertices are completed in the order their tasks finish, which can change from one build to the
+	 * next.<br>
+	 * If the visitor returns false when completing a vertex, no other vertex is visited (the running tasks
+	 * are waited for, and their vertices are completed).
+	 */
+	public <T extends Runnable> void accept(final IParallelLayersVisitor<T> visitor,
+			final IProgressMonitor monitor) {
+		final ExecutorService executor = Executors.newFixedThreadPool(nWorkers);
+		final CompletionService<Execution<T>> executions = new ExecutorCompletionService<Execution<T>>(
+				executor);
+		try {
+			addNewVertices();
+			boolean bStop = false;
+
+			while (true) {
+				if ((monitor != null) && monitor.isCanceled())
+					bStop = true;
+
+				if (!bStop && running.size() < nWorkers) {
+					for (final Vertex vertex : findReadyVertices()) {
+						if (running.size() >= nWorkers)
+							break;
+
+						pending.remove(vertex);
+						final T task = visitor.prepare(vertex, monitor);
+						if (task == null) {
+							visited.add(vertex);
+							if (!visitor.complete(vertex, null, monitor)) {
+								bStop = true;
+								break;
+							}
+							continue;
+						}
+
+						running.add(vertex);
+						executions.submit(new Callable<Execution<T>>() {
+							public Execution<T> call() {
+								long start = System.nanoTime();
+								// like in the layers visit, a failed task is logged and its vertex completed
+								try {
+									task.run();
+								} catch (RuntimeException e) {
+									OcamlPlugin.logError("error in DependencyScheduler:accept: "
+											+ "error running a task", e);
+								}
+								return new Execution<T>(vertex, task, (System.nanoTime() - start) / 1000000);
+							}
+						});
+					}
+				}
+
+				if (running.isEmpty()) {
+					if (bStop || pending.isEmpty())
+						return;
+					// vertices without task were completed, which can make other vertices ready
+					continue;
+				}
+
+				final Execution<T> execution = executions.take().get();
+				running.remove(execution.vertex);
+				visited.add(execution.vertex);
+
+				// a finished task is completed even once we stopped, so that its outputs are handled
+				setCompilationTime(execution.vertex, execution.time);
+				if (!visitor.complete(execution.vertex, execution.task, monitor))
+					bStop = true;
+				// the files affected by a changed interface are added to the graph
+				if (!bStop)
+					addNewVertices();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			// the tasks catch their exceptions
+			OcamlPlugin.logError("error in DependencyScheduler:accept", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/** Add the vertices of the graph which are not known yet to the vertices to visit */
+	private void addNewVertices() {
+		final List<Vertex> vertices = new ArrayList<Vertex>();
+		synchronized (graph) {
+			for (int i = 0; i < graph.getLayersCount(); i++)
+				vertices.addAll(graph.getLayer(i));
+		}
+		for (Vertex vertex : vertices) {
+			if (!visited.contains(vertex) && !running.contains(vertex))
+				pending.add(vertex);
+		}
+	}
+
+	/**
+	 * Return the vertices which can be visited, from the one on the longest path of files to visit to the one
+	 * on the shortest path.
+	 */
+	private List<Vertex> findReadyVertices() {
+		final Map<Vertex, Boolean> clear = new HashMap<Vertex, Boolean>();
+		final List<Vertex> ready = new ArrayList<Vertex>();
+		for (Vertex vertex : pending) {
+			boolean bReady = true;
+			for (Vertex neededFile : vertex.getNeededFiles()) {
+				if (!isClear(neededFile, clear)) {
+					bReady = false;
+					break;
+				}
+			}
+			if (bReady)
+				ready.add(vertex);
+		}
+
+		// the vertices depend on each other in a cycle: visit them in the order of the layers
+		if (ready.isEmpty() && running.isEmpty() && !pending.isEmpty()) {
+			ready.add(pending.iterator().next());
+			return ready;
+		}
+
+		final Map<Vertex, Long> priorities = new HashMap<Vertex, Long>();
+		for (Vertex vertex : ready)
+			getPriority(vertex, priorities);
+		// a stable sort: the vertices of equal priority stay in the order of the layers
+		Collections.sort(ready, new Comparator<Vertex>() {
+			public int compare(Vertex v1, Vertex v2) {
+				long p1 = priorities.get(v1);
+				long p2 = priorities.get(v2);
+				return p1 > p2 ? -1 : (p1 < p2 ? 1 : 0);
+			}
+		});
+		return ready;
+	}
+
+	/**
+	 * Whether neither <code>vertex</code> nor the files it depends on (recursively) remain to be visited
+	 *
+	 * @param clear
+	 *            the vertices already checked
+	 */
+	private boolean isClear(Vertex vertex, Map<Vertex, Boolean> clear) {
+		Boolean known = clear.get(vertex);
+		if (known != null)
+			return known;
+
+		if (pending.contains(vertex) || running.contains(vertex)) {
+			clear.put(vertex, Boolean.FALSE);
+			return false;
+		}
+
+		// against the cycles
+		clear.put(vertex, Boolean.TRUE);
+		for (Vertex neededFile : vertex.getNeededFiles()) {
+			if (!isClear(neededFile, clear)) {
+				clear.put(vertex, Boolean.FALSE);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * The length of the longest path of files to visit which starts at <code>vertex</code>, weighted by the
+	 * compilation time of each file
+	 */
+	private long getPriority(Vertex vertex, Map<Vertex, Long> priorities) {
+		Long known = priorities.get(vertex);
+		if (known != null)
+			return known;
+
+		// against the cycles
+		priorities.put(vertex, 0L);
+		long longestAffected = 0;
+		for (Vertex affectedFile : vertex.getAffectedFiles()) {
+			if (pending.contains(affectedFile))
+				longestAffected = Math.max(longestAffected, getPriority(affectedFile, priorities));
+		}
+		long priority = getCompilationTime(vertex) + longestAffected;
+		priorities.put(vertex, priority);
+		return priority;
+	}
+
+	/** The compilation time of the file of <code>vertex</code> during the last build */
+	private long getCompilationTime(Vertex vertex) {
+		Long time = times.get(vertex);
+		if (time == null) {
+			time = DEFAULT_COMPILATION_TIME;
+			if (!vertex.isExternalFile()) {
+				String property = Misc.getFileProperty(vertex.getFile(), OcamlBuilder.COMPILATION_TIME);
+				try {
+					if (!property.equals(""))
+						time = Long.parseLong(property);
+				} catch (NumberFormatException e) {
+					OcamlPlugin.logWarning("invalid compilation time for " + vertex.getFile().getName());
+				}
+			}
+			times.put(vertex, time);
+		}
+		return time;
+	}
+
+	private void setCompilationTime(Vertex vertex, long time) {
+		times.put(vertex, time);
+		Misc.setFileProperty(vertex.getFile(), OcamlBuilder.COMPILATION_TIME, String.valueOf(time));
+	}
+}
@@ -0,0 +1,311 @@
+package ocaml.build.graph;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ocaml.OcamlPlugin;
+import ocaml.util.FileUtil;
+import ocaml.util.Misc;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IWorkspaceRoot;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.Path;
+
+/**
+ * Saves the dependencies graph of a project in the plugin state location, so that it doesn't have to be
+ * computed again (by running ocamldep on each file) when the project is opened in the next session.<br>
+ * The vertices are saved with the time stamp and the size of their file: when the graph is loaded, only the
+ * files which changed in the meantime have to be analyzed again. The digests of their object files are saved
+ * too, to detect whether the next compilation changes them.
+ */
+public class GraphStore {
+
+	private static final int MAGIC = 0x4F434447; // "OCDG"
+
+	/** Change this when the format of the file changes */
+	private static final int VERSION = 2;
+
+	/** The stamp of a file whose dependencies must be computed again */
+	private static final long NO_STAMP = -1;
+
+	/**
+	 * Write the graph of <code>project</code> in the plugin state location.
+	 *
+	 * @param analysisStart
+	 *            when the dependencies of the graph started to be computed: the files modified after that
+	 *            time will be analyzed again when the graph is loaded
+	 */
+	public static void save(IProject project, LayersGraph graph, long analysisStart) {
+		final List<Vertex> vertices = new ArrayList<Vertex>();
+		final List<Vertex> executables;
+		synchronized (graph) {
+			for (int i = 0; i < graph.getLayersCount(); i++)
+				vertices.addAll(graph.getLayer(i));
+			executables = new ArrayList<Vertex>(graph.getExecutables());
+		}
+
+		final Map<Vertex, Integer> indices = new HashMap<Vertex, Integer>();
+		for (int i = 0; i < vertices.size(); i++)
+			indices.put(vertices.get(i), i);
+
+		final File graphFile = getGraphFile(project);
+		final File tempFile = new File(graphFile.getPath() + ".tmp");
+
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			writeStrings(out, getAnalysisSettings(project));
+
+			out.writeInt(vertices.size());
+			for (Vertex vertex : vertices) {
+				final IFile file = vertex.getFile();
+				out.writeUTF(file.getFullPath().toPortableString());
+				out.writeBoolean(vertex.isExternalFile());
+				out.writeInt(vertex.getLayerID());
+
+				final File location = file.getLocation() == null ? null : file.getLocation().toFile();
+				/*
+				 * A file modified during the analysis may have been analyzed before the change. (Some file
+				 * systems keep the time stamps to the second only.)
+				 */
+				if (location == null || location.lastModified() >= analysisStart - 1000) {
+					out.writeLong(NO_STAMP);
+					out.writeLong(NO_STAMP);
+				} else {
+					out.writeLong(location.lastModified());
+					out.writeLong(location.length());
+				}
+
+				writeFile(out, vertex.getObjectFile());
+				writeFile(out, vertex.getInterfaceObjectFile());
+				writeDigest(out, vertex.getObjectFileDigest());
+				writeDigest(out, vertex.getInterfaceObjectFileDigest());
+			}
+
+			for (Vertex vertex : vertices) {
+				writeIndices(out, vertex.getNeededFiles(), indices);
+				writeIndices(out, vertex.getAffectedFiles(), indices);
+				writeIndices(out, vertex.getAffectedExe(), indices);
+				writeIndices(out, vertex.getAllFilesToLink(), indices);
+			}
+			writeIndices(out, executables, indices);
+		} catch (IOException e) {
+			OcamlPlugin.logError("Couldn't write the dependencies graph of " + project.getName(), e);
+			FileUtil.closeResource(out);
+			tempFile.delete();
+			return;
+		} finally {
+			FileUtil.closeResource(out);
+		}
+
+		if (graphFile.exists() && !graphFile.delete() || !tempFile.renameTo(graphFile)) {
+			OcamlPlugin.logWarning("Couldn't replace the dependencies graph " + graphFile.getPath());
+			tempFile.delete();
+		}
+	}
+
+	/**
+	 * Load the graph saved for <code>project</code>, and check it against the files of the project: the
+	 * vertices of the files which don't exist anymore are removed from the graph, and the files which must be
+	 * analyzed again are added to <code>changedFiles</code> (the files modified since the graph was saved,
+	 * and the files which depended on a removed file).
+	 *
+	 * @return the graph, or <code>null</code> if there is no usable saved graph (the dependencies must then
+	 *         be computed from scratch)
+	 */
+	public static LayersGraph load(IProject project, List<IFile> changedFiles) {
+		final File graphFile = getGraphFile(project);
+		if (!graphFile.exists())
+			return null;
+
+		final IWorkspaceRoot root = project.getWorkspace().getRoot();
+		final List<Vertex> vertices = new ArrayList<Vertex>();
+		final Set<Vertex> removedVertices = new HashSet<Vertex>();
+		final List<Vertex> executables = new ArrayList<Vertex>();
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(graphFile)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return null;
+			// the dependencies found by ocamldep depend on the paths of the project
+			if (!readStrings(in).equals(getAnalysisSettings(project)))
+				return null;
+
+			final int nVertices = in.readInt();
+			for (int i = 0; i < nVertices; i++) {
+				final IFile file = root.getFile(Path.fromPortableString(in.readUTF()));
+				final Vertex vertex = new Vertex(file, in.readBoolean());
+				vertex.setLayer(in.readInt());
+				vertex.setType();
+				final long lastModified = in.readLong();
+				final long size = in.readLong();
+				vertex.setObjectFile(readFile(in, root));
+				vertex.setInterfaceObjectFile(readFile(in, root));
+				vertex.setObjectFileDigest(readDigest(in));
+				vertex.setInterfaceObjectFileDigest(readDigest(in));
+				vertices.add(vertex);
+
+				final IPath path = file.getLocation();
+				final File location = path == null ? null : path.toFile();
+				if (!file.exists() || location == null || !location.exists())
+					removedVertices.add(vertex);
+				// the dependencies of the external files are not computed
+				else if (!vertex.isExternalFile()
+						&& (lastModified != location.lastModified() || size != location.length()))
+					changedFiles.add(file);
+			}
+
+			for (Vertex vertex : vertices) {
+				for (Vertex neededFile : readIndices(in, vertices))
+					vertex.addNeededFile(neededFile);
+				for (Vertex affectedFile : readIndices(in, vertices))
+					vertex.addAffectedFile(affectedFile);
+				for (Vertex exe : readIndices(in, vertices))
+					vertex.addAffectedExe(exe);
+				for (Vertex fileToLink : readIndices(in, vertices))
+					vertex.addFileToLink(fileToLink);
+			}
+			executables.addAll(readIndices(in, vertices));
+		} catch (IOException e) {
+			// a truncated or corrupted file: compute the graph from scratch
+			OcamlPlugin.logWarning("Couldn't read the dependencies graph of " + project.getName() + ": "
+					+ e.getMessage());
+			changedFiles.clear();
+			return null;
+		} finally {
+			FileUtil.closeResource(in);
+		}
+
+		final LayersGraph graph = new LayersGraph();
+		graph.addAll(vertices);
+		graph.addAllExe(executables);
+
+		// the make_exe property may have been changed in the meantime
+		for (Vertex vertex : vertices) {
+			if (removedVertices.contains(vertex)) {
+				graph.getExecutables().remove(vertex);
+				continue;
+			}
+			if (vertex.getType() != Vertex.MLTYPE)
+				continue;
+			vertex.refreshExeName();
+			if (vertex.getExeName() != null)
+				graph.addExe(vertex);
+			else if (executables.contains(vertex))
+				graph.removeExe(vertex);
+		}
+
+		for (Vertex vertex : removedVertices) {
+			for (Vertex affectedFile : vertex.getAffectedFiles()) {
+				if (!removedVertices.contains(affectedFile) && !changedFiles.contains(affectedFile.getFile()))
+					changedFiles.add(affectedFile.getFile());
+			}
+		}
+		for (Vertex vertex : removedVertices) {
+			// an external vertex is removed with the last file which depends on it
+			if (graph.getLayer(vertex.getLayerID()).contains(vertex))
+				graph.suppressVertex(vertex);
+		}
+
+		return graph;
+	}
+
+	private static File getGraphFile(IProject project) {
+		final IPath stateLocation = OcamlPlugin.getInstance().getStateLocation();
+		return stateLocation.append("dependencies-" + project.getName() + ".graph").toFile();
+	}
+
+	/** What the dependencies found by ocamldep depend on, besides the files */
+	private static List<String> getAnalysisSettings(IProject project) {
+		final List<String> settings = new ArrayList<String>();
+		settings.add(OcamlPlugin.getOcamldepFullPath());
+		settings.addAll(Misc.getProjectPaths(project));
+		return settings;
+	}
+
+	private static void writeStrings(DataOutputStream out, List<String> strings) throws IOException {
+		out.writeInt(strings.size());
+		for (String string : strings)
+			out.writeUTF(string);
+	}
+
+	private static List<String> readStrings(DataInputStream in) throws IOException {
+		final int nStrings = in.readInt();
+		final List<String> strings = new ArrayList<String>(nStrings);
+		for (int i = 0; i < nStrings; i++)
+			strings.add(in.readUTF());
+		return strings;
+	}
+
+	private static void writeFile(DataOutputStream out, IFile file) throws IOException {
+		out.writeUTF(file == null ? "" : file.getFullPath().toPortableString());
+	}
+
+	private static IFile readFile(DataInputStream in, IWorkspaceRoot root) throws IOException {
+		final String path = in.readUTF();
+		return path.equals("") ? null : root.getFile(Path.fromPortableString(path));
+	}
+
+	private static void writeDigest(DataOutputStream out, byte[] digest) throws IOException {
+		if (digest == null)
+			out.writeInt(-1);
+		else {
+			out.writeInt(digest.length);
+			out.write(digest);
+		}
+	}
+
+	private static byte[] readDigest(DataInputStream in) throws IOException {
+		final int length = in.readInt();
+		if (length == -1)
+			return null;
+		if (length < 0 || length > 64)
+			throw new IOException("invalid digest length " + length);
+		final byte[] digest = new byte[length];
+		in.readFully(digest);
+		return digest;
+	}
+
+	/** Write the indices of <code>vertices</code> (the vertices which are not in the graph are skipped) */
+	private static void writeIndices(DataOutputStream out, List<Vertex> vertices, Map<Vertex, Integer> indices)
+			throws IOException {
+		final List<Integer> known = new ArrayList<Integer>(vertices.size());
+		for (Vertex vertex : vertices) {
+			final Integer index = indices.get(vertex);
+			if (index != null)
+				known.add(index);
+		}
+		out.writeInt(known.size());
+		for (int index : known)
+			out.writeInt(index);
+	}
+
+	private static List<Vertex> readIndices(DataInputStream in, List<Vertex> vertices) throws IOException {
+		final int nIndices = in.readInt();
+		final List<Vertex> result = new ArrayList<Vertex>(nIndices);
+		for (int i = 0; i < nIndices; i++) {
+			final int index = in.readInt();
+			if (index < 0 || index >= vertices.size())
+				throw new IOException("invalid vertex index " + index);
+			result.add(vertices.get(index));
+		}
+		return result;
+	}
+}
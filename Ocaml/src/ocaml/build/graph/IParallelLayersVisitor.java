@@ -0,0 +1,30 @@
+package ocaml.build.graph;
+
+import org.eclipse.core.runtime.IProgressMonitor;
+
+/**
+ * This interface is used to define visitors that visit the vertices of each graph layer concurrently, from
+ * layer 0 to the last layer. The visit of a vertex is divided in three steps: the vertices of a layer are
+ * first prepared one after the other, in the thread of the caller; then the tasks they returned are run in
+ * several threads; then the vertices are completed one after the other, in the order of the layer, in the
+ * thread of the caller. Only the tasks must be thread-safe.
+ */
+public interface IParallelLayersVisitor<T extends Runnable> {
+
+	/**
+	 * Prepare the visit of a vertex.
+	 *
+	 * @return the task to run for this vertex, or <code>null</code> if there is nothing to do
+	 */
+	public T prepare(final Vertex vertex, final IProgressMonitor monitor);
+
+	/**
+	 * Complete the visit of a vertex, once the tasks of all the vertices of its layer have been run.
+	 *
+	 * @param task
+	 *            the task returned by {@link #prepare(Vertex, IProgressMonitor)}
+	 * @return <code>false</code> to stop the visit
+	 */
+	public boolean complete(final Vertex vertex, final T task, final IProgressMonitor monitor);
+
+}
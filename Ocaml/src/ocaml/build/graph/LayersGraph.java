@@ -3,6 +3,10 @@ package ocaml.build.graph;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import ocaml.OcamlPlugin;
 
@@ -109,7 +113,7 @@ public class LayersGraph {
 	 * Ajoute une couche vide au graphe (à la fin).<br>
 	 * 
 	 */
-	public void addEmptyLayer() {
+	public synchronized void addEmptyLayer() {
 		// add ajoute à la fin, c'est le comportement voulu.
 		layers.add(Collections.synchronizedList(new ArrayList<Vertex>()));
 	}
@@ -124,7 +128,7 @@ public class LayersGraph {
 	 * @param vertex
 	 *            le sommet à ajouter.
 	 */
-	protected void addVertex(Vertex vertex) {
+	protected synchronized void addVertex(Vertex vertex) {
 		// Récupérer la couche où il doit être insérer
 		final int layerID = vertex.getLayerID();
 		// Si on demande une couche qui n'existe pas encore, il
@@ -158,7 +162,7 @@ public class LayersGraph {
 	 * @param newVertices
 	 *            la liste des sommets et de leur dépendances à ajouter au graphe.
 	 */
-	public void addAll(List<Vertex> newVertices) {
+	public synchronized void addAll(List<Vertex> newVertices) {
 		// Une liste des sommets à déplacer (c'est à dire des sommets que l'on
 		// devra supprimer de l'ancien graphe avant de les ajouter à celui-là)
 		// Indispensable pour éviter la modification concurrente
@@ -192,12 +196,23 @@ public class LayersGraph {
 	 * Ajoute un exécutable à la liste des exécutables uniquement si celui-ci n'y est pas déjà.<br>
 	 * 
 	 */
-	public void addExe(Vertex exe) {
+	public synchronized void addExe(Vertex exe) {
 		if (!executables.contains(exe)) {
 			executables.add(exe);
 		}
 	}
 
+	/**
+	 * Ajoute une liste d'exécutables à la liste des exécutables (ceux qui y sont déjà ne sont pas ajoutés
+	 * une deuxième fois).<br>
+	 * 
+	 */
+	public synchronized void addAllExe(List<Vertex> exes) {
+		for (Vertex exe : exes) {
+			addExe(exe);
+		}
+	}
+
 	/**
 	 * Enlève un exécutable de la liste des exécutables, et enlève cet exécutable de la liste des executables
 	 * affectés de chaque fichier à lier.<br>
@@ -206,7 +221,7 @@ public class LayersGraph {
 	 * @return <code>true</code> si tout s'est bien passé, ou <code>false</code> sinon (particulièrement
 	 *         si l'exe n'a pas été trouvé dans une liste d'exe - celle du graphe ou alors une affectedExe).<br>
 	 */
-	public boolean removeExe(Vertex exe) {
+	public synchronized boolean removeExe(Vertex exe) {
 		if (!executables.contains(exe)) {
 			return false;
 		}
@@ -233,7 +248,7 @@ public class LayersGraph {
 	 * @param verticesSet
 	 *            Un ensemble de sommet à rafraichir (qui n'est pas une couche du graphe).
 	 */
-	public void refreshLayer(List<Vertex> verticesSet) {
+	public synchronized void refreshLayer(List<Vertex> verticesSet) {
 		// Créer un visiteur qui traitera chaque sommet et ensuite ses fichiers
 		// affectés.
 		final IPostAffectedFilesVisitor refresher = new RefreshLayersVisitor();
@@ -254,7 +269,7 @@ public class LayersGraph {
 	 *            le fichier à rechercher
 	 * @return le sommet s'il est trouvé, null sinon.
 	 */
-	public Vertex findVertex(IFile file) {
+	public synchronized Vertex findVertex(IFile file) {
 		for (List<Vertex> layer : layers) {
 			for (Vertex vertex : layer) {
 				if (vertex.getFile().equals(file))
@@ -268,7 +283,7 @@ public class LayersGraph {
 	 * Cette méthode cherche le sommet à partir du nom du fichier, et l'efface.<br>
 	 * Voir la méthode de même nom s'appliquant directement à un sommet.<br>
 	 */
-	public boolean suppressVertex(IFile file) {
+	public synchronized boolean suppressVertex(IFile file) {
 		final Vertex vertex = findVertex(file);
 		if (vertex == null) {
 			return false;
@@ -286,7 +301,7 @@ public class LayersGraph {
 	 *            le sommet à supprimer
 	 * @return true si tout s'est bien passé, false sinon.
 	 */
-	public boolean suppressVertex(Vertex vertex) {
+	public synchronized boolean suppressVertex(Vertex vertex) {
 
 		final List<Vertex> layer = getLayer(vertex.getLayerID());
 
@@ -356,7 +371,7 @@ public class LayersGraph {
 	 * @param newLayer
 	 *            le numéro de la nouvelle couche.
 	 */
-	public void moveVertex(Vertex v, int newLayer) {
+	public synchronized void moveVertex(Vertex v, int newLayer) {
 		// Enlever le sommet de sa couche actuelle (erreur si on le trouve pas)
 		if (!getLayer(v.getLayerID()).remove(v)) {
 			OcamlPlugin.logError("error in LayersGraph:moveVertice :" + " vertice not found",
@@ -376,7 +391,7 @@ public class LayersGraph {
 	 * @param v
 	 *            le sommet à enlever
 	 */
-	public void removeVertex(Vertex v) {
+	public synchronized void removeVertex(Vertex v) {
 		if (!getLayer(v.getLayerID()).remove(v)) {
 			OcamlPlugin.logError("error in removing vertex" + " from graph : vertex isn't in his layer");
 		} else {
@@ -396,7 +411,7 @@ public class LayersGraph {
 	 * @param otherGraph
 	 *            l'autre graphe avec qui l'on doit fusionner.
 	 */
-	public void mergeWith(LayersGraph otherGraph) {
+	public synchronized void mergeWith(LayersGraph otherGraph) {
 		// récupérer le nombre de couches de l'autre graphe
 		final int nbLayers = otherGraph.getLayersCount();
 		// Ajouter chaque couche au graphe
@@ -413,7 +428,7 @@ public class LayersGraph {
 	 * Efface les couches vides finales du graphe.
 	 * 
 	 */
-	public void removeEmptyFinalLayers() {
+	public synchronized void removeEmptyFinalLayers() {
 		// Ce booléen permet de détecter si l'on a commencé à enlever des
 		// couches. Normalement, on ne doit enlever que des couches qui se
 		// trouvent à la fin.
@@ -464,6 +479,87 @@ public class LayersGraph {
 		}
 	}
 
+	/**
+	 * Visit all the files of all the layers, from the first to the last one, like
+	 * {@link #accept(ILayersVisitor, IProgressMonitor)}, but run the tasks of the files of a layer
+	 * concurrently: the files of a layer don't depend on each other.<br>
+	 * The files of a layer are prepared and completed in the order of the layer, in the calling thread, so
+	 * that the results don't depend on the order in which the tasks end. The next layer is only visited once
+	 * all the files of a layer were completed, so the visitor can add files to the next layers.<br>
+	 * If the visitor returns false when completing a file, the files following it are not completed, and the
+	 * next layers are not visited.
+	 * 
+	 * @param visitor
+	 *            the visitor which must visit each vertex of the graph.
+	 * @param monitor
+	 * @param nWorkers
+	 *            the maximum number of tasks run at the same time
+	 */
+	public <T extends Runnable> void accept(IParallelLayersVisitor<T> visitor, IProgressMonitor monitor,
+			int nWorkers) {
+		ExecutorService executor = null;
+		try {
+			for (int i = 0; i < getLayersCount(); i++) {
+				if ((monitor != null) && monitor.isCanceled())
+					return;
+
+				// a copy of the layer: completing its files can move other files in the graph
+				final List<Vertex> layer;
+				synchronized (this) {
+					layer = new ArrayList<Vertex>(getLayer(i));
+				}
+
+				final List<T> tasks = new ArrayList<T>(layer.size());
+				int nTasks = 0;
+				for (Vertex vertex : layer) {
+					T task = visitor.prepare(vertex, monitor);
+					tasks.add(task);
+					if (task != null)
+						nTasks++;
+				}
+
+				if (nTasks == 1 || nWorkers <= 1) {
+					for (T task : tasks) {
+						if (task == null)
+							continue;
+						try {
+							task.run();
+						} catch (RuntimeException e) {
+							OcamlPlugin.logError("error in LayersGraph:accept: error running a task", e);
+						}
+					}
+				} else if (nTasks > 1) {
+					if (executor == null)
+						executor = Executors.newFixedThreadPool(nWorkers);
+					final List<Future<?>> results = new ArrayList<Future<?>>(nTasks);
+					for (T task : tasks) {
+						if (task != null)
+							results.add(executor.submit(task));
+					}
+					for (Future<?> result : results) {
+						try {
+							result.get();
+						} catch (ExecutionException e) {
+							OcamlPlugin.logError("error in LayersGraph:accept: error running a task",
+									e.getCause());
+						}
+					}
+				}
+
+				for (int j = 0; j < layer.size(); j++) {
+					if (!visitor.complete(layer.get(j), tasks.get(j), monitor)) {
+						return;
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (executor != null)
+				executor.shutdownNow();
+		}
+	}
+
 	/**
 	 * Visiter tous les exécutables liés au graphe.<br>
 	 * Ceci ne revient qu'à parcourir le tableau.<br>
@@ -1,7 +1,9 @@
 package ocaml.build.graph;
 
 import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import ocaml.OcamlPlugin;
 import ocaml.build.OcamlBuilder;
@@ -29,6 +31,14 @@ import org.eclipse.core.runtime.IProgressMonitor;
  */
 public class LinkerVisitor implements IExecutablesVisitor {
 
+	/** The executables written or deleted by the linker, which must be refreshed in the workspace */
+	private final Set<IFile> generatedFiles = new LinkedHashSet<IFile>();
+
+	/** The executables written or deleted by the linking of the visited vertices */
+	public Set<IFile> getGeneratedFiles() {
+		return generatedFiles;
+	}
+
 	// Le final est nécessaire pour accéder à vertex dans le visiteur anonyme.
 	public boolean visit(final Vertex vertex, final IProgressMonitor monitor) {
 
@@ -244,6 +254,7 @@ public class LinkerVisitor implements IExecutablesVisitor {
 
 		// On créé un "handler", l'exécutable n'existe pas encore...
 		final IFile exeFile = project.getFile(exeName);
+		generatedFiles.add(exeFile);
 		// Les flags sont bien ordonnés, on aura donc bien "-o exeName"
 		flags.add("-o");
 		flags.add(exeFile.getFullPath().makeRelative().toOSString());
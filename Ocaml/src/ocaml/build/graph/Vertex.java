@@ -109,6 +109,19 @@ public class Vertex {
 	 */
 	private IFile interfaceObjectFile;
 
+	/**
+	 * Empreinte (MD5) du fichier objet lors de sa dernière compilation, <code>null</code> si elle n'est pas
+	 * connue.<br>
+	 * Elle permet de détecter si la compilation a changé le fichier objet, sans en faire de copie.
+	 */
+	private byte[] objectFileDigest;
+
+	/**
+	 * Empreinte (MD5) du fichier objet de l'interface (.cmi) lors de sa dernière compilation,
+	 * <code>null</code> si elle n'est pas connue.
+	 */
+	private byte[] interfaceObjectFileDigest;
+
 	/**
 	 * Un constructeur initialisant à vide les fichiers affectés, requis, les exécutables affectés et les
 	 * fichiers à lier pour la création d'un executable et spécifiant la couche 0 par défaut.<br>
@@ -132,6 +145,8 @@ public class Vertex {
 		this.type = DEFAULTTYPE;
 		this.interfaceObjectFile = null;
 		this.objectFile = null;
+		this.objectFileDigest = null;
+		this.interfaceObjectFileDigest = null;
 	}
 
 	/**
@@ -153,6 +168,8 @@ public class Vertex {
 		this.type = DEFAULTTYPE;
 		this.interfaceObjectFile = null;
 		this.objectFile = null;
+		this.objectFileDigest = null;
+		this.interfaceObjectFileDigest = null;
 	}
 
 	/**
@@ -253,6 +270,42 @@ public class Vertex {
 		this.interfaceObjectFile = itfObjFile;
 	}
 
+	/**
+	 * @return l'empreinte du fichier objet lors de sa dernière compilation, <code>null</code> si elle n'est
+	 *         pas connue.
+	 */
+	public byte[] getObjectFileDigest() {
+		return this.objectFileDigest;
+	}
+
+	/**
+	 * Associe l'empreinte du fichier objet, calculée après sa compilation.
+	 * 
+	 * @param digest
+	 *            l'empreinte, <code>null</code> si le fichier n'existe pas.
+	 */
+	public void setObjectFileDigest(byte[] digest) {
+		this.objectFileDigest = digest;
+	}
+
+	/**
+	 * @return l'empreinte du fichier objet de l'interface lors de sa dernière compilation, <code>null</code>
+	 *         si elle n'est pas connue.
+	 */
+	public byte[] getInterfaceObjectFileDigest() {
+		return this.interfaceObjectFileDigest;
+	}
+
+	/**
+	 * Associe l'empreinte du fichier objet de l'interface, calculée après sa compilation.
+	 * 
+	 * @param digest
+	 *            l'empreinte, <code>null</code> si le fichier n'existe pas.
+	 */
+	public void setInterfaceObjectFileDigest(byte[] digest) {
+		this.interfaceObjectFileDigest = digest;
+	}
+
 	/**
 	 * Rafraichit le nom de l'exécutable.<br>
 	 * C'est à dire récupérer directement la propriété persistante, donc si elle n'existe pas, exeName vaudra
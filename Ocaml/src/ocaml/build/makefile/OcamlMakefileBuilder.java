@@ -145,12 +145,25 @@ public class OcamlMakefileBuilder extends IncrementalProjectBuilder {
 
 			String[] strCommandLine = commandLine.toArray(new String[commandLine.size()]);
 
-			final StringBuilder output = new StringBuilder();
+			/*
+			 * The output is parsed while make runs, and the markers are created in the loop below, so that the
+			 * errors appear during a long build.
+			 */
+			final ProblemMarkers problemMarkers = new ProblemMarkers(project, true);
+			if (kind != CLEAN_BUILD) {
+				/*
+				 * Delete all markers on the project (since we rebuild it). This can be problematic with warning
+				 * markers, that will disappear at the next rebuild (since files with only warnings won't be
+				 * recompiled). The warning marker will only reappear next time the file in which it appears is
+				 * modified.
+				 */
+				project.deleteMarkers(IMarker.PROBLEM, false, IResource.DEPTH_INFINITE);
+			}
 
 			IExecEvents events = new IExecEvents() {
 
 				public void processNewInput(final String input) {
-					output.append(input);
+					problemMarkers.append(input);
 					Display.getDefault().asyncExec(new Runnable() {
 						public void run() {
 							OcamlCompilerOutput outputView = OcamlCompilerOutput.get();
@@ -168,8 +181,10 @@ public class OcamlMakefileBuilder extends IncrementalProjectBuilder {
 				public void processEnded(int exitValue) {
 					if (kind == CLEAN_BUILD)
 						cleanFinished(project);
-					else
-						makefileFinished(output.toString(), project);
+					else {
+						problemMarkers.endOutput();
+						makefileFinished(problemMarkers, project);
+					}
 				}
 			};
 
@@ -196,6 +211,8 @@ public class OcamlMakefileBuilder extends IncrementalProjectBuilder {
 			while (execHelper.isRunning()) {
 				if (buildMonitor.isCanceled())
 					execHelper.kill();
+				if (kind != CLEAN_BUILD)
+					problemMarkers.writeMarkers();
 				try {
 					buildMonitor.worked(1);
 					Thread.sleep(100);
@@ -204,6 +221,8 @@ public class OcamlMakefileBuilder extends IncrementalProjectBuilder {
 			}
 
 			execHelper.join();
+			if (kind != CLEAN_BUILD)
+				problemMarkers.writeMarkers();
 
 			return null;
 		} finally {
@@ -242,7 +261,11 @@ public class OcamlMakefileBuilder extends IncrementalProjectBuilder {
 
 	}
 
-	protected void makefileFinished(final String output, final IProject project) {
+	/**
+	 * @param problemMarkers
+	 *            the problems found in the output of make (their markers are created by the build)
+	 */
+	protected void makefileFinished(final ProblemMarkers problemMarkers, final IProject project) {
 
 		// Execute a background job to decorate files with markers
 		Job job = new Job("Decorating Project") {
@@ -266,29 +289,7 @@ public class OcamlMakefileBuilder extends IncrementalProjectBuilder {
 
 					IFile[] files = Misc.getProjectFiles(project);
 
-					monitor.beginTask("Decorating Project", files.length + 3);
-
-					/*
-					 * Delete all markers on the project (since we rebuilt it). This can be problematic with
-					 * warning markers, that will disappear at the next rebuild (since files with only
-					 * warnings won't be recompiled). The warning marker will only reappear next time the file
-					 * in which it appears is modified.
-					 */
-					try {
-						project.deleteMarkers(IMarker.PROBLEM, false, IResource.DEPTH_INFINITE);
-					} catch (CoreException e) {
-						OcamlPlugin.logError("ocaml plugin error", e);
-					}
-
-					monitor.worked(1);
-
-					/*
-					 * Parse the compiler output to find error and warning messages.
-					 */
-					ProblemMarkers problemMarkers = new ProblemMarkers(project);
-					problemMarkers.makeMarkers2(output.toString());
-
-					monitor.worked(1);
+					monitor.beginTask("Decorating Project", files.length + 1);
 
 					// Remove the "error" and "warning" property on each project file
 					for (IFile f : files) {
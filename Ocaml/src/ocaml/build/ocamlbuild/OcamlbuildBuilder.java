@@ -218,13 +218,24 @@ public class OcamlbuildBuilder extends IncrementalProjectBuilder {
 
 				String[] strCommandLine = commandLine.toArray(new String[commandLine.size()]);
 
-				final StringBuilder output = new StringBuilder();
+				/*
+				 * The output is parsed while ocamlbuild runs, and the markers are created in the loop below,
+				 * so that the errors appear during a long build.
+				 */
+				final ProblemMarkers problemMarkers = new ProblemMarkers(project, true);
+				/*
+				 * Delete all markers on the project (since we rebuild it). This can be problematic with
+				 * warning markers, that will disappear at the next rebuild (since files with only warnings
+				 * won't be recompiled). The warning marker will only reappear next time the file in which it
+				 * appears is modified.
+				 */
+				project.deleteMarkers(IMarker.PROBLEM, false, IResource.DEPTH_INFINITE);
 
 				IExecEvents events = new IExecEvents() {
 
 					public void processNewInput(final String input) {
 						// System.out.println(input);
-						output.append(input);
+						problemMarkers.append(input);
 						Display.getDefault().asyncExec(new Runnable() {
 							public void run() {
 								OcamlCompilerOutput outputView = OcamlCompilerOutput.get();
@@ -240,7 +251,8 @@ public class OcamlbuildBuilder extends IncrementalProjectBuilder {
 					}
 
 					public void processEnded(int exitValue) {
-						buildFinished(output.toString(), project);
+						problemMarkers.endOutput();
+						buildFinished(problemMarkers, project);
 					}
 
 				};
@@ -268,6 +280,7 @@ public class OcamlbuildBuilder extends IncrementalProjectBuilder {
 				while (execHelper.isRunning()) {
 					if (buildMonitor.isCanceled())
 						execHelper.kill();
+					problemMarkers.writeMarkers();
 					try {
 						buildMonitor.worked(1);
 						Thread.sleep(100);
@@ -276,6 +289,7 @@ public class OcamlbuildBuilder extends IncrementalProjectBuilder {
 				}
 
 				execHelper.join();
+				problemMarkers.writeMarkers();
 
 				return null;
 			} finally {
@@ -317,7 +331,11 @@ public class OcamlbuildBuilder extends IncrementalProjectBuilder {
 		return true;
 	}
 
-	private void buildFinished(final String output, final IProject project) {
+	/**
+	 * @param problemMarkers
+	 *            the problems found in the output of ocamlbuild (their markers are created by the build)
+	 */
+	private void buildFinished(final ProblemMarkers problemMarkers, final IProject project) {
 
 		// System.out.println("build finished");
 
@@ -342,31 +360,7 @@ public class OcamlbuildBuilder extends IncrementalProjectBuilder {
 					});
 
 					IFile[] files = Misc.getProjectFiles(project);
-					monitor.beginTask("Decorating Project", files.length + 3);
-
-					/*
-					 * Delete all markers on the project (since we rebuilt it). This can be problematic with
-					 * warning markers, that will disappear at the next rebuild (since files with only
-					 * warnings won't be recompiled). The warning marker will only reappear next time the file
-					 * in which it appears is modified.
-					 */
-					try {
-						monitor.subTask("Deleting old markers");
-						project.deleteMarkers(IMarker.PROBLEM, false, IResource.DEPTH_INFINITE);
-					} catch (CoreException e) {
-						OcamlPlugin.logError("ocaml plugin error", e);
-					}
-
-					monitor.worked(1);
-
-					/*
-					 * Parse the compiler output to find error and warning messages.
-					 */
-					monitor.subTask("Creating new markers");
-					ProblemMarkers problemMarkers = new ProblemMarkers(project);
-					problemMarkers.makeMarkers2(output.toString());
-
-					monitor.worked(1);
+					monitor.beginTask("Decorating Project", files.length + 1);
 
 					/*
 					 * Remove the "error" and "warning" property on each project file
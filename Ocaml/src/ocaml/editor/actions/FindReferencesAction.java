@@ -0,0 +1,162 @@
+package ocaml.editor.actions;
+
+import java.io.File;
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+
+import ocaml.OcamlPlugin;
+import ocaml.editors.OcamlEditor;
+import ocaml.typeHovers.AnnotReferenceIndex;
+import ocaml.typeHovers.AnnotReferenceIndex.Location;
+import ocaml.typeHovers.Annotations;
+import ocaml.typeHovers.IdentAnnotationIndex;
+import ocaml.typeHovers.OcamlAnnotParser;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.jface.action.IAction;
+import org.eclipse.jface.dialogs.MessageDialog;
+import org.eclipse.jface.operation.IRunnableWithProgress;
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.viewers.ISelection;
+import org.eclipse.jface.viewers.LabelProvider;
+import org.eclipse.jface.window.Window;
+import org.eclipse.ui.IEditorPart;
+import org.eclipse.ui.IWorkbenchPage;
+import org.eclipse.ui.IWorkbenchWindow;
+import org.eclipse.ui.IWorkbenchWindowActionDelegate;
+import org.eclipse.ui.PlatformUI;
+import org.eclipse.ui.dialogs.ElementListSelectionDialog;
+
+/**
+ * This action lists the references to the identifier under the cursor, in all the compiled modules
+ * of the project. The identifiers are resolved by the compiler: the references are read from the
+ * annotations files (generated with "-dtypes"), through the references index of the project.
+ */
+public class FindReferencesAction implements IWorkbenchWindowActionDelegate {
+
+	private IWorkbenchWindow window;
+
+	public void run(IAction action) {
+		IWorkbenchPage page = window.getActivePage();
+		if (page == null) {
+			OcamlPlugin.logError("FindReferencesAction: page is null");
+			return;
+		}
+
+		IEditorPart editorPart = page.getActiveEditor();
+		if (!(editorPart instanceof OcamlEditor)) {
+			OcamlPlugin.logError("FindReferencesAction: not an Ocaml editor");
+			return;
+		}
+
+		OcamlEditor editor = (OcamlEditor) editorPart;
+		IFile file = editor.getFileBeingEdited();
+		File annotFile = editor.getUpToDateAnnotFile();
+		if (file == null || annotFile == null) {
+			MessageDialog.openInformation(window.getShell(), "Ocaml Plugin",
+					"The module must be saved and compiled (with type annotations) "
+							+ "to find the references.");
+			return;
+		}
+
+		IDocument document = editor.getDocumentProvider().getDocument(editor.getEditorInput());
+
+		String name;
+		List<Location> references = new ArrayList<Location>();
+		try {
+			IdentAnnotationIndex idents = OcamlAnnotParser.getIdentIndex(annotFile, document);
+			int location = idents == null ? -1 : idents.findAt(editor.getCaretOffset());
+			if (location == -1) {
+				MessageDialog.openInformation(window.getShell(), "Ocaml Plugin",
+						"There is no identifier at the cursor.");
+				return;
+			}
+
+			Annotations annotations = idents.getAnnotations();
+			name = annotations.getIdentName(location);
+
+			// the qualified name of a top-level definition, which can be used in other modules
+			String path = null;
+			int definition = location;
+			if (annotations.getIdentKind(location) == Annotations.IDENT_EXT_REF)
+				path = name;
+			else {
+				if (annotations.getIdentKind(location) == Annotations.IDENT_INT_REF)
+					definition = idents.findDefinition(location);
+				if (definition != -1 && idents.isTopLevelDefinition(definition))
+					path = AnnotReferenceIndex.getModuleName(file) + "."
+							+ annotations.getIdentName(definition);
+			}
+
+			if (path != null)
+				references = findProjectReferences(file.getProject(), path);
+			// a local definition can only be used in this module
+			else if (definition != -1)
+				for (int reference : idents.findReferences(definition))
+					references.add(AnnotReferenceIndex.getLocation(file, annotations, reference));
+		} catch (BadLocationException e) {
+			OcamlPlugin.logError("error reading the annotations to find references", e);
+			return;
+		}
+
+		if (references.isEmpty()) {
+			MessageDialog.openInformation(window.getShell(), "Ocaml Plugin",
+					"No references to '" + name + "' were found.");
+			return;
+		}
+
+		ElementListSelectionDialog dialog = new ElementListSelectionDialog(window.getShell(),
+				new LabelProvider() {
+					@Override
+					public String getText(Object element) {
+						Location location = (Location) element;
+						return location.getSource().getProjectRelativePath() + ":"
+								+ location.getLine() + ":" + location.getColumn();
+					}
+				});
+		dialog.setTitle("References to " + name);
+		dialog.setMessage(references.size() + " references (select one to open it):");
+		dialog.setMultipleSelection(false);
+		dialog.setElements(references.toArray());
+
+		if (dialog.open() == Window.OK && dialog.getFirstResult() != null)
+			((Location) dialog.getFirstResult()).open(page);
+	}
+
+	/** Find the uses of <code>path</code> in the project, once its index is up to date */
+	private List<Location> findProjectReferences(final IProject project, String path) {
+		final AnnotReferenceIndex index = AnnotReferenceIndex.getInstance();
+		try {
+			PlatformUI.getWorkbench().getProgressService().busyCursorWhile(
+					new IRunnableWithProgress() {
+						public void run(IProgressMonitor monitor) throws InterruptedException {
+							monitor.beginTask("Indexing the references of " + project.getName(),
+									IProgressMonitor.UNKNOWN);
+							index.waitUntilReady(project);
+							monitor.done();
+						}
+					});
+		} catch (InvocationTargetException e) {
+			OcamlPlugin.logError("error indexing the references", e);
+		} catch (InterruptedException e) {
+			return new ArrayList<Location>();
+		}
+
+		return index.findReferences(project, path);
+	}
+
+	public void dispose() {
+	}
+
+	public void init(IWorkbenchWindow window) {
+		this.window = window;
+	}
+
+	public void selectionChanged(IAction action, ISelection selection) {
+	}
+
+}
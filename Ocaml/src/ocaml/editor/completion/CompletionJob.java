@@ -3,19 +3,24 @@ package ocaml.editor.completion;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
 import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import ocaml.OcamlPlugin;
 import ocaml.editors.OcamlEditor;
 import ocaml.parser.Def;
+import ocaml.parser.DefinitionsIndex;
+import ocaml.parsers.InterfaceIndex;
 import ocaml.parsers.OcamlNewInterfaceParser;
+import ocaml.util.DocumentCharSequence;
 import ocaml.util.Misc;
-import ocaml.util.OcamlPaths;
 
 import org.eclipse.core.resources.IFile;
-import org.eclipse.core.resources.IFolder;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
@@ -55,179 +60,123 @@ public class CompletionJob extends Job {
 		return bParsingInterfacesDone;
 	}
 
-	// we cache the definitions "super-tree" for a short time
-	private static long lastTime = 0;
-
-	private static Def lastDefinitionsRoot = null;
-
-	private static IProject lastProject = null;
-
-	/**
-	 * The duration in milliseconds during which the definitions super-tree is kept in memory. If
-	 * another completion is asked during this time the search won't get executed, and so the
-	 * completion box will appear immediately but without the latest modifications done during this
-	 * duration.
-	 */
-	private static final int cacheTime = 2000;
-
 	/**
 	 * Build the super-tree of all definitions found in mli files in the project directories (this
 	 * normally includes the OCaml standard library). This method is defined in class
 	 * CompletionJob, but it is not a job, it is executed in the same thread as the caller.
+	 * <p>
+	 * The modules are kept up to date by {@link DefinitionsSuperTree}, so only the root of the
+	 * super-tree is built here.
 	 * 
 	 * @param bUsingEditor
 	 *            use the editor to add opened modules to the definitions tree
 	 */
 	public static Def buildDefinitionsTree(IProject project, boolean bUsingEditor) {
-		
-		// TODO: use a change listener instead of testing each file for modifications each time
-		
-		Def definitionsRoot = null;
 
 		/*
-		 * We use the super-tree in cache instead of rebuilding it if the last completion dates from
-		 * less than a few seconds. This allows us to speed up typing in the completion box (if we
-		 * didn't do this, the super-tree would be rebuilt for each character typed in the
-		 * completion box)
+		 * Build a super-tree from all the definitions trees so as to be able to use a recursive
+		 * function. The root of this super-tree contains all the modules accessible from the
+		 * project + the members of opened modules ("Pervasives" being always opened by default)
 		 */
+		Def definitionsRoot = new Def("<root>", Def.Type.Root, 0, 0);
+		definitionsRoot.children.addAll(DefinitionsSuperTree.getInstance().getModules(project));
+
+		if (bUsingEditor) {
+			String[] openModules = findEditorOpenModules();
+			if (openModules != null) {
+				for (String module : openModules) {
+					Def defModule = null;
+
+					for (Def def : definitionsRoot.children)
+						if (def.type == Def.Type.Module && def.name.equals(module)) {
+							defModule = def;
+							break;
+						}
 
-		if (lastDefinitionsRoot != null && project.equals(lastProject)
-				&& System.currentTimeMillis() - lastTime < cacheTime)
-			definitionsRoot = lastDefinitionsRoot;
-		else {
-			// System.err.println("building definitions tree");
-			/*
-			 * Build a super-tree from all the definitions trees so as to be able to use a recursive
-			 * function. The root of this super-tree contains all the modules accessible from the
-			 * project + the members of opened modules ("Pervasives" being always opened by default)
-			 */
-			definitionsRoot = new Def("<root>", Def.Type.Root, 0, 0);
-			OcamlNewInterfaceParser parser = OcamlNewInterfaceParser.getInstance();
-
-			OcamlPaths ocamlPaths = new OcamlPaths(project);
-
-			String[] paths = ocamlPaths.getPaths();
-			// for each path in the project
-			for (String path : paths) {
-
-				if (path.equals(".")) {
-					IPath projectPath = project.getLocation();
-					if (projectPath != null)
-						path = projectPath.toOSString();
-					else {
-						OcamlPlugin
-								.logError("Error in CompletionJob:buildDefinitionsTree : project location is null");
-						continue;
+					if (defModule != null) {
+						for (Def def : defModule.children)
+							definitionsRoot.children.add(def);
 					}
-
-				}
-
-				// try with a path relative to the project location
-				// Go through the IResources API to follow possibly linked resources.
-				File dir = null;
-				try {
-					IFolder folder = project.getFolder(path);
-					IPath location = folder.getLocation();
-					if (location != null)
-						dir = new File(location.toOSString());
-				} catch (Throwable e) {
-					OcamlPlugin.logError("Error trying relative path in completion job: " + path, e);
-				}
-
-				// try with an absolute path
-				if (!(dir != null && dir.exists() && dir.isDirectory())) {
-					dir = new File(path);
-				}
-
-				if (!(dir.exists() && dir.isDirectory())) {
-					OcamlPlugin.logError("Wrong path:" + dir.toString() + " (in project:"
-							+ project.getName() + ")");
-					continue;
-				}
-
-				// get all the ml and mli files from the directory
-				String[] mlmliFiles = dir.list(mlmliFilter);
-
-				/*
-				 * keep all the mli files, and discard the ml files when there is a mli file with
-				 * the same name
-				 */
-				String[] files = Misc.filterInterfaces(mlmliFiles);
-
-				// for each file
-				for (String mlmlifile : files) {
-					File file = new File(dir.getAbsolutePath() + File.separatorChar + mlmlifile);
-					Def def = parser.parseFile(file, false);
-					if (def != null)
-						definitionsRoot.children.add(def);
 				}
 			}
+		}
 
-			if (bUsingEditor) {
-
-				// find all the opened modules and add their definitions tree to the root of the
-				// super-tree
-				String[] openModules = null;
-				try {
-
-					IEditorPart editorPart = PlatformUI.getWorkbench().getActiveWorkbenchWindow()
-							.getActivePage().getActiveEditor();
-					if (editorPart instanceof OcamlEditor) {
-						OcamlEditor editor = (OcamlEditor) editorPart;
-
-						IFile ifile = editor.getFileBeingEdited();
-						if (ifile != null) {
-
-							String file = ifile.getName();
-							String moduleName = null;
-							if (file.endsWith(".ml")) {
-								// remove the file extension and change the first character to
-								// uppercase
-								moduleName = "" + Character.toUpperCase(file.charAt(0))
-										+ file.substring(1, file.length() - 3);
-							}
-
-							// get the text of the document currently opened in the editor
-							String doc = editor.getDocumentProvider().getDocument(
-									editor.getEditorInput()).get();
-							openModules = findOpenModules(doc, moduleName);
-						}
+		return definitionsRoot;
+	}
+
+	/**
+	 * Return an index of the names of the definitions of the super-tree (see
+	 * {@link #buildDefinitionsTree(IProject, boolean)}), to look up names and prefixes without going
+	 * through all the definitions. The index of the modules is only rebuilt when they change.
+	 * 
+	 * @param bUsingEditor
+	 *            use the editor to add opened modules to the index
+	 */
+	public static DefinitionsIndex buildDefinitionsIndex(IProject project, boolean bUsingEditor) {
+		DefinitionsIndex modulesIndex = DefinitionsSuperTree.getInstance().getIndex(project);
+		if (!bUsingEditor)
+			return modulesIndex;
+
+		ArrayList<DefinitionsIndex> layers = new ArrayList<DefinitionsIndex>();
+		layers.add(modulesIndex);
+
+		String[] openModules = findEditorOpenModules();
+		if (openModules != null) {
+			for (String module : openModules) {
+				// the module can also be a member of a previously opened module
+				int nLayers = layers.size();
+				for (int i = 0; i < nLayers; i++) {
+					DefinitionsIndex layer = layers.get(i);
+					List<Def> defs = layer.find(module, EnumSet.of(Def.Type.Module));
+					if (!defs.isEmpty()) {
+						layers.add(layer.getChildIndex(defs.get(0)));
+						break;
 					}
-				} catch (Exception e) {
-					OcamlPlugin.logError("ocaml plugin error", e);
 				}
+			}
+		}
 
-				if (openModules != null) {
-					for (String module : openModules) {
-						Def defModule = null;
+		return new DefinitionsIndex(new ArrayList<Def>(), layers.toArray(new DefinitionsIndex[0]));
+	}
 
-						for (Def def : definitionsRoot.children)
-							if (def.type == Def.Type.Module && def.name.equals(module)) {
-								defModule = def;
-								break;
-							}
+	/** Find the modules opened in the file in the active editor, or return null */
+	private static String[] findEditorOpenModules() {
+		String[] openModules = null;
+		try {
 
-						if (defModule != null) {
-							for (Def def : defModule.children)
-								definitionsRoot.children.add(def);
-						}
+			IEditorPart editorPart = PlatformUI.getWorkbench().getActiveWorkbenchWindow()
+					.getActivePage().getActiveEditor();
+			if (editorPart instanceof OcamlEditor) {
+				OcamlEditor editor = (OcamlEditor) editorPart;
+
+				IFile ifile = editor.getFileBeingEdited();
+				if (ifile != null) {
+
+					String file = ifile.getName();
+					String moduleName = null;
+					if (file.endsWith(".ml")) {
+						// remove the file extension and change the first character to
+						// uppercase
+						moduleName = "" + Character.toUpperCase(file.charAt(0))
+								+ file.substring(1, file.length() - 3);
 					}
+
+					// get the text of the document currently opened in the editor
+					DocumentCharSequence doc = new DocumentCharSequence(editor
+							.getDocumentProvider().getDocument(editor.getEditorInput()));
+					openModules = findOpenModules(doc, moduleName);
 				}
 			}
-
+		} catch (Exception e) {
+			OcamlPlugin.logError("ocaml plugin error", e);
 		}
-
-		lastDefinitionsRoot = definitionsRoot;
-		lastTime = System.currentTimeMillis();
-		lastProject = project;
-
-		return definitionsRoot;
+		return openModules;
 	}
 
 	static final Pattern patternOpen = Pattern.compile("(\\A|\\n) *open +(\\w*)");
 
 	/** Find the opened modules by looking for "open moduleName" directives in the source code */
-	private static String[] findOpenModules(String doc, String moduleName) {
+	private static String[] findOpenModules(CharSequence doc, String moduleName) {
 		TreeSet<String> openModules = new TreeSet<String>();
 
 		if (moduleName != null)
@@ -246,6 +195,57 @@ public class CompletionJob extends Job {
 		return openModules.toArray(new String[0]);
 	}
 
+	/** The threads used to parse the interfaces (one per processor) */
+	private static final ForkJoinPool parsingPool = new ForkJoinPool();
+
+	/** Parse a range of files, splitting it between the threads of the pool */
+	private static class ParseFilesTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		/** Below this number of files, the files are parsed in the current thread */
+		private static final int THRESHOLD = 4;
+
+		private final OcamlNewInterfaceParser parser;
+		private final String[] files;
+		private final int from;
+		private final int to;
+		private final IProgressMonitor monitor;
+
+		ParseFilesTask(OcamlNewInterfaceParser parser, String[] files, int from, int to,
+				IProgressMonitor monitor) {
+			this.parser = parser;
+			this.files = files;
+			this.from = from;
+			this.to = to;
+			this.monitor = monitor;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > THRESHOLD) {
+				int middle = (from + to) / 2;
+				invokeAll(new ParseFilesTask(parser, files, from, middle, monitor),
+						new ParseFilesTask(parser, files, middle, to, monitor));
+				return;
+			}
+
+			for (int i = from; i < to; i++) {
+				// the progress monitor is not meant to be used by several threads at once
+				synchronized (monitor) {
+					if (monitor.isCanceled())
+						return;
+					monitor.subTask(files[i]);
+				}
+
+				parser.parseFile(new File(files[i]), false);
+
+				synchronized (monitor) {
+					monitor.worked(1);
+				}
+			}
+		}
+	}
+
 	@Override
 	protected IStatus run(IProgressMonitor monitor) {
 		try {
@@ -289,25 +289,20 @@ public class CompletionJob extends Job {
 
 			Thread.yield();
 
-			// for each ml or mli file
-			for (String mlmliFile : mlmliFiles) {
-				if (monitor.isCanceled())
-					return Status.CANCEL_STATUS;
-
-				monitor.subTask(mlmliFile);
-
-				File file = new File(mlmliFile);
-				parser.parseFile(file, false);
+			// parse all the ml and mli files in parallel
+			parsingPool.invoke(new ParseFilesTask(parser, mlmliFiles, 0, mlmliFiles.length, monitor));
 
-				// for(int i = 0; i < 1000000000; i++);
-
-				monitor.worked(1);
-				Thread.yield();
-			}
+			if (monitor.isCanceled())
+				return Status.CANCEL_STATUS;
 		} finally {
 
 			monitor.done();
 			bParsingInterfacesDone = true;
+
+			// save the newly parsed interfaces, so that they are not parsed again next time
+			InterfaceIndex.getInstance().save();
+
+			OcamlPlugin.logInfo(OcamlNewInterfaceParser.getInstance().getCache().describeStatistics());
 		}
 
 		return Status.OK_STATUS;
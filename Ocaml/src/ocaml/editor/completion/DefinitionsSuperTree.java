@@ -0,0 +1,421 @@
+package ocaml.editor.completion;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ocaml.OcamlPlugin;
+import ocaml.parser.CompactDefTree;
+import ocaml.parser.Def;
+import ocaml.parser.DefinitionsIndex;
+import ocaml.parsers.OcamlNewInterfaceParser;
+import ocaml.util.Misc;
+import ocaml.util.OcamlPaths;
+
+import org.eclipse.core.resources.IContainer;
+import org.eclipse.core.resources.IFolder;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceChangeEvent;
+import org.eclipse.core.resources.IResourceChangeListener;
+import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.resources.IResourceDeltaVisitor;
+import org.eclipse.core.resources.ResourcesPlugin;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+
+/**
+ * Keeps, for each project, the definitions of all the modules found in the project paths (which
+ * normally include the OCaml standard library), so that completion and hyperlinks don't have to list
+ * the directories and check each file each time they need them.
+ * <p>
+ * The modules are grouped by directory. A directory is scanned again only when something changed in
+ * it: the workspace directories are watched with a resource change listener, and the external
+ * directories (libraries) with a file system watcher. In the rescanned directory, only the modified
+ * files are parsed again (the others come from the interfaces cache).
+ * <p>
+ * The modules are kept in compact form: the index used by the completion walks them without building
+ * their complete definitions trees.
+ */
+public class DefinitionsSuperTree implements IResourceChangeListener {
+
+	private static FilenameFilter mlmliFilter = new FilenameFilter() {
+		public boolean accept(File dir, String name) {
+			return name.endsWith(".mli") || name.endsWith(".ml");
+		}
+	};
+
+	/**
+	 * If the file system can't be watched, the external directories are scanned again when their
+	 * modules are older than this (in milliseconds)
+	 */
+	private static final int UNWATCHED_DIRECTORY_TIMEOUT = 2000;
+
+	/** The modules visible from a project */
+	private static class ProjectModules {
+		/** The paths of the project, as they were when the directories were resolved */
+		String[] paths;
+		/** The modules found in each directory, in the order of the project paths */
+		final LinkedHashMap<File, List<CompactDefTree>> modules = new LinkedHashMap<File, List<CompactDefTree>>();
+		/** The directories which must be scanned again */
+		final Set<File> dirtyDirectories = new HashSet<File>();
+		/** When each directory was last scanned */
+		final Map<File, Long> scanTimes = new HashMap<File, Long>();
+		/** The modules of all the directories (null when a directory was scanned again) */
+		List<CompactDefTree> allModules;
+		/** The index of the modules names (null when a directory was scanned again) */
+		DefinitionsIndex index;
+	}
+
+	private static DefinitionsSuperTree instance;
+
+	public static synchronized DefinitionsSuperTree getInstance() {
+		if (instance == null)
+			instance = new DefinitionsSuperTree();
+		return instance;
+	}
+
+	/**
+	 * Stop listening to the workspace and watching the directories (when the plugin stops). Nothing
+	 * is done if the super-tree was never used.
+	 */
+	public static synchronized void disposeInstance() {
+		if (instance == null)
+			return;
+		ResourcesPlugin.getWorkspace().removeResourceChangeListener(instance);
+		instance.dispose();
+		instance = null;
+	}
+
+	private final Map<IProject, ProjectModules> projects = new HashMap<IProject, ProjectModules>();
+
+	/** Watches the directories which are outside the workspace. Null if not available. */
+	private WatchService watchService;
+	private final Map<File, WatchKey> watchKeys = new HashMap<File, WatchKey>();
+	private Thread watchThread;
+
+	private DefinitionsSuperTree() {
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+		} catch (IOException e) {
+			OcamlPlugin.logWarning("Can't watch the library directories for changes: "
+					+ e.getMessage());
+			return;
+		}
+
+		watchThread = new Thread("OCaml library directories watcher") {
+			@Override
+			public void run() {
+				watchDirectories();
+			}
+		};
+		watchThread.setDaemon(true);
+		watchThread.start();
+	}
+
+	/** Stop watching the directories */
+	private synchronized void dispose() {
+		if (watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException e) {
+				OcamlPlugin.logError("error closing the directories watcher", e);
+			}
+			watchService = null;
+		}
+		projects.clear();
+		watchKeys.clear();
+	}
+
+	/**
+	 * Return the definitions of all the modules found in the paths of <code>project</code>. Their
+	 * complete trees are rebuilt if the memory they used was released: use {@link #getIndex(IProject)}
+	 * to look for names. The returned definitions must not be modified.
+	 */
+	public synchronized List<Def> getModules(IProject project) {
+		List<CompactDefTree> modules = getCompactModules(project);
+		ArrayList<Def> result = new ArrayList<Def>(modules.size());
+		for (CompactDefTree module : modules)
+			result.add(module.getDefinition());
+		return result;
+	}
+
+	/** Return the modules found in the paths of <code>project</code>, in compact form */
+	private List<CompactDefTree> getCompactModules(IProject project) {
+		String[] paths = new OcamlPaths(project).getPaths();
+
+		ProjectModules projectModules = projects.get(project);
+		if (projectModules == null || !Arrays.equals(paths, projectModules.paths)) {
+			projectModules = new ProjectModules();
+			projectModules.paths = paths;
+			for (File dir : resolveDirectories(project, paths)) {
+				projectModules.modules.put(dir, null);
+				projectModules.dirtyDirectories.add(dir);
+			}
+			projects.put(project, projectModules);
+		}
+
+		long now = System.currentTimeMillis();
+
+		for (Map.Entry<File, List<CompactDefTree>> entry : projectModules.modules.entrySet()) {
+			File dir = entry.getKey();
+
+			Long scanTime = projectModules.scanTimes.get(dir);
+			boolean bStale = watchKeys.get(dir) == null && !isInWorkspace(dir)
+					&& (scanTime == null || now - scanTime > UNWATCHED_DIRECTORY_TIMEOUT);
+
+			if (entry.getValue() == null || bStale || projectModules.dirtyDirectories.remove(dir)) {
+				List<CompactDefTree> modules = scanDirectory(dir);
+				projectModules.scanTimes.put(dir, now);
+				// the unchanged modules come from the cache: don't rebuild the index if none changed
+				if (!sameDefinitions(modules, entry.getValue())) {
+					entry.setValue(modules);
+					projectModules.allModules = null;
+					projectModules.index = null;
+				}
+			}
+		}
+
+		if (projectModules.allModules == null) {
+			ArrayList<CompactDefTree> result = new ArrayList<CompactDefTree>();
+			for (List<CompactDefTree> modules : projectModules.modules.values())
+				result.addAll(modules);
+			projectModules.allModules = Collections.unmodifiableList(result);
+		}
+
+		return projectModules.allModules;
+	}
+
+	/**
+	 * Return the index of the names of the modules found in the paths of <code>project</code>. It is
+	 * only rebuilt when some modules changed.
+	 */
+	public synchronized DefinitionsIndex getIndex(IProject project) {
+		List<CompactDefTree> modules = getCompactModules(project);
+		ProjectModules projectModules = projects.get(project);
+		if (projectModules.index == null)
+			projectModules.index = DefinitionsIndex.forModules(modules);
+		return projectModules.index;
+	}
+
+	private static boolean sameDefinitions(List<CompactDefTree> modules1,
+			List<CompactDefTree> modules2) {
+		if (modules2 == null || modules1.size() != modules2.size())
+			return false;
+		for (int i = 0; i < modules1.size(); i++)
+			if (modules1.get(i) != modules2.get(i))
+				return false;
+		return true;
+	}
+
+	/** Find the directories corresponding to the project paths */
+	private List<File> resolveDirectories(IProject project, String[] paths) {
+		ArrayList<File> dirs = new ArrayList<File>();
+
+		for (String path : paths) {
+
+			if (path.equals(".")) {
+				IPath projectPath = project.getLocation();
+				if (projectPath != null)
+					path = projectPath.toOSString();
+				else {
+					OcamlPlugin
+							.logError("Error in DefinitionsSuperTree : project location is null");
+					continue;
+				}
+
+			}
+
+			// try with a path relative to the project location
+			// Go through the IResources API to follow possibly linked resources.
+			File dir = null;
+			try {
+				IFolder folder = project.getFolder(path);
+				IPath location = folder.getLocation();
+				if (location != null)
+					dir = new File(location.toOSString());
+			} catch (Throwable e) {
+				OcamlPlugin.logError("Error trying relative path in completion job: " + path, e);
+			}
+
+			// try with an absolute path
+			if (!(dir != null && dir.exists() && dir.isDirectory())) {
+				dir = new File(path);
+			}
+
+			if (!(dir.exists() && dir.isDirectory())) {
+				OcamlPlugin.logError("Wrong path:" + dir.toString() + " (in project:"
+						+ project.getName() + ")");
+				continue;
+			}
+
+			dir = dir.getAbsoluteFile();
+			if (!dirs.contains(dir))
+				dirs.add(dir);
+
+			if (!isInWorkspace(dir))
+				watch(dir);
+		}
+
+		return dirs;
+	}
+
+	/** Parse the interfaces found in <code>dir</code> (most of them come from the cache) */
+	private List<CompactDefTree> scanDirectory(File dir) {
+		ArrayList<CompactDefTree> modules = new ArrayList<CompactDefTree>();
+
+		// get all the ml and mli files from the directory
+		String[] mlmliFiles = dir.list(mlmliFilter);
+		if (mlmliFiles == null)
+			return modules;
+
+		/*
+		 * keep all the mli files, and discard the ml files when there is a mli file with the same
+		 * name
+		 */
+		String[] files = Misc.filterInterfaces(mlmliFiles);
+
+		OcamlNewInterfaceParser parser = OcamlNewInterfaceParser.getInstance();
+		for (String mlmlifile : files) {
+			CompactDefTree def = parser.parseFileCompact(new File(dir, mlmlifile), false);
+			if (def != null)
+				modules.add(def);
+		}
+
+		return modules;
+	}
+
+	/** Mark the directory as needing to be scanned again, in all the projects */
+	private synchronized void invalidate(File dir) {
+		for (ProjectModules projectModules : projects.values())
+			if (projectModules.modules.containsKey(dir))
+				projectModules.dirtyDirectories.add(dir);
+	}
+
+	private synchronized void invalidateAll() {
+		for (ProjectModules projectModules : projects.values())
+			projectModules.dirtyDirectories.addAll(projectModules.modules.keySet());
+	}
+
+	/**
+	 * Whether this directory is in the workspace (in which case the resource change listener is
+	 * notified of its changes)
+	 */
+	private boolean isInWorkspace(File dir) {
+		Boolean bInWorkspace = workspaceDirectories.get(dir);
+		if (bInWorkspace == null) {
+			IContainer[] containers = ResourcesPlugin.getWorkspace().getRoot()
+					.findContainersForLocationURI(dir.toURI());
+			bInWorkspace = containers.length > 0;
+			workspaceDirectories.put(dir, bInWorkspace);
+		}
+		return bInWorkspace;
+	}
+
+	private final Map<File, Boolean> workspaceDirectories = new HashMap<File, Boolean>();
+
+	private void watch(File dir) {
+		if (watchService == null || watchKeys.containsKey(dir))
+			return;
+
+		try {
+			WatchKey key = dir.toPath().register(watchService,
+					StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+			watchKeys.put(dir, key);
+		} catch (IOException e) {
+			OcamlPlugin.logWarning("Can't watch the directory " + dir + ": " + e.getMessage());
+		}
+	}
+
+	/** The loop of the thread which waits for changes in the external directories */
+	private void watchDirectories() {
+		while (true) {
+			WatchService service;
+			synchronized (this) {
+				service = watchService;
+			}
+			if (service == null)
+				return;
+
+			WatchKey key;
+			try {
+				key = service.take();
+			} catch (InterruptedException e) {
+				return;
+			} catch (Exception e) {
+				// the service was closed
+				return;
+			}
+
+			boolean bOverflow = false;
+			boolean bInterfaceChanged = false;
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+					bOverflow = true;
+				else {
+					String name = event.context().toString();
+					if (name.endsWith(".ml") || name.endsWith(".mli"))
+						bInterfaceChanged = true;
+				}
+			}
+
+			if (bOverflow)
+				invalidateAll();
+			else if (bInterfaceChanged)
+				invalidate(((Path) key.watchable()).toFile().getAbsoluteFile());
+
+			key.reset();
+		}
+	}
+
+	/** Invalidate the directories of the workspace in which an OCaml file was modified */
+	public void resourceChanged(IResourceChangeEvent event) {
+		IResourceDelta delta = event.getDelta();
+		if (delta == null)
+			return;
+
+		try {
+			delta.accept(new IResourceDeltaVisitor() {
+				public boolean visit(IResourceDelta delta) {
+					IResource resource = delta.getResource();
+					if (resource.getType() != IResource.FILE)
+						return true;
+
+					// only the changes of content matter (not the markers)
+					if (delta.getKind() == IResourceDelta.CHANGED
+							&& (delta.getFlags() & IResourceDelta.CONTENT) == 0)
+						return false;
+
+					String extension = resource.getFileExtension();
+					if (!"ml".equals(extension) && !"mli".equals(extension))
+						return false;
+
+					IPath location = resource.getLocation();
+					if (location == null)
+						return false;
+
+					invalidate(location.toFile().getParentFile().getAbsoluteFile());
+					return false;
+				}
+			});
+		} catch (CoreException e) {
+			OcamlPlugin.logError("error while invalidating the definitions super-tree", e);
+		}
+	}
+}
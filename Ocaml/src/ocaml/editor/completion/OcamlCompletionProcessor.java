@@ -1,6 +1,9 @@
 package ocaml.editor.completion;
 
 import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
 
 import ocaml.OcamlPlugin;
 import ocaml.editor.syntaxcoloring.OcamlPartitionScanner;
@@ -8,6 +11,8 @@ import ocaml.editors.OcamlEditor;
 import ocaml.editors.lex.OcamllexEditor;
 import ocaml.editors.yacc.OcamlyaccEditor;
 import ocaml.parser.Def;
+import ocaml.parser.DefinitionsIndex;
+import ocaml.util.DocumentCharSequence;
 import ocaml.util.Misc;
 
 import org.eclipse.core.resources.IProject;
@@ -106,8 +111,8 @@ public class OcamlCompletionProcessor implements IContentAssistProcessor {
 		 * system for example).
 		 */
 		if (CompletionJob.isParsingFinished()) {
-			Def definitionsRoot = CompletionJob.buildDefinitionsTree(this.project, true);
-			proposals = findCompletionProposals(completion, definitionsRoot, documentOffset);
+			DefinitionsIndex definitionsIndex = CompletionJob.buildDefinitionsIndex(this.project, true);
+			proposals = findCompletionProposals(completion, definitionsIndex, documentOffset);
 		} else {
 			proposals = new OcamlCompletionProposal[0];
 			OcamlPlugin.logInfo("Completion proposals skipped (background job not done yet)");
@@ -183,62 +188,40 @@ public class OcamlCompletionProcessor implements IContentAssistProcessor {
 //			findModuleCompletionProposalsAux(child, offset, length, completion, proposals);
 //	}
 
+	/** The types of the definitions which are proposed as completions */
+	private static final Set<Def.Type> completionTypes = EnumSet.complementOf(EnumSet.of(
+			Def.Type.Parameter, Def.Type.Object, Def.Type.LetIn, Def.Type.Open, Def.Type.Include,
+			Def.Type.In, Def.Type.Identifier, Def.Type.Dummy, Def.Type.Root, Def.Type.Sig,
+			Def.Type.Struct));
+
 	/**
 	 * Find the completions matching the argument <code>completion</code> from all the definitions found in
-	 * the definitionsRoot tree.
+	 * the index. If the completion is qualified ("List.ma"), the completions are looked up in the members
+	 * of the module designated by its first part.
 	 * 
 	 * @return the completions found
 	 */
-	private OcamlCompletionProposal[] findCompletionProposals(String completion, Def definitionsRoot,
-			int offset) {
-
-		ArrayList<Def> definitions = definitionsRoot.children;
+	private OcamlCompletionProposal[] findCompletionProposals(String completion,
+			DefinitionsIndex definitionsIndex, int offset) {
 
 		ArrayList<OcamlCompletionProposal> proposals = new ArrayList<OcamlCompletionProposal>();
 
 		// look in the module before the dot what's after the dot
-		if (completion.contains(".")) {
-			int index = completion.indexOf('.');
-			String prefix = completion.substring(0, index);
-			String suffix = completion.substring(index + 1);
-
-			for (Def def : definitions) {
-				if (def.name.equals(prefix))
-					return findCompletionProposals(suffix, def, offset);
-			}
+		int index = completion.lastIndexOf('.');
+		if (index != -1) {
+			definitionsIndex = definitionsIndex.resolve(completion.substring(0, index));
+			if (definitionsIndex == null)
+				return new OcamlCompletionProposal[0];
+			completion = completion.substring(index + 1);
 		}
-		// find elements starting by <completion> in the list of elements
-		else {
 
-			for (Def def : definitions) {
-				if (def.name.startsWith(completion) && isCompletionDef(def))
-					proposals.add(new OcamlCompletionProposal(def, offset, completion.length()));
-
-			}
-		}
+		// find elements starting by <completion> in the index
+		for (Def def : definitionsIndex.findByPrefix(completion, completionTypes))
+			proposals.add(new OcamlCompletionProposal(def, offset, completion.length()));
 
 		return proposals.toArray(new OcamlCompletionProposal[0]);
 	}
 
-	private boolean isCompletionDef(Def def) {
-		switch (def.type) {
-		case Parameter:
-		case Object:
-		case LetIn:
-		case Open:
-		case Include:
-		case In:
-		case Identifier:
-		case Dummy:
-		case Root:
-		case Sig:
-		case Struct:
-			return false;
-		default:
-			return true;
-		}
-	}
-
 	/** Return the last pointed expression before the caret (at documentOffset). */
 	private String completionExpression(ITextViewer viewer, int documentOffset) {
 		String doc = "";
@@ -336,7 +319,7 @@ public class OcamlCompletionProcessor implements IContentAssistProcessor {
 
 	/** Return the expression under the caret (at documentOffset) in the viewer */
 	private String expressionAtOffset(ITextViewer viewer, int documentOffset) {
-		String doc = viewer.getDocument().get();
+		DocumentCharSequence doc = new DocumentCharSequence(viewer.getDocument());
 
 		int endOffset = doc.length();
 
@@ -373,11 +356,13 @@ public class OcamlCompletionProcessor implements IContentAssistProcessor {
 
 		IContextInformation[] infos;
 		if (CompletionJob.isParsingFinished()) {
-			Def definitionsRoot = CompletionJob.buildDefinitionsTree(this.project, true);
+			DefinitionsIndex definitionsIndex = CompletionJob.buildDefinitionsIndex(this.project, true);
 
 			String expression = expressionAtOffset(viewer, documentOffset);
 
-			infos = findContextInformation(expression, definitionsRoot);
+			ArrayList<IContextInformation> infosList = new ArrayList<IContextInformation>();
+			findContextInformation(expression, definitionsIndex, infosList);
+			infos = infosList.toArray(new IContextInformation[0]);
 
 			return infos;
 		}
@@ -386,14 +371,11 @@ public class OcamlCompletionProcessor implements IContentAssistProcessor {
 	}
 
 	/**
-	 * Find the element "expression" in the tree rooted in "definitionsRoot", and return the corresponding
-	 * context informations.
+	 * Find the element "expression" in the index, and add the corresponding context informations to
+	 * <code>infos</code>.
 	 */
-	private IContextInformation[] findContextInformation(String expression, Def definitionsRoot) {
-
-		ArrayList<Def> definitions = definitionsRoot.children;
-
-		ArrayList<IContextInformation> infos = new ArrayList<IContextInformation>();
+	private void findContextInformation(String expression, DefinitionsIndex definitionsIndex,
+			List<IContextInformation> infos) {
 
 		// search in the module before the dot the element after the dot
 		if (expression.contains(".")) {
@@ -401,53 +383,42 @@ public class OcamlCompletionProcessor implements IContentAssistProcessor {
 			String prefix = expression.substring(0, index);
 			String suffix = expression.substring(index + 1);
 
-			for (Def def : definitions) {
-				if (def.name.equals(prefix)) {
-					IContextInformation[] informations = findContextInformation(suffix, def);
-					for (IContextInformation i : informations)
-						infos.add(i);
-				}
-			}
-			return infos.toArray(new IContextInformation[0]);
+			for (Def def : definitionsIndex.find(prefix, null))
+				findContextInformation(suffix, definitionsIndex.getChildIndex(def), infos);
 		}
 
 		// search in the list of non-doted names
 		else {
 
-			for (Def def : definitions) {
+			for (Def def : definitionsIndex.find(expression, null)) {
 				/*
 				 * trick: the character '\u00A0' is a non-breakable space. It is used as a delimiter between
 				 * parts.
 				 */
 
-				if (def.name.equals(expression)) {
-					String body = def.body;
-					// if (!def.getParentName().equals(""))
-					// body = body + " (constructor of type " + def.getParentName() + ")";
-
-					String message = body + "\u00A0";
-					String comment = def.comment;
-					if (!comment.equals(""))
-						message = "\n" + message + "\n" + comment;
-					String section = def.sectionComment;
-					if (!section.equals(""))
-						message = message + "\n\u00A0\nSection:\n" + section;
-					else
-						message = message + "\u00A0";
-
-					String filename = def.filename;
-					message = message + "\u00A0\n\n" + filename;
-
-					message = message.trim();
-					if (!message.equals("")) {
-						String context = def.filename + " : " + def.body;
-						infos.add(new ContextInformation(context, message));
-					}
+				String body = def.body;
+				// if (!def.getParentName().equals(""))
+				// body = body + " (constructor of type " + def.getParentName() + ")";
+
+				String message = body + "\u00A0";
+				String comment = def.comment;
+				if (!comment.equals(""))
+					message = "\n" + message + "\n" + comment;
+				String section = def.sectionComment;
+				if (!section.equals(""))
+					message = message + "\n\u00A0\nSection:\n" + section;
+				else
+					message = message + "\u00A0";
+
+				String filename = def.filename;
+				message = message + "\u00A0\n\n" + filename;
+
+				message = message.trim();
+				if (!message.equals("")) {
+					String context = def.filename + " : " + def.body;
+					infos.add(new ContextInformation(context, message));
 				}
-
 			}
-
-			return infos.toArray(new IContextInformation[0]);
 		}
 	}
 
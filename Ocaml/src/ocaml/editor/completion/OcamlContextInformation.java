@@ -1,6 +1,7 @@
 package ocaml.editor.completion;
 
 import ocaml.OcamlPlugin;
+import ocaml.util.DocumentCharSequence;
 
 import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.IDocument;
@@ -28,7 +29,7 @@ public class OcamlContextInformation implements IContextInformationValidator,
 		//System.err.println(offset);
 
 		IDocument doc = viewer.getDocument();
-		String text = doc.get();
+		DocumentCharSequence text = new DocumentCharSequence(doc);
 		int length = text.length();
 
 		if (this.offset == length)
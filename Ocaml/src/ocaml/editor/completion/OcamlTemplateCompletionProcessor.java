@@ -4,6 +4,7 @@ import ocaml.OcamlPlugin;
 import ocaml.editor.templates.OcamlFileContextType;
 import ocaml.editor.templates.OcamlTemplateAccess;
 import ocaml.editors.OcamlEditor;
+import ocaml.util.DocumentCharSequence;
 import ocaml.util.ImageRepository;
 
 import org.eclipse.jface.text.BadLocationException;
@@ -21,7 +22,7 @@ public class OcamlTemplateCompletionProcessor extends TemplateCompletionProcesso
 
 	@Override
 	protected TemplateContextType getContextType(ITextViewer viewer, IRegion region) {
-		String doc = viewer.getDocument().get();
+		DocumentCharSequence doc = new DocumentCharSequence(viewer.getDocument());
 		int offset = viewer.getSelectedRange().x;
 
 		IRegion lineRegion = null;
@@ -1,5 +1,7 @@
 package ocaml.editors;
 
+import ocaml.util.DocumentCharSequence;
+
 import org.eclipse.jface.text.DefaultTextDoubleClickStrategy;
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.ITextDoubleClickStrategy;
@@ -15,7 +17,7 @@ public class OcamlDoubleClickStrategy implements ITextDoubleClickStrategy {
 
 		int offset = viewer.getSelectedRange().x;
 		IDocument document = viewer.getDocument();
-		String doc = document.get();
+		DocumentCharSequence doc = new DocumentCharSequence(document);
 		int length = doc.length();
 		
 		if(offset >= length)return;
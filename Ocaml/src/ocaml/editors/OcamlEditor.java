@@ -10,8 +10,14 @@ import ocaml.editor.completion.CompletionJob;
 import ocaml.editors.util.OcamlCharacterPairMatcher;
 import ocaml.natures.OcamlNatureMakefile;
 import ocaml.parser.Def;
+import ocaml.parser.ParseResultService;
+import ocaml.parser.ParseResultService.ParseResult;
 import ocaml.popup.actions.CompileProjectAction;
 import ocaml.preferences.PreferenceConstants;
+import ocaml.typeHovers.OcamlAnnotParser;
+import ocaml.typeHovers.ScratchTypeChecker;
+import ocaml.util.DocumentCharSequence;
+import ocaml.util.Misc;
 import ocaml.views.outline.OcamlOutlineControl;
 import ocaml.views.outline.OutlineJob;
 import ocaml.views.outline.SynchronizeOutlineJob;
@@ -25,9 +31,13 @@ import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
 import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension4;
 import org.eclipse.jface.text.IRegion;
 import org.eclipse.jface.text.ITextListener;
 import org.eclipse.jface.text.ITextViewer;
@@ -48,6 +58,7 @@ import org.eclipse.ui.IFileEditorInput;
 import org.eclipse.ui.editors.text.TextEditor;
 import org.eclipse.ui.ide.FileStoreEditorInput;
 import org.eclipse.ui.part.FileEditorInput;
+import org.eclipse.ui.texteditor.IDocumentProvider;
 import org.eclipse.ui.texteditor.ITextEditor;
 import org.eclipse.ui.views.contentoutline.IContentOutlinePage;
 
@@ -57,12 +68,6 @@ import org.eclipse.ui.views.contentoutline.IContentOutlinePage;
  */
 public class OcamlEditor extends TextEditor {
 
-	/**
-	 * used to notify that the outline job is finished (notified by OutlineJob
-	 * to OcamlHyperlinkDetector)
-	 */
-	public Object outlineSignal = new Object();
-
 	private OcamlOutlineControl outline;
 
 	protected PaintManager paintManager;
@@ -448,8 +453,10 @@ public class OcamlEditor extends TextEditor {
 
 	public void rebuildOutline(int delay) {
 
-		// invalidate previous definitions
-		this.codeDefinitionsTree = null;
+		/*
+		 * invalidate previous outline definitions (the definitions tree is
+		 * invalidated by the modification of the document)
+		 */
 		this.codeOutlineDefinitionsTree = null;
 
 		IEditorInput input = this.getEditorInput();
@@ -472,6 +479,140 @@ public class OcamlEditor extends TextEditor {
 		outlineJob.schedule(delay);
 	}
 
+	@Override
+	public void dispose() {
+		// stop listening to the document changes
+		if (outlineJob != null) {
+			outlineJob.cancel();
+			outlineJob.setDoc(null);
+		}
+		releaseTypeAnnotations();
+		super.dispose();
+	}
+
+	/**
+	 * Return the annotations file of the edited module, or <code>null</code> if there is none, or if
+	 * it is older than the module or the editor contents
+	 */
+	public File getUpToDateAnnotFile() {
+		if (isDirty())
+			return null;
+
+		IFile file = getFileBeingEdited();
+		IPath filePath = getPathOfFileBeingEdited();
+		if (filePath == null)
+			return null;
+
+		File annotFile;
+		if (file != null)
+			annotFile = Misc.getOtherFileFor(file.getProject(), file.getFullPath(), ".annot");
+		else
+			annotFile = Misc.getOtherFileFor(filePath, ".annot");
+
+		if (annotFile == null || filePath.toFile().lastModified() > annotFile.lastModified())
+			return null;
+		return annotFile;
+	}
+
+	/**
+	 * The modification stamp of the document when the scratch annotations file was last asked for,
+	 * the hash of its contents then, and the annotations file found (<code>null</code> if none yet),
+	 * so that the contents are not hashed again at each hover while the document is not modified
+	 */
+	private long scratchStamp = IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
+	private long scratchHash;
+	private File scratchAnnotFile = null;
+	private final Object scratchLock = new Object();
+
+	/** Hashes the modified contents when their annotations are asked for in the UI thread */
+	private final ScratchHashJob scratchHashJob = new ScratchHashJob();
+
+	private class ScratchHashJob extends Job {
+
+		ScratchHashJob() {
+			super("Looking for the types of the modified OCaml module");
+			setPriority(Job.DECORATE);
+			setSystem(true);
+		}
+
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			getTypeAnnotFile();
+			return Status.OK_STATUS;
+		}
+	}
+
+	/**
+	 * Return the annotations file with the types of the editor contents: the one written by the
+	 * compiler if it is up to date, or else the one of the type-checking of these contents in a
+	 * scratch directory. Return <code>null</code> if there is none yet: the contents are then
+	 * type-checked in the background.
+	 * <p>
+	 * The modified contents are not hashed in the UI thread (for the status bar): <code>null</code>
+	 * is returned, and they are hashed in the background.
+	 */
+	public File getTypeAnnotFile() {
+		File annotFile = getUpToDateAnnotFile();
+		if (annotFile != null)
+			return annotFile;
+
+		IFile file = getFileBeingEdited();
+		IDocumentProvider provider = getDocumentProvider();
+		if (file == null || provider == null)
+			return null;
+		IDocument document = provider.getDocument(getEditorInput());
+		if (document == null)
+			return null;
+
+		DocumentCharSequence contents = new DocumentCharSequence(document);
+		long stamp = Misc.getModificationStamp(document);
+		synchronized (scratchLock) {
+			if (stamp == IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP || stamp != scratchStamp) {
+				if (Display.getCurrent() != null) {
+					scratchHashJob.schedule();
+					return null;
+				}
+				long hash = ScratchTypeChecker.hash(contents);
+				// modified while it was hashed
+				if (!contents.isValid())
+					return null;
+				scratchStamp = stamp;
+				scratchHash = hash;
+				scratchAnnotFile = null;
+			}
+			// the file is deleted when its type-checking is removed from the results
+			else if (scratchAnnotFile != null && scratchAnnotFile.exists())
+				return scratchAnnotFile;
+
+			scratchAnnotFile = ScratchTypeChecker.getInstance().getAnnotFile(this, file, scratchHash,
+					contents);
+			return scratchAnnotFile;
+		}
+	}
+
+	/** Remove the type annotations of the edited module from the annotations cache */
+	private void releaseTypeAnnotations() {
+		try {
+			// the hovers look for the annotations in the project (and its "_build" directory)
+			IFile file = getFileBeingEdited();
+			if (file != null) {
+				File annotFile = Misc.getOtherFileFor(file.getProject(), file.getFullPath(), ".annot");
+				if (annotFile != null)
+					OcamlAnnotParser.release(annotFile);
+			}
+
+			// the status bar looks for them next to the module
+			IPath path = getPathOfFileBeingEdited();
+			if (path != null) {
+				File annotFile = Misc.getOtherFileFor(path, ".annot");
+				if (annotFile != null)
+					OcamlAnnotParser.release(annotFile);
+			}
+		} catch (Exception e) {
+			OcamlPlugin.logError("ocaml plugin error", e);
+		}
+	}
+
 	/**
 	 * when the caret position changes, we synchronize the outline with the
 	 * editor
@@ -501,25 +642,30 @@ public class OcamlEditor extends TextEditor {
 		}
 	}
 
-	private Def codeDefinitionsTree = null;
 	private Def codeOutlineDefinitionsTree = null;
 
-	/**
-	 * Allows the code parsing Job to send back the definitions tree to the
-	 * editor
-	 */
-	public synchronized void setDefinitionsTree(Def def) {
-		this.codeDefinitionsTree = def;
-	}
-
 	public void setOutlineDefinitionsTree(Def outlineDefinitions) {
 		this.codeOutlineDefinitionsTree = outlineDefinitions;
 
 	}
 
-	/** Return the last definitions tree computed, or null if none */
-	public synchronized Def getDefinitionsTree() {
-		return this.codeDefinitionsTree;
+	/**
+	 * Return the definitions tree of the document in its current state, or
+	 * null if it is not parsed yet
+	 */
+	public Def getDefinitionsTree() {
+		ParseResult result = getParseResult();
+		return result != null ? result.getDefinitions() : null;
+	}
+
+	/** Return the result of the parse of the current state of the document, or null if none */
+	public ParseResult getParseResult() {
+		IDocumentProvider provider = this.getDocumentProvider();
+		IDocument document = provider != null ? provider.getDocument(this.getEditorInput()) : null;
+		if (document == null)
+			return null;
+
+		return ParseResultService.getInstance().getCurrentResult(document);
 	}
 
 	/** Return the last outline definitions tree computed, or null if none */
@@ -3,12 +3,20 @@ package ocaml.editors;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.net.URI;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 import ocaml.OcamlPlugin;
 import ocaml.editor.completion.CompletionJob;
+import ocaml.editor.completion.DefinitionsSuperTree;
 import ocaml.parser.Def;
+import ocaml.parser.ParseResultService.ParseResult;
 import ocaml.parsers.OcamlNewInterfaceParser;
+import ocaml.typeHovers.AnnotReferenceIndex;
+import ocaml.typeHovers.Annotations;
+import ocaml.typeHovers.IdentAnnotationIndex;
+import ocaml.typeHovers.OcamlAnnotParser;
 import ocaml.util.Misc;
 import ocaml.util.OcamlPaths;
 
@@ -16,6 +24,7 @@ import org.eclipse.core.filesystem.EFS;
 import org.eclipse.core.filesystem.IFileStore;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.runtime.CoreException;
+import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.IRegion;
 import org.eclipse.jface.text.ITextViewer;
@@ -50,8 +59,13 @@ public class OcamlHyperlinkDetector implements IHyperlinkDetector {
 
 		IProject project = editor.getProject();
 
+		// read the annotations of the project in the background, for when the link is followed
+		if (project != null)
+			AnnotReferenceIndex.getInstance().prepare(project);
+
 		// get the definitions from the current module
-		final Def modulesDefinitionsRoot = editor.getDefinitionsTree();
+		final ParseResult parseResult = editor.getParseResult();
+		final Def modulesDefinitionsRoot = parseResult != null ? parseResult.getDefinitions() : null;
 		/*
 		 * get the definitions from all the mli files in the project paths (which should include the
 		 * ocaml standard library)
@@ -86,7 +100,7 @@ public class OcamlHyperlinkDetector implements IHyperlinkDetector {
 
 		/* Find which definition in the tree is at the hovered offset */
 		final Def searchedDef = (time - lastTime < 1000 && lastOffset == region.getOffset() && lastDef != null) ? lastDef
-				: findIdentAt(modulesDefinitionsRoot, region.getOffset(), textViewer.getDocument());
+				: findIdentAt(parseResult, region.getOffset());
 
 		lastTime = time;
 
@@ -109,14 +123,23 @@ public class OcamlHyperlinkDetector implements IHyperlinkDetector {
 
 				public void open() {
 
+					// the annotations of the compiler tell exactly which definition is referenced
+					IRegion identRegion = getRegion(parseResult, searchedDef, textViewer
+							.getDocument());
+					if (identRegion != null
+							&& openDefFromAnnotations(identRegion.getOffset(), textViewer
+									.getDocument(), interfacesDefinitionsRoot))
+						return;
+
 					Def target = findDefinitionOf(searchedDef, modulesDefinitionsRoot,
 							interfacesDefinitionsRoot);
 
 					if (target == null)
 						return;
 
-					IRegion region = target.getRegion(textViewer.getDocument());
-					editor.selectAndReveal(region.getOffset(), region.getLength());
+					IRegion region = getRegion(parseResult, target, textViewer.getDocument());
+					if (region != null)
+						editor.selectAndReveal(region.getOffset(), region.getLength());
 				}
 
 				public String getTypeLabel() {
@@ -128,7 +151,7 @@ public class OcamlHyperlinkDetector implements IHyperlinkDetector {
 				}
 
 				public IRegion getHyperlinkRegion() {
-					return searchedDef.getRegion(textViewer.getDocument());
+					return getRegion(parseResult, searchedDef, textViewer.getDocument());
 				}
 
 			}
@@ -140,6 +163,60 @@ public class OcamlHyperlinkDetector implements IHyperlinkDetector {
 		return null;
 	}
 
+	/**
+	 * Jump to the definition of the identifier at <code>offset</code>, as it was resolved by the
+	 * compiler in the annotations file of the module (if this file is up to date).
+	 * 
+	 * @return whether the definition was found
+	 */
+	private boolean openDefFromAnnotations(int offset, IDocument document,
+			Def interfacesDefinitionsRoot) {
+		File annotFile = editor.getUpToDateAnnotFile();
+		if (annotFile == null)
+			return false;
+
+		try {
+			IdentAnnotationIndex idents = OcamlAnnotParser.getIdentIndex(annotFile, document);
+			if (idents == null)
+				return false;
+
+			int location = idents.findAt(offset);
+			if (location == -1)
+				return false;
+
+			Annotations annotations = idents.getAnnotations();
+			switch (annotations.getIdentKind(location)) {
+			case Annotations.IDENT_INT_REF:
+				IRegion region = idents.getTargetRegion(location, document);
+				if (region == null)
+					return false;
+				editor.selectAndReveal(region.getOffset(), region.getLength());
+				return true;
+
+			case Annotations.IDENT_EXT_REF:
+				String path = annotations.getIdentName(location);
+				IProject project = editor.getProject();
+				if (project != null) {
+					AnnotReferenceIndex.Location definition = AnnotReferenceIndex.getInstance()
+							.findDefinition(project, path);
+					IWorkbenchPage page = PlatformUI.getWorkbench().getActiveWorkbenchWindow()
+							.getActivePage();
+					if (definition != null && page != null && definition.open(page))
+						return true;
+				}
+
+				// the path is qualified by the compiler: look for it in the interfaces
+				return openDefInInterfaces(0, path.split("\\."), interfacesDefinitionsRoot);
+
+			default:
+				return false;
+			}
+		} catch (BadLocationException e) {
+			OcamlPlugin.logError("error reading the annotations for an hyperlink", e);
+			return false;
+		}
+	}
+
 	/**
 	 * Find the definition of <code>searchedDef</code> in <code>modulesDefinitionsRoot</code>,
 	 * and in <code>interfacesDefinitionsRoot</code>
@@ -495,32 +572,26 @@ public class OcamlHyperlinkDetector implements IHyperlinkDetector {
 		return null;
 	}
 
-	/** Find an identifier (or an open directive) at a position in the document */
-	private Def findIdentAt(Def def, int offset, IDocument doc) {
-
-		if (def == null || doc == null)
-			return null;
-
-		IRegion region = def.getRegion(doc);
+	/** The types of the nodes which can be hyperlinked */
+	private static final Set<Def.Type> identTypes = EnumSet.of(Def.Type.Identifier, Def.Type.Open,
+			Def.Type.Include);
 
-		if (region == null)
+	/** Find an identifier (or an open directive) at a position in the document */
+	private Def findIdentAt(ParseResult parseResult, int offset) {
+		if (parseResult == null)
 			return null;
 
-		int startOffset = region.getOffset();
-		int endOffset = startOffset + region.getLength() - 1;
-
-		if (startOffset <= offset
-				&& endOffset >= offset
-				&& (def.type == Def.Type.Identifier || def.type == Def.Type.Open || def.type == Def.Type.Include))
-			return def;
-
-		for (Def d : def.children) {
-			Def cd = findIdentAt(d, offset, doc);
-			if (cd != null)
-				return cd;
-		}
+		return parseResult.getPositionIndex().findAt(offset, identTypes, 0);
+	}
 
-		return null;
+	/**
+	 * Return the region of the name of <code>def</code>, from the offsets index if it is a node of
+	 * the parsed module
+	 */
+	private static IRegion getRegion(ParseResult parseResult, Def def, IDocument doc) {
+		IRegion region = parseResult != null ? parseResult.getPositionIndex().getRegion(def)
+				: null;
+		return region != null ? region : def.getRegion(doc);
 	}
 
 	/**
@@ -553,6 +624,18 @@ public class OcamlHyperlinkDetector implements IHyperlinkDetector {
 					if (project == null)
 						return;
 
+					// the modules of the project paths are indexed by name
+					Def module = DefinitionsSuperTree.getInstance().getIndex(project).findFirst(
+							searchedName);
+					if (module != null && module.filename != null) {
+						IWorkbenchPage page = PlatformUI.getWorkbench().getActiveWorkbenchWindow()
+								.getActivePage();
+						if (page != null)
+							IDE.openEditorOnFileStore(page, EFS.getStore(new File(module.filename)
+									.toURI()));
+						return;
+					}
+
 					OcamlPaths opaths = new OcamlPaths(project);
 
 					String[] paths = opaths.getPaths();
@@ -1,19 +1,21 @@
 package ocaml.editors;
 
 import java.io.File;
-import java.util.ArrayList;
 
 import ocaml.OcamlPlugin;
 import ocaml.debugging.OcamlDebugger;
 import ocaml.preferences.PreferenceConstants;
 import ocaml.typeHovers.OcamlAnnotParser;
 import ocaml.typeHovers.TypeAnnotation;
+import ocaml.typeHovers.TypeAnnotationIndex;
+import ocaml.util.DocumentCharSequence;
 import ocaml.util.Misc;
 
 import org.eclipse.core.resources.IFile;
 import org.eclipse.core.resources.IMarker;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.IRegion;
 import org.eclipse.jface.text.ITextHover;
 import org.eclipse.jface.text.ITextViewer;
@@ -73,7 +75,7 @@ public class OcamlTextHover implements ITextHover {
 
 			// if the debugger is started, we ask it for the value of the variable under the cursor
 			if (OcamlDebugger.getInstance().isStarted()) {
-				String text = textViewer.getDocument().get();
+				DocumentCharSequence text = new DocumentCharSequence(textViewer.getDocument());
 				String expression = expressionAtOffset(text, hoverOffset).trim();
 
 				if (!expression.equals("")) {
@@ -87,64 +89,38 @@ public class OcamlTextHover implements ITextHover {
 			if (OcamlPlugin.getInstance().getPreferenceStore().getBoolean(
 					PreferenceConstants.P_SHOW_TYPES_IN_POPUPS)) {
 
-				File annotFile = null;
-
-				// workspace file
-				if (file != null)
-					annotFile = Misc.getOtherFileFor(file.getProject(), file.getFullPath(), ".annot");
-				else
-					annotFile = Misc.getOtherFileFor(filePath, ".annot");
-
-				if (annotFile != null && annotFile.exists()) {
-					boolean bUpToDate = false;
-
-					if (file != null)
-						bUpToDate = file.getLocation().toFile().lastModified() <= annotFile.lastModified();
-					else
-						bUpToDate = filePath.toFile().lastModified() <= annotFile.lastModified();
-
-					if (!ocamlEditor.isDirty() && bUpToDate) {
-						ArrayList<TypeAnnotation> found = new ArrayList<TypeAnnotation>();
-
-						TypeAnnotation[] annotations = OcamlAnnotParser.parseFile(annotFile, textViewer
-								.getDocument());
-						if (annotations != null) {
-							for (TypeAnnotation annot : annotations)
-								if (annot.getBegin() <= hoverOffset && hoverOffset < annot.getEnd())
-									found.add(annot);
-
-							/*
-							 * Search for the smallest hovered type annotation
-							 */
-							TypeAnnotation annot = null;
-							int minSize = Integer.MAX_VALUE;
-
-							for (TypeAnnotation a : found) {
-								int size = a.getEnd() - a.getBegin();
-								if (size < minSize) {
-									annot = a;
-									minSize = size;
-								}
-							}
-
-							if (annot != null) {
-
-								String doc = ocamlEditor.getDocumentProvider().getDocument(
-										ocamlEditor.getEditorInput()).get();
-								String expr = doc.substring(annot.getBegin(), annot.getEnd());
-								String[] lines = expr.split("\\n");
-								if (expr.length() < 50 && lines.length <= 6)
-									return (hoverMessage + expr + ": " + annot.getType()).trim();
-								else if (lines.length > 6) {
-									int l = lines.length;
-
-									return (hoverMessage + lines[0] + "\n" + lines[1] + "\n" + lines[2]
-											+ "\n" + "..." + (l - 6) + " more lines...\n" + lines[l - 3]
-											+ "\n" + lines[l - 2] + "\n" + lines[l - 1] + "\n:" + annot
-											.getType()).trim();
-								} else
-									return (hoverMessage + expr + "\n:" + annot.getType()).trim();
-							}
+				/*
+				 * the types written by the compiler if the module was compiled since its last
+				 * modification, or else those of the type-checking of the editor contents
+				 */
+				File annotFile = ocamlEditor.getTypeAnnotFile();
+
+				if (annotFile != null) {
+					TypeAnnotationIndex annotations = OcamlAnnotParser.parseFile(annotFile,
+							textViewer.getDocument());
+					if (annotations != null) {
+						/*
+						 * Search for the smallest hovered type annotation
+						 */
+						TypeAnnotation annot = annotations.findInnermost(hoverOffset, false);
+
+						if (annot != null) {
+
+							IDocument doc = ocamlEditor.getDocumentProvider().getDocument(
+									ocamlEditor.getEditorInput());
+							String expr = doc.get(annot.getBegin(), annot.getEnd() - annot.getBegin());
+							String[] lines = expr.split("\\n");
+							if (expr.length() < 50 && lines.length <= 6)
+								return (hoverMessage + expr + ": " + annot.getType()).trim();
+							else if (lines.length > 6) {
+								int l = lines.length;
+
+								return (hoverMessage + lines[0] + "\n" + lines[1] + "\n" + lines[2]
+										+ "\n" + "..." + (l - 6) + " more lines...\n" + lines[l - 3]
+										+ "\n" + lines[l - 2] + "\n" + lines[l - 1] + "\n:" + annot
+										.getType()).trim();
+							} else
+								return (hoverMessage + expr + "\n:" + annot.getType()).trim();
 						}
 					}
 				}
@@ -167,7 +143,7 @@ public class OcamlTextHover implements ITextHover {
 	}
 
 	/** Return the expression under the cursor */
-	private String expressionAtOffset(String text, int offset) {
+	private String expressionAtOffset(DocumentCharSequence text, int offset) {
 		int endOffset = text.length();
 		int length = text.length();
 
@@ -212,66 +188,50 @@ public class OcamlTextHover implements ITextHover {
 
 		String fileName = filePath.lastSegment();
 		if (fileName.endsWith(".ml")) {
-			String annotFilename = fileName.substring(0, fileName.length() - 3) + ".annot";
+			File annotFile = editor.getTypeAnnotFile();
+
+			if (annotFile != null) {
+				TypeAnnotationIndex annotations;
+				try {
+					annotations = OcamlAnnotParser.parseFile(annotFile, viewer.getDocument());
+				} catch (BadLocationException e) {
+					OcamlPlugin.logError("getting type annotation", e);
+					return "";
+				}
+				if (annotations != null) {
+					/*
+					 * Search for the smallest type annotation at this offset
+					 */
+					TypeAnnotation annot = annotations.findInnermost(offset, true);
 
-			File annotFile = filePath.removeLastSegments(1).append(annotFilename).toFile();
+					if (annot != null) {
 
-			if (annotFile.exists()) {
-				boolean bUpToDate = filePath.toFile().lastModified() <= annotFile.lastModified();
+						IDocument doc = editor.getDocumentProvider().getDocument(editor.getEditorInput());
 
-				if (!editor.isDirty() && bUpToDate) {
-					ArrayList<TypeAnnotation> found = new ArrayList<TypeAnnotation>();
+						int begin = annot.getBegin();
+						int end = annot.getEnd();
 
-					TypeAnnotation[] annotations;
-					try {
-						annotations = OcamlAnnotParser.parseFile(annotFile, viewer.getDocument());
-					} catch (BadLocationException e) {
-						OcamlPlugin.logError("getting type annotation", e);
-						return "";
-					}
-					if (annotations != null) {
-						for (TypeAnnotation annot : annotations)
-							if (annot.getBegin() <= offset && offset <= annot.getEnd())
-								found.add(annot);
+						if (end >= doc.getLength())
+							return "";
 
-						/*
-						 * Search for the smallest type annotation at this offset
-						 */
-						TypeAnnotation annot = null;
-						int minSize = Integer.MAX_VALUE;
-
-						for (TypeAnnotation a : found) {
-							int size = a.getEnd() - a.getBegin();
-							if (size < minSize) {
-								annot = a;
-								minSize = size;
-							}
+						String expr;
+						try {
+							expr = doc.get(begin, end - begin);
+						} catch (BadLocationException e) {
+							OcamlPlugin.logError("getting type annotation", e);
+							return "";
 						}
+						String[] lines = expr.split("\\r?\\n");
 
-						if (annot != null) {
-
-							String doc = editor.getDocumentProvider().getDocument(editor.getEditorInput())
-									.get();
-
-							int begin = annot.getBegin();
-							int end = annot.getEnd();
+						expr = "";
+						for (String line : lines)
+							expr = expr + " " + line;
 
-							if (end >= doc.length())
-								return "";
+						if (expr.length() > 30)
+							expr = expr.substring(0, 15) + "..."
+									+ expr.substring(expr.length() - 15, expr.length());
 
-							String expr = doc.substring(begin, end);
-							String[] lines = expr.split("\\r?\\n");
-
-							expr = "";
-							for (String line : lines)
-								expr = expr + " " + line;
-
-							if (expr.length() > 30)
-								expr = expr.substring(0, 15) + "..."
-										+ expr.substring(expr.length() - 15, expr.length());
-
-							return (expr + ": " + annot.getType()).trim();
-						}
+						return (expr + ": " + annot.getType()).trim();
 					}
 				}
 			}
@@ -1,5 +1,7 @@
 package ocaml.editors.util;
 
+import ocaml.util.DocumentCharSequence;
+
 import org.eclipse.jface.text.IDocument;
 import org.eclipse.jface.text.IRegion;
 import org.eclipse.jface.text.Region;
@@ -15,7 +17,7 @@ public class OcamlCharacterPairMatcher implements ICharacterPairMatcher {
 		
 		if(offset < 1)return null;
 		
-		String doc = document.get();
+		DocumentCharSequence doc = new DocumentCharSequence(document);
 		int length = doc.length();
 		
 		for (int nChar = 0; (nChar < openChars.length) && (nChar < closeChars.length); nChar++) {
@@ -3,6 +3,8 @@ package ocaml.editors.yacc.outline;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import ocaml.util.DocumentCharSequence;
+
 import org.eclipse.core.runtime.IProgressMonitor;
 import org.eclipse.core.runtime.IStatus;
 import org.eclipse.core.runtime.Status;
@@ -41,21 +43,30 @@ public class YaccOutlineJob extends Job {
 	@Override
 	public synchronized IStatus run(IProgressMonitor monitor) {
 		
-		String doc = document.get();
+		DocumentCharSequence doc = new DocumentCharSequence(document);
 		
 		Matcher matcher = patternNonTerminal.matcher(doc);
 		
 		YaccDef root = new YaccDef("<root>", 0, 0);
 		
-		while(matcher.find()){
-			String name = matcher.group(1);
-			int start = matcher.start(1);
-			int end = matcher.end(1);
-			
-			YaccDef def = new YaccDef(name, start, end);
-			root.addChild(def);
+		try {
+			while(matcher.find()){
+				String name = matcher.group(1);
+				int start = matcher.start(1);
+				int end = matcher.end(1);
+				
+				YaccDef def = new YaccDef(name, start, end);
+				root.addChild(def);
+			}
+		} catch (IndexOutOfBoundsException e) {
+			// the document was modified while we were reading it
+			return Status.CANCEL_STATUS;
 		}
 		
+		// the document was modified: the outline will be rebuilt
+		if (!doc.isValid())
+			return Status.CANCEL_STATUS;
+		
 
 		final YaccDef fOutlineDefinitions = root;
 
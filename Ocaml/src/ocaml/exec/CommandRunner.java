@@ -44,6 +44,21 @@ public class CommandRunner {
 	 *            current process.
 	 */
 	public CommandRunner(String[] command, String folderPath) {
+		this(command, folderPath, null);
+	}
+
+	/**
+	 * Start a process, and send its outputs to <code>events</code> line by line while it runs
+	 * 
+	 * @param command
+	 *            the command to execute, with its parameters
+	 * @param folderPath
+	 *            the working directory of the subprocess, or <code>null</code>
+	 * @param events
+	 *            notified of each line of the outputs, and of the end of the process once its outputs are
+	 *            read, or <code>null</code>
+	 */
+	public CommandRunner(String[] command, String folderPath, IExecEvents events) {
 		if (command.length == 0) {
 			return;
 		}
@@ -64,13 +79,19 @@ public class CommandRunner {
 			InputStream stdout = this.process.getInputStream();
 
 			// start the two threads that will get the outputs from stderr and stdout
-			this.errorGobbler = new StreamGobbler(stderr);
-			this.outputGobbler = new StreamGobbler(stdout);
+			this.errorGobbler = new StreamGobbler(stderr, events, true);
+			this.outputGobbler = new StreamGobbler(stdout, events, false);
 			this.errorGobbler.start();
 			this.outputGobbler.start();
 
 			// wait for the process to end
 			this.exitValue = this.process.waitFor();
+
+			if (events != null) {
+				this.errorGobbler.join();
+				this.outputGobbler.join();
+				events.processEnded(this.exitValue);
+			}
 		} catch (Exception e) {
 			OcamlPlugin.logError("ocaml plugin error", e);
 		}
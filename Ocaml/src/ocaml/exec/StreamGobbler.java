@@ -12,11 +12,24 @@ public class StreamGobbler extends Thread {
 
 	private InputStream inputStream = null;
 	private StringBuffer result = new StringBuffer();
+	/** Notified of each line as soon as it is read, or <code>null</code> */
+	private IExecEvents events = null;
+	private boolean bErrorStream = false;
 
 	StreamGobbler(InputStream inputStream) {
 		this.inputStream = inputStream;
 	}
 
+	/**
+	 * @param events
+	 *            notified of each line read (as an input or an error, depending on <code>bErrorStream</code>)
+	 */
+	StreamGobbler(InputStream inputStream, IExecEvents events, boolean bErrorStream) {
+		this.inputStream = inputStream;
+		this.events = events;
+		this.bErrorStream = bErrorStream;
+	}
+
 	@Override
 	public void run() {
 		this.fillReturnBuffer();
@@ -29,6 +42,12 @@ public class StreamGobbler extends Thread {
 			String line = null;
 				while ((line = bufferedReader.readLine()) != null) {
 					this.result.append(line + "\n");
+					if (events != null) {
+						if (bErrorStream)
+							events.processNewError(line + "\n");
+						else
+							events.processNewInput(line + "\n");
+					}
 			}
 		} catch (Throwable e) {
 			ocaml.OcamlPlugin.logError("error in StreamGobbler:fillReturnBuffer", e);
@@ -0,0 +1,448 @@
+package ocaml.parser;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * A compact, read-only form of a definitions tree, used to keep the trees of the parsed interfaces in
+ * the cache for a long time without keeping a full {@link Def} object (with its children list and
+ * strings) for each node.
+ * <p>
+ * The nodes are numbered in breadth-first order, so that the children of a node are stored
+ * contiguously, and the attributes of the nodes are stored in flat arrays. The names are interned,
+ * and the long texts (comments, bodies, types) are stored once each as UTF-8 in a single byte array,
+ * and are only decoded when they are asked for.
+ * <p>
+ * The nodes can be walked by their index (the root is the node 0), so that looking for a name doesn't
+ * build any {@link Def}. Use {@link #getNodeDefinition(int)} to get a single node as a {@link Def},
+ * or {@link #getDefinition()} to get back a complete definitions tree that can be walked as usual.
+ */
+public class CompactDefTree {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static final Def.Type[] types = Def.Type.values();
+
+	/** A text reference for the empty string */
+	private static final int EMPTY = -1;
+	/** A text reference for a null string */
+	private static final int NULL = -2;
+
+	private static final int FLAG_ALT = 1;
+	private static final int FLAG_AND = 2;
+	private static final int FLAG_REC = 4;
+	private static final int FLAG_IN_IN = 8;
+	private static final int FLAG_TOP = 16;
+
+	private final int nNodes;
+
+	private final byte[] type;
+	private final byte[] flags;
+	private final int[] posStart;
+	private final int[] posEnd;
+	private final int[] defPosStart;
+	private final int[] defOffsetStart;
+	private final int[] defOffsetEnd;
+
+	/** The index of the parent of each node, or -1 */
+	private final int[] parent;
+	/** The children of node i are the nodes from childrenStart[i] to childrenStart[i+1] (excluded) */
+	private final int[] childrenStart;
+
+	private final String[] name;
+	private final String[] filename;
+	private final String[] parentName;
+
+	/** References to the texts of each node, in {@link #textOffsets} */
+	private final int[] comment;
+	private final int[] sectionComment;
+	private final int[] body;
+	private final int[] ocamlType;
+
+	/** The text k is encoded in <code>text</code> from textOffsets[k] to textOffsets[k+1] */
+	private final int[] textOffsets;
+	private final byte[] text;
+
+	/** The complete tree, rebuilt when it is asked for and released when the memory is needed */
+	private SoftReference<Def> definition;
+
+	/** Build the compact form of the tree rooted at <code>root</code> */
+	public CompactDefTree(Def root) {
+		// number the nodes in breadth-first order
+		ArrayList<Def> nodes = new ArrayList<Def>();
+		nodes.add(root);
+		for (int i = 0; i < nodes.size(); i++)
+			nodes.addAll(nodes.get(i).children);
+
+		nNodes = nodes.size();
+
+		Map<Def, Integer> indices = new IdentityHashMap<Def, Integer>(nNodes);
+		for (int i = 0; i < nNodes; i++)
+			indices.put(nodes.get(i), i);
+
+		type = new byte[nNodes];
+		flags = new byte[nNodes];
+		posStart = new int[nNodes];
+		posEnd = new int[nNodes];
+		defPosStart = new int[nNodes];
+		defOffsetStart = new int[nNodes];
+		defOffsetEnd = new int[nNodes];
+		parent = new int[nNodes];
+		childrenStart = new int[nNodes + 1];
+		name = new String[nNodes];
+		filename = new String[nNodes];
+		parentName = new String[nNodes];
+		comment = new int[nNodes];
+		sectionComment = new int[nNodes];
+		body = new int[nNodes];
+		ocamlType = new int[nNodes];
+
+		TextPool pool = new TextPool();
+
+		int nextChild = 1;
+		for (int i = 0; i < nNodes; i++) {
+			Def def = nodes.get(i);
+
+			type[i] = (byte) def.type.ordinal();
+			flags[i] = (byte) ((def.bAlt ? FLAG_ALT : 0) | (def.bAnd ? FLAG_AND : 0)
+					| (def.bRec ? FLAG_REC : 0) | (def.bInIn ? FLAG_IN_IN : 0) | (def.bTop ? FLAG_TOP
+					: 0));
+			posStart[i] = def.posStart;
+			posEnd[i] = def.posEnd;
+			defPosStart[i] = def.defPosStart;
+			defOffsetStart[i] = def.defOffsetStart;
+			defOffsetEnd[i] = def.defOffsetEnd;
+
+			Integer parentIndex = def.parent == null ? null : indices.get(def.parent);
+			parent[i] = parentIndex == null ? -1 : parentIndex;
+
+			childrenStart[i] = nextChild;
+			nextChild += def.children.size();
+
+			name[i] = intern(def.name);
+			filename[i] = intern(def.filename);
+			parentName[i] = intern(def.parentName);
+
+			comment[i] = pool.add(def.comment);
+			sectionComment[i] = pool.add(def.sectionComment);
+			body[i] = pool.add(def.body);
+			ocamlType[i] = pool.add(def.ocamlType);
+		}
+		childrenStart[nNodes] = nextChild;
+
+		textOffsets = pool.getOffsets();
+		text = pool.getBytes();
+		definition = new SoftReference<Def>(root);
+	}
+
+	private CompactDefTree(ByteBuffer buffer) {
+		nNodes = buffer.getInt();
+
+		type = readBytes(buffer, nNodes);
+		flags = readBytes(buffer, nNodes);
+		posStart = readInts(buffer, nNodes);
+		posEnd = readInts(buffer, nNodes);
+		defPosStart = readInts(buffer, nNodes);
+		defOffsetStart = readInts(buffer, nNodes);
+		defOffsetEnd = readInts(buffer, nNodes);
+		parent = readInts(buffer, nNodes);
+		childrenStart = readInts(buffer, nNodes + 1);
+
+		String[] strings = new String[buffer.getInt()];
+		for (int i = 0; i < strings.length; i++)
+			strings[i] = intern(readString(buffer));
+		name = readStrings(buffer, strings, nNodes);
+		filename = readStrings(buffer, strings, nNodes);
+		parentName = readStrings(buffer, strings, nNodes);
+
+		comment = readInts(buffer, nNodes);
+		sectionComment = readInts(buffer, nNodes);
+		body = readInts(buffer, nNodes);
+		ocamlType = readInts(buffer, nNodes);
+
+		textOffsets = readInts(buffer, buffer.getInt());
+		text = readBytes(buffer, buffer.getInt());
+		definition = new SoftReference<Def>(null);
+	}
+
+	/**
+	 * Read a tree written by {@link #write(DataOutputStream)}, starting at the current position of
+	 * <code>buffer</code>
+	 */
+	public static CompactDefTree read(ByteBuffer buffer) {
+		return new CompactDefTree(buffer);
+	}
+
+	/** Write this tree in a binary form, which can be read back with {@link #read(ByteBuffer)} */
+	public void write(DataOutputStream out) throws IOException {
+		out.writeInt(nNodes);
+
+		out.write(type);
+		out.write(flags);
+		writeInts(out, posStart);
+		writeInts(out, posEnd);
+		writeInts(out, defPosStart);
+		writeInts(out, defOffsetStart);
+		writeInts(out, defOffsetEnd);
+		writeInts(out, parent);
+		writeInts(out, childrenStart);
+
+		// the names are written once each in a table, and referenced by their index
+		Map<String, Integer> indices = new HashMap<String, Integer>();
+		ArrayList<String> strings = new ArrayList<String>();
+		int[] nameRefs = indexStrings(name, indices, strings);
+		int[] filenameRefs = indexStrings(filename, indices, strings);
+		int[] parentNameRefs = indexStrings(parentName, indices, strings);
+
+		out.writeInt(strings.size());
+		for (String str : strings)
+			writeString(out, str);
+		writeInts(out, nameRefs);
+		writeInts(out, filenameRefs);
+		writeInts(out, parentNameRefs);
+
+		writeInts(out, comment);
+		writeInts(out, sectionComment);
+		writeInts(out, body);
+		writeInts(out, ocamlType);
+
+		out.writeInt(textOffsets.length);
+		writeInts(out, textOffsets);
+		out.writeInt(text.length);
+		out.write(text);
+	}
+
+	private static int[] indexStrings(String[] values, Map<String, Integer> indices,
+			ArrayList<String> strings) {
+		int[] refs = new int[values.length];
+		for (int i = 0; i < values.length; i++) {
+			if (values[i] == null) {
+				refs[i] = -1;
+				continue;
+			}
+			Integer index = indices.get(values[i]);
+			if (index == null) {
+				index = strings.size();
+				strings.add(values[i]);
+				indices.put(values[i], index);
+			}
+			refs[i] = index;
+		}
+		return refs;
+	}
+
+	private static void writeInts(DataOutputStream out, int[] values) throws IOException {
+		for (int value : values)
+			out.writeInt(value);
+	}
+
+	private static void writeString(DataOutputStream out, String str) throws IOException {
+		byte[] bytes = str.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static byte[] readBytes(ByteBuffer buffer, int length) {
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return bytes;
+	}
+
+	private static int[] readInts(ByteBuffer buffer, int length) {
+		int[] values = new int[length];
+		buffer.asIntBuffer().get(values);
+		buffer.position(buffer.position() + 4 * length);
+		return values;
+	}
+
+	private static String readString(ByteBuffer buffer) {
+		return new String(readBytes(buffer, buffer.getInt()), UTF8);
+	}
+
+	private static String[] readStrings(ByteBuffer buffer, String[] strings, int length) {
+		int[] refs = readInts(buffer, length);
+		String[] values = new String[length];
+		for (int i = 0; i < length; i++)
+			values[i] = refs[i] < 0 ? null : strings[refs[i]];
+		return values;
+	}
+
+	private static String intern(String str) {
+		return str == null ? null : str.intern();
+	}
+
+	/** Accumulates the texts of the tree, storing each distinct text only once */
+	private static class TextPool {
+		private final Map<String, Integer> refs = new HashMap<String, Integer>();
+		private int[] offsets = new int[64];
+		private byte[] bytes = new byte[4096];
+		private int nTexts = 0;
+		private int length = 0;
+
+		int add(String str) {
+			if (str == null)
+				return NULL;
+			if (str.length() == 0)
+				return EMPTY;
+
+			Integer ref = refs.get(str);
+			if (ref != null)
+				return ref;
+
+			byte[] encoded = str.getBytes(UTF8);
+			if (length + encoded.length > bytes.length)
+				bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, length + encoded.length));
+			System.arraycopy(encoded, 0, bytes, length, encoded.length);
+
+			if (nTexts + 2 > offsets.length)
+				offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+			offsets[nTexts] = length;
+			length += encoded.length;
+			offsets[nTexts + 1] = length;
+
+			refs.put(str, nTexts);
+			return nTexts++;
+		}
+
+		int[] getOffsets() {
+			return Arrays.copyOf(offsets, nTexts + 1);
+		}
+
+		byte[] getBytes() {
+			return Arrays.copyOf(bytes, length);
+		}
+	}
+
+	private String getText(int ref) {
+		if (ref == EMPTY)
+			return "";
+		if (ref == NULL)
+			return null;
+		return new String(text, textOffsets[ref], textOffsets[ref + 1] - textOffsets[ref], UTF8);
+	}
+
+	/**
+	 * An estimate of the memory used by this tree, in bytes (the interned names, which are shared with
+	 * other trees, are not counted)
+	 */
+	public long getMemorySize() {
+		// per node: the type and the flags, 7 ints, 4 text references and 3 references to names
+		return nNodes * (2L + 7 * 4 + 4 * 4 + 3 * 4) + 4L * textOffsets.length + text.length;
+	}
+
+	/**
+	 * An estimate of the memory used by the complete definitions tree rebuilt from this one, in bytes
+	 * (a {@link Def} with its children list and its strings for each node)
+	 */
+	public long getDefinitionMemorySize() {
+		return nNodes * 200L + 2L * text.length;
+	}
+
+	/** The number of nodes in the tree (the root is the node 0) */
+	public int getNumberOfNodes() {
+		return nNodes;
+	}
+
+	/** Return the index of the parent of <code>node</code>, or -1 for the root */
+	public int getParent(int node) {
+		return parent[node];
+	}
+
+	public int getNumberOfChildren(int node) {
+		return childrenStart[node + 1] - childrenStart[node];
+	}
+
+	/** Return the index of the <code>i</code>th child of <code>node</code> */
+	public int getChild(int node, int i) {
+		return childrenStart[node] + i;
+	}
+
+	public Def.Type getType(int node) {
+		return types[type[node]];
+	}
+
+	public String getName(int node) {
+		return name[node];
+	}
+
+	public String getFilename(int node) {
+		return filename[node];
+	}
+
+	/** The comment of <code>node</code>, decoded each time it is asked for */
+	public String getComment(int node) {
+		return getText(comment[node]);
+	}
+
+	public String getSectionComment(int node) {
+		return getText(sectionComment[node]);
+	}
+
+	public String getBody(int node) {
+		return getText(body[node]);
+	}
+
+	/**
+	 * Return a {@link Def} with the attributes of <code>node</code>, without its children nor its
+	 * parent (to show a single definition, for example in the completions)
+	 */
+	public Def getNodeDefinition(int node) {
+		Def def = new Def(name[node], types[type[node]], posStart[node], posEnd[node]);
+		def.bAlt = (flags[node] & FLAG_ALT) != 0;
+		def.bAnd = (flags[node] & FLAG_AND) != 0;
+		def.bRec = (flags[node] & FLAG_REC) != 0;
+		def.bInIn = (flags[node] & FLAG_IN_IN) != 0;
+		def.bTop = (flags[node] & FLAG_TOP) != 0;
+		def.defPosStart = defPosStart[node];
+		def.defOffsetStart = defOffsetStart[node];
+		def.defOffsetEnd = defOffsetEnd[node];
+		def.filename = filename[node];
+		def.parentName = parentName[node];
+		def.comment = getText(comment[node]);
+		def.sectionComment = getText(sectionComment[node]);
+		def.body = getText(body[node]);
+		def.ocamlType = getText(ocamlType[node]);
+		return def;
+	}
+
+	/**
+	 * Return the complete definitions tree. It is rebuilt from this compact form only if the garbage
+	 * collector released the last one. The returned tree is shared: it must not be modified.
+	 */
+	public synchronized Def getDefinition() {
+		Def root = definition.get();
+		if (root == null) {
+			root = toDef();
+			definition = new SoftReference<Def>(root);
+		}
+		return root;
+	}
+
+	/** Rebuild a complete definitions tree from this compact form */
+	private Def toDef() {
+		Def[] defs = new Def[nNodes];
+
+		for (int i = 0; i < nNodes; i++)
+			defs[i] = getNodeDefinition(i);
+
+		for (int i = 0; i < nNodes; i++) {
+			Def def = defs[i];
+			def.children.ensureCapacity(getNumberOfChildren(i));
+			for (int child = childrenStart[i]; child < childrenStart[i + 1]; child++)
+				def.children.add(defs[child]);
+			if (parent[i] >= 0)
+				def.parent = defs[parent[i]];
+		}
+
+		defs[0].buildSiblingOffsets();
+		return defs[0];
+	}
+}
@@ -2,6 +2,7 @@ package ocaml.parser;
 
 import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 
 import ocaml.OcamlPlugin;
 import ocaml.util.Misc;
@@ -337,6 +338,63 @@ public class Def extends beaver.Symbol {
 		}
 	}
 
+	/**
+	 * Replace the children in the range [<code>from</code>, <code>to</code>) by
+	 * <code>defs</code>, and update the parent and sibling offset of the children of this node.
+	 */
+	public void spliceChildren(int from, int to, List<Def> defs) {
+		children.subList(from, to).clear();
+		children.addAll(from, defs);
+
+		for (int i = 0; i < children.size(); i++) {
+			Def child = children.get(i);
+			child.parent = this;
+			child.siblingsOffset = i;
+		}
+	}
+
+	/**
+	 * Return a deep copy of the tree rooted at this definition, with all the positions moved by
+	 * <code>lineDelta</code> lines. This is used to reuse the definitions which follow an edited
+	 * part of the document without reparsing them.
+	 */
+	public Def shiftedCopy(int lineDelta) {
+		Def def = new Def(this);
+		def.posStart = shiftLine(posStart, lineDelta);
+		def.posEnd = shiftLine(posEnd, lineDelta);
+		// a null 'defPosStart' means that it wasn't set by the parser
+		if (defPosStart != 0)
+			def.defPosStart = shiftLine(defPosStart, lineDelta);
+		def.start = shiftLine(start, lineDelta);
+		def.end = shiftLine(end, lineDelta);
+
+		def.children = new ArrayList<Def>(children.size());
+		for (Def child : children) {
+			Def childCopy = child.shiftedCopy(lineDelta);
+			childCopy.parent = def;
+			def.children.add(childCopy);
+		}
+
+		return def;
+	}
+
+	/** Move all the positions in the tree rooted at this definition by <code>lineDelta</code> lines */
+	public void shiftLines(int lineDelta) {
+		posStart = shiftLine(posStart, lineDelta);
+		posEnd = shiftLine(posEnd, lineDelta);
+		if (defPosStart != 0)
+			defPosStart = shiftLine(defPosStart, lineDelta);
+		start = shiftLine(start, lineDelta);
+		end = shiftLine(end, lineDelta);
+
+		for (Def child : children)
+			child.shiftLines(lineDelta);
+	}
+
+	private static int shiftLine(int position, int lineDelta) {
+		return makePosition(getLine(position) + lineDelta, getColumn(position));
+	}
+
 	public Def cleanCopy() {
 		Def def = new Def("<root>", Def.Type.Root, 0, 0);
 		cleanCopyAux(this, def);
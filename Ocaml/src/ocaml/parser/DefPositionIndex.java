@@ -0,0 +1,235 @@
+package ocaml.parser;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import ocaml.util.IntervalTree;
+
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.Region;
+
+/**
+ * An index of the positions of the nodes of a definitions tree, to find the node at a given
+ * position without going through the whole tree and converting the position of each node.
+ * <p>
+ * The positions are resolved once, when the index is built: either to offsets in the document (with
+ * the line offsets of the parsed document), or to the encoded (line, column) positions of the parser
+ * if no line offsets are given. The name of each node and its extent (the span of the definition
+ * with all its children) are kept in two interval trees, so that the queries take a logarithmic
+ * time.
+ * <p>
+ * The tree must not be modified after the index is built.
+ */
+public class DefPositionIndex {
+
+	/** The nodes, in the order of a depth-first traversal of the tree */
+	private final Def[] nodes;
+	/** The number of each node in <code>nodes</code> */
+	private final IdentityHashMap<Def, Integer> numbers;
+	private final int[] parents;
+	private final int[] depths;
+	/** The position of each node in the children of its parent */
+	private final int[] siblingIndexes;
+
+	/** The names of the nodes (the first and the last position, included) */
+	private final IntervalTree names;
+	/** The extents of the nodes (from the start of the definition to the end of its last child) */
+	private final IntervalTree extents;
+
+	/** Whether the positions are encoded (line, column) positions instead of offsets */
+	private final boolean bEncoded;
+
+	/** Build an index of the offsets of the nodes, in the document whose lines start at these offsets */
+	public static DefPositionIndex forOffsets(Def root, int[] lineOffsets) {
+		return new DefPositionIndex(root, lineOffsets);
+	}
+
+	/** Build an index of the encoded (line, column) positions of the nodes */
+	public static DefPositionIndex forPositions(Def root) {
+		return new DefPositionIndex(root, null);
+	}
+
+	private DefPositionIndex(Def root, int[] lineOffsets) {
+		this.bEncoded = lineOffsets == null;
+
+		// the node arrays grow during the traversal, which also counts the nodes
+		Def[] nodes = new Def[64];
+		IdentityHashMap<Def, Integer> numbers = new IdentityHashMap<Def, Integer>();
+		int[] parents = new int[64];
+		int[] depths = new int[64];
+		int[] siblingIndexes = new int[64];
+
+		// depth-first traversal, with an explicit stack (the trees can be deep)
+		int[] stackNodes = new int[16];
+		int[] stackChildren = new int[16];
+		int stackSize = 0;
+		int count = 0;
+
+		nodes[0] = root;
+		numbers.put(root, 0);
+		parents[0] = -1;
+		count = 1;
+		stackNodes[0] = 0;
+		stackChildren[0] = 0;
+		stackSize = 1;
+
+		while (stackSize > 0) {
+			int current = stackNodes[stackSize - 1];
+			int nextChild = stackChildren[stackSize - 1];
+			Def def = nodes[current];
+			if (nextChild >= def.children.size()) {
+				stackSize--;
+				continue;
+			}
+			stackChildren[stackSize - 1]++;
+
+			if (count == nodes.length) {
+				nodes = Arrays.copyOf(nodes, count * 2);
+				parents = Arrays.copyOf(parents, count * 2);
+				depths = Arrays.copyOf(depths, count * 2);
+				siblingIndexes = Arrays.copyOf(siblingIndexes, count * 2);
+			}
+
+			Def child = def.children.get(nextChild);
+			int number = count++;
+			nodes[number] = child;
+			numbers.put(child, number);
+			parents[number] = current;
+			depths[number] = depths[current] + 1;
+			siblingIndexes[number] = nextChild;
+
+			if (stackSize == stackNodes.length) {
+				stackNodes = Arrays.copyOf(stackNodes, stackSize * 2);
+				stackChildren = Arrays.copyOf(stackChildren, stackSize * 2);
+			}
+			stackNodes[stackSize] = number;
+			stackChildren[stackSize] = 0;
+			stackSize++;
+		}
+
+		int nNodes = count;
+		this.nodes = Arrays.copyOf(nodes, nNodes);
+		this.numbers = numbers;
+		this.parents = Arrays.copyOf(parents, nNodes);
+		this.depths = Arrays.copyOf(depths, nNodes);
+		this.siblingIndexes = Arrays.copyOf(siblingIndexes, nNodes);
+
+		int[] nameStarts = new int[nNodes];
+		int[] nameEnds = new int[nNodes];
+		int[] extentStarts = new int[nNodes];
+		int[] extentEnds = new int[nNodes];
+
+		for (int i = 0; i < nNodes; i++) {
+			Def def = nodes[i];
+			// like Def.getRegion: the name is on the line where it starts
+			int line = Def.getLine(def.posStart);
+			int lineStart = bEncoded ? line << 12 : lineOffset(lineOffsets, line);
+			nameStarts[i] = lineStart + Def.getColumn(def.posStart);
+			nameEnds[i] = lineStart + Def.getColumn(def.posEnd);
+
+			extentStarts[i] = nameStarts[i];
+			if (def.defPosStart != 0) {
+				int defLine = Def.getLine(def.defPosStart);
+				int defStart = (bEncoded ? defLine << 12 : lineOffset(lineOffsets, defLine))
+						+ Def.getColumn(def.defPosStart);
+				extentStarts[i] = Math.min(extentStarts[i], defStart);
+			}
+			extentEnds[i] = nameEnds[i];
+		}
+
+		// the children come after their parent: extend the parents in reverse order
+		for (int i = nNodes - 1; i > 0; i--) {
+			int parent = parents[i];
+			extentStarts[parent] = Math.min(extentStarts[parent], extentStarts[i]);
+			extentEnds[parent] = Math.max(extentEnds[parent], extentEnds[i]);
+		}
+
+		names = new IntervalTree(nameStarts, nameEnds);
+		extents = new IntervalTree(extentStarts, extentEnds);
+	}
+
+	private static int lineOffset(int[] lineOffsets, int line) {
+		if (lineOffsets.length == 0)
+			return 0;
+		return lineOffsets[Math.min(Math.max(line, 0), lineOffsets.length - 1)];
+	}
+
+	/** Whether the positions of this index are encoded (line, column) positions */
+	public boolean isEncoded() {
+		return bEncoded;
+	}
+
+	/**
+	 * Return the first node (in the order of the tree) whose name contains <code>position</code>
+	 * and whose type is in <code>types</code> (or of any type if <code>types</code> is null), or
+	 * <code>null</code>.
+	 *
+	 * @param endTolerance
+	 *            also accept the nodes whose name ends this number of characters before the position
+	 */
+	public Def findAt(int position, Set<Def.Type> types, int endTolerance) {
+		int best = -1;
+		for (int node : names.findContaining(position, endTolerance)) {
+			if ((best == -1 || node < best) && (types == null || types.contains(nodes[node].type)))
+				best = node;
+		}
+		return best == -1 ? null : nodes[best];
+	}
+
+	/** Return the first node whose name contains <code>position</code>, or <code>null</code> */
+	public Def findAt(int position) {
+		return findAt(position, null, 0);
+	}
+
+	/**
+	 * Return the innermost node whose extent (from the start of the definition to the end of its last
+	 * child) contains <code>position</code>, or <code>null</code>
+	 */
+	public Def findEnclosing(int position) {
+		int best = -1;
+		for (int node : extents.findContaining(position, 0)) {
+			if (best == -1 || depths[node] > depths[best]
+					|| depths[node] == depths[best] && node < best)
+				best = node;
+		}
+		return best == -1 ? null : nodes[best];
+	}
+
+	/** Return the region of the name of <code>def</code>, or <code>null</code> if it isn't indexed */
+	public IRegion getRegion(Def def) {
+		Integer number = numbers.get(def);
+		if (number == null || bEncoded)
+			return null;
+		int start = names.getStart(number);
+		return new Region(start, names.getEnd(number) - start + 1);
+	}
+
+	/** Return the parent of <code>def</code> in the indexed tree, or <code>null</code> */
+	public Def getParent(Def def) {
+		Integer number = numbers.get(def);
+		if (number == null || parents[number] == -1)
+			return null;
+		return nodes[parents[number]];
+	}
+
+	/** Return the next sibling of <code>def</code>, or <code>null</code> */
+	public Def getNextSibling(Def def) {
+		return getSibling(def, 1);
+	}
+
+	/** Return the previous sibling of <code>def</code>, or <code>null</code> */
+	public Def getPreviousSibling(Def def) {
+		return getSibling(def, -1);
+	}
+
+	private Def getSibling(Def def, int delta) {
+		Def parent = getParent(def);
+		if (parent == null)
+			return null;
+		int index = siblingIndexes[numbers.get(def)] + delta;
+		if (index < 0 || index >= parent.children.size())
+			return null;
+		return parent.children.get(index);
+	}
+}
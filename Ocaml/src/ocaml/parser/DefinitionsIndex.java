@@ -0,0 +1,249 @@
+package ocaml.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * An index of definitions sorted by name, to find the definitions having a given name or starting
+ * with a given prefix by binary search, instead of going through all of them.
+ * <p>
+ * The index of the members of a definition (a module for example) is built the first time it is
+ * asked for and then kept, so that qualified names ("List.ma") are resolved by going down one
+ * index per component.
+ * <p>
+ * An index can also have overlays: other indexes which are searched after its own definitions (this
+ * is used to add the members of the opened modules to the modules visible from a project).
+ * <p>
+ * An index of the nodes of {@link CompactDefTree}s (see {@link #forModules(List)}) only builds a
+ * {@link Def} for the definitions it returns: the other nodes are only compared by their name and
+ * their type.
+ */
+public class DefinitionsIndex {
+
+	private static final Comparator<Def> byName = new Comparator<Def>() {
+		public int compare(Def def1, Def def2) {
+			return def1.name.compareTo(def2.name);
+		}
+	};
+
+	/** The names of the definitions, in alphabetical order */
+	private final String[] names;
+	/**
+	 * The definitions, in the order of their names (in their original order for equal names). For an
+	 * index of compact trees, they are built when they are first returned.
+	 */
+	private final Def[] defs;
+
+	/** For an index of compact trees, the tree and the node of each definition (else null) */
+	private final CompactDefTree[] trees;
+	private final int[] nodes;
+
+	/** The indexes which are searched after this one */
+	private final DefinitionsIndex[] overlays;
+
+	/** The indexes of the children of the definitions, built when they are first needed */
+	private final IdentityHashMap<Def, DefinitionsIndex> childIndexes = new IdentityHashMap<Def, DefinitionsIndex>();
+
+	public DefinitionsIndex(List<Def> definitions) {
+		this(definitions, new DefinitionsIndex[0]);
+	}
+
+	public DefinitionsIndex(List<Def> definitions, DefinitionsIndex[] overlays) {
+		this.defs = definitions.toArray(new Def[definitions.size()]);
+		// this sort is stable
+		Arrays.sort(this.defs, byName);
+
+		this.names = new String[defs.length];
+		for (int i = 0; i < defs.length; i++)
+			names[i] = defs[i].name;
+
+		this.trees = null;
+		this.nodes = null;
+		this.overlays = overlays;
+	}
+
+	/** Build an index of the roots of these compact trees (the modules) */
+	public static DefinitionsIndex forModules(List<CompactDefTree> modules) {
+		CompactDefTree[] trees = modules.toArray(new CompactDefTree[modules.size()]);
+		return new DefinitionsIndex(trees, new int[trees.length]);
+	}
+
+	/** Build an index of the nodes <code>nodes[i]</code> of the trees <code>trees[i]</code> */
+	private DefinitionsIndex(final CompactDefTree[] trees, final int[] nodes) {
+		Integer[] order = new Integer[trees.length];
+		for (int i = 0; i < order.length; i++)
+			order[i] = i;
+		// this sort is stable
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer i1, Integer i2) {
+				return trees[i1].getName(nodes[i1]).compareTo(trees[i2].getName(nodes[i2]));
+			}
+		});
+
+		this.trees = new CompactDefTree[order.length];
+		this.nodes = new int[order.length];
+		this.names = new String[order.length];
+		for (int i = 0; i < order.length; i++) {
+			this.trees[i] = trees[order[i]];
+			this.nodes[i] = nodes[order[i]];
+			this.names[i] = this.trees[i].getName(this.nodes[i]);
+		}
+
+		this.defs = new Def[order.length];
+		this.overlays = new DefinitionsIndex[0];
+	}
+
+	/** Return the definition <code>i</code>, building it from its compact tree the first time */
+	private Def getDef(int i) {
+		if (trees == null)
+			return defs[i];
+		synchronized (defs) {
+			if (defs[i] == null)
+				defs[i] = trees[i].getNodeDefinition(nodes[i]);
+			return defs[i];
+		}
+	}
+
+	private Def.Type getType(int i) {
+		return trees == null ? defs[i].type : trees[i].getType(nodes[i]);
+	}
+
+	/** Return the index of the first name which is not before <code>name</code> */
+	private int lowerBound(String name) {
+		int low = 0;
+		int high = names.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (names[middle].compareTo(name) < 0)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * Return the definitions named <code>name</code>, whose type is in <code>types</code> (or of
+	 * any type if <code>types</code> is null)
+	 */
+	public List<Def> find(String name, Set<Def.Type> types) {
+		ArrayList<Def> result = new ArrayList<Def>();
+		find(name, types, false, result);
+		return result;
+	}
+
+	/**
+	 * Return the definitions whose name starts with <code>prefix</code>, and whose type is in
+	 * <code>types</code> (or of any type if <code>types</code> is null)
+	 */
+	public List<Def> findByPrefix(String prefix, Set<Def.Type> types) {
+		ArrayList<Def> result = new ArrayList<Def>();
+		find(prefix, types, true, result);
+		return result;
+	}
+
+	private void find(String name, Set<Def.Type> types, boolean bPrefix, List<Def> result) {
+		for (int i = lowerBound(name); i < names.length; i++) {
+			if (bPrefix ? !names[i].startsWith(name) : !names[i].equals(name))
+				break;
+			if (types == null || types.contains(getType(i)))
+				result.add(getDef(i));
+		}
+
+		for (DefinitionsIndex overlay : overlays)
+			overlay.find(name, types, bPrefix, result);
+	}
+
+	/** Return the first definition named <code>name</code>, or <code>null</code> */
+	public Def findFirst(String name) {
+		int i = lowerBound(name);
+		if (i < names.length && names[i].equals(name))
+			return getDef(i);
+
+		for (DefinitionsIndex overlay : overlays) {
+			Def def = overlay.findFirst(name);
+			if (def != null)
+				return def;
+		}
+		return null;
+	}
+
+	/**
+	 * Return the position of <code>def</code> itself in this index (not counting the overlays), or -1
+	 * if it isn't there
+	 */
+	private int indexOfOwn(Def def) {
+		for (int i = lowerBound(def.name); i < names.length && names[i].equals(def.name); i++) {
+			if (trees == null) {
+				if (defs[i] == def)
+					return i;
+			} else {
+				synchronized (defs) {
+					if (defs[i] == def)
+						return i;
+				}
+			}
+		}
+		return -1;
+	}
+
+	/** Return the index of the children of <code>def</code>, which must be in this index */
+	public DefinitionsIndex getChildIndex(Def def) {
+		int position = indexOfOwn(def);
+		if (position == -1) {
+			// let the overlay which contains it keep its children index
+			for (DefinitionsIndex overlay : overlays)
+				if (overlay.indexOfOwn(def) != -1)
+					return overlay.getChildIndex(def);
+		}
+
+		synchronized (childIndexes) {
+			DefinitionsIndex index = childIndexes.get(def);
+			if (index == null) {
+				if (trees != null && position != -1)
+					index = getCompactChildIndex(trees[position], nodes[position]);
+				else
+					index = new DefinitionsIndex(def.children);
+				childIndexes.put(def, index);
+			}
+			return index;
+		}
+	}
+
+	/** Build the index of the children of <code>node</code> in <code>tree</code> */
+	private static DefinitionsIndex getCompactChildIndex(CompactDefTree tree, int node) {
+		int nChildren = tree.getNumberOfChildren(node);
+		CompactDefTree[] trees = new CompactDefTree[nChildren];
+		int[] children = new int[nChildren];
+		for (int i = 0; i < nChildren; i++) {
+			trees[i] = tree;
+			children[i] = tree.getChild(node, i);
+		}
+		return new DefinitionsIndex(trees, children);
+	}
+
+	/**
+	 * Return the index of the members of the module designated by the qualified name
+	 * <code>path</code> (ex: "Hashtbl.Make"), or <code>null</code> if there isn't one. The first
+	 * definition with the right name is used for each component of the path.
+	 */
+	public DefinitionsIndex resolve(String path) {
+		DefinitionsIndex index = this;
+		for (String part : path.split("\\.")) {
+			Def def = index.findFirst(part);
+			if (def == null)
+				return null;
+			index = index.getChildIndex(def);
+		}
+		return index;
+	}
+
+	/** The number of definitions in this index (not counting the overlays) */
+	public int size() {
+		return defs.length;
+	}
+}
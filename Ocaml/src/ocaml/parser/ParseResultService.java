@@ -0,0 +1,131 @@
+package ocaml.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import ocaml.util.Misc;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension4;
+
+/**
+ * Holds the result of the last parse of each document opened in an OCaml editor, so that the
+ * outline, the hyperlinks and the other views share a single parse per modification of the document
+ * instead of each working from its own snapshot.
+ * <p>
+ * A result is identified by the modification stamp of the document it was computed from, so that
+ * consumers can get the result for the current state of the document.
+ * <p>
+ * The results are shared: their definitions tree must not be modified.
+ */
+public class ParseResultService {
+
+	/** The result of the parse of a document, at a given modification stamp */
+	public static class ParseResult {
+		private final long modificationStamp;
+		private final Def definitions;
+		private final List<ErrorReporting.Error> errors;
+		private final int[] lineOffsets;
+		/** The index of the offsets of the definitions, built when it is first needed */
+		private DefPositionIndex positionIndex;
+
+		public ParseResult(long modificationStamp, Def definitions,
+				List<ErrorReporting.Error> errors, int[] lineOffsets) {
+			this.modificationStamp = modificationStamp;
+			this.definitions = definitions;
+			this.errors = Collections.unmodifiableList(new ArrayList<ErrorReporting.Error>(errors));
+			this.lineOffsets = lineOffsets;
+		}
+
+		/** The modification stamp of the document which was parsed */
+		public long getModificationStamp() {
+			return modificationStamp;
+		}
+
+		/** The definitions tree (read-only) */
+		public Def getDefinitions() {
+			return definitions;
+		}
+
+		/** The syntax errors found by the parser */
+		public List<ErrorReporting.Error> getErrors() {
+			return errors;
+		}
+
+		/** The index of the offsets of the nodes of the definitions tree in the parsed document */
+		public synchronized DefPositionIndex getPositionIndex() {
+			if (positionIndex == null)
+				positionIndex = DefPositionIndex.forOffsets(definitions, lineOffsets);
+			return positionIndex;
+		}
+
+		public int getNumberOfLines() {
+			return lineOffsets.length;
+		}
+
+		/** Return the offset of the first character of <code>line</code> (starting from 0) */
+		public int getLineOffset(int line) {
+			return lineOffsets[line];
+		}
+
+		/** Return the line (starting from 0) containing this offset */
+		public int getLineOfOffset(int offset) {
+			int index = Arrays.binarySearch(lineOffsets, offset);
+			return index >= 0 ? index : Math.max(0, -index - 2);
+		}
+
+		/** Compute the offset at which each line of the document starts */
+		public static int[] computeLineOffsets(IDocument document) throws BadLocationException {
+			int[] lineOffsets = new int[document.getNumberOfLines()];
+			for (int i = 0; i < lineOffsets.length; i++)
+				lineOffsets[i] = document.getLineOffset(i);
+			return lineOffsets;
+		}
+	}
+
+	private static ParseResultService instance;
+
+	public static synchronized ParseResultService getInstance() {
+		if (instance == null)
+			instance = new ParseResultService();
+		return instance;
+	}
+
+	/** The documents are weakly referenced, so that we don't keep closed documents in memory */
+	private final Map<IDocument, ParseResult> results = new WeakHashMap<IDocument, ParseResult>();
+
+	private ParseResultService() {
+	}
+
+	/** Return the last parse result of this document (which can be out of date), or null if none */
+	public synchronized ParseResult getLastResult(IDocument document) {
+		return results.get(document);
+	}
+
+	/**
+	 * Return the parse result for the current state of the document, or <code>null</code> if the
+	 * document was modified since it was last parsed.
+	 */
+	public synchronized ParseResult getCurrentResult(IDocument document) {
+		ParseResult result = getLastResult(document);
+		if (result == null)
+			return null;
+
+		long stamp = Misc.getModificationStamp(document);
+		// we can't know if the result is up-to-date: assume it is
+		if (stamp == IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP)
+			return result;
+
+		return result.getModificationStamp() == stamp ? result : null;
+	}
+
+	/** Make a new parse result available to all the consumers of this document */
+	public synchronized void publish(IDocument document, ParseResult result) {
+		results.put(document, result);
+	}
+}
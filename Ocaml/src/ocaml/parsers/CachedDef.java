@@ -1,48 +1,59 @@
 package ocaml.parsers;
 
 import java.io.File;
-import java.io.IOException;
 
-import ocaml.OcamlPlugin;
+import ocaml.parser.CompactDefTree;
 import ocaml.parser.Def;
 
-/** An entry in the OCaml interfaces definitions cache. */
+/**
+ * An entry in the OCaml interfaces definitions cache.
+ * <p>
+ * The definitions tree is kept in compact form. The full tree is only softly referenced by the
+ * compact form, so that it is rebuilt when the garbage collector needed the memory.
+ */
 class CachedDef {
-	private final Def def;
-	private final Object path;
+	private final CompactDefTree compactDef;
+	private final String path;
 	private final long lastModified;
-	
-	public CachedDef(File file, Def def) {
-		this.def = def;
-		this.lastModified = file.lastModified();
-		
-		String path = "";
-		try {
-			path = file.getCanonicalPath();
-		} catch (IOException e) {
-			OcamlPlugin.logError("ocaml plugin error", e);
-		}
+	private final long size;
+
+	public CachedDef(File file, String path, Def def) {
+		this(file, path, new CompactDefTree(def));
+	}
+
+	/** Create a cache entry from a tree in compact form (the full tree is built when needed) */
+	public CachedDef(File file, String path, CompactDefTree compactDef) {
+		this.compactDef = compactDef;
 		this.path = path;
+		this.lastModified = file.lastModified();
+		this.size = file.length();
+	}
+
+	/** @return true if the file on disk wasn't modified since it was cached */
+	public boolean isUpToDate(File file) {
+		return file.lastModified() == this.lastModified && file.length() == this.size;
+	}
+
+	/** @return the canonical path of the cached file */
+	public String getPath() {
+		return path;
 	}
-	
-	/** @return true if the cached version is more recent than that on disk */
-	public boolean isMoreRecentThan(File file)
-	{
-		return file.lastModified() <= this.lastModified; 
+
+	/**
+	 * @return the approximate size of this entry in memory, in bytes: the compact form, and the full
+	 *         tree which may have been rebuilt from it (it is released with the entry)
+	 */
+	public long getWeight() {
+		return compactDef.getMemorySize() + compactDef.getDefinitionMemorySize();
 	}
-	
-	/** @return true if <code>file</code> is the same file as the cached one */
-	public boolean sameAs(File file) {
-		try {
-			return file.getCanonicalPath().equals(this.path);
-		} catch (IOException e) {
-			OcamlPlugin.logError("ocaml plugin error", e);
-			return false;
-		}
+
+	/** @return the module definition from the cache, in compact form */
+	public CompactDefTree getCompactDefinition() {
+		return compactDef;
 	}
-	
+
 	/** @return the module definition from the cache */
 	public Def getDefinition() {
-		return def;
+		return compactDef.getDefinition();
 	}
 }
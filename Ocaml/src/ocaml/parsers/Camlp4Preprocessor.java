@@ -33,15 +33,18 @@ import org.eclipse.jface.text.IRegion;
 public class Camlp4Preprocessor {
 	private Pattern patternPreprocess = Pattern.compile("\\A\\s*\\(\\*\\s*pp\\s*:(.*?)\\*\\)");
 	private boolean bPreprocess;
-	private Matcher matcherPreprocess;
+	/** The parameters of the preprocessing directive */
+	private String strParams;
 	private String output;
 	private String errorOutput;
 
 	// private ArrayList<Camlp4Location> camlp4Locations;
 
-	public Camlp4Preprocessor(String document) {
-		matcherPreprocess = patternPreprocess.matcher(document);
+	public Camlp4Preprocessor(CharSequence document) {
+		Matcher matcherPreprocess = patternPreprocess.matcher(document);
 		bPreprocess = matcherPreprocess.find();
+		if (bPreprocess)
+			strParams = matcherPreprocess.group(1);
 	}
 
 	public boolean mustPreprocess() {
@@ -83,7 +86,6 @@ public class Camlp4Preprocessor {
 		// command.add("Ocaml");
 		// }
 
-		String strParams = matcherPreprocess.group(1);
 		String[] params = DebugPlugin.parseArguments(strParams);
 
 		for (String param : params) {
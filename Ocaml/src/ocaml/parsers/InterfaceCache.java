@@ -0,0 +1,109 @@
+package ocaml.parsers;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ocaml.OcamlPlugin;
+import ocaml.preferences.PreferenceConstants;
+
+/**
+ * The cache of the parsed interfaces, indexed by the canonical path of the files.
+ * <p>
+ * The total size of the cached trees is bounded by a preference: when it is exceeded, the least
+ * recently used entries are evicted (they can be read back quickly from the {@link InterfaceIndex}).
+ */
+public class InterfaceCache {
+
+	/** The entries, from the least recently used to the most recently used */
+	private final LinkedHashMap<String, CachedDef> entries = new LinkedHashMap<String, CachedDef>(
+			256, 0.75f, true);
+
+	/** The sum of the weights of the entries */
+	private long weight = 0;
+
+	/** The statistics since the start of the plugin */
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	 * Return the cache entry for <code>file</code> (whose canonical path is <code>path</code>), or
+	 * <code>null</code> if it isn't in the cache or if the file was modified since it was cached.
+	 */
+	synchronized CachedDef get(String path, File file) {
+		CachedDef def = entries.get(path);
+		if (def == null) {
+			misses++;
+			return null;
+		}
+
+		if (!def.isUpToDate(file)) {
+			remove(path);
+			misses++;
+			return null;
+		}
+
+		hits++;
+		return def;
+	}
+
+	/** Add an entry to the cache, and evict the least recently used entries if it is full */
+	synchronized void put(CachedDef def) {
+		CachedDef previous = entries.put(def.getPath(), def);
+		if (previous != null)
+			weight -= previous.getWeight();
+		weight += def.getWeight();
+
+		long maxWeight = getMaxWeight();
+		Iterator<Map.Entry<String, CachedDef>> iterator = entries.entrySet().iterator();
+		// always keep the entry we just added
+		while (weight > maxWeight && entries.size() > 1 && iterator.hasNext()) {
+			CachedDef eldest = iterator.next().getValue();
+			if (eldest == def)
+				continue;
+			iterator.remove();
+			weight -= eldest.getWeight();
+			evictions++;
+		}
+	}
+
+	private void remove(String path) {
+		CachedDef def = entries.remove(path);
+		if (def != null)
+			weight -= def.getWeight();
+	}
+
+	/** The maximum total size of the cached trees, in bytes */
+	private static long getMaxWeight() {
+		int megabytes = OcamlPlugin.getInstance().getPreferenceStore().getInt(
+				PreferenceConstants.P_INTERFACE_CACHE_SIZE);
+		return megabytes * 1024L * 1024L;
+	}
+
+	/** The number of lookups which found an up-to-date entry */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/** The number of lookups which didn't find an entry, or found a stale one */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/** The number of entries which were removed to keep the cache under its maximum size */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	/** The description of the content and of the statistics of the cache */
+	public synchronized String describeStatistics() {
+		long lookups = hits + misses;
+		return "Interfaces cache: " + entries.size() + " module" + (entries.size() == 1 ? "" : "s")
+				+ " (" + weight / (1024 * 1024) + " MB), " + hits + " hit" + (hits == 1 ? "" : "s") + ", "
+				+ misses + " miss" + (misses == 1 ? "" : "es") + " ("
+				+ (lookups == 0 ? 0 : hits * 100 / lookups) + "% hit rate), " + evictions + " eviction"
+				+ (evictions == 1 ? "" : "s");
+	}
+}
@@ -0,0 +1,336 @@
+package ocaml.parsers;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import ocaml.OcamlPlugin;
+import ocaml.parser.CompactDefTree;
+import ocaml.util.FileUtil;
+
+import org.eclipse.core.runtime.IPath;
+
+/**
+ * A persistent index of the parsed interfaces, saved in the plugin state location, so that the
+ * library interfaces don't have to be parsed again each time Eclipse is started.
+ * <p>
+ * Each entry is keyed by the canonical path of the parsed file, and stores its size, its last
+ * modification time and a hash of its content, followed by the definitions tree in the binary form
+ * of {@link CompactDefTree}. An entry is valid if the file has the same size and modification time,
+ * or (if only the modification time changed) the same content.
+ * <p>
+ * The index file is memory-mapped when it is first needed (read in memory on Windows, where a mapped
+ * file can't be replaced when the index is saved): only the keys are read then, and the trees are
+ * decoded when they are asked for. The index doesn't keep the decoded trees: the interfaces cache
+ * decides how long they are kept.
+ * <p>
+ * The files are checked (and hashed if needed) outside of the lock of the index, so that several
+ * threads can look up their files at the same time.
+ */
+public class InterfaceIndex {
+
+	private static final int MAGIC = 0x4F434958; // "OCIX"
+
+	/** Increment this each time the parser or the definitions tree format changes */
+	private static final int VERSION = 1;
+
+	private static final String INDEX_FILENAME = "interfaces.idx";
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private static class Entry {
+		final long size;
+		long lastModified;
+		final long hash;
+
+		/**
+		 * The tree, if it was computed in this session and not saved yet (the saved trees are read
+		 * again from the index file when they are asked for, so that the index doesn't keep them)
+		 */
+		CompactDefTree tree;
+		/** The position of the encoded tree in the mapped index file, if it was saved in it */
+		int position = -1;
+		int length;
+
+		Entry(long size, long lastModified, long hash) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.hash = hash;
+		}
+	}
+
+	private static InterfaceIndex instance;
+
+	public static synchronized InterfaceIndex getInstance() {
+		if (instance == null)
+			instance = new InterfaceIndex();
+		return instance;
+	}
+
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	/** The content of the index file, as it was when it was loaded */
+	private ByteBuffer mappedIndex = null;
+
+	private boolean bLoaded = false;
+
+	/** Whether some entries were added or removed since the index was loaded or saved */
+	private boolean bModified = false;
+
+	private InterfaceIndex() {
+	}
+
+	private File getIndexFile() {
+		IPath stateLocation = OcamlPlugin.getInstance().getStateLocation();
+		return stateLocation.append(INDEX_FILENAME).toFile();
+	}
+
+	/** Map (or read) the index file and read the keys of its entries */
+	private void load() {
+		bLoaded = true;
+
+		File indexFile = getIndexFile();
+		if (!indexFile.exists())
+			return;
+
+		try {
+			ByteBuffer buffer = readIndexFile(indexFile);
+
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+				return;
+
+			int nEntries = buffer.getInt();
+			for (int i = 0; i < nEntries; i++) {
+				byte[] path = new byte[buffer.getInt()];
+				buffer.get(path);
+				Entry entry = new Entry(buffer.getLong(), buffer.getLong(), buffer.getLong());
+				entry.length = buffer.getInt();
+				entry.position = buffer.position();
+				buffer.position(entry.position + entry.length);
+				entries.put(new String(path, UTF8), entry);
+			}
+
+			mappedIndex = buffer;
+		} catch (Exception e) {
+			// a truncated or corrupted index: start from an empty one
+			OcamlPlugin.logWarning("Couldn't read the interfaces index: " + e.getMessage());
+			entries.clear();
+			bModified = true;
+		}
+	}
+
+	/**
+	 * Map the index file in memory. A mapped file can't be deleted on Windows until the mapping is
+	 * garbage collected, so the index couldn't be replaced when it is saved: it is read instead.
+	 */
+	private static ByteBuffer readIndexFile(File indexFile) throws IOException {
+		RandomAccessFile file = null;
+		try {
+			file = new RandomAccessFile(indexFile, "r");
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+			if (OcamlPlugin.runningOnLinuxCompatibleSystem())
+				return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+			ByteBuffer buffer = ByteBuffer.allocate((int) size);
+			while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+			}
+			buffer.flip();
+			return buffer;
+		} finally {
+			FileUtil.closeResource(file);
+		}
+	}
+
+	/**
+	 * Return the definitions tree saved for the file <code>file</code> (whose canonical path is
+	 * <code>path</code>), or <code>null</code> if there isn't one, or if the file changed since.
+	 */
+	public CompactDefTree lookup(File file, String path) {
+		Entry entry;
+		long entryLastModified;
+		CompactDefTree tree;
+		ByteBuffer buffer;
+		int position;
+		synchronized (this) {
+			if (!bLoaded)
+				load();
+
+			entry = entries.get(path);
+			if (entry == null)
+				return null;
+			entryLastModified = entry.lastModified;
+			tree = entry.tree;
+			buffer = mappedIndex;
+			position = entry.position;
+		}
+
+		long size = file.length();
+		long lastModified = file.lastModified();
+		if (size != entry.size) {
+			remove(path, entry);
+			return null;
+		}
+
+		// the file was touched: compare its content
+		if (lastModified != entryLastModified) {
+			if (hash(file) != entry.hash) {
+				remove(path, entry);
+				return null;
+			}
+			synchronized (this) {
+				entry.lastModified = lastModified;
+				bModified = true;
+			}
+		}
+
+		if (tree != null)
+			return tree;
+
+		try {
+			// the buffer is never modified: each reader has its own position
+			ByteBuffer entryBuffer = buffer.duplicate();
+			entryBuffer.position(position);
+			return CompactDefTree.read(entryBuffer);
+		} catch (Exception e) {
+			OcamlPlugin.logError("Couldn't read the index entry for " + path, e);
+			remove(path, entry);
+			return null;
+		}
+	}
+
+	/** Save the definitions tree of <code>file</code> in the index */
+	public void store(File file, String path, CompactDefTree tree) {
+		long lastModified = file.lastModified();
+		long size = file.length();
+		long hash = hash(file);
+		// the file changed while it was being parsed
+		if (hash == -1 || file.lastModified() != lastModified)
+			return;
+
+		Entry entry = new Entry(size, lastModified, hash);
+		entry.tree = tree;
+		synchronized (this) {
+			if (!bLoaded)
+				load();
+			entries.put(path, entry);
+			bModified = true;
+		}
+	}
+
+	/** Remove the entry of <code>path</code>, unless it was replaced in the meantime */
+	private synchronized void remove(String path, Entry entry) {
+		if (entries.get(path) == entry) {
+			entries.remove(path);
+			bModified = true;
+		}
+	}
+
+	/** Write the index to the plugin state location, if it was modified */
+	public synchronized void save() {
+		if (!bModified)
+			return;
+
+		File indexFile = getIndexFile();
+		File tempFile = new File(indexFile.getPath() + ".tmp");
+
+		// the position and the length of the trees in the new index file
+		Map<Entry, int[]> positions = new HashMap<Entry, int[]>();
+
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(entries.size());
+
+			for (Map.Entry<String, Entry> e : entries.entrySet()) {
+				Entry entry = e.getValue();
+				byte[] path = e.getKey().getBytes(UTF8);
+				out.writeInt(path.length);
+				out.write(path);
+				out.writeLong(entry.size);
+				out.writeLong(entry.lastModified);
+				out.writeLong(entry.hash);
+
+				byte[] data;
+				if (entry.tree != null) {
+					ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+					DataOutputStream treeOut = new DataOutputStream(bytes);
+					entry.tree.write(treeOut);
+					treeOut.flush();
+					data = bytes.toByteArray();
+				} else {
+					// copy the entry from the previous index without decoding it
+					data = new byte[entry.length];
+					ByteBuffer buffer = mappedIndex.duplicate();
+					buffer.position(entry.position);
+					buffer.get(data);
+				}
+
+				out.writeInt(data.length);
+				positions.put(entry, new int[] { out.size(), data.length });
+				out.write(data);
+			}
+		} catch (IOException e) {
+			OcamlPlugin.logError("Couldn't write the interfaces index", e);
+			FileUtil.closeResource(out);
+			tempFile.delete();
+			return;
+		} finally {
+			FileUtil.closeResource(out);
+		}
+
+		if (indexFile.exists() && !indexFile.delete() || !tempFile.renameTo(indexFile)) {
+			OcamlPlugin.logWarning("Couldn't replace the interfaces index " + indexFile.getPath());
+			tempFile.delete();
+			return;
+		}
+
+		bModified = false;
+
+		// the trees are now read from the new index file
+		try {
+			ByteBuffer buffer = readIndexFile(indexFile);
+			for (Map.Entry<Entry, int[]> e : positions.entrySet()) {
+				Entry entry = e.getKey();
+				entry.position = e.getValue()[0];
+				entry.length = e.getValue()[1];
+				entry.tree = null;
+			}
+			mappedIndex = buffer;
+		} catch (IOException e) {
+			OcamlPlugin.logWarning("Couldn't read the saved interfaces index: " + e.getMessage());
+		}
+	}
+
+	/** Compute a hash of the content of <code>file</code>, or return -1 if it can't be read */
+	private static long hash(File file) {
+		InputStream in = null;
+		try {
+			in = new FileInputStream(file);
+			CRC32 crc = new CRC32();
+			byte[] buffer = new byte[8192];
+			int n;
+			while ((n = in.read(buffer)) > 0)
+				crc.update(buffer, 0, n);
+			return crc.getValue();
+		} catch (IOException e) {
+			return -1;
+		} finally {
+			FileUtil.closeResource(in);
+		}
+	}
+}
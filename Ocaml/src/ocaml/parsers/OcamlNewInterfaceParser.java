@@ -8,10 +8,15 @@ import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import ocaml.OcamlPlugin;
+import ocaml.parser.CompactDefTree;
 import ocaml.parser.Def;
 import ocaml.parser.OcamlParser;
 import ocaml.parser.OcamlScanner;
@@ -43,14 +48,17 @@ public class OcamlNewInterfaceParser {
 	 * 
 	 * @return the singleton instance of the OCaml interface parser
 	 */
-	public static OcamlNewInterfaceParser getInstance() {
+	public static synchronized OcamlNewInterfaceParser getInstance() {
 		if (instance == null)
 			instance = new OcamlNewInterfaceParser();
 		return instance;
 	}
 
 	/** The cache of module definitions */
-	private LinkedList<CachedDef> cache = new LinkedList<CachedDef>();
+	private final InterfaceCache cache = new InterfaceCache();
+
+	/** The files being parsed, with the task that will return their definitions */
+	private final ConcurrentHashMap<String, FutureTask<CachedDef>> parsing = new ConcurrentHashMap<String, FutureTask<CachedDef>>();
 
 	/**
 	 * ocamldoc section comment. We retrieve them and put them at the beginning
@@ -60,14 +68,20 @@ public class OcamlNewInterfaceParser {
 			.compile("\\A *\\{\\d+ (.*)\\}((.|\\n)*)\\z");
 
 	/**
-	 * The comment intervals in the source code. They are used to avoid wrongly
-	 * interpreting a keyword inside a comment, and to attach comments to
-	 * definitions.
+	 * The comments found in the file being parsed. Each call to the parser has
+	 * its own, so that several files can be parsed at the same time.
 	 */
-	private LinkedList<Comment> comments;
+	private static class Comments {
+		/**
+		 * The comment intervals in the source code. They are used to avoid
+		 * wrongly interpreting a keyword inside a comment, and to attach
+		 * comments to definitions.
+		 */
+		final LinkedList<Comment> comments = new LinkedList<Comment>();
 
-	/** Section comments */
-	private LinkedList<Comment> sectionComments;
+		/** Section comments */
+		final LinkedList<Comment> sectionComments = new LinkedList<Comment>();
+	}
 
 	/**
 	 * Parse the OCaml interface to extract definitions and ocamldoc comments
@@ -87,9 +101,24 @@ public class OcamlNewInterfaceParser {
 	 *         read
 	 */
 	// do not overuse this function with (highPriority = true) because it will slow down other threads.
-	public synchronized Def parseFile(final File file, boolean highPriority) {
+	public Def parseFile(final File file, final boolean highPriority) {
+		CachedDef def = getCachedDef(file, highPriority);
+		return def == null ? null : def.getDefinition();
+	}
+
+	/**
+	 * Like {@link #parseFile(File, boolean)}, but return the definitions in compact form, without
+	 * building the complete tree.
+	 */
+	public CompactDefTree parseFileCompact(final File file, final boolean highPriority) {
+		CachedDef def = getCachedDef(file, highPriority);
+		return def == null ? null : def.getCompactDefinition();
+	}
 
-		String filename = "";
+	/** Return the cache entry of <code>file</code>, after parsing it if it is not in the cache */
+	private CachedDef getCachedDef(final File file, final boolean highPriority) {
+
+		final String filename;
 		try {
 			filename = file.getCanonicalPath();
 		} catch (IOException e) {
@@ -97,40 +126,63 @@ public class OcamlNewInterfaceParser {
 			return null;
 		}
 
+		CachedDef found = cache.get(filename, file);
+		if (found != null)
+			return found;
+
 		/*
-		 * Table of stale entries, that we will remove from the cache. We can't
-		 * do that in the next loop, because of concurrent access issues.
+		 * Parse the file, unless another thread is already parsing it: in this
+		 * case, wait for its result instead of parsing the file a second time.
 		 */
-		ArrayList<CachedDef> toRemove = new ArrayList<CachedDef>();
-		Def found = null;
-
-		// First, see if the informations are in the cache
-		for (CachedDef def : cache) {
-			if (def.sameAs(file)) {
-				// The entry is in the cache, and is still valid
-				if (def.isMoreRecentThan(file))
-					found = def.getDefinition();
-				/*
-				 * The cache entry is not valid anymore: we put it in the list
-				 * of entries to delete from the cache
-				 */
-				else {
-					toRemove.add(def);
-				}
+		FutureTask<CachedDef> task = new FutureTask<CachedDef>(new Callable<CachedDef>() {
+			public CachedDef call() {
+				// the file could have been parsed while we were looking in the cache
+				CachedDef def = cache.get(filename, file);
+				if (def != null)
+					return def;
+				return parse(file, filename, highPriority);
+			}
+		});
+
+		FutureTask<CachedDef> running = parsing.putIfAbsent(filename, task);
+		if (running == null) {
+			running = task;
+			try {
+				task.run();
+			} finally {
+				parsing.remove(filename, task);
 			}
 		}
 
-		// remove the stale entries from the cache
-		for (CachedDef def : toRemove) {
-			cache.remove(def);
+		try {
+			return running.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			OcamlPlugin.logError("error parsing " + filename, e.getCause());
+			return null;
 		}
+	}
 
-		// return the cache entry (if we found one)
-		if (found != null)
-			return found;
+	/** The cache of the parsed interfaces */
+	public InterfaceCache getCache() {
+		return cache;
+	}
 
+	/** Parse the file, and put the result in the cache */
+	private CachedDef parse(final File file, String filename, boolean highPriority) {
 		if (!file.canRead())
 			return null;
+
+		// then, see if the file was parsed in a previous session
+		CompactDefTree indexed = InterfaceIndex.getInstance().lookup(file, filename);
+		if (indexed != null) {
+			CachedDef cachedDef = new CachedDef(file, filename, indexed);
+			cache.put(cachedDef);
+			return cachedDef;
+		}
+
 		BufferedReader inputStream = null;
 		StringBuilder sbLines = new StringBuilder();
 		try {
@@ -204,8 +256,9 @@ public class OcamlNewInterfaceParser {
 						.setComment("ERROR: The camlp4 preprocessor encountered an error "
 								+ "while parsing this file:\n" + errors);
 
-				cache.addFirst(new CachedDef(file, def));
-				return def;
+				CachedDef cachedDef = new CachedDef(file, filename, def);
+				cache.put(cachedDef);
+				return cachedDef;
 			}
 
 			lines = preprocessor.getOutput();
@@ -230,8 +283,9 @@ public class OcamlNewInterfaceParser {
 
 			// System.err.println("ERROR:" + filename);
 
-			cache.addFirst(new CachedDef(file, def));
-			return def;
+			CachedDef cachedDef = new CachedDef(file, filename, def);
+			cache.put(cachedDef);
+			return cachedDef;
 		}
 
 		definition.setBody("module " + moduleName);
@@ -255,16 +309,17 @@ public class OcamlNewInterfaceParser {
 
 		setFilenames(definition, filename);
 
-		// put the entry into the cache
-		cache.addFirst(new CachedDef(file,
-				definition));
+		// put the entry into the cache, and save it for the next sessions
+		CachedDef cachedDef = new CachedDef(file, filename, definition);
+		cache.put(cachedDef);
+		InterfaceIndex.getInstance().store(file, filename, cachedDef.getCompactDefinition());
 
 		// definition.print(0);
 		/*
-		 * Return the module definition (root) that contains all this module's
-		 * definitions (recursively)
+		 * Return the entry of the module definition (root) that contains all
+		 * this module's definitions (recursively)
 		 */
-		return definition;
+		return cachedDef;
 	}
 
 	private void setFilenames(Def definition, String filename) {
@@ -306,19 +361,21 @@ public class OcamlNewInterfaceParser {
 		root.name = moduleName;
 
 		// set the start offset from the packed (line, column) positions
-		computeLinesStartOffset(doc);
-		computeDefinitionsStartOffset(root);
+		ArrayList<Integer> lineOffsets = computeLinesStartOffset(doc);
+		computeDefinitionsStartOffset(root, lineOffsets);
+
+		Comments comments = new Comments();
 
 		// parse the comments and remove them from the text
 		if (parseInterface) {
-			doc = parseComments(doc);
+			doc = parseComments(doc, comments);
 
 			// find the end of each definition (the parser only gives us the
 			// start)
 			root.defOffsetEnd = doc.length();
 			findDefinitionsEnd(root, doc, 0, null);
 
-			attachComments(root, root, doc);
+			attachComments(root, root, doc, comments);
 
 		}
 
@@ -335,8 +392,8 @@ public class OcamlNewInterfaceParser {
 			root.type = Def.Type.Module;
 
 		// associate the module comment
-		if (comments.size() > 0 && parseInterface)
-			root.setComment(comments.get(0).text);
+		if (comments.comments.size() > 0 && parseInterface)
+			root.setComment(comments.comments.get(0).text);
 
 		return root;
 	}
@@ -358,10 +415,8 @@ public class OcamlNewInterfaceParser {
 			setBodies(child, doc, parseInterface);
 	}
 
-	ArrayList<Integer> lineOffsets = null;
-
-	private void computeLinesStartOffset(String doc) {
-		lineOffsets = new ArrayList<Integer>();
+	private ArrayList<Integer> computeLinesStartOffset(String doc) {
+		ArrayList<Integer> lineOffsets = new ArrayList<Integer>();
 		lineOffsets.add(0);
 		for (int i = 0; i < doc.length(); i++) {
 
@@ -377,9 +432,10 @@ public class OcamlNewInterfaceParser {
 			}
 
 		}
+		return lineOffsets;
 	}
 
-	private void computeDefinitionsStartOffset(Def def) {
+	private void computeDefinitionsStartOffset(Def def, ArrayList<Integer> lineOffsets) {
 
 		// System.err.println(Def.getColumn(def.defPosStart));
 		// int line = ;
@@ -388,7 +444,7 @@ public class OcamlNewInterfaceParser {
 		def.defOffsetStart = lineOffset + Def.getColumn(def.defPosStart);
 
 		for (Def child : def.children)
-			computeDefinitionsStartOffset(child);
+			computeDefinitionsStartOffset(child, lineOffsets);
 	}
 
 	/**
@@ -473,7 +529,7 @@ public class OcamlNewInterfaceParser {
 	 * An ocamldoc comment: beginning, end, and body. This is used to associate
 	 * ocamldoc comments with the corresponding definitions.
 	 */
-	private class Comment {
+	private static class Comment {
 		public Comment(int begin, int end, String text) {
 			this.begin = begin;
 			this.end = end;
@@ -493,11 +549,11 @@ public class OcamlNewInterfaceParser {
 	 * also for the section comments and put them in the
 	 * <code>sectionComments</code> table.
 	 */
-	private String parseComments(String lines) {
+	private String parseComments(String lines, Comments allComments) {
 
 		StringBuilder result = new StringBuilder(lines);
-		comments = new LinkedList<Comment>();
-		sectionComments = new LinkedList<Comment>();
+		LinkedList<Comment> comments = allComments.comments;
+		LinkedList<Comment> sectionComments = allComments.sectionComments;
 
 		boolean bParL = false;
 		boolean bStar = false;
@@ -567,21 +623,21 @@ public class OcamlNewInterfaceParser {
 		return result.toString();
 	}
 
-	private void attachComments(Def def, Def parent, String doc) {
+	private void attachComments(Def def, Def parent, String doc, Comments comments) {
 
 		for (Def child : def.children)
-			attachComments(child, parent, doc);
+			attachComments(child, parent, doc, comments);
 
 		if (def.type != Def.Type.Root) {
 			// avoid the constructor to "steal" its type's comment
 			if (def.type == Def.Type.RecordTypeConstructor)
-				attachComment(def, doc, true, parent.defOffsetEnd, false);
+				attachComment(def, doc, true, parent.defOffsetEnd, false, comments.comments);
 			else if (def.type == Def.Type.TypeConstructor) {
-				attachComment(def, doc, true, Integer.MAX_VALUE, false);
+				attachComment(def, doc, true, Integer.MAX_VALUE, false, comments.comments);
 			} else
-				attachComment(def, doc, false, Integer.MAX_VALUE, false);
+				attachComment(def, doc, false, Integer.MAX_VALUE, false, comments.comments);
 
-			attachSectionComment(def);
+			attachSectionComment(def, comments.sectionComments);
 		}
 	}
 
@@ -592,7 +648,7 @@ public class OcamlNewInterfaceParser {
 	 * parsing, attach module comments to <code>module</code>.
 	 */
 	private void attachComment(Def definition, String doc, boolean onlyAfter,
-			int maxOffset, boolean noNewLines) {
+			int maxOffset, boolean noNewLines, LinkedList<Comment> comments) {
 
 		int begin = definition.defOffsetStart;
 		int end = definition.defOffsetEnd;
@@ -655,7 +711,7 @@ public class OcamlNewInterfaceParser {
 	/**
 	 * Attach the first section comment before <code>definition</code>.
 	 */
-	private void attachSectionComment(Def definition) {
+	private void attachSectionComment(Def definition, LinkedList<Comment> sectionComments) {
 
 		/*
 		 * look for the first comment that is past the offset, and take the one
@@ -49,6 +49,10 @@ public class OutlinePreferencePage extends FieldEditorPreferencePage implements
 		this.addField(new IntegerFieldEditor(PreferenceConstants.P_OUTLINE_LET_IN_MINIMUM_CHARS,
 				"Show 'let in' definitions with an identifier with at least (nb of characters)", this.getFieldEditorParent()));
 
+		this.addField(new BooleanFieldEditor(PreferenceConstants.P_OUTLINE_INCREMENTAL_PARSING,
+				"Reparse only the modified definitions while typing", this
+						.getFieldEditorParent()));
+
 		andBlue = new BooleanFieldEditor(PreferenceConstants.P_OUTLINE_AND_BLUE,
 				"Display \"and\" definitions in blue", this.getFieldEditorParent());
 				this.addField(andBlue);
@@ -67,6 +67,20 @@ public class PreferenceConstants
 	public static final String P_SHOW_TYPES_IN_STATUS_BAR = "ShowTypesInStatusBar";
 	public static final String P_SHOW_TYPES_IN_POPUPS = "ShowTypesInPopups";
 	
+	/** The maximum size in memory of the parsed interfaces cache, in megabytes */
+	public static final String P_INTERFACE_CACHE_SIZE = "InterfaceCacheSize";
+
+	/** The number of files of a project compiled at the same time by the builder */
+	public static final String P_COMPILATION_WORKERS = "CompilationWorkers";
+	/** Compile each file as soon as the files it depends on are compiled, instead of layer by layer */
+	public static final String P_COMPILATION_BY_DEPENDENCIES = "CompilationByDependencies";
+	/** Reuse the outputs of the previous compilations of the same sources, kept in a local cache */
+	public static final String P_COMPILATION_CACHE = "CompilationCache";
+	/** The maximum size of the compilation cache, in megabytes */
+	public static final String P_COMPILATION_CACHE_SIZE = "CompilationCacheSize";
+	/** After a build, refresh only the files written by the compiler instead of the whole project */
+	public static final String P_REFRESH_GENERATED_FILES_ONLY = "RefreshGeneratedFilesOnly";
+	
 	public static final String P_FORMATTER_INDENT_IN = "FormatterIndentIn";
 	public static final String P_FORMATTER_COMMENT_WIDTH = "FormatterCommentWidth";
 	public static final String P_FORMATTER_MAX_BLANK_LINES = "FormatterMaxBlankLines";
@@ -128,6 +142,9 @@ public class PreferenceConstants
 	
 	public static final String P_OUTLINE_UNNEST_IN = "OutlineUnnestIn";
 	public static final String P_OUTLINE_AND_BLUE = "OutlineAndBlue";
+	
+	/** Reparse only the modified definitions when rebuilding the outline? */
+	public static final String P_OUTLINE_INCREMENTAL_PARSING = "OutlineIncrementalParsing";
 
 	public static final String P_DEBUGGER_CHECKPOINTS = "Checkpoints";
 	public static final String P_DEBUGGER_SMALL_STEP = "SmallStep";
@@ -76,6 +76,14 @@ public class PreferenceInitializer extends AbstractPreferenceInitializer {
 			store.setDefault(PreferenceConstants.P_SHOW_TYPES_IN_POPUPS, true);
 			store.setDefault(PreferenceConstants.P_SHOW_TYPES_IN_STATUS_BAR, true);
 
+			store.setDefault(PreferenceConstants.P_INTERFACE_CACHE_SIZE, 64);
+			store.setDefault(PreferenceConstants.P_COMPILATION_WORKERS, Runtime.getRuntime()
+					.availableProcessors());
+			store.setDefault(PreferenceConstants.P_COMPILATION_BY_DEPENDENCIES, false);
+			store.setDefault(PreferenceConstants.P_COMPILATION_CACHE, false);
+			store.setDefault(PreferenceConstants.P_COMPILATION_CACHE_SIZE, 512);
+			store.setDefault(PreferenceConstants.P_REFRESH_GENERATED_FILES_ONLY, true);
+
 			// set the defaults for the formatter
 			store.setDefault(PreferenceConstants.P_FORMATTER_INDENT_IN, false);
 			store.setDefault(PreferenceConstants.P_FORMATTER_INDENT_IN_LETS, false);
@@ -133,6 +141,7 @@ public class PreferenceInitializer extends AbstractPreferenceInitializer {
 
 			store.setDefault(PreferenceConstants.P_OUTLINE_UNNEST_IN, true);
 			store.setDefault(PreferenceConstants.P_OUTLINE_AND_BLUE, true);
+			store.setDefault(PreferenceConstants.P_OUTLINE_INCREMENTAL_PARSING, true);
 			
 			store.setDefault(PreferenceConstants.P_OUTLINE_SORT, false);
 
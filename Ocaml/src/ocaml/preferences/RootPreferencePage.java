@@ -5,6 +5,7 @@ import ocaml.util.Misc;
 
 import org.eclipse.jface.preference.BooleanFieldEditor;
 import org.eclipse.jface.preference.FieldEditorPreferencePage;
+import org.eclipse.jface.preference.IntegerFieldEditor;
 import org.eclipse.ui.IWorkbench;
 import org.eclipse.ui.IWorkbenchPreferencePage;
 
@@ -43,6 +44,43 @@ public class RootPreferencePage extends FieldEditorPreferencePage implements
 				PreferenceConstants.P_SHOW_TYPES_IN_POPUPS,
 				"Show the types in popups when hovering over the editor", this
 						.getFieldEditorParent()));
+
+		IntegerFieldEditor cacheSize = new IntegerFieldEditor(
+				PreferenceConstants.P_INTERFACE_CACHE_SIZE,
+				"Maximum memory used to cache the parsed interfaces (MB)", this
+						.getFieldEditorParent());
+		cacheSize.setValidRange(1, 4096);
+		this.addField(cacheSize);
+
+		IntegerFieldEditor compilationWorkers = new IntegerFieldEditor(
+				PreferenceConstants.P_COMPILATION_WORKERS,
+				"Number of files compiled at the same time by the builder", this
+						.getFieldEditorParent());
+		compilationWorkers.setValidRange(1, 256);
+		this.addField(compilationWorkers);
+
+		this.addField(new BooleanFieldEditor(
+				PreferenceConstants.P_COMPILATION_BY_DEPENDENCIES,
+				"Compile each file as soon as the files it depends on are compiled (instead of layer by layer,"
+						+ " the messages are then not always in the same order)",
+				this.getFieldEditorParent()));
+
+		this.addField(new BooleanFieldEditor(
+				PreferenceConstants.P_COMPILATION_CACHE,
+				"Reuse the outputs of previous compilations of the same sources (compilation cache)",
+				this.getFieldEditorParent()));
+
+		IntegerFieldEditor compilationCacheSize = new IntegerFieldEditor(
+				PreferenceConstants.P_COMPILATION_CACHE_SIZE,
+				"Maximum size of the compilation cache (in megabytes)", this
+						.getFieldEditorParent());
+		compilationCacheSize.setValidRange(1, 65536);
+		this.addField(compilationCacheSize);
+
+		this.addField(new BooleanFieldEditor(
+				PreferenceConstants.P_REFRESH_GENERATED_FILES_ONLY,
+				"After a build, refresh only the files written by the compiler (instead of the whole project)",
+				this.getFieldEditorParent()));
 	}
 	
 	@Override
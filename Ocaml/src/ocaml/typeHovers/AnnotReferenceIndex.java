@@ -0,0 +1,697 @@
+package ocaml.typeHovers;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import ocaml.OcamlPlugin;
+import ocaml.util.FileUtil;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceChangeEvent;
+import org.eclipse.core.resources.IResourceChangeListener;
+import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.resources.IResourceDeltaVisitor;
+import org.eclipse.core.resources.IResourceProxy;
+import org.eclipse.core.resources.IResourceProxyVisitor;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Path;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.Region;
+import org.eclipse.ui.IEditorPart;
+import org.eclipse.ui.IWorkbenchPage;
+import org.eclipse.ui.PartInitException;
+import org.eclipse.ui.ide.IDE;
+import org.eclipse.ui.texteditor.ITextEditor;
+
+/**
+ * Keeps, for each project, the references read from the identifier records of the annotations
+ * files (".annot", generated by the "-dtypes" option of the compiler) of the compiled modules:
+ * <ul>
+ * <li>the top-level definitions of each module, so that the hyperlinks can jump to the definition of
+ * an external reference (an <code>ext_ref Module.name</code> record, qualified by the compiler) with
+ * a lookup in a table
+ * <li>the uses, in each module, of the top-level definitions of all the modules (an inverted index
+ * from "Module.name" to the positions of its uses), to find all the references to a definition in
+ * the project without searching the text of the files
+ * </ul>
+ * The index of a project is built in a background job the first time it is asked for. It is saved
+ * in the plugin state location when the plugin stops, so that only the annotations files which
+ * changed since have to be read again at the next start. The annotations files which change in the
+ * workspace (or which are written by the compiler) are read again in the background, one at a time.
+ */
+public class AnnotReferenceIndex implements IResourceChangeListener {
+
+	private static final int MAGIC = 0x4F435249; // "OCRI"
+
+	/** Increment this each time the format of the saved index changes */
+	private static final int VERSION = 1;
+
+	/** The number of ints used to store a position (line, beginning of line, offset; twice) */
+	private static final int POSITION_SIZE = 6;
+
+	/** A location in the implementation of a module, as written in an annotations file */
+	public static class Location {
+		private final IFile source;
+		/** The begin and end positions, as written in the annotations file */
+		private final int[] position;
+
+		private Location(IFile source, int[] position) {
+			this.source = source;
+			this.position = position;
+		}
+
+		/** The implementation (".ml" file) of the module */
+		public IFile getSource() {
+			return source;
+		}
+
+		/** The line of the location (starting from 1) */
+		public int getLine() {
+			return position[0];
+		}
+
+		/** The column of the location (starting from 0) */
+		public int getColumn() {
+			return position[2] - position[1];
+		}
+
+		/** The region of the location in <code>document</code> (the source) */
+		public IRegion getRegion(IDocument document) throws BadLocationException {
+			// correct the offsets like those of the type annotations
+			int begin = position[2] + document.getLineOffset(position[0] - 1) - position[1];
+			int end = position[5] + document.getLineOffset(position[3] - 1) - position[4];
+			return new Region(begin, end - begin);
+		}
+
+		/** Open the source in an editor, and select the location */
+		public boolean open(IWorkbenchPage page) {
+			try {
+				IEditorPart part = IDE.openEditor(page, source);
+				if (!(part instanceof ITextEditor))
+					return false;
+
+				ITextEditor editor = (ITextEditor) part;
+				IDocument document = editor.getDocumentProvider().getDocument(
+						editor.getEditorInput());
+				IRegion region = getRegion(document);
+				editor.selectAndReveal(region.getOffset(), region.getLength());
+				return true;
+			} catch (PartInitException e) {
+				OcamlPlugin.logError("error opening " + source.getName(), e);
+			} catch (BadLocationException e) {
+				OcamlPlugin.logError("error opening " + source.getName(), e);
+			}
+			return false;
+		}
+	}
+
+	/** Return the location of the identifier record <code>location</code> of a module */
+	public static Location getLocation(IFile source, Annotations annotations, int location) {
+		return new Location(source, getPosition(annotations, location));
+	}
+
+	private static int[] getPosition(Annotations annotations, int location) {
+		return new int[] { annotations.getBeginLine(location),
+				annotations.getBeginLineOffset(location), annotations.getBeginOffset(location),
+				annotations.getEndLine(location), annotations.getEndLineOffset(location),
+				annotations.getEndOffset(location) };
+	}
+
+	/** The references read from the annotations file of a module */
+	private static class ModuleReferences {
+		final String moduleName;
+		final IFile source;
+		final File annotFile;
+		final long lastModified;
+		final long size;
+		/** The position of each definition name (the last definition when a name is redefined) */
+		final Map<String, int[]> definitions;
+		/**
+		 * The positions of the uses (one after the other) of each top-level definition, by its
+		 * qualified name
+		 */
+		final Map<String, int[]> uses;
+
+		ModuleReferences(String moduleName, IFile source, File annotFile, long lastModified,
+				long size, Map<String, int[]> definitions, Map<String, int[]> uses) {
+			this.moduleName = moduleName;
+			this.source = source;
+			this.annotFile = annotFile;
+			this.lastModified = lastModified;
+			this.size = size;
+			this.definitions = definitions;
+			this.uses = uses;
+		}
+
+		boolean isUpToDate() {
+			return annotFile.lastModified() == lastModified && annotFile.length() == size;
+		}
+	}
+
+	/** The modules of a project */
+	private static class ProjectReferences {
+		/** The modules, by name */
+		final Map<String, ModuleReferences> modules = new HashMap<String, ModuleReferences>();
+		/** The modules, by annotations file */
+		final Map<IFile, ModuleReferences> annotFiles = new HashMap<IFile, ModuleReferences>();
+		/** The annotations files which must be read again */
+		final Set<IFile> changedFiles = new LinkedHashSet<IFile>();
+		/** Whether all the annotations files of the project were listed */
+		boolean bListed = false;
+		/** Whether some modules changed since the index was loaded or saved */
+		boolean bModified = false;
+		IndexJob job;
+	}
+
+	private static AnnotReferenceIndex instance;
+
+	public static synchronized AnnotReferenceIndex getInstance() {
+		if (instance == null)
+			instance = new AnnotReferenceIndex();
+		return instance;
+	}
+
+	private final Map<IProject, ProjectReferences> projects = new HashMap<IProject, ProjectReferences>();
+
+	private AnnotReferenceIndex() {
+	}
+
+	/** Start building the index of <code>project</code> in the background, if it isn't built yet */
+	public synchronized void prepare(IProject project) {
+		getProjectReferences(project);
+	}
+
+	/**
+	 * Wait until the annotations files of <code>project</code> which are known to have changed are
+	 * read
+	 */
+	public void waitUntilReady(IProject project) throws InterruptedException {
+		Job job;
+		synchronized (this) {
+			job = getProjectReferences(project).job;
+		}
+		job.join();
+	}
+
+	/**
+	 * Return the definition of <code>path</code> (a name qualified by its module: "Module.name"), or
+	 * <code>null</code> if it isn't a top-level definition of a compiled module of
+	 * <code>project</code> (or if the index isn't ready yet).
+	 */
+	public synchronized Location findDefinition(IProject project, String path) {
+		ProjectReferences references = getProjectReferences(project);
+
+		int dot = path.indexOf('.');
+		// the annotations only tell which definitions are at the top-level of their module
+		if (dot == -1 || path.indexOf('.', dot + 1) != -1)
+			return null;
+
+		ModuleReferences module = references.modules.get(path.substring(0, dot));
+		if (module == null)
+			return null;
+
+		// the annotations file was modified since it was read: the positions may be wrong
+		if (!module.isUpToDate()) {
+			moduleChanged(references, module);
+			return null;
+		}
+
+		int[] position = module.definitions.get(path.substring(dot + 1));
+		return position == null ? null : new Location(module.source, position);
+	}
+
+	/**
+	 * Return the uses, in the compiled modules of <code>project</code>, of the top-level definition
+	 * <code>path</code> (a name qualified by its module: "Module.name"). Only the modules already read
+	 * are searched (see {@link #waitUntilReady(IProject)}).
+	 */
+	public synchronized List<Location> findReferences(IProject project, String path) {
+		ProjectReferences references = getProjectReferences(project);
+
+		List<Location> result = new ArrayList<Location>();
+		for (ModuleReferences module : references.modules.values()) {
+			int[] positions = module.uses.get(path);
+			if (positions == null)
+				continue;
+
+			if (!module.isUpToDate())
+				moduleChanged(references, module);
+
+			for (int i = 0; i < positions.length; i += POSITION_SIZE)
+				result.add(new Location(module.source, Arrays.copyOfRange(positions, i, i
+						+ POSITION_SIZE)));
+		}
+		return result;
+	}
+
+	/**
+	 * Read the annotations file <code>annotFile</code> again in the background (after the compiler
+	 * wrote it)
+	 */
+	public synchronized void annotationsChanged(IFile annotFile) {
+		ProjectReferences references = projects.get(annotFile.getProject());
+		// the index of this project will list all its files when it is built
+		if (references != null && references.bListed)
+			changed(references, annotFile);
+	}
+
+	/** Save the indexes and forget them */
+	public synchronized void dispose() {
+		for (Map.Entry<IProject, ProjectReferences> entry : projects.entrySet()) {
+			ProjectReferences references = entry.getValue();
+			references.job.cancel();
+			if (references.bListed && references.bModified)
+				save(entry.getKey(), references);
+		}
+		projects.clear();
+	}
+
+	private ProjectReferences getProjectReferences(IProject project) {
+		ProjectReferences references = projects.get(project);
+		if (references == null) {
+			references = new ProjectReferences();
+			references.job = new IndexJob(project, references);
+			projects.put(project, references);
+			references.job.schedule();
+		}
+		return references;
+	}
+
+	private void moduleChanged(ProjectReferences references, ModuleReferences module) {
+		for (Map.Entry<IFile, ModuleReferences> entry : references.annotFiles.entrySet())
+			if (entry.getValue() == module) {
+				changed(references, entry.getKey());
+				return;
+			}
+	}
+
+	/** Read <code>annotFile</code> again in the background */
+	private void changed(ProjectReferences references, IFile annotFile) {
+		if (references.changedFiles.add(annotFile))
+			references.job.schedule();
+	}
+
+	/** Replace the module read from <code>annotFile</code> (null if it can't be read anymore) */
+	private synchronized void update(ProjectReferences references, IFile annotFile,
+			ModuleReferences module) {
+		ModuleReferences old = module != null ? references.annotFiles.put(annotFile, module)
+				: references.annotFiles.remove(annotFile);
+		if (old != module)
+			references.bModified = true;
+
+		String moduleName = module != null ? module.moduleName : old != null ? old.moduleName
+				: null;
+		if (moduleName == null)
+			return;
+
+		/*
+		 * There can be several annotations files for a module (in the source directory and in
+		 * "_build"): keep the most recent one.
+		 */
+		ModuleReferences best = null;
+		for (ModuleReferences candidate : references.annotFiles.values())
+			if (candidate.moduleName.equals(moduleName)
+					&& (best == null || candidate.lastModified > best.lastModified))
+				best = candidate;
+
+		if (best != null)
+			references.modules.put(moduleName, best);
+		else
+			references.modules.remove(moduleName);
+	}
+
+	/** Find all the annotations files of <code>project</code> */
+	private static List<IFile> listAnnotFiles(IProject project) {
+		final List<IFile> annotFiles = new ArrayList<IFile>();
+		try {
+			project.accept(new IResourceProxyVisitor() {
+				public boolean visit(IResourceProxy proxy) {
+					if (proxy.getType() == IResource.FILE) {
+						if (proxy.getName().endsWith(".annot"))
+							annotFiles.add((IFile) proxy.requestResource());
+						return false;
+					}
+					return true;
+				}
+			}, IResource.NONE);
+		} catch (CoreException e) {
+			OcamlPlugin.logError("error listing the annotations files of " + project.getName(), e);
+		}
+		return annotFiles;
+	}
+
+	/**
+	 * Read the top-level definitions and the references to top-level definitions from the
+	 * annotations file <code>annotFile</code>
+	 *
+	 * @return the references, or <code>null</code> if the file or its module can't be found
+	 */
+	private static ModuleReferences readModule(IFile annotFile) {
+		IPath location = annotFile.getLocation();
+		IFile source = findSource(annotFile);
+		if (location == null || source == null)
+			return null;
+
+		File file = location.toFile();
+		long lastModified = file.lastModified();
+		long size = file.length();
+		if (!file.canRead())
+			return null;
+
+		Annotations annotations = OcamlAnnotParser.parseAnnotations(file);
+		if (annotations == null)
+			return null;
+
+		String moduleName = getModuleName(source);
+
+		// the top-level definitions, by the offset of their name
+		Map<Integer, String> topLevel = new HashMap<Integer, String>();
+		Map<String, int[]> definitions = new HashMap<String, int[]>();
+		for (int i = 0; i < annotations.size(); i++) {
+			// the scope of a top-level definition extends to the end of the file
+			if (annotations.getIdentKind(i) == Annotations.IDENT_DEF
+					&& annotations.hasIdentTarget(i)
+					&& annotations.getIdentTargetEndOffset(i) == -1) {
+				definitions.put(annotations.getIdentName(i), getPosition(annotations, i));
+				topLevel.put(annotations.getBeginOffset(i), annotations.getIdentName(i));
+			}
+		}
+
+		Map<String, List<int[]>> usesLists = new HashMap<String, List<int[]>>();
+		for (int i = 0; i < annotations.size(); i++) {
+			String path;
+			byte kind = annotations.getIdentKind(i);
+			if (kind == Annotations.IDENT_EXT_REF)
+				path = annotations.getIdentName(i);
+			else if (kind == Annotations.IDENT_INT_REF && annotations.hasIdentTarget(i)) {
+				// only the references to the top-level definitions can be seen from other modules
+				String name = topLevel.get(annotations.getIdentTargetBeginOffset(i));
+				if (name == null)
+					continue;
+				path = moduleName + "." + name;
+			} else
+				continue;
+
+			List<int[]> list = usesLists.get(path);
+			if (list == null) {
+				list = new ArrayList<int[]>(2);
+				usesLists.put(path, list);
+			}
+			list.add(getPosition(annotations, i));
+		}
+
+		Map<String, int[]> uses = new HashMap<String, int[]>();
+		for (Map.Entry<String, List<int[]>> entry : usesLists.entrySet()) {
+			List<int[]> list = entry.getValue();
+			int[] positions = new int[list.size() * POSITION_SIZE];
+			for (int i = 0; i < list.size(); i++)
+				System.arraycopy(list.get(i), 0, positions, i * POSITION_SIZE, POSITION_SIZE);
+			uses.put(entry.getKey(), positions);
+		}
+
+		return new ModuleReferences(moduleName, source, file, lastModified, size, definitions,
+				uses);
+	}
+
+	/** The name of the module implemented by <code>source</code> */
+	public static String getModuleName(IFile source) {
+		String name = source.getFullPath().removeFileExtension().lastSegment();
+		return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+	}
+
+	/**
+	 * Find the implementation of the module whose annotations file is <code>annotFile</code>: in the
+	 * same directory, or in the source directory for an annotations file in "_build"
+	 */
+	private static IFile findSource(IFile annotFile) {
+		IPath path = annotFile.getProjectRelativePath().removeFileExtension().addFileExtension("ml");
+		IProject project = annotFile.getProject();
+
+		if (path.segmentCount() > 1 && path.segment(0).equals("_build")) {
+			IFile source = project.getFile(path.removeFirstSegments(1));
+			if (source.exists())
+				return source;
+		}
+
+		IFile source = project.getFile(path);
+		return source.exists() ? source : null;
+	}
+
+	private static File getIndexFile(IProject project) {
+		IPath stateLocation = OcamlPlugin.getInstance().getStateLocation();
+		return stateLocation.append("references-" + project.getName() + ".idx").toFile();
+	}
+
+	/**
+	 * Load the index saved for <code>project</code>
+	 *
+	 * @return the modules, by the project relative path of their annotations file
+	 */
+	private static Map<String, ModuleReferences> load(IProject project) {
+		Map<String, ModuleReferences> modules = new HashMap<String, ModuleReferences>();
+
+		File indexFile = getIndexFile(project);
+		if (!indexFile.exists())
+			return modules;
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				return modules;
+
+			int nModules = in.readInt();
+			for (int i = 0; i < nModules; i++) {
+				String annotPath = in.readUTF();
+				IFile source = project.getFile(new Path(in.readUTF()));
+				String moduleName = in.readUTF();
+				long lastModified = in.readLong();
+				long size = in.readLong();
+
+				Map<String, int[]> definitions = new HashMap<String, int[]>();
+				int nDefinitions = in.readInt();
+				for (int j = 0; j < nDefinitions; j++)
+					definitions.put(in.readUTF(), readInts(in));
+
+				Map<String, int[]> uses = new HashMap<String, int[]>();
+				int nUses = in.readInt();
+				for (int j = 0; j < nUses; j++)
+					uses.put(in.readUTF(), readInts(in));
+
+				IPath location = project.getFile(new Path(annotPath)).getLocation();
+				if (location != null)
+					modules.put(annotPath, new ModuleReferences(moduleName, source, location
+							.toFile(), lastModified, size, definitions, uses));
+			}
+		} catch (IOException e) {
+			// a truncated or corrupted index: start from an empty one
+			OcamlPlugin.logWarning("Couldn't read the references index of " + project.getName()
+					+ ": " + e.getMessage());
+			modules.clear();
+		} finally {
+			FileUtil.closeResource(in);
+		}
+
+		return modules;
+	}
+
+	private static int[] readInts(DataInputStream in) throws IOException {
+		int[] ints = new int[in.readInt()];
+		for (int i = 0; i < ints.length; i++)
+			ints[i] = in.readInt();
+		return ints;
+	}
+
+	private static void writeInts(DataOutputStream out, int[] ints) throws IOException {
+		out.writeInt(ints.length);
+		for (int i : ints)
+			out.writeInt(i);
+	}
+
+	/** Write the index of <code>project</code> in the plugin state location */
+	private static void save(IProject project, ProjectReferences references) {
+		File indexFile = getIndexFile(project);
+		File tempFile = new File(indexFile.getPath() + ".tmp");
+
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(references.annotFiles.size());
+
+			for (Map.Entry<IFile, ModuleReferences> entry : references.annotFiles.entrySet()) {
+				ModuleReferences module = entry.getValue();
+				out.writeUTF(entry.getKey().getProjectRelativePath().toPortableString());
+				out.writeUTF(module.source.getProjectRelativePath().toPortableString());
+				out.writeUTF(module.moduleName);
+				out.writeLong(module.lastModified);
+				out.writeLong(module.size);
+
+				out.writeInt(module.definitions.size());
+				for (Map.Entry<String, int[]> definition : module.definitions.entrySet()) {
+					out.writeUTF(definition.getKey());
+					writeInts(out, definition.getValue());
+				}
+
+				out.writeInt(module.uses.size());
+				for (Map.Entry<String, int[]> use : module.uses.entrySet()) {
+					out.writeUTF(use.getKey());
+					writeInts(out, use.getValue());
+				}
+			}
+		} catch (IOException e) {
+			OcamlPlugin.logError("Couldn't write the references index of " + project.getName(), e);
+			FileUtil.closeResource(out);
+			tempFile.delete();
+			return;
+		} finally {
+			FileUtil.closeResource(out);
+		}
+
+		if (indexFile.exists() && !indexFile.delete() || !tempFile.renameTo(indexFile)) {
+			OcamlPlugin.logWarning("Couldn't replace the references index " + indexFile.getPath());
+			tempFile.delete();
+			return;
+		}
+
+		references.bModified = false;
+	}
+
+	/** Read the modified annotations files again */
+	public void resourceChanged(IResourceChangeEvent event) {
+		IResourceDelta delta = event.getDelta();
+		if (delta == null)
+			return;
+
+		try {
+			delta.accept(new IResourceDeltaVisitor() {
+				public boolean visit(IResourceDelta delta) {
+					IResource resource = delta.getResource();
+
+					if (resource.getType() == IResource.PROJECT) {
+						// forget the closed and deleted projects
+						if (delta.getKind() == IResourceDelta.REMOVED
+								|| (delta.getFlags() & IResourceDelta.OPEN) != 0) {
+							forget((IProject) resource);
+							return false;
+						}
+						return true;
+					}
+
+					if (resource.getType() != IResource.FILE)
+						return true;
+
+					if (!"annot".equals(resource.getFileExtension()))
+						return false;
+					if (delta.getKind() == IResourceDelta.CHANGED
+							&& (delta.getFlags() & IResourceDelta.CONTENT) == 0)
+						return false;
+
+					annotationsChanged((IFile) resource);
+					return false;
+				}
+			});
+		} catch (CoreException e) {
+			OcamlPlugin.logError("error while updating the annotations references index", e);
+		}
+	}
+
+	private synchronized void forget(IProject project) {
+		ProjectReferences references = projects.remove(project);
+		if (references == null)
+			return;
+		references.job.cancel();
+		// keep the index of a closed project for when it is opened again
+		if (project.exists() && references.bListed && references.bModified)
+			save(project, references);
+	}
+
+	/** Reads the annotations files of a project, in the background */
+	private class IndexJob extends Job {
+		private final IProject project;
+		private final ProjectReferences references;
+
+		IndexJob(IProject project, ProjectReferences references) {
+			super("Indexing the OCaml references of " + project.getName());
+			this.project = project;
+			this.references = references;
+			setPriority(Job.DECORATE);
+			setSystem(true);
+		}
+
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			boolean bListed;
+			synchronized (AnnotReferenceIndex.this) {
+				bListed = references.bListed;
+			}
+
+			if (!bListed) {
+				Map<String, ModuleReferences> saved = load(project);
+				List<IFile> annotFiles = listAnnotFiles(project);
+
+				synchronized (AnnotReferenceIndex.this) {
+					// the modules saved at the last session are used if they didn't change since
+					for (IFile annotFile : annotFiles) {
+						ModuleReferences module = saved.get(annotFile.getProjectRelativePath()
+								.toPortableString());
+						if (module != null && module.isUpToDate() && module.source.exists())
+							update(references, annotFile, module);
+						else
+							references.changedFiles.add(annotFile);
+					}
+					references.bModified = saved.size() != references.annotFiles.size();
+					references.bListed = true;
+				}
+			}
+
+			while (true) {
+				if (monitor.isCanceled())
+					return Status.CANCEL_STATUS;
+
+				IFile annotFile;
+				ModuleReferences current;
+				synchronized (AnnotReferenceIndex.this) {
+					Iterator<IFile> iterator = references.changedFiles.iterator();
+					if (!iterator.hasNext())
+						break;
+					annotFile = iterator.next();
+					iterator.remove();
+					current = references.annotFiles.get(annotFile);
+				}
+
+				// it can be notified twice: by the compiler and by the workspace
+				if (current != null && current.isUpToDate() && annotFile.exists())
+					continue;
+
+				update(references, annotFile, readModule(annotFile));
+			}
+
+			return Status.OK_STATUS;
+		}
+	}
+}
@@ -0,0 +1,296 @@
+package ocaml.typeHovers;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The contents of a ".annot" file (generated by the "-annot" or "-dtypes" option of the OCaml
+ * compiler), stored in columns of primitive arrays rather than in one object per record.
+ * <p>
+ * Each annotated location has a number. A location is a range of the source file, given by the line
+ * (starting from 1), the offset of the beginning of that line and the offset of its begin and end
+ * positions, as written by the compiler. Each location can have a type, an identifier record and a
+ * call record:
+ * <ul>
+ * <li><code>type(...)</code>: the type of the expression at this location
+ * <li><code>ident(def name scope)</code>: the definition of <code>name</code>, visible in the
+ * <code>scope</code> range
+ * <li><code>ident(int_ref name location)</code>: a reference to <code>name</code>, defined at
+ * <code>location</code> in the same file
+ * <li><code>ident(ext_ref Module.name)</code>: a reference to a name defined in another module
+ * <li><code>call(tail)</code>, <code>call(stack)</code> or <code>call(inline)</code>: the kind of
+ * a function call
+ * </ul>
+ * The names are shared: each different name is stored once. The types, which make up most of the
+ * file, are not decoded: only their range in the contents of the file is kept, and they are decoded
+ * when they are asked for. The contents are usually a memory-mapped view of the file, so they are
+ * not stored in the Java heap.
+ */
+public class Annotations {
+
+	public static final byte IDENT_NONE = 0;
+	public static final byte IDENT_DEF = 1;
+	public static final byte IDENT_INT_REF = 2;
+	public static final byte IDENT_EXT_REF = 3;
+
+	public static final byte CALL_NONE = 0;
+	public static final byte CALL_TAIL = 1;
+	public static final byte CALL_STACK = 2;
+	public static final byte CALL_INLINE = 3;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/** The number of ints used to store a location (line, beginning of line, offset; twice) */
+	private static final int LOCATION_SIZE = 6;
+
+	private final int size;
+
+	/** The begin and end positions of each location */
+	private final int[] locations;
+
+	/** The offset of the type of each location in <code>contents</code>, or -1 */
+	private final int[] typeOffsets;
+	/** The length in bytes of the type of each location */
+	private final int[] typeLengths;
+	/** The contents of the annotations file */
+	private final ByteBuffer contents;
+
+	/** The kind of identifier record of each location */
+	private final byte[] identKinds;
+	/** The index of the identifier name in <code>strings</code>, or -1 */
+	private final int[] identNames;
+	/**
+	 * The index of the target of each identifier record in <code>identTargets</code> (the scope of a
+	 * definition, or the definition of an internal reference), or -1
+	 */
+	private final int[] identTargetIndexes;
+	private final int[] identTargets;
+
+	/** The kind of call of each location */
+	private final byte[] callKinds;
+
+	private final String[] strings;
+
+	private Annotations(Builder builder, ByteBuffer contents) {
+		this.size = builder.size;
+		this.contents = contents;
+		this.locations = Arrays.copyOf(builder.locations, size * LOCATION_SIZE);
+		this.typeOffsets = Arrays.copyOf(builder.typeOffsets, size);
+		this.typeLengths = Arrays.copyOf(builder.typeLengths, size);
+		this.identKinds = Arrays.copyOf(builder.identKinds, size);
+		this.identNames = Arrays.copyOf(builder.identNames, size);
+		this.identTargetIndexes = Arrays.copyOf(builder.identTargetIndexes, size);
+		this.identTargets = Arrays.copyOf(builder.identTargets, builder.nIdentTargets
+				* LOCATION_SIZE);
+		this.callKinds = Arrays.copyOf(builder.callKinds, size);
+		this.strings = builder.strings.toArray(new String[builder.strings.size()]);
+	}
+
+	/** The number of annotated locations */
+	public int size() {
+		return size;
+	}
+
+	/** The line (starting from 1) of the beginning of location <code>i</code> */
+	public int getBeginLine(int i) {
+		return locations[i * LOCATION_SIZE];
+	}
+
+	/** The offset of the beginning of the line on which location <code>i</code> begins */
+	public int getBeginLineOffset(int i) {
+		return locations[i * LOCATION_SIZE + 1];
+	}
+
+	/** The offset at which location <code>i</code> begins */
+	public int getBeginOffset(int i) {
+		return locations[i * LOCATION_SIZE + 2];
+	}
+
+	/** The line (starting from 1) of the end of location <code>i</code> */
+	public int getEndLine(int i) {
+		return locations[i * LOCATION_SIZE + 3];
+	}
+
+	/** The offset of the beginning of the line on which location <code>i</code> ends */
+	public int getEndLineOffset(int i) {
+		return locations[i * LOCATION_SIZE + 4];
+	}
+
+	/** The offset at which location <code>i</code> ends */
+	public int getEndOffset(int i) {
+		return locations[i * LOCATION_SIZE + 5];
+	}
+
+	/** Whether there is a type annotation at location <code>i</code> */
+	public boolean hasType(int i) {
+		return typeOffsets[i] != -1;
+	}
+
+	/**
+	 * The type of the expression at location <code>i</code> (as written by the compiler, without the
+	 * carriage returns), or null. The type is decoded from the contents of the file at each call.
+	 */
+	public String getType(int i) {
+		if (typeOffsets[i] == -1)
+			return null;
+
+		byte[] bytes = new byte[typeLengths[i]];
+		try {
+			// a duplicate, so that concurrent reads don't share a position
+			ByteBuffer buffer = contents.duplicate();
+			buffer.position(typeOffsets[i]);
+			buffer.get(bytes);
+		} catch (InternalError e) {
+			/*
+			 * The mapped file was truncated since it was parsed (by a compilation which is writing a
+			 * new version of it). The cached annotations are stale, and will be parsed again.
+			 */
+			return null;
+		}
+
+		int length = 0;
+		for (int j = 0; j < bytes.length; j++)
+			if (bytes[j] != '\r')
+				bytes[length++] = bytes[j];
+		return new String(bytes, 0, length, UTF8);
+	}
+
+	/** The kind of identifier record at location <code>i</code> (one of the IDENT_ constants) */
+	public byte getIdentKind(int i) {
+		return identKinds[i];
+	}
+
+	/**
+	 * The name of the identifier at location <code>i</code> (qualified for an external reference), or
+	 * null
+	 */
+	public String getIdentName(int i) {
+		return identNames[i] == -1 ? null : strings[identNames[i]];
+	}
+
+	/**
+	 * Whether location <code>i</code> has an identifier target: the scope of a definition, or the
+	 * location of the definition of an internal reference
+	 */
+	public boolean hasIdentTarget(int i) {
+		return identTargetIndexes[i] != -1;
+	}
+
+	/** The line of the beginning of the identifier target of location <code>i</code> */
+	public int getIdentTargetBeginLine(int i) {
+		return identTargets[identTargetIndexes[i] * LOCATION_SIZE];
+	}
+
+	/** The offset of the beginning of the line of the beginning of the identifier target */
+	public int getIdentTargetBeginLineOffset(int i) {
+		return identTargets[identTargetIndexes[i] * LOCATION_SIZE + 1];
+	}
+
+	/** The offset at which the identifier target of location <code>i</code> begins */
+	public int getIdentTargetBeginOffset(int i) {
+		return identTargets[identTargetIndexes[i] * LOCATION_SIZE + 2];
+	}
+
+	/** The line of the end of the identifier target of location <code>i</code> */
+	public int getIdentTargetEndLine(int i) {
+		return identTargets[identTargetIndexes[i] * LOCATION_SIZE + 3];
+	}
+
+	/** The offset of the beginning of the line of the end of the identifier target */
+	public int getIdentTargetEndLineOffset(int i) {
+		return identTargets[identTargetIndexes[i] * LOCATION_SIZE + 4];
+	}
+
+	/**
+	 * The offset at which the identifier target of location <code>i</code> ends (-1 for a scope
+	 * which extends to the end of the file)
+	 */
+	public int getIdentTargetEndOffset(int i) {
+		return identTargets[identTargetIndexes[i] * LOCATION_SIZE + 5];
+	}
+
+	/** The kind of call at location <code>i</code> (one of the CALL_ constants) */
+	public byte getCallKind(int i) {
+		return callKinds[i];
+	}
+
+	/** Accumulates the records while a file is parsed */
+	static class Builder {
+		private int size = 0;
+		private int[] locations = new int[256 * LOCATION_SIZE];
+		private int[] typeOffsets = new int[256];
+		private int[] typeLengths = new int[256];
+		private byte[] identKinds = new byte[256];
+		private int[] identNames = new int[256];
+		private int[] identTargetIndexes = new int[256];
+		private int[] identTargets = new int[64 * LOCATION_SIZE];
+		private int nIdentTargets = 0;
+		private byte[] callKinds = new byte[256];
+
+		private final ArrayList<String> strings = new ArrayList<String>();
+		private final HashMap<String, Integer> stringIndexes = new HashMap<String, Integer>();
+
+		/** Start a new location, and return its number */
+		int addLocation(int[] position) {
+			if (size == typeOffsets.length) {
+				int capacity = size * 2;
+				locations = Arrays.copyOf(locations, capacity * LOCATION_SIZE);
+				typeOffsets = Arrays.copyOf(typeOffsets, capacity);
+				typeLengths = Arrays.copyOf(typeLengths, capacity);
+				identKinds = Arrays.copyOf(identKinds, capacity);
+				identNames = Arrays.copyOf(identNames, capacity);
+				identTargetIndexes = Arrays.copyOf(identTargetIndexes, capacity);
+				callKinds = Arrays.copyOf(callKinds, capacity);
+			}
+
+			System.arraycopy(position, 0, locations, size * LOCATION_SIZE, LOCATION_SIZE);
+			typeOffsets[size] = -1;
+			typeLengths[size] = 0;
+			identKinds[size] = IDENT_NONE;
+			identNames[size] = -1;
+			identTargetIndexes[size] = -1;
+			callKinds[size] = CALL_NONE;
+			return size++;
+		}
+
+		/** Set the type of <code>location</code>: <code>length</code> bytes at <code>offset</code> */
+		void setType(int location, int offset, int length) {
+			typeOffsets[location] = offset;
+			typeLengths[location] = length;
+		}
+
+		void setIdent(int location, byte kind, String name, int[] target) {
+			identKinds[location] = kind;
+			identNames[location] = intern(name);
+			if (target != null) {
+				if ((nIdentTargets + 1) * LOCATION_SIZE > identTargets.length)
+					identTargets = Arrays.copyOf(identTargets, identTargets.length * 2);
+				System.arraycopy(target, 0, identTargets, nIdentTargets * LOCATION_SIZE,
+						LOCATION_SIZE);
+				identTargetIndexes[location] = nIdentTargets++;
+			}
+		}
+
+		void setCall(int location, byte kind) {
+			callKinds[location] = kind;
+		}
+
+		private int intern(String string) {
+			Integer index = stringIndexes.get(string);
+			if (index == null) {
+				index = strings.size();
+				strings.add(string);
+				stringIndexes.put(string, index);
+			}
+			return index;
+		}
+
+		/** Build the annotations, whose types are in <code>contents</code> */
+		Annotations build(ByteBuffer contents) {
+			return new Annotations(this, contents);
+		}
+	}
+}
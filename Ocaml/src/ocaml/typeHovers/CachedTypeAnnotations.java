@@ -2,7 +2,6 @@ package ocaml.typeHovers;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
 
 import ocaml.OcamlPlugin;
 
@@ -10,11 +9,17 @@ import ocaml.OcamlPlugin;
 /** An entry in the type annotations cache */
 public class CachedTypeAnnotations {
 
-	private ArrayList<TypeAnnotation> annotations;
+	/** The type annotations, indexed by offset */
+	private final TypeAnnotationIndex annotations;
+	/** The identifier records, indexed by offset */
+	private final IdentAnnotationIndex identIndex;
 	private final Object path;
 	private final long lastModified;
 
-	public CachedTypeAnnotations(File file) {
+	public CachedTypeAnnotations(File file, TypeAnnotationIndex annotations,
+			IdentAnnotationIndex identIndex) {
+		this.annotations = annotations;
+		this.identIndex = identIndex;
 		this.lastModified = file.lastModified();
 
 		String path = "";
@@ -24,7 +29,6 @@ public class CachedTypeAnnotations {
 			OcamlPlugin.logError("ocaml plugin error", e);
 		}
 		this.path = path;
-		this.annotations = new ArrayList<TypeAnnotation>();
 	}
 
 	/** @return true if the cached version is more recent than that on disk */
@@ -42,14 +46,13 @@ public class CachedTypeAnnotations {
 		}
 	}
 
-	/** Add a type annotation to the cache */
-	public void addAnnotation(TypeAnnotation annotation) {
-		if (annotation != null)
-			annotations.add(annotation);
+	/** @return the index of the identifier records in cache */
+	public IdentAnnotationIndex getIdentIndex() {
+		return identIndex;
 	}
 
-	/** @return all the type annotations in cache */
-	public TypeAnnotation[] getAnnotations() {
-		return annotations.toArray(new TypeAnnotation[0]);
+	/** @return the index of all the type annotations in cache */
+	public TypeAnnotationIndex getAnnotations() {
+		return annotations;
 	}
 }
@@ -0,0 +1,128 @@
+package ocaml.typeHovers;
+
+import java.util.Arrays;
+
+import ocaml.util.IntervalTree;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.Region;
+
+/**
+ * The identifier records of an annotations file (definitions, and references to definitions in the
+ * same module or in other modules), indexed by their offsets in the document.
+ */
+public class IdentAnnotationIndex {
+
+	private final Annotations annotations;
+
+	/** The number of the location of each identifier in <code>annotations</code> */
+	private final int[] locations;
+
+	/** The identifiers, from their begin offset to their end offset minus one */
+	private final IntervalTree intervals;
+
+	/**
+	 * @param locations
+	 *            the numbers of the locations of the identifiers in <code>annotations</code>
+	 * @param begins
+	 *            the begin offset of each identifier in the document
+	 * @param ends
+	 *            the end offset of each identifier in the document
+	 */
+	public IdentAnnotationIndex(Annotations annotations, int[] locations, int[] begins, int[] ends) {
+		this.annotations = annotations;
+		this.locations = locations;
+
+		int[] lasts = new int[ends.length];
+		for (int i = 0; i < ends.length; i++)
+			lasts[i] = ends[i] - 1;
+		this.intervals = new IntervalTree(begins, lasts);
+	}
+
+	public Annotations getAnnotations() {
+		return annotations;
+	}
+
+	/**
+	 * Return the location number (in {@link #getAnnotations()}) of the smallest identifier which
+	 * contains <code>offset</code>, or -1
+	 */
+	public int findAt(int offset) {
+		int i = intervals.findInnermost(offset, 0);
+		return i == -1 ? -1 : locations[i];
+	}
+
+	/** Return the region of the identifier at <code>location</code> in <code>document</code> */
+	public IRegion getRegion(int location, IDocument document) throws BadLocationException {
+		int begin = annotations.getBeginOffset(location)
+				+ document.getLineOffset(annotations.getBeginLine(location) - 1)
+				- annotations.getBeginLineOffset(location);
+		int end = annotations.getEndOffset(location)
+				+ document.getLineOffset(annotations.getEndLine(location) - 1)
+				- annotations.getEndLineOffset(location);
+		return new Region(begin, end - begin);
+	}
+
+	/** Whether the identifier at <code>location</code> is defined at the top-level of the module */
+	public boolean isTopLevelDefinition(int location) {
+		return annotations.getIdentKind(location) == Annotations.IDENT_DEF
+				&& annotations.hasIdentTarget(location)
+				&& annotations.getIdentTargetEndOffset(location) == -1;
+	}
+
+	/**
+	 * Return the location of the definition referenced by the internal reference at
+	 * <code>location</code>, or -1
+	 */
+	public int findDefinition(int location) {
+		if (annotations.getIdentKind(location) != Annotations.IDENT_INT_REF
+				|| !annotations.hasIdentTarget(location))
+			return -1;
+
+		int target = annotations.getIdentTargetBeginOffset(location);
+		for (int i : locations)
+			if (annotations.getIdentKind(i) == Annotations.IDENT_DEF
+					&& annotations.getBeginOffset(i) == target)
+				return i;
+		return -1;
+	}
+
+	/** Return the locations of the internal references to the definition at <code>location</code> */
+	public int[] findReferences(int location) {
+		int definition = annotations.getBeginOffset(location);
+		int[] references = new int[8];
+		int n = 0;
+		for (int i : locations) {
+			if (annotations.getIdentKind(i) == Annotations.IDENT_INT_REF
+					&& annotations.hasIdentTarget(i)
+					&& annotations.getIdentTargetBeginOffset(i) == definition) {
+				if (n == references.length)
+					references = Arrays.copyOf(references, n * 2);
+				references[n++] = i;
+			}
+		}
+		return Arrays.copyOf(references, n);
+	}
+
+	/**
+	 * Return the region of the target of the identifier at <code>location</code> (the definition of
+	 * an internal reference) in <code>document</code>, or <code>null</code>
+	 */
+	public IRegion getTargetRegion(int location, IDocument document) throws BadLocationException {
+		if (!annotations.hasIdentTarget(location))
+			return null;
+		int end = annotations.getIdentTargetEndOffset(location);
+		if (end == -1)
+			return null;
+
+		// correct the offsets like those of the type annotations
+		int begin = annotations.getIdentTargetBeginOffset(location)
+				+ document.getLineOffset(annotations.getIdentTargetBeginLine(location) - 1)
+				- annotations.getIdentTargetBeginLineOffset(location);
+		end = end + document.getLineOffset(annotations.getIdentTargetEndLine(location) - 1)
+				- annotations.getIdentTargetEndLineOffset(location);
+		return new Region(begin, end - begin);
+	}
+}
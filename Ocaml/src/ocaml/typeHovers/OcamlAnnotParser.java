@@ -1,14 +1,14 @@
 package ocaml.typeHovers;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import ocaml.OcamlPlugin;
 import ocaml.util.FileUtil;
@@ -23,10 +23,10 @@ import org.eclipse.jface.text.IDocument;
  */
 public class OcamlAnnotParser {
 
-	private static final Pattern patternAnnot = Pattern
-			.compile("\".*.\" (\\d+) (\\d+) (\\d+) \".*?\" (\\d+) (\\d+) (\\d+)\\ntype\\(\\n((?:.*?\\n){0,50}?)\\)\\n");
+	/** The maximum number of annotations files kept in the cache */
+	private static final int MAX_CACHED_FILES = 16;
 
-	/** The type definitions cache */
+	/** The type definitions cache, from the most recently used entry to the least recently used one */
 	private static LinkedList<CachedTypeAnnotations> cache = new LinkedList<CachedTypeAnnotations>();
 
 	/**
@@ -39,103 +39,344 @@ public class OcamlAnnotParser {
 	 *            the document associated to the file whose annotations must be
 	 *            parsed
 	 * 
-	 * @return the type annotations found, or <code>null</code> if the file
-	 *         couldn't be read
+	 * @return the index of the type annotations found, or <code>null</code>
+	 *         if the file couldn't be read
 	 * @throws BadLocationException
 	 */
-	public static TypeAnnotation[] parseFile(File file, IDocument document)
+	public static synchronized TypeAnnotationIndex parseFile(File file, IDocument document)
 			throws BadLocationException {
+		CachedTypeAnnotations info = getCachedAnnotations(file, document);
+		return info == null ? null : info.getAnnotations();
+	}
+
+	/**
+	 * Return the index of the identifier records of the annotations file <code>file</code>, parsing
+	 * it if it is not in the cache.
+	 * 
+	 * @return the identifiers found, or <code>null</code> if the file couldn't be read
+	 */
+	public static synchronized IdentAnnotationIndex getIdentIndex(File file, IDocument document)
+			throws BadLocationException {
+		CachedTypeAnnotations info = getCachedAnnotations(file, document);
+		return info == null ? null : info.getIdentIndex();
+	}
 
-		/* Table of entries to remove from the cache. */
-		ArrayList<CachedTypeAnnotations> toRemove = new ArrayList<CachedTypeAnnotations>();
-		TypeAnnotation[] found = null;
+	private static CachedTypeAnnotations getCachedAnnotations(File file, IDocument document)
+			throws BadLocationException {
 
 		// first, see if the informations are in the cache
-		for (CachedTypeAnnotations info : cache) {
+		for (Iterator<CachedTypeAnnotations> iterator = cache.iterator(); iterator.hasNext();) {
+			CachedTypeAnnotations info = iterator.next();
 			if (info.sameAs(file)) {
-				// the entry is in the cache and is still valid
-				if (info.isMoreRecentThan(file))
-					found = info.getAnnotations();
-				// the entry in the cache is not valid anymore: we delete it
-				// from the cache
-				else {
-					toRemove.add(info);
+				// the entry in the cache is not valid anymore: we delete it from the cache
+				iterator.remove();
+				// the entry is in the cache and is still valid: it becomes the most recently used one
+				if (info.isMoreRecentThan(file)) {
+					cache.addFirst(info);
+					return info;
 				}
+				break;
 			}
 		}
 
-		// remove the stale entries from the cache
-		for (CachedTypeAnnotations def : toRemove)
-			cache.remove(def);
-		// return the entry from the cache if we found it
-		if (found != null) {
-			return found;
+		if (!file.canRead())
+			return null;
 
+		Annotations parsed = parseAnnotations(file);
+		if (parsed == null)
+			return null;
+
+		/*
+		 * Sometimes, the offset gets erroneously shifted. To correct it, we shift the offset back by
+		 * the difference between the expected line offset and the offset retrieved.
+		 */
+		int[] begins = new int[parsed.size()];
+		int[] ends = new int[parsed.size()];
+		int nTypes = 0;
+		int nIdents = 0;
+		for (int i = 0; i < parsed.size(); i++) {
+			begins[i] = parsed.getBeginOffset(i)
+					+ document.getLineOffset(parsed.getBeginLine(i) - 1)
+					- parsed.getBeginLineOffset(i);
+			ends[i] = parsed.getEndOffset(i) + document.getLineOffset(parsed.getEndLine(i) - 1)
+					- parsed.getEndLineOffset(i);
+			if (parsed.hasType(i))
+				nTypes++;
+			if (parsed.getIdentKind(i) != Annotations.IDENT_NONE)
+				nIdents++;
 		}
 
-		if (!file.canRead())
-			return null;
+		int[] typeLocations = new int[nTypes];
+		int[] typeBegins = new int[nTypes];
+		int[] typeEnds = new int[nTypes];
+		int[] identLocations = new int[nIdents];
+		int[] identBegins = new int[nIdents];
+		int[] identEnds = new int[nIdents];
+		nTypes = 0;
+		nIdents = 0;
+		for (int i = 0; i < parsed.size(); i++) {
+			if (parsed.hasType(i)) {
+				typeLocations[nTypes] = i;
+				typeBegins[nTypes] = begins[i];
+				typeEnds[nTypes] = ends[i];
+				nTypes++;
+			}
+			if (parsed.getIdentKind(i) != Annotations.IDENT_NONE) {
+				identLocations[nIdents] = i;
+				identBegins[nIdents] = begins[i];
+				identEnds[nIdents] = ends[i];
+				nIdents++;
+			}
+		}
 
-		BufferedReader inputStream = null;
-		try {
+		CachedTypeAnnotations info = new CachedTypeAnnotations(file, new TypeAnnotationIndex(
+				parsed, typeLocations, typeBegins, typeEnds), new IdentAnnotationIndex(parsed,
+				identLocations, identBegins, identEnds));
+		cache.addFirst(info);
+		while (cache.size() > MAX_CACHED_FILES)
+			cache.removeLast();
 
-			try {
-				inputStream = new BufferedReader(new FileReader(file));
-			} catch (FileNotFoundException e) {
-				OcamlPlugin.logError("ocaml plugin error", e);
-				return null;
+		return info;
+	}
+
+	/**
+	 * Remove the annotations of <code>file</code> from the cache (when the editor of the
+	 * corresponding module is closed)
+	 */
+	public static synchronized void release(File file) {
+		for (Iterator<CachedTypeAnnotations> iterator = cache.iterator(); iterator.hasNext();) {
+			if (iterator.next().sameAs(file)) {
+				iterator.remove();
+				return;
 			}
+		}
+	}
 
-			StringBuilder text = new StringBuilder();
-			// read the file, line by line
-			String line;
-			try {
-				while ((line = inputStream.readLine()) != null)
-					text.append(line + "\n");
-			} catch (IOException e) {
-				OcamlPlugin.logError("ocaml plugin error", e);
+	/**
+	 * Parse all the records (types, identifiers and calls) of the annotations file <code>file</code>.
+	 * <p>
+	 * The file is memory-mapped, and the types are left in it: they are decoded when they are asked
+	 * for. On Windows, a mapped file can't be replaced until the mapping is garbage collected, which
+	 * would prevent the compiler from writing a new version of it: the file is read in a buffer
+	 * instead.
+	 * 
+	 * @return the annotations, or <code>null</code> if the file couldn't be read
+	 */
+	public static Annotations parseAnnotations(File file) {
+		FileInputStream inputStream = null;
+		try {
+			inputStream = new FileInputStream(file);
+			FileChannel channel = inputStream.getChannel();
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				OcamlPlugin.logWarning("annotations file too large: " + file.getPath());
 				return null;
 			}
 
-			ArrayList<TypeAnnotation> annotations = new ArrayList<TypeAnnotation>();
+			ByteBuffer contents;
+			if (OcamlPlugin.runningOnLinuxCompatibleSystem())
+				contents = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			else {
+				contents = ByteBuffer.allocate((int) size);
+				while (contents.hasRemaining() && channel.read(contents) >= 0) {
+				}
+				contents.flip();
+			}
 
-			// read all the type annotations from the file with a regex
-			Matcher matcher = patternAnnot.matcher(text);
+			AnnotReader reader = new AnnotReader(contents);
+			return reader.parse();
+		} catch (IOException e) {
+			OcamlPlugin.logError("ocaml plugin error", e);
+			return null;
+		} finally {
+			FileUtil.closeResource(inputStream);
+		}
+	}
 
-			while (matcher.find()) {
-				/*
-				 * Sometimes, the offset gets erroneously shifted. To correct
-				 * it, we shift the offset back by the difference between the
-				 * expected line offset and the offset retrieved.
-				 */
-				int beginLine = Integer.parseInt(matcher.group(1));
-				int beginLineOffset = Integer.parseInt(matcher.group(2));
-				int beginOffset = Integer.parseInt(matcher.group(3));
+	/**
+	 * Reads the records of an annotations file line by line, without regular expressions.
+	 * <p>
+	 * A record starts with a location line: <code>"file" line bol offset "file" line bol offset</code>
+	 * followed by blocks like <code>type(</code>, <code>ident(</code> or <code>call(</code>, whose
+	 * content is indented by two spaces, and which end with a <code>)</code> line.
+	 */
+	private static class AnnotReader {
+		private static final Charset UTF8 = Charset.forName("UTF-8");
+
+		private final ByteBuffer contents;
+		/** The contents, read from the start */
+		private final ByteBuffer buffer;
 
-				int endLine = Integer.parseInt(matcher.group(4));
-				int endLineOffset = Integer.parseInt(matcher.group(5));
-				int endOffset = Integer.parseInt(matcher.group(6));
+		/** The current line (without the end of line characters) */
+		private byte[] line = new byte[256];
+		private int length;
+		/** The position of the next character to read in the current line */
+		private int pos;
 
-				beginOffset += document.getLineOffset(beginLine - 1) - beginLineOffset;
-				endOffset += document.getLineOffset(endLine - 1) - endLineOffset;
+		private final int[] location = new int[6];
+		private final int[] target = new int[6];
 
-				String type = matcher.group(7);
+		AnnotReader(ByteBuffer contents) {
+			this.contents = contents;
+			this.buffer = contents.duplicate();
+		}
 
-				TypeAnnotation annot = new TypeAnnotation(beginOffset, endOffset, type);
-				annotations.add(annot);
+		/** Read the next line. Return false at the end of the file. */
+		private boolean nextLine() {
+			length = 0;
+			pos = 0;
+			while (true) {
+				if (!buffer.hasRemaining())
+					return length > 0;
+
+				byte b = buffer.get();
+				if (b == '\n')
+					return true;
+				if (b == '\r')
+					continue;
+				if (length == line.length)
+					line = Arrays.copyOf(line, length * 2);
+				line[length++] = b;
 			}
+		}
 
-			TypeAnnotation[] typeAnnotations = annotations.toArray(new TypeAnnotation[0]);
-			CachedTypeAnnotations cacheEntry = new CachedTypeAnnotations(file);
-			for (TypeAnnotation t : typeAnnotations)
-				cacheEntry.addAnnotation(t);
+		Annotations parse() {
+			Annotations.Builder builder = new Annotations.Builder();
+			int current = -1;
 
-			cache.addFirst(cacheEntry);
+			while (nextLine()) {
+				if (length == 0)
+					continue;
 
-			// return the table of annotations from the file
-			return typeAnnotations;
-		} finally {
-			FileUtil.closeResource(inputStream);
+				// a location line
+				if (line[0] == '"') {
+					if (readPosition(location, 0) && readPosition(location, 3))
+						current = builder.addLocation(location);
+					else
+						current = -1;
+					continue;
+				}
+
+				// the start of a block
+				if (line[length - 1] == '(') {
+					String keyword = new String(line, 0, length - 1, UTF8);
+					if (current == -1)
+						skipBlock();
+					else if (keyword.equals("type"))
+						readType(builder, current);
+					else if (keyword.equals("ident"))
+						readIdent(builder, current);
+					else if (keyword.equals("call"))
+						readCall(builder, current);
+					else
+						skipBlock();
+				}
+			}
+
+			return builder.build(contents);
+		}
+
+		private boolean isEndOfBlock() {
+			return length == 1 && line[0] == ')';
+		}
+
+		private void skipBlock() {
+			while (nextLine() && !isEndOfBlock()) {
+			}
+		}
+
+		/**
+		 * Read the lines of a type block, and keep their range in the contents (with their end of
+		 * lines)
+		 */
+		private void readType(Annotations.Builder builder, int current) {
+			int start = buffer.position();
+			int end = start;
+			while (nextLine() && !isEndOfBlock())
+				end = buffer.position();
+			builder.setType(current, start, end - start);
+		}
+
+		/** Read an identifier block: "def name scope", "int_ref name location" or "ext_ref path" */
+		private void readIdent(Annotations.Builder builder, int current) {
+			while (nextLine() && !isEndOfBlock()) {
+				skipSpaces();
+				String kind = readWord();
+				skipSpaces();
+				String name = readWord();
+
+				if (kind.equals("def")) {
+					skipSpaces();
+					boolean bTarget = readPosition(target, 0) && readPosition(target, 3);
+					builder.setIdent(current, Annotations.IDENT_DEF, name, bTarget ? target : null);
+				} else if (kind.equals("int_ref")) {
+					skipSpaces();
+					boolean bTarget = readPosition(target, 0) && readPosition(target, 3);
+					builder.setIdent(current, Annotations.IDENT_INT_REF, name, bTarget ? target
+							: null);
+				} else if (kind.equals("ext_ref"))
+					builder.setIdent(current, Annotations.IDENT_EXT_REF, name, null);
+			}
+		}
+
+		/** Read a call block: "tail", "stack" or "inline" */
+		private void readCall(Annotations.Builder builder, int current) {
+			while (nextLine() && !isEndOfBlock()) {
+				skipSpaces();
+				String kind = readWord();
+				if (kind.equals("tail"))
+					builder.setCall(current, Annotations.CALL_TAIL);
+				else if (kind.equals("stack"))
+					builder.setCall(current, Annotations.CALL_STACK);
+				else if (kind.equals("inline"))
+					builder.setCall(current, Annotations.CALL_INLINE);
+			}
+		}
+
+		private void skipSpaces() {
+			while (pos < length && line[pos] == ' ')
+				pos++;
+		}
+
+		private String readWord() {
+			int start = pos;
+			while (pos < length && line[pos] != ' ')
+				pos++;
+			return new String(line, start, pos - start, UTF8);
+		}
+
+		/**
+		 * Read a position: <code>"filename" line bol offset</code>, and store its three numbers in
+		 * <code>position</code> from <code>index</code>
+		 */
+		private boolean readPosition(int[] position, int index) {
+			skipSpaces();
+			if (pos >= length || line[pos] != '"')
+				return false;
+
+			// skip the file name (an OCaml string, with escaped characters)
+			pos++;
+			while (pos < length && line[pos] != '"') {
+				if (line[pos] == '\\')
+					pos++;
+				pos++;
+			}
+			pos++;
+
+			for (int i = 0; i < 3; i++) {
+				skipSpaces();
+				int start = pos;
+				boolean bNegative = pos < length && line[pos] == '-';
+				if (bNegative)
+					pos++;
+				int value = 0;
+				while (pos < length && line[pos] >= '0' && line[pos] <= '9')
+					value = value * 10 + (line[pos++] - '0');
+				if (pos == start || bNegative && pos == start + 1)
+					return false;
+				position[index + i] = bNegative ? -value : value;
+			}
+			return true;
 		}
 	}
 }
@@ -0,0 +1,324 @@
+package ocaml.typeHovers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import ocaml.OcamlPlugin;
+import ocaml.build.OcamlBuilder;
+import ocaml.editors.OcamlEditor;
+import ocaml.exec.CommandRunner;
+import ocaml.util.DocumentCharSequence;
+import ocaml.util.FileUtil;
+import ocaml.util.Misc;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IProject;
+import org.eclipse.core.runtime.IPath;
+import org.eclipse.core.runtime.IProgressMonitor;
+import org.eclipse.core.runtime.IStatus;
+import org.eclipse.core.runtime.Status;
+import org.eclipse.core.runtime.jobs.Job;
+import org.eclipse.swt.widgets.Display;
+
+/**
+ * Type-checks the contents of the editors which have not been compiled yet (modified and not saved,
+ * or saved after the last build), so that the types can be shown in the hovers and in the outline
+ * without waiting for a build.
+ * <p>
+ * The contents are written in a private directory of the plugin state location, and compiled with
+ * "-i -dtypes", which only type-checks them and writes the annotations file: the build outputs of
+ * the project are left untouched. The include paths of the project and the folder of the module are
+ * passed to the compiler, so that the already compiled interfaces (".cmi") of the other modules are
+ * used.
+ * <p>
+ * The results are kept for the last checked contents, identified by a hash, so that a module is
+ * type-checked only once for the same contents.
+ */
+public class ScratchTypeChecker {
+
+	/** The maximum number of type-checked contents kept */
+	private static final int MAX_CACHED_RESULTS = 8;
+
+	/** The delay before starting a type-checking, so that it is not started at each key stroke */
+	private static final int DELAY = 200;
+
+	private static ScratchTypeChecker instance;
+
+	public static synchronized ScratchTypeChecker getInstance() {
+		if (instance == null)
+			instance = new ScratchTypeChecker();
+		return instance;
+	}
+
+	/** The result of the type-checking of some contents of a module */
+	private static class Result {
+		final IFile file;
+		final long hash;
+		final int length;
+		final File directory;
+		/** The annotations file, or <code>null</code> if the contents couldn't be type-checked */
+		File annotFile;
+
+		Result(IFile file, long hash, int length, File directory) {
+			this.file = file;
+			this.hash = hash;
+			this.length = length;
+			this.directory = directory;
+		}
+
+		boolean isFor(IFile file, long hash, int length) {
+			return this.file.equals(file) && this.hash == hash && this.length == length;
+		}
+	}
+
+	/** The results, from the most recently used to the least recently used one */
+	private final LinkedList<Result> results = new LinkedList<Result>();
+
+	/** The directory in which the contents are type-checked */
+	private final File scratchDirectory;
+
+	/** A number to give a different directory to each type-checking */
+	private int nextDirectory = 0;
+
+	private final CheckJob job = new CheckJob();
+
+	/** The next contents to type-check, and the editor to update when it is done */
+	private IFile pendingFile;
+	private String pendingContents;
+	private long pendingHash;
+	private OcamlEditor pendingEditor;
+
+	private ScratchTypeChecker() {
+		IPath stateLocation = OcamlPlugin.getInstance().getStateLocation();
+		scratchDirectory = stateLocation.append("scratch").toFile();
+		// the type-checkings of the last session are not used anymore
+		deleteDirectory(scratchDirectory);
+	}
+
+	/**
+	 * Return the annotations file of the type-checking of <code>contents</code> (the contents of the
+	 * editor of <code>file</code>), or <code>null</code> if these contents have not been type-checked
+	 * yet or couldn't be type-checked. In the first case, they are type-checked in the background,
+	 * and the outline of <code>editor</code> is rebuilt when it is done.
+	 *
+	 * @param hash
+	 *            the {@link #hash(CharSequence) hash} of the contents: the contents are only copied
+	 *            if they have to be type-checked, and the request is dropped if the document is
+	 *            modified in the meantime
+	 */
+	public File getAnnotFile(OcamlEditor editor, IFile file, long hash, DocumentCharSequence contents) {
+		if (!"ml".equals(file.getFileExtension()) || file.getProject() == null)
+			return null;
+
+		synchronized (this) {
+			for (Iterator<Result> iterator = results.iterator(); iterator.hasNext();) {
+				Result result = iterator.next();
+				if (result.isFor(file, hash, contents.length())) {
+					// it becomes the most recently used one
+					iterator.remove();
+					results.addFirst(result);
+					return result.annotFile;
+				}
+			}
+
+			// these contents are already waiting to be type-checked
+			if (file.equals(pendingFile) && hash == pendingHash
+					&& contents.length() == pendingContents.length())
+				return null;
+		}
+
+		String copy = contents.toString();
+		// the copy would not match the hash
+		if (!contents.isValid())
+			return null;
+
+		synchronized (this) {
+			pendingFile = file;
+			pendingContents = copy;
+			pendingHash = hash;
+			pendingEditor = editor;
+		}
+
+		job.cancel();
+		job.schedule(DELAY);
+		return null;
+	}
+
+	/** Delete the type-checked files (when the plugin stops) */
+	public synchronized void dispose() {
+		job.cancel();
+		for (Result result : results)
+			release(result);
+		results.clear();
+		deleteDirectory(scratchDirectory);
+	}
+
+	/** Type-check the next contents */
+	private class CheckJob extends Job {
+
+		CheckJob() {
+			super("Type-checking the modified OCaml module");
+			setPriority(Job.DECORATE);
+			setSystem(true);
+		}
+
+		@Override
+		protected IStatus run(IProgressMonitor monitor) {
+			IFile file;
+			String contents;
+			long hash;
+			OcamlEditor editor;
+			Result result;
+			synchronized (ScratchTypeChecker.this) {
+				if (pendingFile == null)
+					return Status.OK_STATUS;
+				file = pendingFile;
+				contents = pendingContents;
+				hash = pendingHash;
+				editor = pendingEditor;
+				result = new Result(file, hash, contents.length(), new File(scratchDirectory, String
+						.valueOf(nextDirectory++)));
+			}
+
+			result.annotFile = typeCheck(file, contents, result.directory);
+
+			synchronized (ScratchTypeChecker.this) {
+				// newer contents were asked for in the meantime: they will be checked next
+				if (file.equals(pendingFile) && hash == pendingHash) {
+					pendingFile = null;
+					pendingContents = null;
+					pendingEditor = null;
+				}
+
+				results.addFirst(result);
+				while (results.size() > MAX_CACHED_RESULTS)
+					release(results.removeLast());
+			}
+
+			if (result.annotFile != null)
+				rebuildOutline(editor);
+
+			return Status.OK_STATUS;
+		}
+	}
+
+	/**
+	 * Write <code>contents</code> in <code>directory</code> (with the name of the module), and
+	 * type-check them with the include paths of the project.
+	 *
+	 * @return the annotations file written by the compiler, or <code>null</code> if the contents
+	 *         couldn't be type-checked
+	 */
+	private static File typeCheck(IFile file, String contents, File directory) {
+		String compiler = OcamlPlugin.getOcamlcFullPath();
+		if (compiler.equals("") || file.getParent().getLocation() == null)
+			return null;
+
+		if (!directory.mkdirs()) {
+			OcamlPlugin.logWarning("cannot create the type-checking directory " + directory.getPath());
+			return null;
+		}
+
+		File source = new File(directory, file.getName());
+		OutputStream out = null;
+		try {
+			out = new FileOutputStream(source);
+			out.write(contents.getBytes(file.getCharset()));
+		} catch (Exception e) {
+			OcamlPlugin.logError("error writing the module to type-check", e);
+			return null;
+		} finally {
+			FileUtil.closeResource(out);
+		}
+
+		IProject project = file.getProject();
+		final List<String> command = new ArrayList<String>();
+		command.add(compiler);
+		command.addAll(Misc.getProjectPaths(project));
+		// the compiled interfaces of the modules of the same folder (or of its "_build" counterpart)
+		command.add("-I");
+		command.add(file.getParent().getLocation().toOSString());
+		File buildFolder = project.getLocation().append("_build").append(
+				file.getParent().getProjectRelativePath()).toFile();
+		if (buildFolder.isDirectory()) {
+			command.add("-I");
+			command.add(buildFolder.getPath());
+		}
+		command.addAll(OcamlBuilder.getResourceFlags(project));
+		command.addAll(OcamlBuilder.getResourceFlags(file));
+		command.add("-dtypes");
+		command.add("-i");
+		command.add("-w");
+		command.add("a");
+		command.add(source.getPath());
+
+		// run from the workspace root, like the builder, for the relative include paths
+		CommandRunner cmd = new CommandRunner(command.toArray(new String[0]), project.getWorkspace()
+				.getRoot().getLocation().toOSString());
+		cmd.getStdout();
+		cmd.getStderr();
+
+		String moduleName = file.getName().substring(0, file.getName().length() - 3);
+		File annotFile = new File(directory, moduleName + ".annot");
+		if (cmd.getExitValue() != 0 || !annotFile.exists())
+			return null;
+		return annotFile;
+	}
+
+	/** Rebuild the outline of <code>editor</code>, with the types found */
+	private static void rebuildOutline(final OcamlEditor editor) {
+		if (editor == null)
+			return;
+		Display.getDefault().asyncExec(new Runnable() {
+			public void run() {
+				// the editor may have been closed in the meantime
+				if (editor.getDocumentProvider() != null && editor.getEditorInput() != null)
+					editor.rebuildOutline(0);
+			}
+		});
+	}
+
+	private static void release(Result result) {
+		if (result.annotFile != null)
+			OcamlAnnotParser.release(result.annotFile);
+		deleteDirectory(result.directory);
+	}
+
+	private static void deleteDirectory(File directory) {
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory())
+					deleteDirectory(file);
+				else
+					file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	/** The hash identifying some contents of a module */
+	public static long hash(CharSequence contents) {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[8192];
+		int n = 0;
+		int length = contents.length();
+		for (int i = 0; i < length; i++) {
+			char c = contents.charAt(i);
+			buffer[n++] = (byte) (c >> 8);
+			buffer[n++] = (byte) c;
+			if (n == buffer.length) {
+				crc.update(buffer, 0, n);
+				n = 0;
+			}
+		}
+		crc.update(buffer, 0, n);
+		return crc.getValue();
+	}
+}
@@ -4,19 +4,26 @@ import ocaml.util.Misc;
 
 /**
  * A type annotation, from a ".annot" file generated by the "-dtypes" option of the OCaml compiler.
+ * <p>
+ * The type is read from the annotations file when it is first asked for.
  */
 public class TypeAnnotation {
 	/** beginning offset in code */
 	private final int begin;
 	/** end offset in code */
 	private final int end;
-	/** the type inferred by the compiler for the expression ranging from <code>begin</code> to <code>end</code> */
-	private final String type;
+	/** the records of the annotations file */
+	private final Annotations annotations;
+	/** the number of the annotated location in <code>annotations</code> */
+	private final int location;
+	/** the type, formatted for display (computed when first needed) */
+	private String type;
 
-	public TypeAnnotation(int begin, int end, String type) {
+	public TypeAnnotation(int begin, int end, Annotations annotations, int location) {
 		this.begin = begin;
 		this.end = end;
-		this.type = Misc.beautify(type);
+		this.annotations = annotations;
+		this.location = location;
 	}
 
 	public int getBegin() {
@@ -27,7 +34,15 @@ public class TypeAnnotation {
 		return end;
 	}
 
+	/**
+	 * @return the type inferred by the compiler for the expression ranging from <code>begin</code>
+	 *         to <code>end</code>, or an empty string if it can't be read anymore
+	 */
 	public String getType() {
+		if (type == null) {
+			String rawType = annotations.getType(location);
+			type = rawType == null ? "" : Misc.beautify(rawType);
+		}
 		return type;
 	}
 }
@@ -0,0 +1,66 @@
+package ocaml.typeHovers;
+
+import ocaml.util.IntervalTree;
+
+/**
+ * The type annotations of a file, indexed by their offsets, to find the innermost annotation at an
+ * offset (which is the type of the smallest expression at this offset) in a logarithmic time.
+ * <p>
+ * Only the offsets of the annotations are kept: the {@link TypeAnnotation}s are created when they
+ * are found, and read their type from the annotations file.
+ */
+public class TypeAnnotationIndex {
+
+	private final Annotations annotations;
+
+	/** The number of the location of each annotation in <code>annotations</code> */
+	private final int[] locations;
+
+	/** The annotations, from their begin offset to their end offset minus one */
+	private final IntervalTree intervals;
+
+	/**
+	 * @param locations
+	 *            the numbers of the annotated locations in <code>annotations</code>
+	 * @param begins
+	 *            the begin offset of each annotation in the document
+	 * @param ends
+	 *            the end offset of each annotation in the document
+	 */
+	public TypeAnnotationIndex(Annotations annotations, int[] locations, int[] begins, int[] ends) {
+		this.annotations = annotations;
+		this.locations = locations;
+
+		int[] lasts = new int[ends.length];
+		for (int i = 0; i < ends.length; i++)
+			lasts[i] = ends[i] - 1;
+		this.intervals = new IntervalTree(begins, lasts);
+	}
+
+	/** The number of annotations */
+	public int size() {
+		return locations.length;
+	}
+
+	public TypeAnnotation get(int i) {
+		return new TypeAnnotation(intervals.getStart(i), intervals.getEnd(i) + 1, annotations,
+				locations[i]);
+	}
+
+	/**
+	 * Return the smallest annotation which contains <code>offset</code>, or <code>null</code>
+	 *
+	 * @param bIncludeEnd
+	 *            also accept the annotations which end at <code>offset</code>
+	 */
+	public TypeAnnotation findInnermost(int offset, boolean bIncludeEnd) {
+		int i = intervals.findInnermost(offset, bIncludeEnd ? 1 : 0);
+		return i == -1 ? null : get(i);
+	}
+
+	/** Return the annotation ranging exactly from <code>begin</code> to <code>end</code>, or null */
+	public TypeAnnotation find(int begin, int end) {
+		int i = intervals.find(begin, end - 1);
+		return i == -1 ? null : get(i);
+	}
+}
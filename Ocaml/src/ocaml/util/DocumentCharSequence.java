@@ -0,0 +1,169 @@
+package ocaml.util;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension4;
+
+/**
+ * A read-only view over (a part of) a document, which reads the characters from the document as they
+ * are needed instead of copying the whole text with {@link IDocument#get()}.
+ * <p>
+ * The characters are read by chunks, so that scanning the text forward or backward from an offset only
+ * costs a few small copies. If <code>bAsciiOnly</code> is set, the extended characters (above 127) are
+ * replaced by underscores on the fly, since they would otherwise crash the OCaml parser.
+ * <p>
+ * The view is only valid as long as the document isn't modified: a view used outside of the
+ * user-interface thread must check {@link #isValid()} once it has finished reading, and discard what
+ * it computed if the document was modified in the meantime.
+ */
+public class DocumentCharSequence implements CharSequence {
+
+	/** The number of characters read from the document at once */
+	private static final int CHUNK_SIZE = 4096;
+
+	private final IDocument document;
+	private final int offset;
+	private final int length;
+	private final boolean bAsciiOnly;
+	private final long modificationStamp;
+
+	/** The last chunk read from the document, and the index of its first character in this sequence */
+	private String chunk = "";
+	private int chunkStart = 0;
+
+	/** A view over the whole document */
+	public DocumentCharSequence(IDocument document) {
+		this(document, 0, document.getLength(), false);
+	}
+
+	/** A view over the whole document, with the extended characters replaced if <code>bAsciiOnly</code> */
+	public DocumentCharSequence(IDocument document, boolean bAsciiOnly) {
+		this(document, 0, document.getLength(), bAsciiOnly);
+	}
+
+	/** A view over the characters of the document from <code>offset</code> to <code>offset + length</code> */
+	public DocumentCharSequence(IDocument document, int offset, int length, boolean bAsciiOnly) {
+		this.document = document;
+		this.offset = offset;
+		this.length = length;
+		this.bAsciiOnly = bAsciiOnly;
+		this.modificationStamp = Misc.getModificationStamp(document);
+	}
+
+	/**
+	 * Whether the document wasn't modified since this view was created (always true if the document
+	 * doesn't have modification stamps).
+	 */
+	public boolean isValid() {
+		return modificationStamp == IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP
+				|| modificationStamp == Misc.getModificationStamp(document);
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public char charAt(int index) {
+		if (index < 0 || index >= length)
+			throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+
+		if (index < chunkStart || index >= chunkStart + chunk.length()) {
+			// we are going backward: read the chunk which ends at this index
+			if (index < chunkStart)
+				readChunk(Math.max(0, index - CHUNK_SIZE + 1));
+			else
+				readChunk(index);
+		}
+
+		char c = chunk.charAt(index - chunkStart);
+		if (bAsciiOnly && c > 127)
+			return '_';
+		return c;
+	}
+
+	private void readChunk(int start) {
+		int chunkLength = Math.min(CHUNK_SIZE, length - start);
+		try {
+			chunk = document.get(offset + start, chunkLength);
+			chunkStart = start;
+		} catch (BadLocationException e) {
+			// the document was modified while we were reading it
+			throw new IndexOutOfBoundsException("the document was modified");
+		}
+	}
+
+	public CharSequence subSequence(int start, int end) {
+		if (start < 0 || end > length || start > end)
+			throw new IndexOutOfBoundsException("range " + start + "-" + end + ", length " + length);
+		return new DocumentCharSequence(document, offset + start, end - start, bAsciiOnly);
+	}
+
+	/** Copy the characters of this view into a string */
+	@Override
+	public String toString() {
+		return substring(0, length);
+	}
+
+	/** Copy the characters from <code>start</code> to <code>end</code> into a string */
+	public String substring(int start, int end) {
+		if (start < 0 || end > length || start > end)
+			throw new IndexOutOfBoundsException("range " + start + "-" + end + ", length " + length);
+
+		String text;
+		try {
+			text = document.get(offset + start, end - start);
+		} catch (BadLocationException e) {
+			throw new IndexOutOfBoundsException("the document was modified");
+		}
+
+		if (!bAsciiOnly)
+			return text;
+
+		char[] chars = text.toCharArray();
+		for (int i = 0; i < chars.length; i++)
+			if (chars[i] > 127)
+				chars[i] = '_';
+		return new String(chars);
+	}
+
+	/**
+	 * Return a reader over this view, to feed the JFlex scanners without copying the document into a
+	 * string first. The reader only throws an {@link IOException} if the document became shorter than
+	 * this view: check {@link #isValid()} once it has been read to detect the other modifications.
+	 */
+	public Reader getReader() {
+		return new Reader() {
+			private int position = 0;
+
+			@Override
+			public int read(char[] buffer, int bufferOffset, int count) throws IOException {
+				if (position >= length)
+					return -1;
+
+				int n = Math.min(count, Math.min(CHUNK_SIZE, length - position));
+				String text;
+				try {
+					text = document.get(offset + position, n);
+				} catch (BadLocationException e) {
+					throw new IOException("the document was modified while it was being read");
+				}
+
+				text.getChars(0, n, buffer, bufferOffset);
+				if (bAsciiOnly)
+					for (int i = bufferOffset; i < bufferOffset + n; i++)
+						if (buffer[i] > 127)
+							buffer[i] = '_';
+
+				position += n;
+				return n;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+}
@@ -1,16 +1,17 @@
 package ocaml.util;
 
-import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -106,22 +107,15 @@ public class FileUtil {
 		logMsg = logMsg + "filepath: " + filepath + "\n";
 		logMsg = logMsg + "offset: " + String.valueOf(offset) + "\n";
 		try {
-			int count = 0;
-			int line = 1;
-			int newlineOffset = 0;
 			File f = new File(filepath);
-			BufferedReader bfr = new BufferedReader(new FileReader(f));
-			while (count < offset) {
-				if (!bfr.ready())
-					break;
-				int ch = bfr.read();
-				count++;
-				if (ch == 10) {
-					line++;
-					newlineOffset = count - 1;
-				}
-			}
-			bfr.close();
+			if (!f.isFile())
+				return null;
+			// the lines of the file are kept by the index
+			LineOffsetIndex lineOffsets = LineOffsetIndex.getInstance();
+			int line = lineOffsets.getLine(f, null, offset);
+			if (line == 0)
+				return null;
+			int newlineOffset = line > 1 ? lineOffsets.getLineOffset(f, null, line) - 1 : 0;
 			position.add(line);
 			int column = offset - newlineOffset;
 			position.add(column);
@@ -240,4 +234,33 @@ public class FileUtil {
 		outputStream.flush();
 		outputStream.close();
 	}
+
+	/**
+	 * Compute the MD5 digest of a file, reading it directly from the file system (not through the
+	 * workspace).
+	 * 
+	 * @return the digest, or <code>null</code> if the file doesn't exist or can't be read
+	 */
+	public static byte[] digest(File file) {
+		if (file == null || !file.isFile())
+			return null;
+
+		InputStream inputStream = null;
+		try {
+			MessageDigest digest = MessageDigest.getInstance("MD5");
+			inputStream = new FileInputStream(file);
+			byte[] bytes = new byte[1 << 16];
+			int read;
+			while ((read = inputStream.read(bytes)) != -1)
+				digest.update(bytes, 0, read);
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			OcamlPlugin.logError("Error computing the digest of " + file.getName(), e);
+			return null;
+		} catch (IOException e) {
+			return null;
+		} finally {
+			closeResource(inputStream);
+		}
+	}
 }
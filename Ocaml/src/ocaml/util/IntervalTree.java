@@ -0,0 +1,151 @@
+package ocaml.util;
+
+import java.util.Arrays;
+
+/**
+ * A static interval tree over integer intervals (their start and end are included), to find the
+ * intervals containing a point in a logarithmic time.
+ * <p>
+ * The intervals are sorted by their start, and form an implicit balanced binary tree in which each
+ * node knows the greatest end in its subtree. The intervals are designated by their number (their
+ * index in the arrays given to the constructor).
+ */
+public class IntervalTree {
+
+	/** The starts of the intervals, in increasing order */
+	private final int[] starts;
+	private final int[] ends;
+	/** The number of each interval in the sorted arrays */
+	private final int[] items;
+	private final int[] maxEnds;
+
+	/** The position of each interval in the sorted arrays */
+	private final int[] positions;
+
+	public IntervalTree(int[] intervalStarts, int[] intervalEnds) {
+		int n = intervalStarts.length;
+
+		// sort the numbers by start (the numbers fit in the low 32 bits), keeping their order
+		long[] keys = new long[n];
+		for (int i = 0; i < n; i++)
+			keys[i] = ((long) intervalStarts[i] << 32) | i;
+		Arrays.sort(keys);
+
+		starts = new int[n];
+		ends = new int[n];
+		items = new int[n];
+		positions = new int[n];
+		for (int i = 0; i < n; i++) {
+			int item = (int) keys[i];
+			starts[i] = intervalStarts[item];
+			ends[i] = intervalEnds[item];
+			items[i] = item;
+			positions[item] = i;
+		}
+
+		maxEnds = new int[n];
+		computeMaxEnds(0, n);
+	}
+
+	private int computeMaxEnds(int low, int high) {
+		if (low >= high)
+			return Integer.MIN_VALUE;
+		int middle = (low + high) >>> 1;
+		int max = Math.max(ends[middle], Math.max(computeMaxEnds(low, middle), computeMaxEnds(
+				middle + 1, high)));
+		maxEnds[middle] = max;
+		return max;
+	}
+
+	/** The number of intervals */
+	public int size() {
+		return starts.length;
+	}
+
+	public int getStart(int item) {
+		return starts[positions[item]];
+	}
+
+	public int getEnd(int item) {
+		return ends[positions[item]];
+	}
+
+	/**
+	 * Return the numbers of the intervals which contain <code>point</code>, in the order of their
+	 * start
+	 *
+	 * @param endTolerance
+	 *            also accept the intervals which end this number of units before the point
+	 */
+	public int[] findContaining(int point, int endTolerance) {
+		Matches matches = new Matches();
+		query(0, starts.length, point, endTolerance, matches);
+		return Arrays.copyOf(matches.items, matches.size);
+	}
+
+	/**
+	 * Return the number of the shortest interval which contains <code>point</code> (the first one in
+	 * the order of their numbers if several have the same length), or -1
+	 */
+	public int findInnermost(int point, int endTolerance) {
+		int best = -1;
+		for (int item : findContaining(point, endTolerance)) {
+			if (best == -1) {
+				best = item;
+				continue;
+			}
+			long length = (long) getEnd(item) - getStart(item);
+			long bestLength = (long) getEnd(best) - getStart(best);
+			if (length < bestLength || length == bestLength && item < best)
+				best = item;
+		}
+		return best;
+	}
+
+	/** Return the number of an interval from <code>start</code> to <code>end</code>, or -1 */
+	public int find(int start, int end) {
+		int low = 0;
+		int high = starts.length;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (starts[middle] < start)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+
+		for (int i = low; i < starts.length && starts[i] == start; i++)
+			if (ends[i] == end)
+				return items[i];
+		return -1;
+	}
+
+	private void query(int low, int high, int point, int endTolerance, Matches matches) {
+		if (low >= high)
+			return;
+		int middle = (low + high) >>> 1;
+		// no interval of this subtree goes up to the point
+		if ((long) maxEnds[middle] + endTolerance < point)
+			return;
+
+		query(low, middle, point, endTolerance, matches);
+
+		if (starts[middle] <= point) {
+			if ((long) ends[middle] + endTolerance >= point)
+				matches.add(items[middle]);
+			query(middle + 1, high, point, endTolerance, matches);
+		}
+	}
+
+	/** A growable list of interval numbers */
+	private static class Matches {
+		int[] items = new int[8];
+		int size = 0;
+
+		void add(int item) {
+			if (size == items.length)
+				items = Arrays.copyOf(items, size * 2);
+			items[size++] = item;
+		}
+	}
+}
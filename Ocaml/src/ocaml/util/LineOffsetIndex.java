@@ -0,0 +1,214 @@
+package ocaml.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ocaml.OcamlPlugin;
+
+import org.eclipse.core.resources.IFile;
+import org.eclipse.core.resources.IResource;
+import org.eclipse.core.resources.IResourceChangeEvent;
+import org.eclipse.core.resources.IResourceChangeListener;
+import org.eclipse.core.resources.IResourceDelta;
+import org.eclipse.core.resources.IResourceDeltaVisitor;
+import org.eclipse.core.runtime.CoreException;
+import org.eclipse.core.runtime.IPath;
+
+/**
+ * Converts between the lines and the offsets (in characters) of files, with the offsets of the beginnings of
+ * their lines, read once and kept for the most recently used files. So, the markers of a build or the
+ * positions of a call stack don't read the file again for each position.<br>
+ * The lines of a file are read again when its time stamp or its size changes, and forgotten when the file
+ * changes in the workspace.
+ */
+public class LineOffsetIndex implements IResourceChangeListener {
+
+	private static LineOffsetIndex instance;
+
+	public static synchronized LineOffsetIndex getInstance() {
+		if (instance == null)
+			instance = new LineOffsetIndex();
+		return instance;
+	}
+
+	/** The maximum number of files whose lines are kept */
+	private static final int MAX_FILES = 256;
+
+	/** The lines of a file, as it was when it was read */
+	private static class Lines {
+		final long lastModified;
+		final long length;
+		final String charset;
+		/** The offset of the beginning of each line: starts[0] is 0 */
+		final int[] starts;
+		/** The number of characters in the file */
+		final int nChars;
+
+		Lines(long lastModified, long length, String charset, int[] starts, int nChars) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.charset = charset;
+			this.starts = starts;
+			this.nChars = nChars;
+		}
+	}
+
+	/** The lines of the files, by their absolute path, from the least recently used */
+	private final LinkedHashMap<String, Lines> files = new LinkedHashMap<String, Lines>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Lines> eldest) {
+			return size() > MAX_FILES;
+		}
+	};
+
+	private LineOffsetIndex() {
+	}
+
+	/**
+	 * The offset of the beginning of the line <code>lineNumber</code> (starting from 1) of a file of the
+	 * workspace, read with its encoding. The number of characters in the file if it has less lines.
+	 */
+	public int getLineOffset(IFile file, int lineNumber) {
+		IPath location = file.getLocation();
+		if (location == null)
+			return 0;
+		String charset = null;
+		try {
+			charset = file.getCharset();
+		} catch (CoreException e) {
+			OcamlPlugin.logError("error in LineOffsetIndex:getLineOffset", e);
+		}
+		return getLineOffset(location.toFile(), charset, lineNumber);
+	}
+
+	/**
+	 * The offset of the beginning of the line <code>lineNumber</code> (starting from 1) of a file. The number
+	 * of characters in the file if it has less lines.
+	 *
+	 * @param charset
+	 *            the encoding of the file, or <code>null</code> for the default encoding
+	 * @return the offset, or 0 if the file couldn't be read
+	 */
+	public int getLineOffset(File file, String charset, int lineNumber) {
+		Lines lines = getLines(file, charset);
+		if (lines == null || lineNumber <= 1)
+			return 0;
+		if (lineNumber - 1 < lines.starts.length)
+			return lines.starts[lineNumber - 1];
+		return lines.nChars;
+	}
+
+	/**
+	 * The line (starting from 1) which contains the character at <code>offset</code> in a file.
+	 *
+	 * @param charset
+	 *            the encoding of the file, or <code>null</code> for the default encoding
+	 * @return the line, or 0 if the file couldn't be read
+	 */
+	public int getLine(File file, String charset, int offset) {
+		Lines lines = getLines(file, charset);
+		if (lines == null)
+			return 0;
+		int index = Arrays.binarySearch(lines.starts, offset);
+		// the number of lines which start at or before offset
+		return index >= 0 ? index + 1 : -index - 1;
+	}
+
+	private Lines getLines(File file, String charset) {
+		if (charset == null)
+			charset = Charset.defaultCharset().name();
+		String path = file.getAbsolutePath();
+		long lastModified = file.lastModified();
+		long length = file.length();
+
+		synchronized (this) {
+			Lines lines = files.get(path);
+			if (lines != null && lines.lastModified == lastModified && lines.length == length
+					&& lines.charset.equals(charset))
+				return lines;
+		}
+
+		// read outside of the lock: the markers of several files can be created at the same time
+		Lines lines = readLines(file, charset, lastModified, length);
+		if (lines != null) {
+			synchronized (this) {
+				files.put(path, lines);
+			}
+		}
+		return lines;
+	}
+
+	private static Lines readLines(File file, String charset, long lastModified, long length) {
+		int[] starts = new int[64];
+		int nLines = 1;
+		int nChars = 0;
+
+		Reader reader = null;
+		try {
+			reader = new InputStreamReader(new FileInputStream(file), charset);
+			char[] buffer = new char[1 << 16];
+			int read;
+			while ((read = reader.read(buffer)) != -1) {
+				for (int i = 0; i < read; i++) {
+					if (buffer[i] == '\n') {
+						if (nLines == starts.length)
+							starts = Arrays.copyOf(starts, nLines * 2);
+						starts[nLines++] = nChars + i + 1;
+					}
+				}
+				nChars += read;
+			}
+		} catch (IOException e) {
+			OcamlPlugin.logError("error in LineOffsetIndex:readLines: couldn't read " + file.getPath(), e);
+			return null;
+		} finally {
+			FileUtil.closeResource(reader);
+		}
+
+		return new Lines(lastModified, length, charset, Arrays.copyOf(starts, nLines), nChars);
+	}
+
+	/** Forget the lines of the files which changed in the workspace */
+	public void resourceChanged(IResourceChangeEvent event) {
+		IResourceDelta delta = event.getDelta();
+		if (delta == null)
+			return;
+
+		try {
+			delta.accept(new IResourceDeltaVisitor() {
+				public boolean visit(IResourceDelta delta) {
+					IResource resource = delta.getResource();
+					if (resource.getType() != IResource.FILE)
+						return true;
+
+					if (delta.getKind() == IResourceDelta.CHANGED
+							&& (delta.getFlags() & (IResourceDelta.CONTENT | IResourceDelta.ENCODING)) == 0)
+						return false;
+
+					IPath location = resource.getLocation();
+					if (location != null) {
+						synchronized (LineOffsetIndex.this) {
+							files.remove(location.toFile().getAbsolutePath());
+						}
+					}
+					return false;
+				}
+			});
+		} catch (CoreException e) {
+			OcamlPlugin.logError("error while updating the line offsets index", e);
+		}
+	}
+
+	public synchronized void dispose() {
+		files.clear();
+	}
+}
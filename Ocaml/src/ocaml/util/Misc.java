@@ -4,6 +4,7 @@ import java.io.File;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
 
@@ -18,7 +19,9 @@ import org.eclipse.core.resources.IFolder;
 import org.eclipse.core.resources.IProject;
 import org.eclipse.core.resources.IResource;
 import org.eclipse.core.resources.IResourceVisitor;
+import org.eclipse.core.resources.IWorkspaceRunnable;
 import org.eclipse.core.resources.ProjectScope;
+import org.eclipse.core.resources.ResourcesPlugin;
 import org.eclipse.core.runtime.CoreException;
 import org.eclipse.core.runtime.IPath;
 import org.eclipse.core.runtime.IProgressMonitor;
@@ -26,6 +29,8 @@ import org.eclipse.core.runtime.Path;
 import org.eclipse.core.runtime.Platform;
 import org.eclipse.core.runtime.QualifiedName;
 import org.eclipse.jface.resource.ImageDescriptor;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension4;
 import org.eclipse.jface.util.IPropertyChangeListener;
 import org.eclipse.jface.util.PropertyChangeEvent;
 import org.eclipse.swt.SWT;
@@ -478,6 +483,29 @@ public class Misc {
 		}
 	}
 
+	/**
+	 * Refresh only the given files (not their folders), in one workspace operation, so that only one
+	 * resource change event is sent. The files which don't exist in the file system anymore are removed from
+	 * the workspace.
+	 */
+	public static void refreshFiles(final Collection<IFile> files, IProgressMonitor monitor) {
+		if (files.isEmpty())
+			return;
+		try {
+			ResourcesPlugin.getWorkspace().run(new IWorkspaceRunnable() {
+				public void run(IProgressMonitor monitor) throws CoreException {
+					for (IFile file : files) {
+						// the folder of the file may have been removed in the meantime
+						if (file.getParent().exists())
+							file.refreshLocal(IResource.DEPTH_ZERO, null);
+					}
+				}
+			}, monitor);
+		} catch (CoreException e) {
+			OcamlPlugin.logError("Misc:refreshFiles", e);
+		}
+	}
+
 	/**
 	 * Create an icon from a filename
 	 * 
@@ -570,6 +598,16 @@ public class Misc {
 	public static String CRLFtoLF(String str){
 		return str.replace("\r", "");
 	}
+
+	/**
+	 * Return the modification stamp of the document, or
+	 * {@link IDocumentExtension4#UNKNOWN_MODIFICATION_STAMP} if the document doesn't have one.
+	 */
+	public static long getModificationStamp(IDocument document) {
+		if (document instanceof IDocumentExtension4)
+			return ((IDocumentExtension4) document).getModificationStamp();
+		return IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP;
+	}
 	
 	private static HashSet<String> keywordsHashset;
 	
@@ -0,0 +1,128 @@
+package ocaml.views.outline;
+
+import ocaml.OcamlPlugin;
+
+import org.eclipse.jface.text.BadLocationException;
+import org.eclipse.jface.text.DocumentEvent;
+import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentListener;
+
+/**
+ * Records the lines of a document which were modified since the last time the outline was built, so
+ * that the outline job can reparse only the top-level definitions touched by the edits.
+ * <p>
+ * All the edits are merged into a single range of lines: <code>firstLine</code> is the first
+ * modified line, <code>oldLastLine</code> the last modified line in the document as it was when
+ * it was last parsed, and <code>newLastLine</code> the same line in the current document. Lines
+ * outside this range are unchanged (but the lines after it are shifted by
+ * <code>newLastLine - oldLastLine</code>).
+ */
+public class DocumentDamage implements IDocumentListener {
+
+	/** A snapshot of the damaged lines, taken by the outline job before it starts parsing */
+	public static class Region {
+		/** There were no edits since the last parse */
+		public final boolean bEmpty;
+		/** The edits since the last parse are not known: the whole document must be reparsed */
+		public final boolean bUnknown;
+		public final int firstLine;
+		public final int oldLastLine;
+		public final int newLastLine;
+		private final long editCount;
+
+		private Region(boolean bEmpty, boolean bUnknown, int firstLine, int oldLastLine,
+				int newLastLine, long editCount) {
+			this.bEmpty = bEmpty;
+			this.bUnknown = bUnknown;
+			this.firstLine = firstLine;
+			this.oldLastLine = oldLastLine;
+			this.newLastLine = newLastLine;
+			this.editCount = editCount;
+		}
+
+		/** The number of lines added (if positive) or removed (if negative) by the edits */
+		public int getLineDelta() {
+			return newLastLine - oldLastLine;
+		}
+	}
+
+	private boolean bEmpty = true;
+	private boolean bUnknown = true;
+	private int firstLine;
+	private int oldLastLine;
+	private int newLastLine;
+
+	/** The number of edits received since this object was created */
+	private long editCount = 0;
+
+	/** The lines replaced by the edit being processed (computed before the document changes) */
+	private int editFirstLine;
+	private int editLastLine;
+
+	public synchronized void documentAboutToBeChanged(DocumentEvent event) {
+		IDocument document = event.getDocument();
+		try {
+			editFirstLine = document.getLineOfOffset(event.getOffset());
+			editLastLine = document.getLineOfOffset(event.getOffset() + event.getLength());
+		} catch (BadLocationException e) {
+			OcamlPlugin.logError("bad location while recording outline damage", e);
+			editFirstLine = -1;
+		}
+	}
+
+	public synchronized void documentChanged(DocumentEvent event) {
+		editCount++;
+
+		if (bUnknown)
+			return;
+
+		if (editFirstLine < 0) {
+			bUnknown = true;
+			return;
+		}
+
+		String text = event.getText();
+		int insertedLines = text == null ? 0 : event.getDocument().computeNumberOfLines(text);
+
+		if (bEmpty) {
+			firstLine = editFirstLine;
+			oldLastLine = editLastLine;
+			newLastLine = editLastLine;
+			bEmpty = false;
+		}
+
+		/*
+		 * Merge this edit with the previous ones. The lines outside of the damaged range map one
+		 * to one to the lines of the last parsed document, so we only have to grow the range.
+		 */
+		int lastLine = Math.max(newLastLine, editLastLine);
+		oldLastLine += lastLine - newLastLine;
+		firstLine = Math.min(firstLine, editFirstLine);
+		newLastLine = lastLine + insertedLines - (editLastLine - editFirstLine);
+	}
+
+	/**
+	 * Return the lines damaged since the last call, and start recording the damage relative to the
+	 * current state of the document.
+	 */
+	public synchronized Region take() {
+		Region region = new Region(bEmpty, bUnknown, firstLine, oldLastLine, newLastLine,
+				editCount);
+		bEmpty = true;
+		bUnknown = false;
+		return region;
+	}
+
+	/**
+	 * Forget the recorded damage: the next region returned by {@link #take()} will be unknown, so
+	 * that the whole document is reparsed.
+	 */
+	public synchronized void reset() {
+		bUnknown = true;
+	}
+
+	/** Whether the document was not modified since <code>region</code> was taken */
+	public synchronized boolean unchangedSince(Region region) {
+		return editCount == region.editCount;
+	}
+}
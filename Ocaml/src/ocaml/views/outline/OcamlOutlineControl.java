@@ -3,6 +3,7 @@ package ocaml.views.outline;
 import ocaml.OcamlPlugin;
 import ocaml.editors.OcamlEditor;
 import ocaml.parser.Def;
+import ocaml.parser.DefPositionIndex;
 import ocaml.preferences.PreferenceConstants;
 import ocaml.util.ImageRepository;
 
@@ -274,22 +275,25 @@ public final class OcamlOutlineControl extends ContentOutlinePage {
 			expandChosenElementsAux(viewer, child);
 	}
 
+	/** The index of the positions of the elements of the outline (built for the current input) */
+	private DefPositionIndex positionIndex;
+	private Def indexedInput;
+
 	/**
-	 * Recursively search for the element which is on line number <code>line</code>.
+	 * Search for the element which is on line number <code>line</code>.
 	 * 
 	 * @return the element if it exists or <code>null</code>.
 	 */
 	private Def findElementAt(Def def, int line, int column) {
-		if (Def.getLine(def.posStart) == line && Def.getColumn(def.posStart) <= column
-				&& Def.getColumn(def.posEnd) >= column - 1)
-			return def;
-
-		for (Def d : def.children) {
-			Def element = findElementAt(d, line, column);
-			if (element != null)
-				return element;
+		if (positionIndex == null || indexedInput != def) {
+			positionIndex = DefPositionIndex.forPositions(def);
+			indexedInput = def;
 		}
 
+		// the name can end right before the caret
+		Def element = positionIndex.findAt((line << 12) | column, null, 1);
+		if (element != null && Def.getLine(element.posStart) == line)
+			return element;
 		return null;
 	}
 
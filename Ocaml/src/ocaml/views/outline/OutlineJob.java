@@ -3,11 +3,12 @@ package ocaml.views.outline;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Reader;
 import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.Hashtable;
+import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -17,10 +18,14 @@ import ocaml.parser.Def;
 import ocaml.parser.ErrorReporting;
 import ocaml.parser.OcamlParser;
 import ocaml.parser.OcamlScanner;
+import ocaml.parser.ParseResultService;
+import ocaml.parser.ParseResultService.ParseResult;
 import ocaml.parsers.Camlp4Preprocessor;
 import ocaml.preferences.PreferenceConstants;
 import ocaml.typeHovers.OcamlAnnotParser;
 import ocaml.typeHovers.TypeAnnotation;
+import ocaml.typeHovers.TypeAnnotationIndex;
+import ocaml.util.DocumentCharSequence;
 import ocaml.util.Misc;
 
 import org.eclipse.core.resources.IFile;
@@ -35,10 +40,13 @@ import org.eclipse.jface.preference.IPreferenceStore;
 import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.Document;
 import org.eclipse.jface.text.IDocument;
+import org.eclipse.jface.text.IDocumentExtension4;
 import org.eclipse.jface.text.IRegion;
 import org.eclipse.swt.widgets.Display;
 import org.eclipse.ui.texteditor.MarkerUtilities;
 
+import beaver.Parser;
+
 /**
  * This job is used to rebuild the outline in a low-priority thread, so as to not slow down
  * everything else.
@@ -60,7 +68,36 @@ public class OutlineJob extends Job {
 
 	private OcamlEditor editor;
 
+	/** The lines modified in the document since the last parse */
+	private final DocumentDamage damage = new DocumentDamage();
+
+	/**
+	 * The definitions tree built by the last successful parse (without syntax errors), which is
+	 * used as a base for the incremental reparsing. <code>null</code> if there is none.
+	 */
+	private Def lastRoot = null;
+
+	/** The line on which each top-level definition of <code>lastRoot</code> starts */
+	private int[] lastDefinitionLines = null;
+
+	/** The number of incremental parses since the last full parse */
+	private int nIncrementalParses = 0;
+
+	/** Reparse the whole document after this number of incremental parses, to be on the safe side */
+	private static final int MAX_INCREMENTAL_PARSES = 50;
+
+	/** The keywords with which a top-level definition can start */
+	private static final String[] definitionKeywords = { "let", "type", "module", "open",
+			"include", "exception", "external", "class", "val" };
+
 	public void setDoc(IDocument doc) {
+		if (doc != this.doc) {
+			if (this.doc != null)
+				this.doc.removeDocumentListener(damage);
+			if (doc != null)
+				doc.addDocumentListener(damage);
+			damage.reset();
+		}
 		this.doc = doc;
 	}
 
@@ -94,11 +131,58 @@ public class OutlineJob extends Job {
 		if (filePath == null)
 			return Status.CANCEL_STATUS;
 
-		String strDocument = doc.get();
+		String extension = filePath.getFileExtension();
+
+		DocumentDamage.Region damagedLines = damage.take();
+		long stamp = Misc.getModificationStamp(doc);
 
-		Camlp4Preprocessor preprocessor = new Camlp4Preprocessor(strDocument);
+		/*
+		 * If the document was already parsed in this state (by the job of another editor opened on
+		 * the same document for example), reuse this result instead of parsing it again
+		 */
+		ParseResult sharedResult = ParseResultService.getInstance().getCurrentResult(doc);
+		if (sharedResult != null && sharedResult.getModificationStamp() == stamp
+				&& stamp != IDocumentExtension4.UNKNOWN_MODIFICATION_STAMP) {
+			Def root = sharedResult.getDefinitions();
+			// we don't know how this tree was built (maybe from a camlp4 output)
+			if (root != lastRoot) {
+				lastRoot = null;
+				lastDefinitionLines = null;
+			}
+			updateOutline(file, root, sharedResult.getErrors());
+			return Status.OK_STATUS;
+		}
+
+		if (lastRoot != null
+				&& nIncrementalParses < MAX_INCREMENTAL_PARSES
+				&& OcamlPlugin.getInstance().getPreferenceStore().getBoolean(
+						PreferenceConstants.P_OUTLINE_INCREMENTAL_PARSING)) {
+			Def root = reparseDamagedDefinitions(damagedLines, extension);
+			if (root != null) {
+				List<ErrorReporting.Error> errors = new ArrayList<ErrorReporting.Error>();
+				publishResult(root, errors, stamp, damagedLines);
+				updateOutline(file, root, errors);
+				return Status.OK_STATUS;
+			}
+		}
+
+		lastRoot = null;
+		lastDefinitionLines = null;
+
+		/*
+		 * Read the document through a view instead of copying it, and "sanitize" it on the fly by
+		 * replacing extended characters, which otherwise would crash the parser. A copy is only made
+		 * when the document must be preprocessed by camlp4.
+		 */
+		DocumentCharSequence documentText = new DocumentCharSequence(doc, true);
+		String strSource = null;
+		String strDocument = null;
+
+		Camlp4Preprocessor preprocessor = new Camlp4Preprocessor(new DocumentCharSequence(doc));
 
 		if (preprocessor.mustPreprocess()) {
+			strSource = doc.get();
+			strDocument = strSource;
 			// if (true) {
 			// System.err.println("preprocessing");
 
@@ -204,35 +288,19 @@ public class OutlineJob extends Job {
 			strDocument = preprocessor.getOutput();
 
 			// System.err.println(output);
-		}
-
-		/*
-		 * "Sanitize" the document by replacing extended characters, which otherwise would crash the
-		 * parser
-		 */
-		// final StringBuilder str = new StringBuilder();
-		// System.err.println("sanitizing");
-		char[] sanitizedDocument = null;
-		try {
-			sanitizedDocument = new char[strDocument.length()];
-
-			for (int i = 0; i < strDocument.length(); i++) {
-				char c = strDocument.charAt(i);
 
-				// replace it by an underscore
-				if (c > 127)
-					c = '_';
-				sanitizedDocument[i] = c;
+			// final StringBuilder str = new StringBuilder();
+			// System.err.println("sanitizing");
+			try {
+				strDocument = sanitize(strDocument);
+			} catch (OutOfMemoryError e) {
+				OcamlPlugin.logError("Not enough memory to parse the file " + filePath.toOSString(), e);
+				return Status.CANCEL_STATUS;
 			}
-
-			strDocument = String.copyValueOf(sanitizedDocument);
-			sanitizedDocument = null;
-		} catch (OutOfMemoryError e) {
-			OcamlPlugin.logError("Not enough memory to parse the file " + filePath.toOSString(), e);
-			return Status.CANCEL_STATUS;
 		}
 
-		final StringReader in = new StringReader(strDocument);
+		final Reader in = strDocument != null ? new StringReader(strDocument) : documentText
+				.getReader();
 		final OcamlScanner scanner = new OcamlScanner(in);
 
 		// Symbol s;
@@ -262,14 +330,7 @@ public class OutlineJob extends Job {
 
 		Def root = null;
 		try {
-			String extension = filePath.getFileExtension();
-
-			if ("ml".equals(extension))
-				root = (Def) parser.parse(scanner);
-			else if ("mli".equals(extension))
-				root = (Def) parser.parse(scanner, OcamlParser.AltGoals.interfaces);
-			else if (!("ml4".equals(extension) || "mlp".equals(extension)))
-				OcamlPlugin.logError(extension + " file extension has no associated parser.");
+			root = parse(parser, scanner, extension);
 		} catch (Throwable e) {
 			// OcamlPlugin.logError("error while parsing", e);
 			// System.out.println("unrecoverable syntax error");
@@ -278,13 +339,22 @@ public class OutlineJob extends Job {
 
 		// for(long i = 0; i < 1000000000l; i++);
 
+		/*
+		 * The document was modified while we were parsing it: the result is meaningless, and the
+		 * outline will be rebuilt anyway
+		 */
+		if (!preprocessor.mustPreprocess() && !documentText.isValid())
+			return Status.CANCEL_STATUS;
+
 		/*
 		 * recover pieces from the AST (which couldn't be built completely because of an
 		 * unrecoverable error)
 		 */
+		boolean bRecovered = false;
 		if (root == null || !parser.errorReporting.errors.isEmpty()) {
 			// System.err.println("recovering");
 			// System.err.println("recovering AST");
+			bRecovered = true;
 			root = new Def("root", Def.Type.Root, 0, 0);
 
 			for (Def def : parser.recoverDefs)
@@ -305,7 +375,7 @@ public class OutlineJob extends Job {
 			ArrayList<Camlp4Preprocessor.Camlp4Location> camlp4Locations = preprocessor
 					.parseCamlp4Locations(this.doc, document);
 
-			preprocessor.associateCamlp4Locations(this.doc, this.doc.get(), document,
+			preprocessor.associateCamlp4Locations(this.doc, strSource, document,
 					camlp4Locations, root, monitor);
 		}
 
@@ -316,11 +386,63 @@ public class OutlineJob extends Job {
 			cleanTree(root);
 		}
 
+		root.setInInAttribute();
+
+		/*
+		 * Keep this tree as a base for the next incremental parse, if the parse succeeded and the
+		 * document wasn't modified in the meantime
+		 */
+		if (!bRecovered && !preprocessor.mustPreprocess() && damage.unchangedSince(damagedLines)) {
+			lastRoot = root;
+			lastDefinitionLines = getDefinitionLines(root);
+			nIncrementalParses = 0;
+		}
+
+		publishResult(root, parser.errorReporting.errors, stamp, damagedLines);
+
+		updateOutline(file, root, parser.errorReporting.errors);
+
+		// long after = System.currentTimeMillis();
+		// root.clean();
+		// root.print(0);
+
+		// System.out.println("built outline in " + (after - before) + " ms");
+		// if(parser.errorReporting.bErrors)
+		// System.out.println("Syntax errors reported");
+
+		return Status.OK_STATUS;
+	}
+
+	/**
+	 * Share the definitions tree with the other consumers of this document, if the document wasn't
+	 * modified since we started parsing it.
+	 */
+	private void publishResult(Def root, List<ErrorReporting.Error> errors, long stamp,
+			DocumentDamage.Region damagedLines) {
+		if (!damage.unchangedSince(damagedLines))
+			return;
+
+		int[] lineOffsets;
+		try {
+			lineOffsets = ParseResult.computeLineOffsets(doc);
+		} catch (BadLocationException e) {
+			OcamlPlugin.logError("bad location while computing the line offsets", e);
+			return;
+		}
+
+		if (damage.unchangedSince(damagedLines))
+			ParseResultService.getInstance().publish(doc,
+					new ParseResult(stamp, root, errors, lineOffsets));
+	}
+
+	/**
+	 * Build the outline from the definitions tree, and give it to the editor (in the user-interface
+	 * thread), along with the syntax errors found while parsing.
+	 */
+	private void updateOutline(IFile file, Def root, final List<ErrorReporting.Error> errors) {
 		final OcamlOutlineControl outline = this.outline;
 		final Def definitions = root;
 
-		definitions.setInInAttribute();
-
 		Def outlineDefinitions = definitions.cleanCopy();
 		// remove the definitions the user has chosen not to display
 		initPreferences();
@@ -328,12 +450,11 @@ public class OutlineJob extends Job {
 
 		if (file != null) {
 			/*
-			 * if the source hasn't been modified since the last compilation, try to get the types
-			 * inferred by the compiler (in a ".annot" file)
+			 * get the types inferred by the compiler (in a ".annot" file), either by the last
+			 * compilation, or by the type-checking of the modified editor contents
 			 */
-			if (!editor.isDirty()
-					&& OcamlPlugin.getInstance().getPreferenceStore().getBoolean(
-							PreferenceConstants.P_SHOW_TYPES_IN_OUTLINE))
+			if (OcamlPlugin.getInstance().getPreferenceStore().getBoolean(
+					PreferenceConstants.P_SHOW_TYPES_IN_OUTLINE))
 				addTypes(file, outlineDefinitions);
 		}
 
@@ -362,8 +483,8 @@ public class OutlineJob extends Job {
 					}
 
 					// create the error markers
-					if (parser.errorReporting != null) {
-						for (ErrorReporting.Error error : parser.errorReporting.errors) {
+					if (errors != null) {
+						for (ErrorReporting.Error error : errors) {
 							try {
 								Hashtable<String, Integer> attributes = new Hashtable<String, Integer>();
 								MarkerUtilities.setMessage(attributes, error.message);
@@ -405,16 +526,9 @@ public class OutlineJob extends Job {
 						}
 					}
 				}
-				// give the definitions tree to the editor
-				editor.setDefinitionsTree(definitions);
+				// give the outline definitions tree to the editor
 				editor.setOutlineDefinitionsTree(fOutlineDefinitions);
 
-				// to notify the hyperlink detector that the outline is
-				// available
-				synchronized (editor.outlineSignal) {
-					editor.outlineSignal.notifyAll();
-				}
-
 				if (outline != null) {
 					if (OcamlOutlineControl.bOutlineDebugButton
 							&& OcamlPlugin.getInstance().getPreferenceStore().getBoolean(
@@ -440,59 +554,214 @@ public class OutlineJob extends Job {
 
 			}
 		});
+	}
 
-		// long after = System.currentTimeMillis();
-		// root.clean();
-		// root.print(0);
+	/** Parse a document (or a part of a document) with the parser associated to this extension */
+	private static Def parse(OcamlParser parser, OcamlScanner scanner, String extension)
+			throws IOException, Parser.Exception {
+		if ("ml".equals(extension))
+			return (Def) parser.parse(scanner);
+		else if ("mli".equals(extension))
+			return (Def) parser.parse(scanner, OcamlParser.AltGoals.interfaces);
+		else if (!("ml4".equals(extension) || "mlp".equals(extension)))
+			OcamlPlugin.logError(extension + " file extension has no associated parser.");
+		return null;
+	}
 
-		// System.out.println("built outline in " + (after - before) + " ms");
-		// if(parser.errorReporting.bErrors)
-		// System.out.println("Syntax errors reported");
+	/**
+	 * "Sanitize" a document by replacing extended characters, which otherwise would crash the
+	 * parser
+	 */
+	private static String sanitize(String strDocument) {
+		char[] sanitizedDocument = new char[strDocument.length()];
 
-		return Status.OK_STATUS;
+		for (int i = 0; i < strDocument.length(); i++) {
+			char c = strDocument.charAt(i);
+
+			// replace it by an underscore
+			if (c > 127)
+				c = '_';
+			sanitizedDocument[i] = c;
+		}
+
+		return String.copyValueOf(sanitizedDocument);
 	}
 
 	/**
-	 * Add OCaml types to the definitions if a ".annot" file is present and up-to-date
+	 * Rebuild the definitions tree by reparsing only the top-level definitions which overlap the
+	 * lines modified since the last parse, and by reusing the other definitions from the previous
+	 * tree (shifted by the number of lines added or removed).
+	 * <p>
+	 * The reparsed part of the document is extended until it starts and ends on lines that begin
+	 * with a definition keyword, so that the definitions around it cannot be parsed differently
+	 * because of the edits.
+	 * 
+	 * @return the new definitions tree, or <code>null</code> if the document must be completely
+	 *         reparsed
+	 */
+	private Def reparseDamagedDefinitions(DocumentDamage.Region damagedLines, String extension) {
+		if (damagedLines.bUnknown)
+			return null;
+
+		// nothing changed since the last parse
+		if (damagedLines.bEmpty)
+			return lastRoot;
+
+		int[] lines = lastDefinitionLines;
+		int nDefinitions = lines.length;
+
+		// the edits are before the first definition (this could add a camlp4 preprocessing directive)
+		if (nDefinitions == 0 || damagedLines.firstLine < lines[0])
+			return null;
+
+		int lineDelta = damagedLines.getLineDelta();
+
+		try {
+			// the first and last definitions overlapping the damaged lines
+			int first = findDefinitionAtLine(lines, damagedLines.firstLine);
+			int last = findDefinitionAtLine(lines, damagedLines.oldLastLine);
+
+			/*
+			 * Also reparse the previous definition, since the edit could have made the first
+			 * modified definition a continuation of the previous one.
+			 */
+			if (first > 0)
+				first--;
+			while (first > 0
+					&& (lines[first - 1] == lines[first] || !startsDefinition(lines[first])))
+				first--;
+
+			int next = last + 1;
+			while (next < nDefinitions
+					&& (lines[next - 1] == lines[next] || !startsDefinition(lines[next] + lineDelta)))
+				next++;
+
+			// the full parse will be as fast
+			if (2 * (next - first) > nDefinitions)
+				return null;
+
+			int startLine = first == 0 ? 0 : lines[first];
+			int startOffset = doc.getLineOffset(startLine);
+			int endOffset = next < nDefinitions ? doc.getLineOffset(lines[next] + lineDelta) : doc
+					.getLength();
+
+			DocumentCharSequence text = new DocumentCharSequence(doc, startOffset, endOffset
+					- startOffset, true);
+
+			OcamlParser parser = new OcamlParser();
+			Def partRoot = parse(parser, new OcamlScanner(text.getReader()), extension);
+
+			// the document was modified while we were reading it
+			if (!text.isValid() || !damage.unchangedSince(damagedLines))
+				return null;
+
+			if (partRoot == null || !parser.errorReporting.errors.isEmpty())
+				return null;
+
+			partRoot.buildParents();
+			partRoot.buildSiblingOffsets();
+			cleanTree(partRoot);
+			partRoot.setInInAttribute();
+			partRoot.shiftLines(startLine);
+
+			ArrayList<Def> newDefinitions = new ArrayList<Def>(partRoot.children);
+			for (int i = next; i < nDefinitions; i++)
+				newDefinitions.add(lastRoot.children.get(i).shiftedCopy(lineDelta));
+
+			/*
+			 * The previous tree was published: its nodes must not be modified, so the definitions
+			 * before the edited part are copied too.
+			 */
+			Def root = new Def(lastRoot);
+			root.children = new ArrayList<Def>(first + newDefinitions.size());
+			for (int i = 0; i < first; i++)
+				root.children.add(lastRoot.children.get(i).shiftedCopy(0));
+			root.spliceChildren(first, first, newDefinitions);
+
+			int[] newLines = getDefinitionLines(root);
+			for (int i = 1; i < newLines.length; i++)
+				if (newLines[i] < newLines[i - 1])
+					return null;
+
+			lastRoot = root;
+			lastDefinitionLines = newLines;
+			nIncrementalParses++;
+			return root;
+
+		} catch (Throwable e) {
+			// a full parse will report the errors
+			return null;
+		}
+	}
+
+	/** Return the index of the last definition which starts on or before <code>line</code> */
+	private static int findDefinitionAtLine(int[] lines, int line) {
+		int index = Arrays.binarySearch(lines, line);
+		if (index < 0)
+			return Math.max(0, -index - 2);
+		// several definitions can start on the same line
+		while (index + 1 < lines.length && lines[index + 1] == line)
+			index++;
+		return index;
+	}
+
+	/** Return the line on which each top-level definition starts */
+	private static int[] getDefinitionLines(Def root) {
+		int[] lines = new int[root.children.size()];
+		for (int i = 0; i < lines.length; i++) {
+			Def def = root.children.get(i);
+			lines[i] = Def.getLine(def.defPosStart != 0 ? def.defPosStart : def.posStart);
+		}
+		return lines;
+	}
+
+	/** Whether this line of the document begins with a keyword which starts a definition */
+	private boolean startsDefinition(int line) throws BadLocationException {
+		IRegion region = doc.getLineInformation(line);
+		String text = doc.get(region.getOffset(), region.getLength()).trim();
+
+		for (String keyword : definitionKeywords) {
+			if (text.startsWith(keyword)
+					&& (text.length() == keyword.length() || !Character
+							.isJavaIdentifierPart(text.charAt(keyword.length()))))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Add OCaml types to the definitions if a ".annot" file is present and up-to-date, or if the
+	 * editor contents have already been type-checked (they are type-checked in the background
+	 * otherwise, and the outline is rebuilt when it is done)
 	 */
 	private void addTypes(IFile file, Def root) {
 		if (file == null || root == null)
 			return;
 
-		IPath filePath = file.getFullPath();
-		File annotFile = Misc.getOtherFileFor(file.getProject(), filePath, ".annot");
-
-		if (annotFile != null && annotFile.exists()) {
-			boolean bUpToDate = filePath.toFile().lastModified() <= annotFile.lastModified();
-
-			if (bUpToDate) {
-				TypeAnnotation[] annotations;
-				try {
-					annotations = OcamlAnnotParser.parseFile(annotFile, doc);
-					Arrays.sort(annotations, new AnnotationsComparator());
-				} catch (BadLocationException e) {
-					OcamlPlugin.logError("parsing annot file for adding types in outline", e);
-					return;
-				}
-				if (annotations != null)
-					addTypeRec(annotations, root, true);
+		File annotFile = editor.getTypeAnnotFile();
 
+		if (annotFile != null) {
+			TypeAnnotationIndex annotations;
+			try {
+				annotations = OcamlAnnotParser.parseFile(annotFile, doc);
+			} catch (BadLocationException e) {
+				OcamlPlugin.logError("parsing annot file for adding types in outline", e);
+				return;
 			}
+			if (annotations != null)
+				addTypeRec(annotations, root, true);
 		}
 	}
 
-	private void addTypeRec(TypeAnnotation[] annotations, Def def, boolean root) {
+	private void addTypeRec(TypeAnnotationIndex annotations, Def def, boolean root) {
 		if (!root) {
 			IRegion region = def.getRegion(doc);
 
 			int startOffset = region.getOffset();
 			int endOffset = startOffset + region.getLength() - 1;
 
-			TypeAnnotation key = new TypeAnnotation(startOffset, endOffset + 1, "");
-			int index = Arrays.binarySearch(annotations, key, new AnnotationsComparator());
-
-			if (index >= 0) {
-				TypeAnnotation annot = annotations[index];
+			TypeAnnotation annot = annotations.find(startOffset, endOffset + 1);
+			if (annot != null) {
 				String type = annot.getType().replaceAll("\r?\n", " ");
 				def.ocamlType = type;
 			}
@@ -502,18 +771,6 @@ public class OutlineJob extends Job {
 			addTypeRec(annotations, child, false);
 	}
 
-	/** Comparator to sort TypeAnnotations */
-	class AnnotationsComparator implements Comparator<TypeAnnotation> {
-		public int compare(TypeAnnotation t1, TypeAnnotation t2) {
-			int a = t1.getBegin() - t2.getBegin();
-			if (a != 0)
-				return a;
-			else
-				return t1.getEnd() - t2.getEnd();
-		}
-
-	}
-
 	/** Collapse the "structure", "signature" and "object" nodes */
 	public static void cleanTree(Def def) {
 		if (def == null)
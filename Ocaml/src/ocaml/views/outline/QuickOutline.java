@@ -1,8 +1,15 @@
 package ocaml.views.outline;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
 import ocaml.OcamlPlugin;
 import ocaml.editors.OcamlEditor;
 import ocaml.parser.Def;
+import ocaml.parser.DefinitionsIndex;
 
 import org.eclipse.jface.dialogs.Dialog;
 import org.eclipse.jface.dialogs.IDialogSettings;
@@ -48,6 +55,16 @@ public class QuickOutline extends PopupDialog {
 	private final Object input;
 	private final OcamlEditor editor;
 
+	/** The index of the names of the elements of the outline (built when first needed) */
+	private DefinitionsIndex outlineIndex;
+	/** The parent of each element of the outline (null for the top-level elements) */
+	private IdentityHashMap<Def, Def> outlineParents;
+	/**
+	 * The elements shown with the current filter text: those which match it and their ancestors. Null
+	 * if the index can't be used for this filter text.
+	 */
+	private Set<Def> visibleElements;
+
 	public QuickOutline(Shell parent, Object input, OcamlEditor editor) {
 		super(parent, PopupDialog.INFOPOPUPRESIZE_SHELLSTYLE, true, true, true, true, true, null,
 				null);
@@ -88,6 +105,7 @@ public class QuickOutline extends PopupDialog {
 		fFilterText.addModifyListener(new ModifyListener() {
 			public void modifyText(ModifyEvent e) {
 				// refresh viewer to re-filter
+				updateVisibleElements();
 				fTreeViewer.getControl().setRedraw(false);
 				fTreeViewer.refresh();
 				fTreeViewer.expandAll();
@@ -318,6 +336,49 @@ public class QuickOutline extends PopupDialog {
 	}
 
 
+	/**
+	 * Find the elements whose name starts with the filter text in the index, and their ancestors, so
+	 * that the filter doesn't have to look into the subtree of each element.
+	 */
+	private void updateVisibleElements() {
+		String filterText = getFilterText().getText();
+		// without a space, the filter can only match the name part of a label ("name : type")
+		if (fTreeViewer == null || filterText.startsWith("*") || filterText.indexOf(' ') != -1) {
+			visibleElements = null;
+			return;
+		}
+
+		if (outlineIndex == null) {
+			ITreeContentProvider contentProvider = (ITreeContentProvider) fTreeViewer
+					.getContentProvider();
+			ArrayList<Def> elements = new ArrayList<Def>();
+			outlineParents = new IdentityHashMap<Def, Def>();
+			addElements(contentProvider, contentProvider.getElements(input), null, elements);
+			outlineIndex = new DefinitionsIndex(elements);
+		}
+
+		Set<Def> visible = Collections.newSetFromMap(new IdentityHashMap<Def, Boolean>());
+		for (Def def : outlineIndex.findByPrefix(filterText, null)) {
+			Def element = def;
+			while (element != null && visible.add(element))
+				element = outlineParents.get(element);
+		}
+		visibleElements = visible;
+	}
+
+	/** Add the outline elements recursively to <code>elements</code>, and remember their parents */
+	private void addElements(ITreeContentProvider contentProvider, Object[] children, Def parent,
+			List<Def> elements) {
+		for (Object child : children) {
+			if (child instanceof Def) {
+				Def def = (Def) child;
+				elements.add(def);
+				outlineParents.put(def, parent);
+				addElements(contentProvider, contentProvider.getChildren(def), def, elements);
+			}
+		}
+	}
+
 	/** Filters names that start with the filter, or contain it, if the filter starts with '*' */
 	private boolean matchesFilter(Object element) {
 		if(fTreeViewer == null)
@@ -357,6 +418,9 @@ public class QuickOutline extends PopupDialog {
 			if(fTreeViewer == null)
 				return true;
 			
+			if(visibleElements != null)
+				return visibleElements.contains(element);
+			
 			if(matchesFilter(element))
 				return true;
 			